@@ -0,0 +1,80 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.AllTypesRecord;
+import com.samskivert.depot.DepotRepository;
+import com.samskivert.depot.EnumKeyRecord;
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.StaticConnectionProvider;
+import com.samskivert.depot.TestCacheAdapter;
+import com.samskivert.depot.TestRecord;
+
+/**
+ * The repository on which our benchmarks operate, backed by an in-memory HSQLDB.
+ */
+public class BenchRepository extends DepotRepository
+{
+    /**
+     * Creates a persistence context for the (empty) in-memory HSQLDB with the supplied name, and a
+     * repository that operates on it.
+     */
+    public static BenchRepository create (String dbname)
+    {
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init(dbname, StaticConnectionProvider.forTest(dbname), new TestCacheAdapter());
+        return new BenchRepository(ctx);
+    }
+
+    /**
+     * Creates a test record with all fields initialized to valid values.
+     */
+    public static TestRecord createTestRecord (int recordId)
+    {
+        TestRecord rec = new TestRecord();
+        rec.recordId = recordId;
+        rec.name = "Elvis";
+        rec.age = recordId % 100;
+        rec.awesomeness = 0.75f;
+        rec.created = new Date(0L);
+        rec.homeTown = "Right here";
+        rec.type = EnumKeyRecord.Type.A;
+        rec.lastModified = new Timestamp(0L);
+        rec.numbers = new int[] { 9, 0, 2, 1, 0 };
+        rec.strList = Lists.newArrayList("foo", "bar", "Hello", "World");
+        return rec;
+    }
+
+    /**
+     * Inserts test records with ids from 1 to {@code count}, and all types records with the
+     * same ids.
+     */
+    public void populate (int count)
+    {
+        for (int ii = 1; ii <= count; ii++) {
+            insert(createTestRecord(ii));
+            insert(AllTypesRecord.createRecord(ii));
+        }
+    }
+
+    public BenchRepository (PersistenceContext ctx)
+    {
+        super(ctx);
+    }
+
+    @Override // from DepotRepository
+    protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes)
+    {
+        classes.add(TestRecord.class);
+        classes.add(AllTypesRecord.class);
+    }
+}
@@ -0,0 +1,116 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.ConnectionProvider;
+import com.samskivert.depot.StaticConnectionProvider;
+import com.samskivert.depot.impl.jdbc.CollectingConnection;
+import com.samskivert.depot.impl.jdbc.JDBCUtil;
+import com.samskivert.depot.impl.jdbc.StatementCache;
+
+/**
+ * Compares the per-operation overhead of collecting the statements an operation creates through
+ * the proxy returned by {@link JDBCUtil#makeCollector} with that of a reused {@link
+ * CollectingConnection}, with and without a {@link StatementCache}. Each operation loads a single
+ * record by primary key.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CollectorBenchmark
+{
+    @Setup(Level.Trial) public void setup ()
+    {
+        BenchRepository.create(DBNAME).populate(RECORDS);
+        _conprov = StaticConnectionProvider.forTest(DBNAME);
+        _conn = _conprov.getConnection(DBNAME, true);
+    }
+
+    @TearDown(Level.Trial) public void teardown ()
+    {
+        _conprov.releaseConnection(DBNAME, true, _conn);
+        _conprov.shutdown();
+    }
+
+    @Benchmark public int proxyCollector ()
+        throws SQLException
+    {
+        List<Statement> stmts = Lists.newArrayList();
+        try {
+            return load(JDBCUtil.makeCollector(_conn, stmts));
+        } finally {
+            for (Statement stmt : stmts) {
+                JDBCUtil.close(stmt);
+            }
+        }
+    }
+
+    @Benchmark public int collectingConnection ()
+        throws SQLException
+    {
+        _collector.init(_conn, null);
+        try {
+            return load(_collector);
+        } finally {
+            _collector.finish();
+        }
+    }
+
+    @Benchmark public int collectingConnectionCached ()
+        throws SQLException
+    {
+        _collector.init(_conn, _cache);
+        try {
+            return load(_collector);
+        } finally {
+            _collector.finish();
+        }
+    }
+
+    protected int load (Connection conn)
+        throws SQLException
+    {
+        _nextId = (_nextId % RECORDS) + 1;
+        PreparedStatement stmt = conn.prepareStatement(QUERY);
+        stmt.setInt(1, _nextId);
+        ResultSet rs = stmt.executeQuery();
+        return rs.next() ? rs.getInt(1) : 0;
+    }
+
+    protected ConnectionProvider _conprov;
+    protected Connection _conn;
+    protected CollectingConnection _collector = new CollectingConnection();
+    protected StatementCache _cache = new StatementCache(16);
+    protected int _nextId;
+
+    protected static final String DBNAME = "collectorbench";
+    protected static final int RECORDS = 1000;
+    protected static final String QUERY =
+        "SELECT \"recordId\", \"name\", \"age\" FROM \"TestRecord\" WHERE \"recordId\" = ?";
+}
@@ -0,0 +1,89 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.AllTypesRecord;
+import com.samskivert.depot.ConnectionProvider;
+import com.samskivert.depot.DepotRepository.CacheStrategy;
+import com.samskivert.depot.StaticConnectionProvider;
+import com.samskivert.depot.impl.DepotMarshaller;
+
+/**
+ * Measures the decoding of {@link AllTypesRecord} rows, both alone (from an open result set) and
+ * as part of an uncached query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CreateObjectBenchmark
+{
+    @Setup(Level.Trial) public void setup ()
+        throws SQLException
+    {
+        _repo = BenchRepository.create(DBNAME);
+        _repo.populate(RECORDS);
+        _marsh = _repo.ctx().getMarshaller(AllTypesRecord.class);
+        // we query on our own connection so as to decode rows without the rest of Depot
+        _conprov = StaticConnectionProvider.forTest(DBNAME);
+        _conn = _conprov.getConnection(DBNAME, true);
+        _stmt = _conn.createStatement(
+            ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
+        _rs = _stmt.executeQuery("select * from \"" + _marsh.getTableName() + "\"");
+        _columns = _marsh.resolveColumns(_rs);
+    }
+
+    @TearDown(Level.Trial) public void tearDown ()
+        throws SQLException
+    {
+        _stmt.close();
+        _conprov.releaseConnection(DBNAME, true, _conn);
+    }
+
+    @Benchmark public AllTypesRecord createObject ()
+        throws SQLException
+    {
+        _row = (_row % RECORDS) + 1;
+        _rs.absolute(_row);
+        return _marsh.createObject(_rs, _columns);
+    }
+
+    @Benchmark public List<AllTypesRecord> findAll ()
+    {
+        return _repo.from(AllTypesRecord.class).cache(CacheStrategy.NONE).select();
+    }
+
+    protected BenchRepository _repo;
+    protected DepotMarshaller<AllTypesRecord> _marsh;
+    protected ConnectionProvider _conprov;
+    protected Connection _conn;
+    protected Statement _stmt;
+    protected ResultSet _rs;
+    protected int[] _columns;
+    protected int _row;
+
+    protected static final String DBNAME = "createobjectbench";
+    protected static final int RECORDS = 100;
+}
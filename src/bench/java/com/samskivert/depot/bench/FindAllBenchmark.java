@@ -0,0 +1,55 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.DepotRepository.CacheStrategy;
+import com.samskivert.depot.TestRecord;
+
+/**
+ * Measures collection queries under each cache strategy. The same query is repeated, so the
+ * caching strategies measure the cost of a cache hit.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FindAllBenchmark
+{
+    @Param({ "NONE", "BEST", "RECORDS", "SHORT_KEYS", "LONG_KEYS", "CONTENTS" })
+    public CacheStrategy strategy;
+
+    @Setup(Level.Trial) public void setup ()
+    {
+        _repo = BenchRepository.create("findallbench");
+        _repo.populate(RECORDS);
+    }
+
+    @Benchmark public List<TestRecord> findAll ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.AGE.lessThan(10)).
+            cache(strategy).select();
+    }
+
+    protected BenchRepository _repo;
+
+    /** The number of records in our table, of which a tenth match our query. */
+    protected static final int RECORDS = 1000;
+}
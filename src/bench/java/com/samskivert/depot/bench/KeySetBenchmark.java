@@ -0,0 +1,77 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
+import com.samskivert.depot.TestRecord;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.clause.Where;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.ClauseFingerprint;
+
+/**
+ * Measures the construction of key sets, and of the cache keys for queries on {@code in()} lists,
+ * for lists of various sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class KeySetBenchmark
+{
+    @Param({ "1", "100", "10000" })
+    public int size;
+
+    @Setup(Level.Trial) public void setup ()
+    {
+        for (int ii = 0; ii < size; ii++) {
+            _ids.add(ii);
+            _keys.add(TestRecord.getKey(ii));
+        }
+        _select = new SelectClause(
+            TestRecord.class, new SQLExpression<?>[] { TestRecord.RECORD_ID },
+            new Where(TestRecord.RECORD_ID.in(_ids)));
+    }
+
+    @Benchmark public KeySet<TestRecord> newKeySet ()
+    {
+        return KeySet.newKeySet(TestRecord.class, _keys);
+    }
+
+    @Benchmark public Serializable fingerprintKey ()
+    {
+        return ClauseFingerprint.keyFor(_select);
+    }
+
+    /** The cache key that was used before fingerprints, as a baseline. */
+    @Benchmark public Serializable stringKey ()
+    {
+        return _select.toString();
+    }
+
+    protected List<Integer> _ids = Lists.newArrayList();
+    protected List<Key<TestRecord>> _keys = Lists.newArrayList();
+    protected SelectClause _select;
+}
@@ -0,0 +1,61 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.DepotRepository.CacheStrategy;
+import com.samskivert.depot.TestRecord;
+
+/**
+ * Measures the per-operation overhead of loading a single record by primary key, both from the
+ * cache and from the database. Only asynchronous loads look for records in the cache by key, and
+ * those complete on the calling thread when they find them there.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LoadBenchmark
+{
+    @Setup(Level.Trial) public void setup ()
+    {
+        _repo = BenchRepository.create("loadbench");
+        _repo.populate(RECORDS);
+    }
+
+    @Benchmark public TestRecord loadCached ()
+    {
+        return _repo.loadAsync(TestRecord.getKey(nextId())).join();
+    }
+
+    @Benchmark public TestRecord loadUncached ()
+    {
+        return _repo.load(TestRecord.getKey(nextId()), CacheStrategy.NONE);
+    }
+
+    protected int nextId ()
+    {
+        _nextId = (_nextId % RECORDS) + 1;
+        return _nextId;
+    }
+
+    protected BenchRepository _repo;
+    protected int _nextId;
+
+    protected static final int RECORDS = 1000;
+}
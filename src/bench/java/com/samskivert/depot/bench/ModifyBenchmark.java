@@ -0,0 +1,61 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.TestRecord;
+
+/**
+ * Measures the insertion and modification of single records.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ModifyBenchmark
+{
+    @Setup(Level.Trial) public void setup ()
+    {
+        _repo = BenchRepository.create("modifybench");
+        _repo.populate(RECORDS);
+        _record = BenchRepository.createTestRecord(1);
+    }
+
+    @Benchmark public int insert ()
+    {
+        // inserted records get ids above those of the populated records
+        return _repo.insert(BenchRepository.createTestRecord(RECORDS + (++_inserted)));
+    }
+
+    @Benchmark public boolean store ()
+    {
+        _record.age++;
+        return _repo.store(_record);
+    }
+
+    @Benchmark public int updatePartial ()
+    {
+        return _repo.updatePartial(TestRecord.getKey(1), TestRecord.AGE, ++_age);
+    }
+
+    protected BenchRepository _repo;
+    protected TestRecord _record;
+    protected int _inserted, _age;
+
+    protected static final int RECORDS = 1000;
+}
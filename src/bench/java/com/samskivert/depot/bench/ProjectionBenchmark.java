@@ -0,0 +1,56 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.samskivert.depot.TestRecord;
+import com.samskivert.depot.util.Tuple2;
+
+/**
+ * Measures projections, which are never cached, of the same rows as {@link FindAllBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProjectionBenchmark
+{
+    @Setup(Level.Trial) public void setup ()
+    {
+        _repo = BenchRepository.create("projectionbench");
+        _repo.populate(RECORDS);
+    }
+
+    @Benchmark public List<String> projectOne ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.AGE.lessThan(10)).
+            select(TestRecord.NAME);
+    }
+
+    @Benchmark public List<Tuple2<Integer, String>> projectTwo ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.AGE.lessThan(10)).
+            select(TestRecord.RECORD_ID, TestRecord.NAME);
+    }
+
+    protected BenchRepository _repo;
+
+    /** The number of records in our table, of which a tenth match our query. */
+    protected static final int RECORDS = 1000;
+}
@@ -5,6 +5,10 @@
 package com.samskivert.depot;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
 
 import com.samskivert.depot.impl.FindAllQuery;
 
@@ -43,6 +47,25 @@ public interface CacheAdapter
      */
     public <T> CachedValue<T> lookup (String cacheId, Serializable key);
 
+    /**
+     * Searches the given cache for each of the given keys and returns a map from every key that
+     * was found to its {@link CachedValue}. Keys for which nothing exists in the cache are omitted
+     * from the result. The default implementation performs one {@link #lookup} per key; adapters
+     * whose cache supports multi-gets should override this to probe for all keys at once.
+     */
+    public default <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMapWithExpectedSize(keys.size());
+        for (Serializable key : keys) {
+            CachedValue<T> value = lookup(cacheId, key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
     /**
      * Stores a new value in the given cache under the given key.
      */
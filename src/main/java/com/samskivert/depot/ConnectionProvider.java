@@ -18,6 +18,18 @@ import java.sql.*;
  */
 public interface ConnectionProvider
 {
+    /**
+     * Notified when a provider closes a connection that it has handed out, so that anything held
+     * for that connection may be released.
+     */
+    interface ConnectionListener
+    {
+        /**
+         * Called just before the provider closes the supplied connection.
+         */
+        void connectionClosed (Connection conn);
+    }
+
     /**
      * Obtains a database connection based on the supplied database identifier. The repository
      * expects to have exclusive use of this connection instance until it releases it. This
@@ -82,6 +94,42 @@ public interface ConnectionProvider
      */
     void txConnectionFailed (String ident, Connection conn, SQLException error);
 
+    /**
+     * Returns true if the connections handed out by this provider are long-lived, such that the
+     * same connection instance is returned again after being released. Depot caches prepared
+     * statements on such connections (evicting them on {@link #connectionFailed} or {@link
+     * #txConnectionFailed}, or when the provider reports that it has closed them to its {@link
+     * #addConnectionListener listeners}). Providers that hand out a fresh connection (or a fresh
+     * logical connection from a pool) for every request should return false, which is the
+     * default.
+     */
+    default boolean reusesConnections ()
+    {
+        return false;
+    }
+
+    /**
+     * Returns true if each connection handed out by this provider is used by only one caller
+     * until it is released (as {@link #getConnection} requests). If false, which is the default,
+     * Depot synchronizes on the connection for the duration of each operation, as must any other
+     * code that uses the connection while Depot may also be using it.
+     */
+    default boolean isExclusive ()
+    {
+        return false;
+    }
+
+    /**
+     * Registers a listener to be notified when this provider closes a connection that it has
+     * handed out. Providers that {@link #reusesConnections reuse connections} and close them of
+     * their own accord (when they have been idle too long, for example) must notify their
+     * listeners, or the statements that Depot has cached for those connections will never be
+     * released. The default implementation does nothing.
+     */
+    default void addConnectionListener (ConnectionListener listener)
+    {
+    }
+
     /**
      * Returns the URL associated with this database identifier. This should be the same value that
      * would be used if {@link #getConnection} were called.
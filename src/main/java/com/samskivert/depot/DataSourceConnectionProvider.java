@@ -85,6 +85,13 @@ public class DataSourceConnectionProvider implements ConnectionProvider
         connectionFailed(ident, false, conn, error);
     }
 
+    // from ConnectionProvider
+    public boolean isExclusive ()
+    {
+        // a pooled data source hands each connection to one caller at a time
+        return true;
+    }
+
     // from ConnectionProvider
     public String getURL (String ident)
     {
@@ -7,14 +7,18 @@ package com.samskivert.depot;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 import com.google.common.base.Function;
 import com.google.common.collect.Iterables;
@@ -33,15 +37,20 @@ import com.samskivert.depot.expression.SQLExpression;
 import com.samskivert.depot.util.Sequence;
 import static com.samskivert.depot.Log.log;
 
+import com.samskivert.depot.impl.AdvisoryLock;
+import com.samskivert.depot.impl.Backoff;
 import com.samskivert.depot.impl.DepotMarshaller;
 import com.samskivert.depot.impl.DepotMigrationHistoryRecord;
 import com.samskivert.depot.impl.DepotTypes;
 import com.samskivert.depot.impl.FindAllKeysQuery;
 import com.samskivert.depot.impl.FindAllQuery;
 import com.samskivert.depot.impl.FindOneQuery;
+import com.samskivert.depot.impl.KeyCacheKey;
 import com.samskivert.depot.impl.Modifier.*;
 import com.samskivert.depot.impl.Modifier;
+import com.samskivert.depot.impl.QueryCacheIndex;
 import com.samskivert.depot.impl.SQLBuilder;
+import com.samskivert.depot.impl.StatementBatch;
 import com.samskivert.depot.impl.clause.DeleteClause;
 import com.samskivert.depot.impl.clause.UpdateClause;
 import com.samskivert.depot.impl.expression.ValueExp;
@@ -76,7 +85,8 @@ public abstract class DepotRepository
          * This strategy is identical to {@link #RECORDS}, but we also cache the keyset fetched
          * in the first pass. This makes it much more efficient, but also less reliable because
          * there is no invalidation of the keyset query: If records are inserted, deleted or
-         * modified, cached keysets will not be updated.
+         * modified, cached keysets will not be updated, unless the persistence context {@link
+         * PersistenceContext#setTrackCachedQueries tracks cached queries}.
          *
          * Keysets cached using this strategy should have a short time-to-live.
          *
@@ -89,7 +99,8 @@ public abstract class DepotRepository
          * This strategy is identical to {@link #RECORDS}, but we also cache the keyset fetched
          * in the first pass. This makes it much more efficient, but also less reliable because
          * there is no invalidation of the keyset query: If records are inserted, deleted or
-         * modified, cached keysets will not be updated.
+         * modified, cached keysets will not be updated, unless the persistence context {@link
+         * PersistenceContext#setTrackCachedQueries tracks cached queries}.
          *
          * Keysets cached using this strategy may have a long time-to-live.
          *
@@ -107,8 +118,8 @@ public abstract class DepotRepository
          *
          * This strategy has none of the limitations of {@link #SHORT_KEYS} and can be used with
          * key-less and @Computed records and arbitrarily complicated queries. Note however that as
-         * with {@link #SHORT_KEYS}, there is no automatic invalidation. It is also potentially
-         * very memory intensive.
+         * with {@link #SHORT_KEYS}, there is no automatic invalidation unless cached queries are
+         * tracked. It is also potentially very memory intensive.
          */
         CONTENTS
     }
@@ -294,6 +305,83 @@ public abstract class DepotRepository
         return new Query<T>(_ctx, this, type);
     }
 
+    /**
+     * Loads the persistent object that matches the specified primary key, asynchronously. If the
+     * object is cached, the returned future is already complete. Otherwise the object is loaded on
+     * the {@link PersistenceContext#setAsyncExecutor async executor}.
+     */
+    public <T extends PersistentRecord> CompletableFuture<T> loadAsync (
+        Key<T> key, QueryClause... clauses)
+    {
+        clauses = ObjectArrays.concat(clauses, key);
+        FindOneQuery<T> query = new FindOneQuery<T>(
+            _ctx, key.getPersistentClass(), CacheStrategy.BEST, clauses);
+        return _ctx.invokeAsync(query.probeKeyCache());
+    }
+
+    /**
+     * Loads up all persistent records that match the supplied set of primary keys,
+     * asynchronously. If every record is cached, the returned future is already complete.
+     */
+    public <T extends PersistentRecord> CompletableFuture<List<T>> loadAllAsync (
+        Iterable<Key<T>> keys)
+    {
+        return Iterables.isEmpty(keys) ?
+            CompletableFuture.completedFuture(Collections.<T>emptyList()) :
+            _ctx.invokeAsync(new FindAllQuery.WithKeys<T>(_ctx, keys));
+    }
+
+    /**
+     * Loads all persistent objects that match the specified clauses, asynchronously. If the result
+     * is cached, the returned future is already complete. See also {@link Query#selectAsync}.
+     */
+    public <T extends PersistentRecord> CompletableFuture<List<T>> findAllAsync (
+        Class<T> type, CacheStrategy cache, QueryClause... clauses)
+    {
+        return _ctx.invokeAsync(
+            FindAllQuery.newCachedFullRecordQuery(_ctx, type, cache, Arrays.asList(clauses)));
+    }
+
+    /**
+     * Performs an {@link #insert} on the {@link PersistenceContext#setAsyncExecutor async
+     * executor}.
+     */
+    public <T extends PersistentRecord> CompletableFuture<Integer> insertAsync (final T record)
+    {
+        return _ctx.async(new Callable<Integer>() {
+            public Integer call () {
+                return insert(record);
+            }
+        });
+    }
+
+    /**
+     * Performs a {@link #store} on the {@link PersistenceContext#setAsyncExecutor async
+     * executor}.
+     */
+    public <T extends PersistentRecord> CompletableFuture<Boolean> storeAsync (final T record)
+    {
+        return _ctx.async(new Callable<Boolean>() {
+            public Boolean call () {
+                return store(record);
+            }
+        });
+    }
+
+    /**
+     * Performs an {@link #updatePartial(Key,ColumnExp,Object,Object...)} on the {@link
+     * PersistenceContext#setAsyncExecutor async executor}.
+     */
+    public <T extends PersistentRecord> CompletableFuture<Integer> updatePartialAsync (
+        final Key<T> key, final ColumnExp<?> field, final Object value, final Object... more)
+    {
+        return _ctx.async(new Callable<Integer>() {
+            public Integer call () {
+                return updatePartial(key, field, value, more);
+            }
+        });
+    }
+
     /**
      * Inserts the supplied persistent object into the database, assigning its primary key (if it
      * has one) in the process.
@@ -307,6 +395,7 @@ public abstract class DepotRepository
     public <T extends PersistentRecord> int insert (T record)
         throws DatabaseException
     {
+        requireNotFrozen(record, "insert");
         @SuppressWarnings("unchecked") final Class<T> pClass = (Class<T>) record.getClass();
         final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
         Key<T> key = marsh.getPrimaryKey(record, false);
@@ -316,7 +405,7 @@ public abstract class DepotRepository
         final SQLBuilder builder = _ctx.getSQLBuilder(types);
 
         // key will be null if record was supplied without a primary key
-        return _ctx.invoke(new CachingModifier<T>(record, key, key) {
+        int rows = _ctx.invoke(new CachingModifier<T>(record, key, key) {
             @Override
             protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
                 // if needed, update our modifier's key so that it can cache our results
@@ -338,10 +427,12 @@ public abstract class DepotRepository
                 return mods;
             }
             @Override
-            public void updateStats (Stats stats) {
-                stats.noteModification(pClass);
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return pClass;
             }
         });
+        _ctx.invalidateCachedQueries(pClass, null, record);
+        return rows;
     }
 
     /**
@@ -369,6 +460,7 @@ public abstract class DepotRepository
     public int update (PersistentRecord record, SQLExpression<?>... conditions)
         throws DatabaseException
     {
+        requireNotFrozen(record, "update");
         Class<? extends PersistentRecord> pClass = record.getClass();
         requireNotComputed(pClass, "update");
         DepotMarshaller<? extends PersistentRecord> marsh = _ctx.getMarshaller(pClass);
@@ -377,7 +469,11 @@ public abstract class DepotRepository
         WhereClause where = (conditions.length == 0)
             ? key
             : new Where(Ops.and(Lists.asList(key.getWhereExpression(), conditions)));
-        return doUpdate(key, new UpdateClause(pClass, where, marsh.getColumnFieldNames(), record));
+        List<? extends PersistentRecord> befores = getCachedForQueries(key);
+        int rows = doUpdate(
+            key, new UpdateClause(pClass, where, marsh.getColumnFieldNames(), record));
+        invalidateQueries(record, befores);
+        return rows;
     }
 
     /**
@@ -393,12 +489,22 @@ public abstract class DepotRepository
     public <T extends PersistentRecord> int update (T record, ColumnExp<?>... modifiedFields)
         throws DatabaseException
     {
+        requireNotFrozen(record, "update");
         @SuppressWarnings("unchecked") Class<T> pClass = (Class<T>) record.getClass();
         requireNotComputed(pClass, "update");
         DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
         Key<T> key = marsh.getPrimaryKey(record);
         checkArgument(key != null, "Can't update record with null primary key.");
-        return doUpdate(key, new UpdateClause(pClass, key, modifiedFields, record));
+        List<T> befores = getCachedForQueries(key);
+        int rows = doUpdate(key, new UpdateClause(pClass, key, modifiedFields, record));
+        if (befores == null) {
+            _ctx.invalidateCachedQueries(pClass);
+        } else {
+            T before = befores.get(0);
+            T after = QueryCacheIndex.applyUpdates(marsh, before, modifiedFields, record);
+            invalidateUpdatedQueries(pClass, before, after);
+        }
+        return rows;
     }
 
     /**
@@ -445,10 +551,10 @@ public abstract class DepotRepository
     }
 
     /**
-     * Updates the specified columns for all persistent objects matching the supplied key. This
-     * method currently flushes the associated record from the cache, but in the future it should
-     * be modified to update the modified fields in the cached value iff the record exists in the
-     * cache.
+     * Updates the specified columns for all persistent objects matching the supplied key. If the
+     * key is also the invalidator and is a {@link Key} or {@link KeySet}, the cached copies of the
+     * matching records are updated with the new values, where those values are constants.
+     * Otherwise the records are flushed from the cache.
      *
      * @param type the type of the persistent object to be modified.
      * @param key the key to match in the update.
@@ -481,10 +587,10 @@ public abstract class DepotRepository
     }
 
     /**
-     * Updates the specified columns for all persistent objects matching the supplied key. This
-     * method currently flushes the associated record from the cache, but in the future it should
-     * be modified to update the modified fields in the cached value iff the record exists in the
-     * cache.
+     * Updates the specified columns for all persistent objects matching the supplied key. If the
+     * key is also the invalidator and is a {@link Key} or {@link KeySet}, the cached copies of the
+     * matching records are updated with the new values, where those values are constants.
+     * Otherwise the records are flushed from the cache.
      *
      * @param type the type of the persistent object to be modified.
      * @param key the key to match in the update.
@@ -519,10 +625,10 @@ public abstract class DepotRepository
     }
 
     /**
-     * Updates the specified columns for all persistent objects matching the supplied key. This
-     * method currently flushes the associated record from the cache, but in the future it should
-     * be modified to update the modified fields in the cached value iff the record exists in the
-     * cache.
+     * Updates the specified columns for all persistent objects matching the supplied key. If the
+     * key is also the invalidator and is a {@link Key} or {@link KeySet}, the cached copies of the
+     * matching records are updated with the new values, where those values are constants.
+     * Otherwise the records are flushed from the cache.
      *
      * @param type the type of the persistent object to be modified.
      * @param key the key to match in the update.
@@ -547,7 +653,31 @@ public abstract class DepotRepository
             ((ValidatingCacheInvalidator)invalidator).validateFlushType(type); // sanity check
         }
         key.validateQueryType(type); // and another
-        return doUpdate(invalidator, new UpdateClause(type, key, fields, values));
+        UpdateClause update = new UpdateClause(type, key, fields, values);
+        List<T> befores = getCachedForQueries(key);
+        int rows;
+        if (invalidator == key && _ctx.isUsingCache() && key instanceof Key<?>) {
+            @SuppressWarnings("unchecked") Key<T> rkey = (Key<T>)key;
+            rows = doPatchingUpdate(Collections.singletonList(rkey), 1, update);
+        } else if (invalidator == key && _ctx.isUsingCache() && key instanceof KeySet<?>) {
+            @SuppressWarnings("unchecked") KeySet<T> keys = (KeySet<T>)key;
+            rows = doPatchingUpdate(keys, keys.size(), update);
+        } else {
+            rows = doUpdate(invalidator, update);
+        }
+
+        if (befores == null) {
+            _ctx.invalidateCachedQueries(type);
+        } else {
+            DepotMarshaller<T> marsh = _ctx.getMarshaller(type);
+            for (T before : befores) {
+                T after = QueryCacheIndex.applyUpdates(marsh, before, fields, values);
+                if (!invalidateUpdatedQueries(type, before, after)) {
+                    break;
+                }
+            }
+        }
+        return rows;
     }
 
     /**
@@ -562,6 +692,7 @@ public abstract class DepotRepository
     public <T extends PersistentRecord> boolean store (T record)
         throws DatabaseException
     {
+        requireNotFrozen(record, "store");
         @SuppressWarnings("unchecked") final Class<T> pClass = (Class<T>) record.getClass();
         requireNotComputed(pClass, "store");
 
@@ -576,6 +707,7 @@ public abstract class DepotRepository
             builder.newQuery(update);
         }
 
+        List<T> befores = (key == null) ? null : this.<T>getCachedForQueries(key);
         final boolean[] created = new boolean[1];
         try {
             _ctx.invoke(new CachingModifier<T>(record, key, key) {
@@ -615,8 +747,8 @@ public abstract class DepotRepository
                     return mods;
                 }
                 @Override
-                public void updateStats (Stats stats) {
-                    stats.noteModification(pClass);
+                public Class<? extends PersistentRecord> getPersistentClass () {
+                    return pClass;
                 }
             });
 
@@ -644,12 +776,190 @@ public abstract class DepotRepository
                     return builder.prepare(conn).executeUpdate();
                 }
                 @Override
-                public void updateStats (Stats stats) {
-                    stats.noteModification(pClass);
+                public Class<? extends PersistentRecord> getPersistentClass () {
+                    return pClass;
                 }
             });
         }
 
+        if (befores != null) {
+            invalidateQueries(pClass, befores.get(0), record);
+        } else if (created[0] && key == null) {
+            invalidateQueries(pClass, null, record);
+        } else {
+            _ctx.invalidateCachedQueries(pClass);
+        }
+        return created[0];
+    }
+
+    /**
+     * Inserts all of the supplied persistent objects (which must all be of the same class) into
+     * the database, assigning their primary keys (if they have them) in the process. The inserts
+     * are sent to the database in JDBC batches (which some drivers can be configured to rewrite
+     * into multi-row inserts, e.g. MySQL's {@code rewriteBatchedStatements}). Records whose keys
+     * are generated by the database on insert must be inserted one at a time, but still share a
+     * single prepared statement. The inserts are not atomic unless performed in a {@link
+     * Transaction}.
+     *
+     * @return the number of rows modified by this action.
+     *
+     * @throws DuplicateKeyException if any inserted record conflicts with the primary key (or any
+     * other unique key) of a record already in the database.
+     * @throws DatabaseException if any problem is encountered communicating with the database.
+     */
+    public <T extends PersistentRecord> int insertAll (Collection<T> records)
+        throws DatabaseException
+    {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        final Class<T> pClass = getBatchClass(records);
+        final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
+        final SQLBuilder builder = getBatchBuilder(pClass);
+        int rows = _ctx.invoke(
+            new BatchCachingModifier<T>(marsh, records, getKeys(marsh, records)) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                StatementBatch batch = new StatementBatch(conn);
+                insertBatch(conn, liaison, marsh, builder, _results, batch);
+                batch.flush();
+                return batch.getModifiedCount();
+            }
+            @Override
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return pClass;
+            }
+        });
+        for (T record : records) {
+            _ctx.invalidateCachedQueries(pClass, null, record);
+        }
+        return rows;
+    }
+
+    /**
+     * Updates all fields of the supplied persistent objects (which must all be of the same class),
+     * using their primary keys to identify the rows to be updated. The updates are sent to the
+     * database in JDBC batches. They are not atomic unless performed in a {@link Transaction}.
+     *
+     * @return the number of rows modified by this action.
+     *
+     * @throws DatabaseException if any problem is encountered communicating with the database.
+     */
+    public <T extends PersistentRecord> int updateAll (Collection<T> records)
+        throws DatabaseException
+    {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        final Class<T> pClass = getBatchClass(records);
+        requireNotComputed(pClass, "update");
+        final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
+        final SQLBuilder builder = getBatchBuilder(pClass);
+        final List<Key<T>> keys = Lists.newArrayListWithCapacity(records.size());
+        for (T record : records) {
+            Key<T> key = marsh.getPrimaryKey(record);
+            checkArgument(key != null, "Can't update record with null primary key.");
+            keys.add(key);
+        }
+        int rows = _ctx.invoke(new Modifier(KeySet.newKeySet(pClass, keys)) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                StatementBatch batch = new StatementBatch(conn);
+                Iterator<Key<T>> kiter = keys.iterator();
+                for (T record : records) {
+                    builder.newQuery(new UpdateClause(
+                        pClass, kiter.next(), marsh.getColumnFieldNames(), record));
+                    batch.add(builder);
+                }
+                batch.flush();
+                return batch.getModifiedCount();
+            }
+            @Override
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return pClass;
+            }
+        });
+        _ctx.invalidateCachedQueries(pClass);
+        return rows;
+    }
+
+    /**
+     * Stores all of the supplied persistent objects (which must all be of the same class) in the
+     * database, in the manner of {@link #store}: the objects that have a primary key are first
+     * updated (in JDBC batches), and those that have no primary key or which matched no row are
+     * then inserted (as by {@link #insertAll}). Unlike {@link #store}, this method does not retry
+     * an update if an insert fails because a conflicting row was inserted concurrently. The
+     * modifications are not atomic unless performed in a {@link Transaction}.
+     *
+     * @return the number of records that were created (the rest were updated).
+     *
+     * @throws DatabaseException if any problem is encountered communicating with the database.
+     */
+    public <T extends PersistentRecord> int storeAll (Collection<T> records)
+        throws DatabaseException
+    {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        final Class<T> pClass = getBatchClass(records);
+        requireNotComputed(pClass, "store");
+        final DepotMarshaller<T> marsh = _ctx.getMarshaller(pClass);
+        final SQLBuilder builder = getBatchBuilder(pClass);
+        final int[] created = new int[1];
+        _ctx.invoke(new BatchCachingModifier<T>(marsh, records, getKeys(marsh, records)) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                // first try to update every record that has a primary key
+                StatementBatch batch = new StatementBatch(conn);
+                List<UpdateClause> updates = Lists.newArrayList();
+                List<T> updated = Lists.newArrayList(), inserts = Lists.newArrayList();
+                for (T record : _results) {
+                    Key<T> key = marsh.hasPrimaryKey() ? marsh.getPrimaryKey(record) : null;
+                    if (key == null) {
+                        inserts.add(record);
+                    } else {
+                        UpdateClause update = new UpdateClause(
+                            pClass, key, marsh.getColumnFieldNames(), record);
+                        builder.newQuery(update);
+                        batch.add(builder);
+                        updates.add(update);
+                        updated.add(record);
+                    }
+                }
+                batch.flush();
+
+                // then insert those that had no key or matched no row
+                int mods = 0;
+                for (int ii = 0, ll = updates.size(); ii < ll; ii++) {
+                    int count = batch.getUpdateCount(ii);
+                    if (count == Statement.SUCCESS_NO_INFO) {
+                        // the driver didn't tell us whether the row existed, so we have to update
+                        // it on its own to find out
+                        builder.newQuery(updates.get(ii));
+                        count = batch.executeUpdate(builder);
+                    }
+                    if (count > 0) {
+                        mods += count;
+                    } else {
+                        inserts.add(updated.get(ii));
+                    }
+                }
+                int executed = batch.getExecutedCount();
+                insertBatch(conn, liaison, marsh, builder, inserts, batch);
+                batch.flush();
+                for (int ii = executed, ll = batch.getExecutedCount(); ii < ll; ii++) {
+                    int count = batch.getUpdateCount(ii);
+                    mods += (count == Statement.SUCCESS_NO_INFO) ? 1 : count;
+                }
+                created[0] = inserts.size();
+                return mods;
+            }
+            @Override
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return pClass;
+            }
+        });
+        _ctx.invalidateCachedQueries(pClass);
         return created[0];
     }
 
@@ -664,6 +974,7 @@ public abstract class DepotRepository
     public <T extends PersistentRecord> int delete (T record)
         throws DatabaseException
     {
+        requireNotFrozen(record, "delete");
         @SuppressWarnings("unchecked") Class<T> type = (Class<T>)record.getClass();
         Key<T> primaryKey = _ctx.getMarshaller(type).getPrimaryKey(record);
         checkArgument(primaryKey != null, "Can't delete record with null primary key.");
@@ -757,16 +1068,25 @@ public abstract class DepotRepository
         final SQLBuilder builder = _ctx.getSQLBuilder(DepotTypes.getDepotTypes(_ctx, delete));
         builder.newQuery(delete);
 
-        return _ctx.invoke(new Modifier(invalidator) {
+        List<T> befores = getCachedForQueries(where);
+        int rows = _ctx.invoke(new Modifier(invalidator) {
             @Override
             protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
                 return builder.prepare(conn).executeUpdate();
             }
             @Override
-            public void updateStats (Stats stats) {
-                stats.noteModification(type);
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return type;
             }
         });
+        if (befores == null) {
+            _ctx.invalidateCachedQueries(type);
+        } else {
+            for (T before : befores) {
+                invalidateQueries(type, before, null);
+            }
+        }
+        return rows;
     }
 
     /**
@@ -867,6 +1187,13 @@ public abstract class DepotRepository
         }
     }
 
+    // make sure the given record is not shared with the cache by a read-only query
+    protected static void requireNotFrozen (PersistentRecord record, String action)
+    {
+        checkArgument(!record.isFrozen(), "Can't %s frozen record, clone it first [record=%s]",
+                      action, record);
+    }
+
     /**
      * A helper method for the various partial update methods.
      */
@@ -880,8 +1207,170 @@ public abstract class DepotRepository
                 return builder.prepare(conn).executeUpdate();
             }
             @Override
-            public void updateStats (Stats stats) {
-                stats.noteModification(update.getPersistentClass());
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return update.getPersistentClass();
+            }
+        });
+    }
+
+    /**
+     * Adds inserts of the supplied records to the supplied batch, first generating any values
+     * that must be generated before insertion. Records whose keys are generated by the database
+     * during insertion are inserted immediately, so that their keys can be obtained.
+     */
+    protected static <T extends PersistentRecord> void insertBatch (
+        Connection conn, DatabaseLiaison liaison, DepotMarshaller<T> marsh, SQLBuilder builder,
+        Iterable<T> records, StatementBatch batch)
+        throws SQLException
+    {
+        Class<T> pClass = marsh.getPersistentClass();
+        boolean postFactum = marsh.hasPostFactumGenerators();
+        for (T record : records) {
+            Set<String> identityFields = Collections.emptySet();
+            boolean generate = (marsh.getPrimaryKey(record, false) == null);
+            if (generate) {
+                // set any auto-generated column values
+                identityFields = marsh.generateFieldValues(conn, liaison, null, record, false);
+            }
+            builder.newQuery(new InsertClause(pClass, record, identityFields));
+            if (generate && postFactum) {
+                PreparedStatement stmt = batch.executeInsert(builder);
+                marsh.generateFieldValues(conn, liaison, stmt, record, true);
+            } else {
+                batch.add(builder);
+            }
+        }
+    }
+
+    /**
+     * Returns the class of the supplied records, ensuring that they are all of the same class.
+     */
+    protected static <T extends PersistentRecord> Class<T> getBatchClass (Iterable<T> records)
+    {
+        Class<T> pClass = null;
+        for (T record : records) {
+            requireNotFrozen(record, "write");
+            @SuppressWarnings("unchecked") Class<T> rClass = (Class<T>)record.getClass();
+            if (pClass == null) {
+                pClass = rClass;
+            } else {
+                checkArgument(pClass == rClass, "Batched records must all be of the same class " +
+                              "[expected=" + pClass.getName() + ", got=" + rClass.getName() + "]");
+            }
+        }
+        return pClass;
+    }
+
+    /**
+     * Returns the keys of those of the supplied records that have one, for use in invalidating
+     * their cache entries.
+     */
+    protected static <T extends PersistentRecord> KeySet<T> getKeys (
+        DepotMarshaller<T> marsh, Iterable<T> records)
+    {
+        List<Key<T>> keys = Lists.newArrayList();
+        for (T record : records) {
+            Key<T> key = marsh.getPrimaryKey(record, false);
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys.isEmpty() ? null : KeySet.newKeySet(marsh.getPersistentClass(), keys);
+    }
+
+    /**
+     * Returns a SQL builder for batched modifications of records of the supplied class.
+     */
+    protected <T extends PersistentRecord> SQLBuilder getBatchBuilder (Class<T> pClass)
+    {
+        DepotTypes types = DepotTypes.getDepotTypes(_ctx);
+        types.addClass(_ctx, pClass);
+        return _ctx.getSQLBuilder(types);
+    }
+
+    /**
+     * Returns the cached copies of the records identified by the supplied where clause (which are
+     * needed to determine which cached query results a modification of them affects), or null if
+     * we are not tracking cached queries, if the clause is not a {@link Key} or {@link KeySet}, or
+     * if any of the records is not cached.
+     */
+    protected <T extends PersistentRecord> List<T> getCachedForQueries (WhereClause where)
+    {
+        if (!_ctx.isTrackingCachedQueries()) {
+            return null;
+        }
+        List<KeyCacheKey> ckeys = Lists.newArrayList();
+        if (where instanceof Key<?>) {
+            ckeys.add(new KeyCacheKey((Key<?>)where));
+        } else if (where instanceof KeySet<?>) {
+            for (Key<?> key : (KeySet<?>)where) {
+                ckeys.add(new KeyCacheKey(key));
+            }
+        } else {
+            return null;
+        }
+        Map<KeyCacheKey, T> cached = _ctx.<KeyCacheKey, T>cacheLookupAll(ckeys);
+        return (cached.size() < ckeys.size()) ? null : Lists.newArrayList(cached.values());
+    }
+
+    /**
+     * Invalidates the cached query results affected by replacing {@code before} with {@code after}
+     * (either of which may be null for an insertion or deletion, but not both).
+     */
+    protected <T extends PersistentRecord> void invalidateQueries (
+        Class<T> type, T before, T after)
+    {
+        _ctx.invalidateCachedQueries(type, before, after);
+    }
+
+    /**
+     * Invalidates the cached query results affected by updating {@code before} to {@code after}.
+     * If {@code after} is null, because the result of the update could not be computed in memory,
+     * invalidates all cached query results for the class and returns false.
+     */
+    protected <T extends PersistentRecord> boolean invalidateUpdatedQueries (
+        Class<T> type, T before, T after)
+    {
+        if (after == null) {
+            _ctx.invalidateCachedQueries(type);
+            return false;
+        }
+        _ctx.invalidateCachedQueries(type, before, after);
+        return true;
+    }
+
+    /**
+     * Invalidates the cached query results affected by the update of the supplied record, given
+     * its cached copy from before the update (as returned by {@link #getCachedForQueries}).
+     */
+    protected <T extends PersistentRecord> void invalidateQueries (
+        T record, List<? extends PersistentRecord> befores)
+    {
+        @SuppressWarnings("unchecked") Class<T> type = (Class<T>)record.getClass();
+        @SuppressWarnings("unchecked") T before = (befores == null) ? null : (T)befores.get(0);
+        if (before == null) {
+            _ctx.invalidateCachedQueries(type);
+        } else {
+            _ctx.invalidateCachedQueries(type, before, record);
+        }
+    }
+
+    protected <T extends PersistentRecord> int doPatchingUpdate (
+        Iterable<Key<T>> keys, int count, final UpdateClause update)
+    {
+        @SuppressWarnings("unchecked") Class<T> type = (Class<T>)update.getPersistentClass();
+        final SQLBuilder builder = _ctx.getSQLBuilder(DepotTypes.getDepotTypes(_ctx, update));
+        builder.newQuery(update);
+        return _ctx.invoke(new PatchingModifier<T>(
+                               _ctx.getMarshaller(type), keys, count, update.getFields(),
+                               update.getValues()) {
+            @Override
+            protected int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException {
+                return builder.prepare(conn).executeUpdate();
+            }
+            @Override
+            public Class<? extends PersistentRecord> getPersistentClass () {
+                return update.getPersistentClass();
             }
         });
     }
@@ -895,55 +1384,74 @@ public abstract class DepotRepository
     {
         // attempt to get a lock to run this migration (or detect that it has already been run)
         DepotMigrationHistoryRecord record;
-        while (true) {
-            // check to see if the migration has already been completed
-            record = load(DepotMigrationHistoryRecord.getKey(migration.getIdent()),
-                          CacheStrategy.NONE);
-            if (record != null && record.whenCompleted != null) {
-                return; // great, no need to do anything
-            }
+        AdvisoryLock alock = null;
+        boolean triedLock = false;
+        Backoff backoff = null;
+        try {
+            while (true) {
+                // check to see if the migration has already been completed
+                record = load(DepotMigrationHistoryRecord.getKey(migration.getIdent()),
+                              CacheStrategy.NONE);
+                if (record != null && record.whenCompleted != null) {
+                    return; // great, no need to do anything
+                }
+
+                // if our database supports advisory locks, we hold one while we run the
+                // migration, and wait on it for any other process that is running it to finish
+                if (!triedLock) {
+                    triedLock = true;
+                    alock = _ctx.acquireAdvisoryLock("depot.data." + migration.getIdent());
+                    if (alock != null) {
+                        continue; // its previous holder may have run the migration
+                    }
+                }
 
-            // if no record exists at all, try to insert one and thereby obtain the migration lock
-            if (record == null) {
-                try {
-                    record = new DepotMigrationHistoryRecord();
-                    record.ident = migration.getIdent();
-                    insert(record);
-                    break; // we got the lock, break out of this loop and run the migration
-                } catch (DuplicateKeyException dke) {
-                    // someone beat us to the punch, so we have to wait for them to finish
+                // if no record exists at all, try to insert one and thereby obtain the migration
+                // lock
+                if (record == null) {
+                    try {
+                        record = new DepotMigrationHistoryRecord();
+                        record.ident = migration.getIdent();
+                        insert(record);
+                        break; // we got the lock, break out of this loop and run the migration
+                    } catch (DuplicateKeyException dke) {
+                        // someone beat us to the punch, so we have to wait for them to finish
+                    }
                 }
+
+                // we didn't get the lock, so wait a bit and then check to see if the other
+                // process finished the update or failed in which case we'll try to grab the lock
+                // ourselves
+                if (backoff == null) {
+                    backoff = new Backoff("migration lock for " + migration.getIdent());
+                }
+                backoff.pause();
             }
 
-            // we didn't get the lock, so wait 5 seconds and then check to see if the other process
-            // finished the update or failed in which case we'll try to grab the lock ourselves
+            log.info("Running data migration", "ident", migration.getIdent());
             try {
-                log.info("Waiting on migration lock for " + migration.getIdent() + ".");
-                Thread.sleep(5000);
-            } catch (InterruptedException ie) {
-                throw new DatabaseException("Interrupted while waiting on migration lock.");
+                // run the migration
+                migration.invoke();
+
+                // report to the world that we've done so
+                record.whenCompleted = new Timestamp(System.currentTimeMillis());
+                update(record);
+
+            } finally {
+                // clear out our migration history record if we failed to get the job done
+                if (record.whenCompleted == null) {
+                    try {
+                        delete(record);
+                    } catch (Throwable dt) {
+                        log.warning("Oh noez! Failed to delete history record for failed " +
+                                    "migration. All clients will loop forever waiting for the " +
+                                    "lock.", "ident", migration.getIdent(), dt);
+                    }
+                }
             }
-        }
-
-        log.info("Running data migration", "ident", migration.getIdent());
-        try {
-            // run the migration
-            migration.invoke();
-
-            // report to the world that we've done so
-            record.whenCompleted = new Timestamp(System.currentTimeMillis());
-            update(record);
-
         } finally {
-            // clear out our migration history record if we failed to get the job done
-            if (record.whenCompleted == null) {
-                try {
-                    delete(record);
-                } catch (Throwable dt) {
-                    log.warning("Oh noez! Failed to delete history record for failed migration. " +
-                                "All clients will loop forever waiting for the lock.",
-                                "ident", migration.getIdent(), dt);
-                }
+            if (alock != null) {
+                alock.release();
             }
         }
     }
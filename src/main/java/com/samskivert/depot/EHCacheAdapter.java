@@ -5,6 +5,7 @@
 package com.samskivert.depot;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
@@ -129,6 +130,27 @@ public class EHCacheAdapter
         return result;
     }
 
+    // from CacheAdapter
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        long now = System.currentTimeMillis();
+        EHCacheBin<?> bin = _bins.get(cacheId);
+        if (bin == null) {
+            return Collections.emptyMap();
+        }
+        Ehcache cache = bin.getCache();
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMapWithExpectedSize(keys.size());
+        for (Serializable key : keys) {
+            CachedValue<T> value = lookup(cache, cacheId, key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        _lookups.addValue((int) (System.currentTimeMillis() - now));
+        return result;
+    }
+
     // from CacheAdapter
     public <T> void store (CacheCategory category, String cacheId, Serializable key, T value)
     {
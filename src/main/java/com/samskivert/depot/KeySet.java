@@ -10,9 +10,9 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
-import com.google.common.collect.Iterators;
-import com.google.common.base.Function;
+import com.google.common.collect.UnmodifiableIterator;
 
 import com.samskivert.depot.clause.WhereClause;
 import com.samskivert.depot.expression.ColumnExp;
@@ -50,7 +50,7 @@ public abstract class KeySet<T extends PersistentRecord> extends WhereClause
             for (Key<T> key : keys) {
                 keyArray[ii++] = key.getValues()[0];
             }
-            return new SingleKeySet<T>(pClass, keyArray);
+            return newSingleKeySet(pClass, keyArray);
 
         } else {
             // TODO: is there a maximum size of an or query? 32768?
@@ -82,7 +82,37 @@ public abstract class KeySet<T extends PersistentRecord> extends WhereClause
             return new EmptyKeySet<T>(pClass);
         } else {
             Comparable<?>[] keyArray = new Comparable<?>[keys.size()];
-            return new SingleKeySet<T>(pClass, keys.toArray(keyArray));
+            return newSingleKeySet(pClass, keys.toArray(keyArray));
+        }
+    }
+
+    /**
+     * Creates a key set for a record with a single-column key. Int and long keys are stored in a
+     * primitive array, which takes a fraction of the memory of their boxed counterparts.
+     */
+    protected static <T extends PersistentRecord> KeySet<T> newSingleKeySet (
+        Class<T> pClass, Comparable<?>[] keys)
+    {
+        Class<?> kclass = keys[0].getClass();
+        for (Comparable<?> key : keys) {
+            if (key.getClass() != kclass) {
+                return new SingleKeySet<T>(pClass, keys);
+            }
+        }
+        if (kclass == Integer.class) {
+            int[] ikeys = new int[keys.length];
+            for (int ii = 0; ii < ikeys.length; ii++) {
+                ikeys[ii] = (Integer)keys[ii];
+            }
+            return new IntKeySet<T>(pClass, ikeys);
+        } else if (kclass == Long.class) {
+            long[] lkeys = new long[keys.length];
+            for (int ii = 0; ii < lkeys.length; ii++) {
+                lkeys[ii] = (Long)keys[ii];
+            }
+            return new LongKeySet<T>(pClass, lkeys);
+        } else {
+            return new SingleKeySet<T>(pClass, keys);
         }
     }
 
@@ -105,6 +135,10 @@ public abstract class KeySet<T extends PersistentRecord> extends WhereClause
             return 0;
         }
 
+        @Override public Comparable<?> getKeyValue (int index, int column) {
+            throw new IndexOutOfBoundsException("Empty key set: " + index);
+        }
+
         @Override public boolean equals (Object obj) {
             if (this == obj) {
                 return true;
@@ -122,54 +156,169 @@ public abstract class KeySet<T extends PersistentRecord> extends WhereClause
         }
     }
 
-    protected static class SingleKeySet<T extends PersistentRecord> extends KeySet<T>
+    /**
+     * A set of keys of a record with a single-column key. Sets are equal if they contain the same
+     * key values in the same order, however those values are stored.
+     */
+    protected abstract static class SimpleKeySet<T extends PersistentRecord> extends KeySet<T>
     {
-        public SingleKeySet (Class<T> pClass, Comparable<?>[] keys) {
+        public SimpleKeySet (Class<T> pClass) {
             super(pClass);
-            _keys = keys;
         }
 
         @Override public SQLExpression<?> getWhereExpression () {
             // Single-column keys result in the compact IN(keyVal1, keyVal2, ...)
-            return new In(DepotUtil.getKeyFields(_pClass)[0], _keys);
+            if (_in == null) {
+                Comparable<?>[] keys = new Comparable<?>[size()];
+                for (int ii = 0; ii < keys.length; ii++) {
+                    keys[ii] = getKey(ii);
+                }
+                _in = new In(DepotUtil.getKeyFields(_pClass)[0], keys);
+            }
+            return _in;
         }
 
         // from Iterable<Key<T>>
         public Iterator<Key<T>> iterator () {
-            return Iterators.transform(
-                Iterators.forArray(_keys), new Function<Comparable<?>, Key<T>>() {
-                    public Key<T> apply (Comparable<?> key) {
-                        return new Key<T>(_pClass, new Comparable<?>[] { key });
+            return new UnmodifiableIterator<Key<T>>() {
+                public boolean hasNext () {
+                    return _pos < size();
+                }
+                public Key<T> next () {
+                    if (_pos >= size()) {
+                        throw new NoSuchElementException();
                     }
-            });
+                    return new Key<T>(_pClass, new Comparable<?>[] { getKey(_pos++) });
+                }
+                protected int _pos;
+            };
         }
 
-        @Override public int size () {
-            return _keys.length;
+        @Override public Comparable<?> getKeyValue (int index, int column) {
+            return getKey(index);
         }
 
         @Override public boolean equals (Object obj) {
             if (this == obj) {
                 return true;
             }
-            if (!(obj instanceof SingleKeySet<?>)) {
+            if (!(obj instanceof SimpleKeySet<?>)) {
                 return false;
             }
-            SingleKeySet<?> oset = (SingleKeySet<?>)obj;
-            return _pClass.equals(oset._pClass) && Arrays.equals(_keys, oset._keys);
+            SimpleKeySet<?> oset = (SimpleKeySet<?>)obj;
+            return _pClass.equals(oset._pClass) && oset.size() == size() && sameKeys(oset);
         }
 
         @Override public int hashCode () {
-            return 31 * _pClass.hashCode() + Arrays.hashCode(_keys);
+            // this matches Arrays.hashCode() of our keys in any of their representations
+            int hash = 1;
+            for (int ii = 0, ll = size(); ii < ll; ii++) {
+                hash = 31 * hash + getKey(ii).hashCode();
+            }
+            return 31 * _pClass.hashCode() + hash;
         }
 
         @Override public String toString () {
-            return DepotUtil.justClassName(_pClass) + Arrays.toString(_keys);
+            StringBuilder buf = new StringBuilder(DepotUtil.justClassName(_pClass)).append("[");
+            for (int ii = 0, ll = size(); ii < ll; ii++) {
+                buf.append(ii > 0 ? ", " : "").append(getKey(ii));
+            }
+            return buf.append("]").toString();
+        }
+
+        /**
+         * Returns the value of the key at the specified position in this set.
+         */
+        protected abstract Comparable<?> getKey (int index);
+
+        /**
+         * Returns true if the supplied set, of the same size, contains the same key values.
+         */
+        protected boolean sameKeys (SimpleKeySet<?> oset) {
+            for (int ii = 0, ll = size(); ii < ll; ii++) {
+                if (!getKey(ii).equals(oset.getKey(ii))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Our where expression, created when first needed. */
+        protected transient In _in;
+    }
+
+    protected static class SingleKeySet<T extends PersistentRecord> extends SimpleKeySet<T>
+    {
+        public SingleKeySet (Class<T> pClass, Comparable<?>[] keys) {
+            super(pClass);
+            _keys = keys;
+        }
+
+        @Override public int size () {
+            return _keys.length;
+        }
+
+        @Override protected Comparable<?> getKey (int index) {
+            return _keys[index];
         }
 
         protected Comparable<?>[] _keys;
     }
 
+    protected static class IntKeySet<T extends PersistentRecord> extends SimpleKeySet<T>
+    {
+        public IntKeySet (Class<T> pClass, int[] keys) {
+            super(pClass);
+            _keys = keys;
+        }
+
+        @Override public int size () {
+            return _keys.length;
+        }
+
+        @Override public Class<?> getKeyClass (int column) {
+            return Integer.class;
+        }
+
+        @Override protected Comparable<?> getKey (int index) {
+            return _keys[index];
+        }
+
+        @Override protected boolean sameKeys (SimpleKeySet<?> oset) {
+            return (oset instanceof IntKeySet<?>) ?
+                Arrays.equals(_keys, ((IntKeySet<?>)oset)._keys) : super.sameKeys(oset);
+        }
+
+        protected int[] _keys;
+    }
+
+    protected static class LongKeySet<T extends PersistentRecord> extends SimpleKeySet<T>
+    {
+        public LongKeySet (Class<T> pClass, long[] keys) {
+            super(pClass);
+            _keys = keys;
+        }
+
+        @Override public int size () {
+            return _keys.length;
+        }
+
+        @Override public Class<?> getKeyClass (int column) {
+            return Long.class;
+        }
+
+        @Override protected Comparable<?> getKey (int index) {
+            return _keys[index];
+        }
+
+        @Override protected boolean sameKeys (SimpleKeySet<?> oset) {
+            return (oset instanceof LongKeySet<?>) ?
+                Arrays.equals(_keys, ((LongKeySet<?>)oset)._keys) : super.sameKeys(oset);
+        }
+
+        protected long[] _keys;
+    }
+
     /**
      * Returns an unmodifiable {@link Collection} view on this KeySet.
      */
@@ -185,11 +334,50 @@ public abstract class KeySet<T extends PersistentRecord> extends WhereClause
         };
     }
 
+    /**
+     * Returns the persistent class whose keys are contained in this set.
+     */
+    public Class<T> getPersistentClass ()
+    {
+        return _pClass;
+    }
+
     /**
      * Returns the number of keys in this set.
      */
     public abstract int size ();
 
+    /**
+     * Returns the value of the specified column (in the order of {@link DepotUtil#getKeyFields})
+     * of the key at the specified position in this set's iteration order.
+     */
+    public abstract Comparable<?> getKeyValue (int index, int column);
+
+    /**
+     * Returns the class of the values of the specified column (in the order of {@link
+     * DepotUtil#getKeyFields}) of every key in this set, or null if this set is empty, if any of
+     * those values is null, or if they are not all of the same class. The constants of an enum
+     * are all considered to be of the enum's class.
+     */
+    public Class<?> getKeyClass (int column)
+    {
+        Class<?> kclass = null;
+        for (int ii = 0, ll = size(); ii < ll; ii++) {
+            Comparable<?> value = getKeyValue(ii, column);
+            if (value == null) {
+                return null;
+            }
+            Class<?> vclass = (value instanceof Enum<?>) ?
+                ((Enum<?>)value).getDeclaringClass() : value.getClass();
+            if (kclass == null) {
+                kclass = vclass;
+            } else if (vclass != kclass) {
+                return null;
+            }
+        }
+        return kclass;
+    }
+
     // from SQLExpression
     public void addClasses (Collection<Class<? extends PersistentRecord>> classSet)
     {
@@ -0,0 +1,733 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A dependency-free, in-process {@link CacheAdapter}. Each {@link CacheCategory} is stored in its
+ * own concurrent hash table, bounded by weight, whose contents are chosen by the W-TinyLFU
+ * policy: new entries enter a small LRU admission window, and an entry leaving the window is
+ * admitted to the main (segmented LRU) space only if it has been used more often, as estimated
+ * by a count-min sketch, than the entry it would displace. This retains frequently used records
+ * in the face of scans that would flush an LRU cache.
+ *
+ * <p> Lookups are lock-free: they read the hash table and record the access in a lossy buffer
+ * that is applied to the eviction policy in batches. Stores and removals update the policy under
+ * a per-category lock. Entries may also expire a fixed time after they were stored (time to
+ * live) or last read (time to idle); expired entries are discarded when they are next looked up,
+ * or when they are evicted to make room for others.
+ *
+ * <p> The keys stored under each cache id are indexed so that {@link #enumerate} need not scan
+ * the category's table. This adapter does not replicate its contents to other nodes, so {@link
+ * #clear}'s {@code localOnly} flag is immaterial.
+ */
+public class LocalCacheAdapter
+    implements CacheAdapter
+{
+    /** Configures the bounds and expiry of the cache for a single {@link CacheCategory}. */
+    public static class CategoryConfig
+    {
+        /** The maximum total weight of the entries in the cache. */
+        public final long maxWeight;
+
+        /** The number of seconds after which an unread entry expires, or zero for never. */
+        public final int timeToIdleSeconds;
+
+        /** The number of seconds after which a stored entry expires, or zero for never. */
+        public final int timeToLiveSeconds;
+
+        public CategoryConfig (long maxWeight, int timeToIdleSeconds, int timeToLiveSeconds) {
+            checkArgument(maxWeight > 0, "maxWeight must be positive: %s", maxWeight);
+            this.maxWeight = maxWeight;
+            this.timeToIdleSeconds = timeToIdleSeconds;
+            this.timeToLiveSeconds = timeToLiveSeconds;
+        }
+    }
+
+    /** Computes the weight of cache entries. */
+    public interface Weigher
+    {
+        /** Returns the weight of the supplied entry, which must be at least one. */
+        int weigh (CacheCategory category, Serializable key, Object value);
+    }
+
+    /** An immutable snapshot of the activity of the cache for a single category. */
+    public static class CategoryStats
+    {
+        /** The number of lookups that found a (live) entry. */
+        public final long hits;
+
+        /** The number of lookups that found no entry, or an expired one. */
+        public final long misses;
+
+        /** The number of entries evicted to keep the cache within its weight bound. */
+        public final long evictions;
+
+        /** The number of entries discarded because they had expired. */
+        public final long expirations;
+
+        /** The number of entries in the cache. */
+        public final int size;
+
+        /** The total weight of the entries in the cache. */
+        public final long weight;
+
+        /** Returns the fraction of lookups that were hits, or zero if there were none. */
+        public double getHitRatio () {
+            long lookups = hits + misses;
+            return (lookups == 0) ? 0 : hits / (double)lookups;
+        }
+
+        @Override public String toString () {
+            return "[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions +
+                ", expirations=" + expirations + ", size=" + size + ", weight=" + weight + "]";
+        }
+
+        protected CategoryStats (long hits, long misses, long evictions, long expirations,
+                                 int size, long weight) {
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.expirations = expirations;
+            this.size = size;
+            this.weight = weight;
+        }
+    }
+
+    /** Weighs collections (result sets) and key sets by their size, and all else as one. */
+    public static final Weigher DEFAULT_WEIGHER = new Weigher() {
+        public int weigh (CacheCategory category, Serializable key, Object value) {
+            int size = 1;
+            if (value instanceof Collection<?>) {
+                size = ((Collection<?>)value).size();
+            } else if (value instanceof KeySet<?>) {
+                size = ((KeySet<?>)value).size();
+            }
+            return Math.max(size, 1);
+        }
+    };
+
+    public static final CategoryConfig DEFAULT_RECORD_CONFIG =
+        new CategoryConfig(200000, 300, 600);
+    public static final CategoryConfig DEFAULT_SHORT_KEYSET_CONFIG =
+        new CategoryConfig(250000, 10, 10);
+    public static final CategoryConfig DEFAULT_LONG_KEYSET_CONFIG =
+        new CategoryConfig(250000, 300, 300);
+    public static final CategoryConfig DEFAULT_RESULT_CONFIG =
+        new CategoryConfig(50000, 300, 300);
+
+    /**
+     * Creates an adapter with the default configuration for each category.
+     */
+    public LocalCacheAdapter ()
+    {
+        this(DEFAULT_RECORD_CONFIG, DEFAULT_SHORT_KEYSET_CONFIG, DEFAULT_LONG_KEYSET_CONFIG,
+             DEFAULT_RESULT_CONFIG, DEFAULT_WEIGHER);
+    }
+
+    /**
+     * Creates an adapter with the specified configuration for each category.
+     */
+    public LocalCacheAdapter (CategoryConfig recordConfig, CategoryConfig shortKeySetConfig,
+                              CategoryConfig longKeySetConfig, CategoryConfig resultConfig,
+                              Weigher weigher)
+    {
+        _weigher = weigher;
+        _segments.put(CacheCategory.RECORD, new Segment(recordConfig));
+        _segments.put(CacheCategory.SHORT_KEYSET, new Segment(shortKeySetConfig));
+        _segments.put(CacheCategory.LONG_KEYSET, new Segment(longKeySetConfig));
+        _segments.put(CacheCategory.RESULT, new Segment(resultConfig));
+    }
+
+    /**
+     * Returns a snapshot of the activity of the cache for the specified category.
+     */
+    public CategoryStats getStats (CacheCategory category)
+    {
+        return _segments.get(category).getStats();
+    }
+
+    // from interface CacheAdapter
+    public <T> CachedValue<T> lookup (String cacheId, Serializable key)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked") CachedValue<T> value =
+            (CachedValue<T>)bin.segment.lookup(new EntryKey(cacheId, key));
+        return value;
+    }
+
+    // from interface CacheAdapter
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin == null) {
+            return Collections.emptyMap();
+        }
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMapWithExpectedSize(keys.size());
+        for (Serializable key : keys) {
+            @SuppressWarnings("unchecked") CachedValue<T> value =
+                (CachedValue<T>)bin.segment.lookup(new EntryKey(cacheId, key));
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    // from interface CacheAdapter
+    public <T> void store (CacheCategory category, String cacheId, Serializable key, T value)
+    {
+        Segment segment = _segments.get(category);
+        checkArgument(segment != null, "Unknown category: %s", category);
+        Bin bin = _bins.get(cacheId);
+        if (bin == null) {
+            Bin created = new Bin(segment);
+            bin = _bins.putIfAbsent(cacheId, created);
+            if (bin == null) {
+                bin = created;
+            }
+        }
+        int weight = _weigher.weigh(category, key, value);
+        // a cache id is stored in the category in which it was first stored
+        bin.segment.store(bin, new EntryKey(cacheId, key), value, Math.max(weight, 1));
+    }
+
+    // from interface CacheAdapter
+    public void remove (String cacheId, Serializable key)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin != null) {
+            bin.segment.remove(bin, new EntryKey(cacheId, key));
+        }
+    }
+
+    // from interface CacheAdapter
+    public <T> Iterable<Serializable> enumerate (String cacheId)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin == null) {
+            return Collections.emptySet();
+        }
+        return Lists.newArrayList(bin.keys);
+    }
+
+    // from interface CacheAdapter
+    public void clear (String cacheId, boolean localOnly)
+    {
+        Bin bin = _bins.get(cacheId);
+        if (bin != null) {
+            bin.segment.clear(bin, cacheId);
+        }
+    }
+
+    // from interface CacheAdapter
+    public void shutdown ()
+    {
+        for (Segment segment : _segments.values()) {
+            segment.clearAll();
+        }
+        _bins.clear();
+    }
+
+    /** The key under which an entry is stored in its category's table. */
+    protected static final class EntryKey
+    {
+        public final String cacheId;
+        public final Serializable key;
+
+        public EntryKey (String cacheId, Serializable key) {
+            this.cacheId = cacheId;
+            this.key = key;
+            _hash = 31 * cacheId.hashCode() + key.hashCode();
+        }
+
+        @Override public int hashCode () {
+            return _hash;
+        }
+
+        @Override public boolean equals (Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof EntryKey)) {
+                return false;
+            }
+            EntryKey okey = (EntryKey)other;
+            return _hash == okey._hash && cacheId.equals(okey.cacheId) && key.equals(okey.key);
+        }
+
+        @Override public String toString () {
+            return "[" + cacheId + ", " + key + "]";
+        }
+
+        protected final int _hash;
+    }
+
+    /** The keys stored under a single cache id, and the segment in which they are stored. */
+    protected static class Bin
+    {
+        public final Segment segment;
+        public final Set<Serializable> keys = Sets.newConcurrentHashSet();
+
+        public Bin (Segment segment) {
+            this.segment = segment;
+        }
+    }
+
+    /** A cache entry, which is also its own {@link CachedValue}. */
+    protected static final class Node
+        implements CachedValue<Object>
+    {
+        public final EntryKey key;
+        public final Object value;
+        public final int weight;
+        public final long writeTime;
+        public volatile long accessTime;
+
+        // the remaining fields are guarded by the segment's lock
+        public int queue;
+        public Node prev, next;
+
+        public Node (EntryKey key, Object value, int weight, long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        // from interface CachedValue
+        public Object getValue () {
+            return value;
+        }
+
+        @Override public String toString () {
+            return String.valueOf(value);
+        }
+    }
+
+    /** A doubly linked list of nodes, in order of last use (least recent first). */
+    protected static final class NodeDeque
+    {
+        public Node head, tail;
+        public long weight;
+
+        public void addLast (Node node) {
+            node.prev = tail;
+            node.next = null;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            weight += node.weight;
+        }
+
+        public void remove (Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = node.next = null;
+            weight -= node.weight;
+        }
+
+        public void moveToLast (Node node) {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        public void clear () {
+            head = tail = null;
+            weight = 0;
+        }
+    }
+
+    /**
+     * Estimates the frequency with which keys have been used, in four-bit saturating counters
+     * spread over four hashed rows. All counters are halved periodically so that the estimate
+     * favors recent use.
+     */
+    protected static final class FrequencySketch
+    {
+        public FrequencySketch (long maxWeight) {
+            int width = Integer.highestOneBit((int)Math.min(Math.max(maxWeight, 16), 1 << 24));
+            _rows = new byte[ROWS][width];
+            _mask = width - 1;
+            _sampleSize = 10 * width;
+        }
+
+        public int frequency (Object key) {
+            int hash = spread(key.hashCode());
+            int freq = MAX_COUNT;
+            for (int ii = 0; ii < ROWS; ii++) {
+                freq = Math.min(freq, _rows[ii][index(hash, ii)]);
+            }
+            return freq;
+        }
+
+        public void increment (Object key) {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int ii = 0; ii < ROWS; ii++) {
+                byte[] row = _rows[ii];
+                int idx = index(hash, ii);
+                if (row[idx] < MAX_COUNT) {
+                    row[idx]++;
+                    added = true;
+                }
+            }
+            if (added && ++_samples >= _sampleSize) {
+                for (byte[] row : _rows) {
+                    for (int ii = 0; ii < row.length; ii++) {
+                        row[ii] >>= 1;
+                    }
+                }
+                _samples /= 2;
+            }
+        }
+
+        protected int index (int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            return (int)(h ^ (h >>> 32)) & _mask;
+        }
+
+        protected static int spread (int hash) {
+            hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+            return (hash >>> 16) ^ hash;
+        }
+
+        protected final byte[][] _rows;
+        protected final int _mask, _sampleSize;
+        protected int _samples;
+
+        protected static final int ROWS = 4;
+        protected static final int MAX_COUNT = 15;
+        protected static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    }
+
+    /** The table and eviction policy for a single category. */
+    protected static class Segment
+    {
+        public Segment (CategoryConfig config) {
+            _maxWeight = config.maxWeight;
+            _windowMax = Math.max(1, _maxWeight / 100);
+            _protectedMax = (long)((_maxWeight - _windowMax) * 0.8);
+            _ttl = config.timeToLiveSeconds * 1000000000L;
+            _tti = config.timeToIdleSeconds * 1000000000L;
+            _sketch = new FrequencySketch(_maxWeight);
+        }
+
+        public Node lookup (EntryKey key) {
+            Node node = _map.get(key);
+            if (node == null) {
+                _misses.increment();
+                return null;
+            }
+            if (_ttl > 0 || _tti > 0) {
+                long now = System.nanoTime();
+                if (isExpired(node, now)) {
+                    _misses.increment();
+                    expire(node);
+                    return null;
+                }
+                if (_tti > 0) {
+                    node.accessTime = now;
+                }
+            }
+            _hits.increment();
+            recordRead(node);
+            return node;
+        }
+
+        public void store (Bin bin, EntryKey key, Object value, int weight) {
+            long now = (_ttl > 0 || _tti > 0) ? System.nanoTime() : 0L;
+            Node node = new Node(key, value, weight, now);
+            _lock.lock();
+            try {
+                drainReads();
+                Node old = _map.put(key, node);
+                if (old != null) {
+                    unlink(old);
+                }
+                if (bin.keys.add(key.key) && !_indexes.containsKey(key.cacheId)) {
+                    _indexes.put(key.cacheId, bin.keys);
+                }
+                _sketch.increment(key);
+                _window.addLast(node);
+                node.queue = WINDOW;
+                evict();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        public void remove (Bin bin, EntryKey key) {
+            _lock.lock();
+            try {
+                Node node = _map.remove(key);
+                if (node != null) {
+                    unlink(node);
+                    bin.keys.remove(key.key);
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        public void clear (Bin bin, String cacheId) {
+            _lock.lock();
+            try {
+                drainReads();
+                for (Serializable key : bin.keys) {
+                    Node node = _map.remove(new EntryKey(cacheId, key));
+                    if (node != null) {
+                        unlink(node);
+                    }
+                }
+                bin.keys.clear();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        public void clearAll () {
+            _lock.lock();
+            try {
+                drainReads();
+                _map.clear();
+                _indexes.clear();
+                _window.clear();
+                _probation.clear();
+                _protected.clear();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        public CategoryStats getStats () {
+            long weight;
+            _lock.lock();
+            try {
+                weight = _window.weight + _probation.weight + _protected.weight;
+            } finally {
+                _lock.unlock();
+            }
+            return new CategoryStats(_hits.sum(), _misses.sum(), _evictions.sum(),
+                                     _expirations.sum(), _map.size(), weight);
+        }
+
+        protected boolean isExpired (Node node, long now) {
+            return (_ttl > 0 && now - node.writeTime >= _ttl) ||
+                (_tti > 0 && now - node.accessTime >= _tti);
+        }
+
+        protected void expire (Node node) {
+            _lock.lock();
+            try {
+                if (_map.remove(node.key, node)) {
+                    unlink(node);
+                    removeKey(node);
+                    _expirations.increment();
+                }
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Records a read of the supplied node in our read buffer, which is drained into the
+         * policy when it fills. Reads that arrive while the buffer is full are dropped.
+         */
+        protected void recordRead (Node node) {
+            long tail = _readTail.get();
+            long pending = tail - _readHead;
+            if (pending < READ_BUFFER_SIZE && _readTail.compareAndSet(tail, tail + 1)) {
+                _reads.lazySet((int)tail & READ_BUFFER_MASK, node);
+                pending++;
+            }
+            if (pending >= READ_BUFFER_SIZE / 2 && _lock.tryLock()) {
+                try {
+                    drainReads();
+                } finally {
+                    _lock.unlock();
+                }
+            }
+        }
+
+        /** Applies buffered reads to the policy. Must be called with the lock held. */
+        protected void drainReads () {
+            long head = _readHead, tail = _readTail.get();
+            for (; head < tail; head++) {
+                int idx = (int)head & READ_BUFFER_MASK;
+                Node node = _reads.get(idx);
+                if (node == null) {
+                    break; // not yet published by its reader; we'll get it next time
+                }
+                _reads.lazySet(idx, null);
+                onAccess(node);
+            }
+            _readHead = head;
+        }
+
+        protected void onAccess (Node node) {
+            if (node.queue == RETIRED) {
+                return;
+            }
+            _sketch.increment(node.key);
+            switch (node.queue) {
+            case WINDOW:
+                _window.moveToLast(node);
+                break;
+            case PROBATION:
+                // promote the node to the protected space, demoting the least recently used
+                // protected nodes if it is over capacity
+                _probation.remove(node);
+                _protected.addLast(node);
+                node.queue = PROTECTED;
+                while (_protected.weight > _protectedMax && _protected.head != node) {
+                    Node demoted = _protected.head;
+                    _protected.remove(demoted);
+                    _probation.addLast(demoted);
+                    demoted.queue = PROBATION;
+                }
+                break;
+            case PROTECTED:
+                _protected.moveToLast(node);
+                break;
+            }
+        }
+
+        protected void unlink (Node node) {
+            switch (node.queue) {
+            case WINDOW: _window.remove(node); break;
+            case PROBATION: _probation.remove(node); break;
+            case PROTECTED: _protected.remove(node); break;
+            }
+            node.queue = RETIRED;
+        }
+
+        /**
+         * Moves nodes that overflow the admission window into the main space, and then evicts
+         * nodes until we are within our bounds, admitting each candidate from the window only if
+         * it is used more often than the victim it would displace. Must be called with the lock
+         * held.
+         */
+        protected void evict () {
+            while (_window.weight > _windowMax && _window.head != null) {
+                Node candidate = _window.head;
+                _window.remove(candidate);
+                _probation.addLast(candidate);
+                candidate.queue = PROBATION;
+                if (totalWeight() > _maxWeight) {
+                    Node victim = (_probation.head != candidate) ?
+                        _probation.head : _protected.head;
+                    if (victim == null || victim == candidate) {
+                        evict(candidate);
+                    } else if (_sketch.frequency(candidate.key) >
+                               _sketch.frequency(victim.key)) {
+                        evict(victim);
+                    } else {
+                        evict(candidate);
+                    }
+                }
+            }
+            // if a heavy entry pushed us over our bound, evict least recently used main entries
+            while (totalWeight() > _maxWeight) {
+                Node victim = (_probation.head != null) ? _probation.head :
+                    (_protected.head != null) ? _protected.head : _window.head;
+                evict(victim);
+            }
+        }
+
+        protected void evict (Node node) {
+            if (_map.remove(node.key, node)) {
+                removeKey(node);
+                _evictions.increment();
+            }
+            unlink(node);
+        }
+
+        protected void removeKey (Node node) {
+            // the key index is maintained under our lock, as is the table, so the key is absent
+            // from the table (and may be removed from the index) unless it was stored anew
+            if (!_map.containsKey(node.key)) {
+                // the bin may have been discarded by shutdown, in which case there's no index
+                Set<Serializable> keys = _indexes.get(node.key.cacheId);
+                if (keys != null) {
+                    keys.remove(node.key.key);
+                }
+            }
+        }
+
+        protected long totalWeight () {
+            return _window.weight + _probation.weight + _protected.weight;
+        }
+
+        protected final long _maxWeight, _windowMax, _protectedMax;
+        protected final long _ttl, _tti;
+
+        protected final ConcurrentMap<EntryKey, Node> _map = Maps.newConcurrentMap();
+        protected final ReentrantLock _lock = new ReentrantLock();
+
+        // the eviction policy, guarded by our lock
+        protected final NodeDeque _window = new NodeDeque();
+        protected final NodeDeque _probation = new NodeDeque();
+        protected final NodeDeque _protected = new NodeDeque();
+        protected final FrequencySketch _sketch;
+
+        /** The key indexes of the bins stored in this segment, by cache id. */
+        protected final Map<String, Set<Serializable>> _indexes = Maps.newConcurrentMap();
+
+        // the read buffer: readers claim slots by advancing the tail, the lock holder drains
+        protected final AtomicReferenceArray<Node> _reads =
+            new AtomicReferenceArray<Node>(READ_BUFFER_SIZE);
+        protected final AtomicLong _readTail = new AtomicLong();
+        protected volatile long _readHead;
+
+        protected final LongAdder _hits = new LongAdder(), _misses = new LongAdder();
+        protected final LongAdder _evictions = new LongAdder(), _expirations = new LongAdder();
+    }
+
+    protected final Weigher _weigher;
+    protected final Map<CacheCategory, Segment> _segments =
+        new EnumMap<CacheCategory, Segment>(CacheCategory.class);
+    protected final ConcurrentMap<String, Bin> _bins = Maps.newConcurrentMap();
+
+    protected static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2, RETIRED = 3;
+    protected static final int READ_BUFFER_SIZE = 128;
+    protected static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+}
@@ -65,6 +65,10 @@ class MultiKeySet<T extends PersistentRecord> extends KeySet<T>
         return _keys.length;
     }
 
+    @Override public Comparable<?> getKeyValue (int index, int column) {
+        return _keys[index][column];
+    }
+
     @Override public boolean equals (Object obj) {
         if (this == obj) {
             return true;
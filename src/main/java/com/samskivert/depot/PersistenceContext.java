@@ -4,22 +4,38 @@
 
 package com.samskivert.depot;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
 
 import java.io.Serializable;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.sql.Statement;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 
 import com.samskivert.depot.CacheAdapter.CacheCategory;
 import com.samskivert.depot.CacheAdapter.CachedValue;
 import com.samskivert.depot.annotation.TableGenerator;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.impl.AdvisoryLock;
+import com.samskivert.depot.impl.AsyncDispatcher;
+import com.samskivert.depot.impl.Cursor;
 import com.samskivert.depot.impl.DepotMarshaller;
 import com.samskivert.depot.impl.DepotMetaData;
 import com.samskivert.depot.impl.DepotMigrationHistoryRecord;
@@ -28,11 +44,16 @@ import com.samskivert.depot.impl.Fetcher;
 import com.samskivert.depot.impl.KeyCacheKey;
 import com.samskivert.depot.impl.Modifier;
 import com.samskivert.depot.impl.Operation;
+import com.samskivert.depot.impl.QueryCacheIndex;
+import com.samskivert.depot.impl.QueryPlanCache;
 import com.samskivert.depot.impl.SQLBuilder;
+import com.samskivert.depot.impl.StreamQuery;
+import com.samskivert.depot.impl.jdbc.CollectingConnection;
 import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
-import com.samskivert.depot.impl.jdbc.JDBCUtil;
 import com.samskivert.depot.impl.jdbc.LiaisonRegistry;
+import com.samskivert.depot.impl.jdbc.StatementCache;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.samskivert.depot.Log.log;
 
 /**
@@ -47,6 +68,19 @@ public class PersistenceContext
     public static final boolean CACHE_DEBUG =
         Boolean.getBoolean("com.samskivert.depot.cache_debug");
 
+    /** The default number of prepared statements cached per connection. */
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    /** The default maximum number of asynchronous operations that run at once. */
+    public static final int DEFAULT_ASYNC_CONCURRENCY = 8;
+
+    /** The default maximum number of asynchronous operations awaiting their turn to run. */
+    public static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+
+    /** The default number of record classes initialized at once by {@link
+     * #initializeRepositories}. */
+    public static final int DEFAULT_INIT_CONCURRENCY = 4;
+
     /** Map {@link TableGenerator} instances by name. */
     public Map<String, TableGenerator> tableGenerators = Maps.newHashMap();
 
@@ -194,14 +228,59 @@ public class PersistenceContext
         }
 
         _ident = ident;
-        _conprov = conprov;
         _liaison = LiaisonRegistry.getLiaison(url);
         _cache = adapter;
+        // release the statements we've cached for any connection that the provider closes
+        conprov.addConnectionListener(new ConnectionProvider.ConnectionListener() {
+            public void connectionClosed (Connection conn) {
+                _stmts.evict(conn);
+            }
+        });
+        // this is assigned last, as its being set is what marks us as initialized
+        _conprov = conprov;
 
         // set up some basic meta-meta-data
         _meta.init(this);
     }
 
+    /**
+     * Configures the number of prepared statements retained (per connection) for reuse by
+     * subsequent operations. Statements are only cached on connections from providers that report
+     * that they {@link ConnectionProvider#reusesConnections reuse connections}. A size of zero
+     * disables statement caching. This should be called before any operations are performed.
+     */
+    public void setStatementCacheSize (int size)
+    {
+        _stmts.clear();
+        _stmts = new StatementCache(size);
+    }
+
+    /**
+     * Configures the number of persistent record classes whose marshallers {@link
+     * #initializeRepositories} initializes (creating or migrating their tables) at once. Each
+     * may use two connections while it migrates its table (one holding an advisory lock, if our
+     * database supports them), so this should not exceed half the number of connections that the
+     * {@link ConnectionProvider} can supply. A value of one initializes them one at a time.
+     */
+    public void setInitConcurrency (int concurrency)
+    {
+        checkArgument(concurrency > 0, "Concurrency must be positive: %s", concurrency);
+        _initConcurrency = concurrency;
+    }
+
+    /**
+     * Configures a window, in milliseconds, for which read-only operations on a record class are
+     * sent to the master after that class is modified. When the {@link ConnectionProvider} sends
+     * read-only operations to replicas that may lag behind the master (as does the {@link
+     * ReplicatedConnectionProvider}), this lets callers read their own writes. Such operations
+     * request a read-write connection, which the provider supplies from the master. A window of
+     * zero (the default) disables this.
+     */
+    public void setReadAfterWriteWindow (long millis)
+    {
+        _readAfterWriteWindow = millis;
+    }
+
     /**
      * Shuts this persistence context down, shutting down any caching system in use and shutting
      * down the JDBC connection pool.
@@ -215,9 +294,104 @@ public class PersistenceContext
         } catch (Throwable t) {
             log.warning("Failure shutting down Depot cache.", t);
         }
+        _stmts.clear();
         if (_conprov != null) {
             _conprov.shutdown();
         }
+        synchronized (this) {
+            if (_async != null && _async.getExecutor() == _defaultExecutor) {
+                _defaultExecutor.shutdown();
+            }
+            _async = null;
+            _defaultExecutor = null;
+        }
+    }
+
+    /**
+     * Configures the executor on which {@link #invokeAsync asynchronous operations} are run, and
+     * limits on the number of such operations that run at once and that await their turn to run.
+     * Operations beyond those limits are rejected. By default, operations are run on virtual
+     * threads if the JVM supports them and daemon threads if not, with at most {@link
+     * #DEFAULT_ASYNC_CONCURRENCY} running and {@link #DEFAULT_ASYNC_QUEUE_SIZE} waiting.
+     *
+     * <p> The concurrency limit should not exceed the number of connections that the {@link
+     * ConnectionProvider} can supply to this context's database ident, lest asynchronous callers
+     * monopolize them.
+     */
+    public synchronized void setAsyncExecutor (Executor executor, int maxConcurrent, int maxQueued)
+    {
+        _async = new AsyncDispatcher(executor, maxConcurrent, maxQueued);
+    }
+
+    /**
+     * Invokes a non-modifying query asynchronously. If the query's result is cached, it is
+     * returned in an already completed future, without leaving the calling thread. Otherwise the
+     * query is run on our {@link #setAsyncExecutor async executor}.
+     */
+    public <T> CompletableFuture<T> invokeAsync (final Fetcher<T> fetcher)
+    {
+        if (Transaction.get() != null) {
+            return invokeNow(fetcher); // we must use the caller's transaction
+        }
+        T result;
+        try {
+            result = fetcher.getCachedResult(this);
+        } catch (Throwable t) {
+            return failedFuture(t);
+        }
+        if (result != null) {
+            fetcher.updateStats(_stats);
+            return CompletableFuture.completedFuture(result);
+        }
+        return getAsync().dispatch(new Callable<T>() {
+            public T call () {
+                return invoke(fetcher, true);
+            }
+        });
+    }
+
+    /**
+     * Invokes a modifying query on our {@link #setAsyncExecutor async executor}. The returned
+     * future completes with the number of rows modified.
+     */
+    public CompletableFuture<Integer> invokeAsync (final Modifier modifier)
+    {
+        return async(new Callable<Integer>() {
+            public Integer call () {
+                return invoke(modifier);
+            }
+        });
+    }
+
+    /**
+     * Performs the supplied database operations on our {@link #setAsyncExecutor async executor}.
+     * If the calling thread is in a {@link Transaction}, the operations are instead performed
+     * immediately, as part of that transaction, and the returned future is already complete.
+     */
+    public <T> CompletableFuture<T> async (Callable<T> op)
+    {
+        return (Transaction.get() != null) ? invokeNow(op) : getAsync().dispatch(op);
+    }
+
+    /**
+     * Acquires the named advisory lock, if our database supports such locks, waiting for as long
+     * as another process holds it. Processes sharing our database use these to coordinate work
+     * such as migrations: a process waiting on the lock is woken as soon as it is released. The
+     * lock is held on a connection dedicated to it until it is {@link AdvisoryLock#release
+     * released}.
+     *
+     * @return the acquired lock, or null if our database does not support advisory locks.
+     */
+    public AdvisoryLock acquireAdvisoryLock (String name)
+        throws DatabaseException
+    {
+        checkAreInitialized();
+        if (!_liaison.supportsAdvisoryLocks()) {
+            return null;
+        }
+        AdvisoryLock lock = new AdvisoryLock(_conprov, _ident, _liaison, name);
+        lock.acquire();
+        return lock;
     }
 
     /**
@@ -231,10 +405,20 @@ public class PersistenceContext
         Transaction tx = Transaction.get();
         if (tx != null) throw new DatabaseException("Nested transactions not supported.");
         tx = new Transaction(this);
-        Transaction._activeTx.set(tx);
+        tx.bindToThread();
         return tx;
     }
 
+    /**
+     * Configures whether our runtime statistics break down database time by query shape (the SQL
+     * of the first statement prepared by each operation), in addition to by persistent record
+     * class. This is off by default.
+     */
+    public void setTrackQueryShapes (boolean track)
+    {
+        _stats.setTrackShapes(track);
+    }
+
     /**
      * Returns a snapshot of our current runtime statistics.
      */
@@ -248,7 +432,9 @@ public class PersistenceContext
      */
     public SQLBuilder getSQLBuilder (DepotTypes types)
     {
-        return _meta.getSQLBuilder(types, _liaison);
+        SQLBuilder builder = _meta.getSQLBuilder(types, _liaison);
+        builder.setPlanCache(_plans);
+        return builder;
     }
 
     /**
@@ -341,6 +527,77 @@ public class PersistenceContext
         return invoke(modifier, true);
     }
 
+    /**
+     * Executes the supplied query and returns a cursor over its results, which are decoded as the
+     * cursor is advanced. The connection on which the query is executed is held until the cursor
+     * is closed, which happens automatically if it is exhausted; otherwise the caller must close
+     * it. If a transaction is active, the query is executed on the transaction's connection.
+     *
+     * @param fetchSize the number of rows to fetch from the database at a time.
+     */
+    public <R> Cursor<R> openCursor (StreamQuery<?,R> query, int fetchSize)
+        throws DatabaseException
+    {
+        checkAreInitialized();
+
+        // the cursor needs a connection to itself for its whole life: if our provider doesn't
+        // hand out connections exclusively, we use a (dedicated) transaction connection
+        final ConnOp connop;
+        Transaction tx = Transaction.get();
+        if (tx != null) {
+            checkTxContext(tx);
+            connop = new TxOp(tx);
+        } else if (_conprov.isExclusive()) {
+            connop = new NonTxOp(!readsRecentlyModified(query));
+        } else {
+            connop = new DedicatedOp();
+        }
+
+        final long preConnect = System.nanoTime();
+        final Connection conn = connop.get();
+        final boolean autoCommit;
+        try {
+            autoCommit = conn.getAutoCommit();
+        } catch (SQLException sqe) {
+            connop.fail(conn, sqe);
+            throw new DatabaseException("Failed to open cursor " + query, sqe);
+        }
+
+        // streaming statements are configured specially, so we don't take them from our cache
+        final CollectingConnection cconn = new CollectingConnection();
+        cconn.init(conn, null);
+
+        final long preInvoke = System.nanoTime();
+        Cursor<R> cursor = new Cursor<R>(query) {
+            @Override protected void released (SQLException failure) {
+                String shape = cconn.getFirstSQL();
+                try {
+                    cconn.finish();
+                    if (failure == null) {
+                        connop.done(conn);
+                        // the liaison may have turned off auto-commit in order to stream
+                        if (autoCommit && !conn.getAutoCommit()) {
+                            conn.setAutoCommit(true);
+                        }
+                    }
+                } catch (SQLException sqe) {
+                    if (failure == null) {
+                        failure = sqe;
+                    }
+                }
+                if (failure == null) {
+                    connop.release(conn);
+                    _stats.noteOp(query.getPersistentClass(), shape, true,
+                                  preConnect, preInvoke, System.nanoTime());
+                } else {
+                    connop.fail(conn, failure);
+                }
+            }
+        };
+        cursor.open(this, cconn, _liaison, fetchSize);
+        return cursor;
+    }
+
     /**
      * Returns true if there is a {@link CacheAdapter} configured, false otherwise.
      */
@@ -361,6 +618,39 @@ public class PersistenceContext
         return (ref == null) ? null : ref.getValue();
     }
 
+    /**
+     * Looks up entries for all of the given keys, which must share a cache id, probing the cache
+     * once for all of them. Returns a map from each key that was found to its entry; keys that
+     * are not cached, or whose cached entry is null, are omitted.
+     */
+    public <K extends CacheKey, T> Map<K, T> cacheLookupAll (Collection<K> keys)
+    {
+        Map<K, T> result = Maps.newHashMapWithExpectedSize(keys.size());
+        if (_cache == null || keys.isEmpty()) {
+            return result;
+        }
+        String cacheId = null;
+        Map<Serializable, K> byCacheKey = Maps.newHashMapWithExpectedSize(keys.size());
+        for (K key : keys) {
+            if (cacheId == null) {
+                cacheId = key.getCacheId();
+            } else {
+                checkArgument(cacheId.equals(key.getCacheId()),
+                              "Keys must share a cache id [first=%s, key=%s]", cacheId, key);
+            }
+            byCacheKey.put(key.getCacheKey(), key);
+        }
+        Map<Serializable, CachedValue<T>> hits =
+            _cache.lookupAll(cacheId, byCacheKey.keySet());
+        for (Map.Entry<Serializable, CachedValue<T>> entry : hits.entrySet()) {
+            T value = entry.getValue().getValue();
+            if (value != null) {
+                result.put(byCacheKey.get(entry.getKey()), value);
+            }
+        }
+        return result;
+    }
+
     /**
      * Stores a new entry indexed by the given key.
      */
@@ -379,18 +669,52 @@ public class PersistenceContext
         T oldEntry = (element != null ? element.getValue() : null);
 
         // update the cache
-        _cache.store(category, key.getCacheId(), key.getCacheKey(), entry);
+        Lock lock = _cacheLocks.get(key.getCacheKey());
+        lock.lock();
+        try {
+            _cache.store(category, key.getCacheId(), key.getCacheKey(), entry);
+        } finally {
+            lock.unlock();
+        }
 
         // then do cache invalidations
-        Set<CacheListener<?>> listeners = _listenerSets.get(key.getCacheId());
-        if (listeners != null && listeners.size() > 0) {
-            for (CacheListener<?> listener : listeners) {
-                log.debug("cascading", "listener", listener);
-                @SuppressWarnings("unchecked")
-                    CacheListener<T> casted = (CacheListener<T>)listener;
-                casted.entryCached(entry, oldEntry);
+        entryCached(key, entry, oldEntry);
+    }
+
+    /**
+     * Replaces the entry cached under the given key with the supplied entry, if the cached entry
+     * is still {@code expected} (the very object returned by an earlier lookup). If it is not,
+     * because the entry was stored or invalidated in the meantime, the entry is evicted instead.
+     * The check and the replacement are atomic with respect to other stores and invalidations of
+     * the key via this context. Cache adapters that return a copy of an entry on every lookup
+     * never match, and so always evict.
+     *
+     * @return true if the entry was replaced, false if it was evicted.
+     */
+    public <T> boolean cacheReplace (CacheCategory category, CacheKey key, T expected, T entry)
+    {
+        if (_cache == null) {
+            return false;
+        }
+        boolean replaced = false;
+        Lock lock = _cacheLocks.get(key.getCacheKey());
+        lock.lock();
+        try {
+            CacheAdapter.CachedValue<T> element =
+                _cache.lookup(key.getCacheId(), key.getCacheKey());
+            if (element != null && element.getValue() == expected) {
+                _cache.store(category, key.getCacheId(), key.getCacheKey(), entry);
+                replaced = true;
             }
+        } finally {
+            lock.unlock();
+        }
+        if (replaced) {
+            entryCached(key, entry, expected);
+        } else {
+            cacheInvalidate(key);
         }
+        return replaced;
     }
 
     /**
@@ -451,7 +775,13 @@ public class PersistenceContext
         }
 
         // then remove the keyed entry from the cache system
-        _cache.remove(cacheId, cacheKey);
+        Lock lock = _cacheLocks.get(cacheKey);
+        lock.lock();
+        try {
+            _cache.remove(cacheId, cacheKey);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -509,6 +839,68 @@ public class PersistenceContext
         }
     }
 
+    /**
+     * Configures whether cached query results (the key sets and contents cached by {@link
+     * DepotRepository#findAll}) are invalidated when records that they include, or should now
+     * include, are inserted, updated or deleted via a repository. The where clause of each cached
+     * result is evaluated against the modified record as it was before and after the modification,
+     * and only the results that the modification could have changed are invalidated. Bulk
+     * modifications, and updates or deletions of records that are not themselves cached, invalidate
+     * all cached query results for the modified class. Results whose where clauses compare strings
+     * (which match according to the database's collation) are invalidated by any modification. This
+     * is off by default, in which case cached query results must be cleared via {@link
+     * Query#clearCache}.
+     */
+    public void setTrackCachedQueries (boolean track)
+    {
+        _queries = track ? new QueryCacheIndex() : null;
+    }
+
+    /**
+     * Returns true if cached query results are invalidated as records are modified.
+     *
+     * @see #setTrackCachedQueries
+     */
+    public boolean isTrackingCachedQueries ()
+    {
+        return _queries != null;
+    }
+
+    /**
+     * Notes that the results of the supplied query have been cached under the supplied key.
+     *
+     * @param keysOnly true if the cached result contains only the primary keys of the matching
+     * records, false if it contains the records themselves.
+     */
+    public void noteCachedQuery (CacheKey key, SelectClause select, boolean keysOnly)
+    {
+        if (_queries != null) {
+            _queries.noteCached(this, key, select, keysOnly);
+        }
+    }
+
+    /**
+     * Invalidates the cached query results affected by the insertion (if {@code before} is null),
+     * deletion (if {@code after} is null) or update of the supplied record.
+     */
+    public <T extends PersistentRecord> void invalidateCachedQueries (
+        Class<T> type, T before, T after)
+    {
+        if (_queries != null) {
+            _queries.invalidate(this, type, before, after);
+        }
+    }
+
+    /**
+     * Invalidates all cached query results for the supplied class.
+     */
+    public void invalidateCachedQueries (Class<? extends PersistentRecord> type)
+    {
+        if (_queries != null) {
+            _queries.invalidateAll(this, type);
+        }
+    }
+
     /**
      * Registers a new cache listener with the cache associated with the given class.
      */
@@ -549,7 +941,19 @@ public class PersistenceContext
     {
         // resolve our internal tracking table
         getMarshaller(DepotMigrationHistoryRecord.class);
-        // resolve all persistent records and trigger all schema migrations
+        // resolve all persistent records and trigger all schema migrations, consulting a single
+        // snapshot of the catalog rather than querying the metadata of each table separately
+        Set<Class<? extends PersistentRecord>> classes = Sets.newLinkedHashSet();
+        for (DepotRepository repo : _repositories) {
+            repo.getManagedRecords(classes);
+        }
+        _meta.snapshotCatalog();
+        try {
+            resolveRecords(classes);
+        } finally {
+            _meta.clearCatalogSnapshot();
+        }
+        // this resolves nothing new unless a repository overrides resolveRecords()
         for (DepotRepository repo : _repositories) {
             repo.resolveRecords();
         }
@@ -581,6 +985,64 @@ public class PersistenceContext
         }
     }
 
+    /**
+     * Initializes the marshallers for the supplied classes, up to {@link #setInitConcurrency} at
+     * once. Computed records, whose initialization may require that of their shadow records, are
+     * initialized afterwards, one at a time.
+     */
+    protected void resolveRecords (Set<Class<? extends PersistentRecord>> classes)
+        throws DatabaseException
+    {
+        List<Class<? extends PersistentRecord>> tables = Lists.newArrayList();
+        List<Class<? extends PersistentRecord>> computed = Lists.newArrayList();
+        for (Class<? extends PersistentRecord> pClass : classes) {
+            (getRawMarshaller(pClass).getTableName() == null ? computed : tables).add(pClass);
+        }
+
+        if (_initConcurrency > 1 && tables.size() > 1) {
+            ExecutorService exec = AsyncDispatcher.createDefaultExecutor(_ident + "-init");
+            AsyncDispatcher dispatcher = new AsyncDispatcher(
+                exec, Math.min(_initConcurrency, tables.size()), tables.size());
+            List<CompletableFuture<?>> inits = Lists.newArrayList();
+            for (final Class<? extends PersistentRecord> pClass : tables) {
+                inits.add(dispatcher.dispatch(new Callable<DepotMarshaller<?>>() {
+                    public DepotMarshaller<?> call () {
+                        return getMarshaller(pClass);
+                    }
+                }));
+            }
+            // wait for every initialization to finish before reporting any failure
+            Throwable failure = null;
+            try {
+                for (CompletableFuture<?> init : inits) {
+                    try {
+                        init.get();
+                    } catch (ExecutionException ee) {
+                        if (failure == null) {
+                            failure = ee.getCause();
+                        }
+                    }
+                }
+            } catch (InterruptedException ie) {
+                throw new DatabaseException("Interrupted while initializing records.", ie);
+            } finally {
+                exec.shutdown();
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException)failure;
+            } else if (failure instanceof Error) {
+                throw (Error)failure;
+            } else if (failure != null) {
+                throw new DatabaseException("Failed to initialize records.", failure);
+            }
+            tables.clear();
+        }
+
+        for (Class<? extends PersistentRecord> pClass : Iterables.concat(tables, computed)) {
+            getMarshaller(pClass);
+        }
+    }
+
     /**
      * Looks up and creates, but does not initialize, the marshaller for the specified Entity type.
      */
@@ -607,83 +1069,229 @@ public class PersistenceContext
         ConnOp connop;
         Transaction tx = Transaction.get();
         if (tx != null) {
-            if (tx.ctx != this) throw new IllegalStateException(
-                "Cannot perform database ops on multiple persistence contexts in a transaction " +
-                "[txCtx=" + tx.ctx._ident + ", thisCtx=" + _ident + "].");
+            checkTxContext(tx);
             connop = new TxOp(tx);
         } else {
-            connop = new NonTxOp(isReadOnly);
+            connop = new NonTxOp(isReadOnly && !readsRecentlyModified(op));
         }
 
         long preConnect = System.nanoTime();
         Connection conn = connop.get();
 
-        // wrap the connection in a proxy that will collect all opened statements
-        List<Statement> stmts = Lists.newArrayListWithCapacity(1);
-        conn = JDBCUtil.makeCollector(conn, stmts);
+        // wrap the connection in a delegate that will collect all opened statements, and obtain
+        // prepared statements from our cache if the provider hands out long-lived connections;
+        // delegates are pooled for reuse by subsequent ops rather than bound to threads, of which
+        // there may be very many if callers use virtual threads
+        CollectingConnection cconn = _collectors.poll();
+        if (cconn == null) {
+            cconn = new CollectingConnection();
+        }
+        cconn.init(conn, _conprov.reusesConnections() ? _stmts : null);
 
-        // TEMP: we synchronize on the connection to cooperate with SimpleRepository when used in
-        // conjunction with a StaticConnectionProvider; at some point we'll switch to standard JDBC
-        // connection pooling which will block in getConnection() instead of returning a connection
-        // that someone else may be using
-        synchronized (conn) {
-            long preInvoke = System.nanoTime();
-            try {
-                // invoke our database operation
-                T value;
-                try {
-                    value = op.invoke(this, conn, _liaison);
-                } finally {
-                    // close all opened statements; if any close fails, abort the close process as
-                    // the whole connection is now unusable and will be discarded
-                    for (Statement stmt : stmts) {
-                        stmt.close();
-                    }
+        try {
+            Object result;
+            if (_conprov.isExclusive()) {
+                result = invokeOn(op, connop, conn, cconn, preConnect, retryOnTransientFailure);
+            } else {
+                // our provider may hand the same connection to multiple callers (as does the
+                // StaticConnectionProvider), so we synchronize on the connection for the duration
+                // of the operation, as must any other code that shares a connection with us; an
+                // exclusive provider's connections need no such monitor, which (prior to Java 24)
+                // would pin a virtual thread to its carrier while it waited on the database
+                synchronized (conn) {
+                    result = invokeOn(op, connop, conn, cconn, preConnect,
+                                      retryOnTransientFailure);
                 }
-                // let our connop do auto-commit, if appropriate
-                connop.done(conn);
-                // note the time it took to invoke this operation
-                _stats.noteOp(isReadOnly, preConnect, preInvoke, System.nanoTime());
-                // have the operation update any appropriate runtime statistics as well
-                op.updateStats(_stats);
+            }
+            if (result != RETRY) {
+                @SuppressWarnings("unchecked") T value = (T)result;
                 return value;
+            }
+        } finally {
+            _collectors.offer(cconn); // it was finished when the op completed
+        }
 
-            } catch (SQLException sqe) {
-                if (!isReadOnly) {
-                    // convert this exception to a DuplicateKeyException if appropriate
-                    if (_liaison.isDuplicateRowException(sqe)) {
-                        throw new DuplicateKeyException(sqe.getMessage());
-                    }
+        // if we got here, we want to retry a transient failure
+        return invoke(op, false);
+    }
+
+    /**
+     * Invokes the supplied operation on a connection obtained from our provider (and wrapped in
+     * {@code cconn}), then releases it. Returns the operation's result, or {@link #RETRY} if it
+     * failed in a way that should be retried.
+     */
+    protected <T> Object invokeOn (Operation<T> op, ConnOp connop, Connection conn,
+                                   CollectingConnection cconn, long preConnect,
+                                   boolean retryOnTransientFailure)
+        throws DatabaseException
+    {
+        boolean isReadOnly = op.isReadOnly();
+        long preInvoke = System.nanoTime();
+        try {
+            // invoke our database operation
+            T value;
+            String shape;
+            try {
+                value = op.invoke(this, cconn, _liaison);
+            } finally {
+                shape = cconn.getFirstSQL();
+                // close all opened statements and return cached statements to the cache; if
+                // any of that fails, abort the process as the whole connection is now unusable
+                // and will be discarded
+                cconn.finish();
+            }
+            // let our connop do auto-commit, if appropriate
+            connop.done(conn);
+            if (!isReadOnly) {
+                noteModified(op.getPersistentClass());
+            }
+            // note the time it took to invoke this operation
+            _stats.noteOp(op.getPersistentClass(), shape, isReadOnly,
+                          preConnect, preInvoke, System.nanoTime());
+            // have the operation update any appropriate runtime statistics as well
+            op.updateStats(_stats);
+            return value;
+
+        } catch (SQLException sqe) {
+            if (!isReadOnly) {
+                // convert this exception to a DuplicateKeyException if appropriate
+                if (_liaison.isDuplicateRowException(sqe)) {
+                    throw new DuplicateKeyException(sqe.getMessage());
                 }
+            }
 
-                // let the provider know that the connection failed
-                boolean opAllowsRetry = connop.fail(conn, sqe);
-                conn = null;
+            // let the provider know that the connection failed
+            boolean opAllowsRetry = connop.fail(conn, sqe);
+            conn = null;
 
-                if (retryOnTransientFailure && opAllowsRetry &&
-                    _liaison.isTransientException(sqe)) {
-                    // the MySQL JDBC driver has the annoying habit of including the embedded
-                    // exception stack trace in the message of their outer exception; if I want a
-                    // fucking stack trace, I'll call printStackTrace() thanksverymuch
-                    String msg = String.valueOf(sqe).split("\n")[0];
-                    log.info("Transient failure executing op, retrying [error=" + msg + "].");
+            if (retryOnTransientFailure && opAllowsRetry &&
+                _liaison.isTransientException(sqe)) {
+                // the MySQL JDBC driver has the annoying habit of including the embedded
+                // exception stack trace in the message of their outer exception; if I want a
+                // fucking stack trace, I'll call printStackTrace() thanksverymuch
+                String msg = String.valueOf(sqe).split("\n")[0];
+                log.info("Transient failure executing op, retrying [error=" + msg + "].");
 
-                } else {
-                    throw new DatabaseException("Operation failure " + op, sqe);
-                }
+            } else {
+                throw new DatabaseException("Operation failure " + op, sqe);
+            }
 
-            } finally {
-                if (conn != null) {
-                    connop.release(conn);
-                }
+        } finally {
+            if (conn != null) {
+                connop.release(conn);
             }
         }
+        return RETRY;
+    }
 
-        // if we got here, we want to retry a transient failure
-        return invoke(op, false);
+    /**
+     * Notes that the supplied record class was just modified, if we send subsequent reads of
+     * modified classes to the master.
+     */
+    protected void noteModified (Class<?> pClass)
+    {
+        if (_readAfterWriteWindow > 0 && pClass != null) {
+            _modified.put(pClass, System.currentTimeMillis() + _readAfterWriteWindow);
+        }
     }
 
-    protected synchronized void checkAreInitialized ()
+    /**
+     * Returns true if the supplied operation reads a record class that was modified within our
+     * read-after-write window.
+     */
+    protected boolean readsRecentlyModified (Operation<?> op)
+    {
+        if (_readAfterWriteWindow <= 0 || _modified.isEmpty()) {
+            return false;
+        }
+        Set<Class<? extends PersistentRecord>> classes = Sets.newHashSet();
+        op.addReadClasses(classes);
+        return anyRecentlyModified(classes);
+    }
+
+    /**
+     * Returns true if the supplied query reads a record class that was modified within our
+     * read-after-write window.
+     */
+    protected boolean readsRecentlyModified (StreamQuery<?,?> query)
+    {
+        if (_readAfterWriteWindow <= 0 || _modified.isEmpty()) {
+            return false;
+        }
+        Set<Class<? extends PersistentRecord>> classes = Sets.newHashSet();
+        query.addReadClasses(classes);
+        return anyRecentlyModified(classes);
+    }
+
+    protected boolean anyRecentlyModified (Set<Class<? extends PersistentRecord>> classes)
+    {
+        long now = System.currentTimeMillis();
+        for (Class<? extends PersistentRecord> pClass : classes) {
+            Long until = _modified.get(pClass);
+            if (until == null) {
+                continue;
+            }
+            if (until > now) {
+                return true;
+            }
+            _modified.remove(pClass, until);
+        }
+        return false;
+    }
+
+    /**
+     * Notifies the listeners for the supplied key's cache that an entry has been cached.
+     */
+    protected <T> void entryCached (CacheKey key, T entry, T oldEntry)
+    {
+        Set<CacheListener<?>> listeners = _listenerSets.get(key.getCacheId());
+        if (listeners != null && listeners.size() > 0) {
+            for (CacheListener<?> listener : listeners) {
+                log.debug("cascading", "listener", listener);
+                @SuppressWarnings("unchecked")
+                    CacheListener<T> casted = (CacheListener<T>)listener;
+                casted.entryCached(entry, oldEntry);
+            }
+        }
+    }
+
+    protected <T> CompletableFuture<T> invokeNow (final Fetcher<T> fetcher)
+    {
+        return invokeNow(new Callable<T>() {
+            public T call () {
+                return invoke(fetcher);
+            }
+        });
+    }
+
+    protected <T> CompletableFuture<T> invokeNow (Callable<T> op)
+    {
+        try {
+            return CompletableFuture.completedFuture(op.call());
+        } catch (Throwable t) {
+            return failedFuture(t);
+        }
+    }
+
+    protected static <T> CompletableFuture<T> failedFuture (Throwable cause)
+    {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        result.completeExceptionally(cause);
+        return result;
+    }
+
+    protected synchronized AsyncDispatcher getAsync ()
+    {
+        checkAreInitialized();
+        if (_async == null) {
+            _defaultExecutor = AsyncDispatcher.createDefaultExecutor(_ident);
+            _async = new AsyncDispatcher(
+                _defaultExecutor, DEFAULT_ASYNC_CONCURRENCY, DEFAULT_ASYNC_QUEUE_SIZE);
+        }
+        return _async;
+    }
+
+    protected void checkAreInitialized ()
     {
         if (_conprov == null) {
             throw new IllegalStateException(
@@ -692,6 +1300,13 @@ public class PersistenceContext
         }
     }
 
+    protected void checkTxContext (Transaction tx)
+    {
+        if (tx.ctx != this) throw new IllegalStateException(
+            "Cannot perform database ops on multiple persistence contexts in a transaction " +
+            "[txCtx=" + tx.ctx._ident + ", thisCtx=" + _ident + "].");
+    }
+
     interface ConnOp {
         Connection get ();
         void done (Connection conn) throws SQLException;
@@ -716,6 +1331,7 @@ public class PersistenceContext
             }
         }
         public boolean fail (Connection conn, SQLException sqe) {
+            _stmts.evict(conn);
             _conprov.connectionFailed(_ident, readOnly, conn, sqe);
             return true;
         }
@@ -744,9 +1360,28 @@ public class PersistenceContext
         }
     }
 
+    /** Obtains a transaction connection for the sole use of a read-only op (i.e. a cursor). */
+    protected class DedicatedOp implements ConnOp {
+        public Connection get () {
+            return _conprov.getTxConnection(_ident);
+        }
+        public void done (Connection conn) throws SQLException {
+            // release any locks we may have acquired
+            conn.commit();
+        }
+        public boolean fail (Connection conn, SQLException sqe) {
+            _stmts.evict(conn);
+            _conprov.txConnectionFailed(_ident, conn, sqe);
+            return false;
+        }
+        public void release (Connection conn) {
+            _conprov.releaseTxConnection(_ident, conn);
+        }
+    }
+
     protected final CanMigrate _canMigrate;
     protected String _ident;
-    protected ConnectionProvider _conprov;
+    protected volatile ConnectionProvider _conprov;
     protected DatabaseLiaison _liaison;
     protected DepotMetaData _meta = new DepotMetaData();
     protected boolean _warnOnLazyInit;
@@ -754,9 +1389,42 @@ public class PersistenceContext
     /** Used to track various statistics. */
     protected Stats _stats = new Stats();
 
+    /** Caches the SQL (and parameter bindings) generated for each shape of query we execute. */
+    protected QueryPlanCache _plans = new QueryPlanCache(_stats);
+
+    /** The idle statement collecting connection wrappers, reused by {@link #invoke}. */
+    protected Queue<CollectingConnection> _collectors =
+        new ConcurrentLinkedQueue<CollectingConnection>();
+
+
+    /** The window for which reads of a modified record class are sent to the master. */
+    protected volatile long _readAfterWriteWindow;
+
+    /** The time until which reads of each recently modified record class go to the master. */
+    protected ConcurrentMap<Class<?>, Long> _modified = new ConcurrentHashMap<Class<?>, Long>();
+
+    /** The number of record classes that {@link #initializeRepositories} initializes at once. */
+    protected int _initConcurrency = DEFAULT_INIT_CONCURRENCY;
+
+    /** Dispatches our asynchronous operations, created on demand. */
+    protected AsyncDispatcher _async;
+
+    /** The executor we created for our asynchronous operations, if one was not supplied. */
+    protected ExecutorService _defaultExecutor;
+
+    /** Caches prepared statements on the connections obtained from our provider. */
+    protected StatementCache _stmts = new StatementCache(DEFAULT_STATEMENT_CACHE_SIZE);
+
     /** The object through which all our caching is relayed, or null, for no caching. */
     protected CacheAdapter _cache;
 
+    /** Locks that make {@link #cacheReplace} atomic with respect to stores and removals of the
+     * same key. These are held only while calling our adapter, never while notifying listeners. */
+    protected Striped<Lock> _cacheLocks = Striped.lock(64);
+
+    /** Tracks our cached query results, or null if they are not invalidated automatically. */
+    protected QueryCacheIndex _queries;
+
     /** Tracks repositories during the pre-initialization phase. */
     protected List<DepotRepository> _repositories = Lists.newArrayList();
 
@@ -765,4 +1433,7 @@ public class PersistenceContext
 
     /** A mapping of cache listeners by cache id. */
     protected Map<String, Set<CacheListener<?>>> _listenerSets = Maps.newHashMap();
+
+    /** Returned by {@link #invokeOn} when its operation failed and should be retried. */
+    protected static final Object RETRY = new Object();
 }
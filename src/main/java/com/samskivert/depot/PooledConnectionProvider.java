@@ -0,0 +1,414 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import static com.samskivert.depot.Log.log;
+
+/**
+ * A connection provider that maintains a bounded pool of connections for each database identifier
+ * (one pool for read-only connections and another for read-write and transaction connections).
+ * Each connection is handed out to exactly one caller at a time, so Depot does not need to
+ * serialize operations on a connection as it does with {@link StaticConnectionProvider}.
+ *
+ * <p> The pool is configured via properties in the same manner as {@link
+ * StaticConnectionProvider}, with the following additional (optional) properties:
+ *
+ * <pre>
+ * IDENT.maxConnections=[max connections per pool, default 8]
+ * IDENT.acquireTimeout=[millis to wait for a connection before failing, default 30000]
+ * IDENT.idleTimeout=[millis after which an idle connection is closed, default 600000]
+ * IDENT.validationInterval=[idle millis after which a connection is validated, default 1000]
+ * </pre>
+ *
+ * <p> Callers waiting for a connection are served in the order in which they arrived. Connections
+ * that have been idle longer than the validation interval are checked with {@link
+ * Connection#isValid} before they are handed out, and connections that have been idle longer than
+ * the idle timeout are closed. {@link #addConnectionListener Listeners} are notified before any
+ * connection is closed.
+ */
+public class PooledConnectionProvider implements ConnectionProvider
+{
+    /** The default maximum number of connections in each pool. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 8;
+
+    /** The default number of milliseconds to wait for a connection before failing. */
+    public static final long DEFAULT_ACQUIRE_TIMEOUT = 30 * 1000L;
+
+    /** The default number of milliseconds after which an idle connection is closed. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 10 * 60 * 1000L;
+
+    /** The default number of milliseconds of idleness after which a connection is validated. */
+    public static final long DEFAULT_VALIDATION_INTERVAL = 1000L;
+
+    /** Creates a provider for testing, using HSQLDB. */
+    public static ConnectionProvider forTest (String dbname) {
+        Properties props = new Properties();
+        props.setProperty("default.username", "sa");
+        props.setProperty("default.password", "none");
+        props.setProperty("default.url", "jdbc:hsqldb:mem:" + dbname);
+        return new PooledConnectionProvider(props);
+    }
+
+    /**
+     * Constructs a pooled connection provider which will load its configuration from a properties
+     * file accessible via the classpath of the running application and identified by the
+     * specified path.
+     *
+     * @exception IOException thrown if an error occurs locating or loading the specified
+     * properties file.
+     */
+    public PooledConnectionProvider (String propPath) throws IOException
+    {
+        this(StaticConnectionProvider.loadProperties(
+                 propPath, ConnectionProvider.class.getClassLoader()));
+    }
+
+    /**
+     * Constructs a pooled connection provider which will fetch its configuration information from
+     * the specified properties object.
+     */
+    public PooledConnectionProvider (Properties props)
+    {
+        _props = props;
+    }
+
+    // from ConnectionProvider
+    public String getURL (String ident)
+    {
+        Properties props = StaticConnectionProvider.getSubProperties(
+            _props, ident, StaticConnectionProvider.DEFAULTS_KEY);
+        return props.getProperty("url");
+    }
+
+    // from ConnectionProvider
+    public Connection getConnection (String ident, boolean readOnly)
+    {
+        return getPool(ident, readOnly).checkout();
+    }
+
+    // from ConnectionProvider
+    public void releaseConnection (String ident, boolean readOnly, Connection conn)
+    {
+        getPool(ident, readOnly).checkin(conn);
+    }
+
+    // from ConnectionProvider
+    public void connectionFailed (
+        String ident, boolean readOnly, Connection conn, SQLException error)
+    {
+        getPool(ident, readOnly).discard(conn);
+    }
+
+    // from ConnectionProvider
+    public Connection getTxConnection (String ident)
+    {
+        Pool pool = getPool(ident, false);
+        Connection conn = pool.checkout();
+        try {
+            conn.setAutoCommit(false);
+        } catch (SQLException sqe) {
+            pool.discard(conn);
+            throw new DatabaseException(
+                "Failed to configure transaction connection [ident=" + ident + "].", sqe);
+        }
+        return conn;
+    }
+
+    // from ConnectionProvider
+    public void releaseTxConnection (String ident, Connection conn)
+    {
+        Pool pool = getPool(ident, false);
+        try {
+            conn.setAutoCommit(pool.autoCommit == null || pool.autoCommit);
+        } catch (SQLException sqe) {
+            log.warning("Failed to restore auto-commit on tx connection", "ident", ident,
+                        "error", sqe);
+            pool.discard(conn);
+            return;
+        }
+        pool.checkin(conn);
+    }
+
+    // from ConnectionProvider
+    public void txConnectionFailed (String ident, Connection conn, SQLException error)
+    {
+        getPool(ident, false).discard(conn);
+    }
+
+    // from ConnectionProvider
+    public boolean reusesConnections ()
+    {
+        return true;
+    }
+
+    // from ConnectionProvider
+    public boolean isExclusive ()
+    {
+        return true;
+    }
+
+    @Override // from ConnectionProvider
+    public void addConnectionListener (ConnectionListener listener)
+    {
+        _listeners.add(listener);
+    }
+
+    // from ConnectionProvider
+    public void shutdown ()
+    {
+        // we leave our pools mapped so that outstanding connections are closed when they are
+        // returned and so that any further attempts to obtain connections fail
+        List<Pool> pools;
+        synchronized (_pools) {
+            pools = Lists.newArrayList(_pools.values());
+        }
+        for (Pool pool : pools) {
+            pool.shutdown();
+        }
+    }
+
+    protected Pool getPool (String ident, boolean readOnly)
+    {
+        String key = ident + ":" + readOnly;
+        synchronized (_pools) {
+            Pool pool = _pools.get(key);
+            if (pool == null) {
+                Properties props = StaticConnectionProvider.getSubProperties(
+                    _props, ident, StaticConnectionProvider.DEFAULTS_KEY);
+                _pools.put(key, pool = new Pool(key, ident, props, readOnly, _listeners));
+            }
+            return pool;
+        }
+    }
+
+    protected static long getLong (Properties props, String name, long defval)
+    {
+        String value = props.getProperty(name);
+        try {
+            return (value == null) ? defval : Long.parseLong(value.trim());
+        } catch (NumberFormatException nfe) {
+            throw new DatabaseException("Invalid pool configuration [" + name + "=" + value + "].");
+        }
+    }
+
+    /** An idle connection and the time at which it was returned to the pool. */
+    protected static class Idle
+    {
+        public final Connection conn;
+        public final long since;
+
+        public Idle (Connection conn, long since) {
+            this.conn = conn;
+            this.since = since;
+        }
+    }
+
+    /** A bounded pool of connections for a single identifier and read-only-ness. */
+    protected static class Pool
+    {
+        /** The auto-commit setting for this pool's connections, or null for the driver default. */
+        public final Boolean autoCommit;
+
+        public Pool (String key, String ident, Properties props, boolean readOnly,
+                     List<ConnectionListener> listeners) {
+            StaticConnectionProvider.Info info = new StaticConnectionProvider.Info(ident, props);
+            autoCommit = info.autoCommit;
+            _ident = ident;
+            _listeners = listeners;
+            _opener = new StaticConnectionProvider.Mapping(key, info, readOnly);
+            int maxConns = (int)getLong(props, "maxConnections", DEFAULT_MAX_CONNECTIONS);
+            if (maxConns < 1) {
+                throw new DatabaseException("maxConnections must be positive [ident=" + ident +
+                                            ", maxConnections=" + maxConns + "].");
+            }
+            _permits = new Semaphore(maxConns, true);
+            _acquireTimeout = getLong(props, "acquireTimeout", DEFAULT_ACQUIRE_TIMEOUT);
+            _idleTimeout = getLong(props, "idleTimeout", DEFAULT_IDLE_TIMEOUT);
+            _validationInterval = getLong(
+                props, "validationInterval", DEFAULT_VALIDATION_INTERVAL);
+        }
+
+        /**
+         * Obtains a connection for the exclusive use of the caller, blocking (in FIFO order with
+         * other callers) until one is available.
+         */
+        public Connection checkout () {
+            try {
+                if (!_permits.tryAcquire(_acquireTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new DatabaseException(
+                        "Timed out waiting for connection [ident=" + _ident +
+                        ", timeout=" + _acquireTimeout + "ms].");
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new DatabaseException(
+                    "Interrupted waiting for connection [ident=" + _ident + "].", ie);
+            }
+
+            try {
+                Connection conn = null;
+                while (conn == null) {
+                    Idle idle = takeIdle();
+                    if (idle == null) {
+                        conn = _opener.openConnection(_ident, autoCommit);
+                    } else if (isUsable(idle)) {
+                        conn = idle.conn;
+                    } else {
+                        close(idle.conn);
+                    }
+                }
+                synchronized (this) {
+                    _active.add(conn);
+                }
+                return conn;
+
+            } catch (RuntimeException re) {
+                _permits.release();
+                throw re;
+            }
+        }
+
+        /**
+         * Returns a connection obtained via {@link #checkout} to the pool.
+         */
+        public void checkin (Connection conn) {
+            boolean closeConn;
+            List<Connection> expired = Lists.newArrayList();
+            synchronized (this) {
+                if (!_active.remove(conn)) {
+                    log.warning("Unknown connection returned to pool", "ident", _ident);
+                    return;
+                }
+                closeConn = _shutdown;
+                long now = System.currentTimeMillis();
+                if (!closeConn) {
+                    _idle.addFirst(new Idle(conn, now));
+                }
+                // expire any connections that have been idle for too long
+                while (!_idle.isEmpty() && now - _idle.peekLast().since > _idleTimeout) {
+                    expired.add(_idle.removeLast().conn);
+                }
+            }
+            _permits.release();
+            if (closeConn) {
+                close(conn);
+            }
+            for (Connection econn : expired) {
+                close(econn);
+            }
+        }
+
+        /**
+         * Closes a connection obtained via {@link #checkout} that has failed, freeing its slot in
+         * the pool.
+         */
+        public void discard (Connection conn) {
+            boolean known;
+            synchronized (this) {
+                known = _active.remove(conn);
+            }
+            close(conn);
+            if (known) {
+                _permits.release();
+            } else {
+                log.warning("Unknown connection discarded", "ident", _ident);
+            }
+        }
+
+        /**
+         * Closes all idle connections and arranges for active connections to be closed when they
+         * are returned.
+         */
+        public void shutdown () {
+            List<Idle> idle;
+            synchronized (this) {
+                _shutdown = true;
+                idle = Lists.newArrayList(_idle);
+                _idle.clear();
+            }
+            for (Idle conn : idle) {
+                close(conn.conn);
+            }
+        }
+
+        /** Closes a connection that we handed out, first notifying our listeners. */
+        protected void close (Connection conn) {
+            for (ConnectionListener listener : _listeners) {
+                try {
+                    listener.connectionClosed(conn);
+                } catch (Exception e) {
+                    log.warning("Connection listener failed", "ident", _ident, e);
+                }
+            }
+            StaticConnectionProvider.close(conn, _ident);
+        }
+
+        /** Removes and returns the most recently used idle connection, if any. */
+        protected synchronized Idle takeIdle () {
+            if (_shutdown) {
+                throw new DatabaseException("Connection pool shut down [ident=" + _ident + "].");
+            }
+            return _idle.pollFirst();
+        }
+
+        /** Returns true if the supplied idle connection may be handed out. */
+        protected boolean isUsable (Idle idle) {
+            long idleTime = System.currentTimeMillis() - idle.since;
+            if (idleTime > _idleTimeout) {
+                return false;
+            }
+            if (idleTime <= _validationInterval) {
+                return true;
+            }
+            try {
+                return idle.conn.isValid(VALIDATION_TIMEOUT);
+            } catch (SQLException sqe) {
+                log.info("Pooled connection failed validation", "ident", _ident, "error", sqe);
+                return false;
+            }
+        }
+
+        protected final String _ident;
+        protected final List<ConnectionListener> _listeners;
+        protected final StaticConnectionProvider.Mapping _opener;
+        protected final Semaphore _permits;
+        protected final long _acquireTimeout, _idleTimeout, _validationInterval;
+
+        /** Our idle connections, most recently returned first. */
+        protected final ArrayDeque<Idle> _idle = new ArrayDeque<Idle>();
+
+        /** Our checked out connections. */
+        protected final Set<Connection> _active = Sets.newIdentityHashSet();
+
+        protected boolean _shutdown;
+    }
+
+    /** Our configuration in the form of a properties object. */
+    protected Properties _props;
+
+    /** Our pools, keyed on ident and read-only-ness. */
+    protected Map<String, Pool> _pools = Maps.newHashMap();
+
+    /** Notified when we close connections that we have handed out. */
+    protected final List<ConnectionListener> _listeners = Lists.newCopyOnWriteArrayList();
+
+    /** The number of seconds to wait for a connection to validate. */
+    protected static final int VALIDATION_TIMEOUT = 5;
+}
@@ -7,14 +7,20 @@ package com.samskivert.depot;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 import com.google.common.collect.Lists;
 
 import com.samskivert.depot.clause.*;
 import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.Cursor;
 import com.samskivert.depot.impl.FindAllQuery;
+import com.samskivert.depot.impl.FindOneQuery;
 import com.samskivert.depot.impl.Projector;
+import com.samskivert.depot.impl.StreamQuery;
 import com.samskivert.depot.util.*; // TupleN
 
 import static com.google.common.base.Preconditions.checkArgument;
@@ -44,6 +50,10 @@ import static com.google.common.base.Preconditions.checkState;
 public class Query<T extends PersistentRecord>
     implements Cloneable
 {
+    /** The number of rows fetched from the database at a time by streaming queries, unless
+     * otherwise configured via {@link #fetchSize}. */
+    public static final int DEFAULT_FETCH_SIZE = 1000;
+
     /** Disables the use of the cache for this query. */
     public Query<T> noCache () {
         return cache(DepotRepository.CacheStrategy.NONE);
@@ -338,12 +348,57 @@ public class Query<T extends PersistentRecord>
         return query;
     }
 
+    /**
+     * Configures the number of rows fetched from the database at a time by {@link #stream} and
+     * {@link #forEach}. This has no effect on queries that load their results in their entirety.
+     */
+    public Query<T> fetchSize (int fetchSize)
+    {
+        checkArgument(fetchSize > 0, "Fetch size must be positive.");
+        Query<T> query = clone();
+        query._fetchSize = fetchSize;
+        return query;
+    }
+
+    /**
+     * Configures {@link #load()} and {@link #select()} to return records that are shared with the
+     * cache rather than cloned on their way into and out of it. The returned records are {@link
+     * PersistentRecord#isFrozen frozen}: they must not be modified and the repository will refuse
+     * to insert, update, store or delete them. Use {@link PersistentRecord#clone} to obtain a
+     * modifiable copy of such a record.
+     */
+    public Query<T> readOnly ()
+    {
+        Query<T> query = clone();
+        query._readOnly = true;
+        return query;
+    }
+
+    /**
+     * Configures {@link #select()} to compute its results in memory, from the cached records, if
+     * the entire table is known to be cached: that is, if the key set of an unqualified {@code
+     * select()} of this record class is cached (which is kept current as records are inserted and
+     * deleted if {@link PersistenceContext#setTrackCachedQueries} is enabled), as are all of the
+     * records in it. Otherwise, or if the query uses clauses that cannot be evaluated in memory,
+     * it is sent to the database as usual. As strings collate differently in different databases,
+     * queries that compare strings are always sent to the database, as are those ordered by
+     * anything other than numeric and date valued expressions.
+     */
+    public Query<T> inMemory ()
+    {
+        Query<T> query = clone();
+        query._inMemory = true;
+        return query;
+    }
+
     /**
      * Loads the first persistent object that matches the configured query clauses.
      */
     public T load ()
     {
-        return _repo.load(_pclass, _cache, getClauseArray());
+        return _readOnly ?
+            _ctx.invoke(new FindOneQuery<T>(_ctx, _pclass, _cache, getClauseArray(), true)) :
+            _repo.load(_pclass, _cache, getClauseArray());
     }
 
     /**
@@ -352,7 +407,65 @@ public class Query<T extends PersistentRecord>
     public List<T> select ()
         throws DatabaseException
     {
-        return _repo.findAll(_pclass, _cache, getClauses());
+        if (_inMemory) {
+            return _ctx.invoke(newInMemoryQuery());
+        }
+        return _readOnly ?
+            _ctx.invoke(FindAllQuery.newCachedFullRecordQuery(
+                            _ctx, _pclass, _cache, getClauses(), true)) :
+            _repo.findAll(_pclass, _cache, getClauses());
+    }
+
+    /**
+     * Loads all persistent objects that match the configured query clauses, asynchronously. If
+     * the result is cached, the returned future is already complete. Otherwise the query is run
+     * on the {@link PersistenceContext#setAsyncExecutor async executor}.
+     */
+    public CompletableFuture<List<T>> selectAsync ()
+    {
+        return _ctx.invokeAsync(_inMemory ? newInMemoryQuery() :
+                                FindAllQuery.newCachedFullRecordQuery(
+                                    _ctx, _pclass, _cache, getClauses(), _readOnly));
+    }
+
+    /**
+     * Loads the first persistent object that matches the configured query clauses,
+     * asynchronously. If the object is cached, the returned future is already complete.
+     */
+    public CompletableFuture<T> loadAsync ()
+    {
+        return _ctx.invokeAsync(
+            new FindOneQuery<T>(_ctx, _pclass, _cache, getClauseArray(), _readOnly));
+    }
+
+    /**
+     * Returns a stream over all persistent objects that match the configured query clauses. The
+     * objects are loaded from the database lazily, {@link #fetchSize} rows at a time, rather than
+     * being read into memory all at once. The stream holds a database connection until it is
+     * exhausted or closed, so it should be closed (via try-with-resources) if it may not be
+     * consumed in its entirety. Note that cache configuration is ignored for streamed queries.
+     */
+    public Stream<T> stream ()
+        throws DatabaseException
+    {
+        return stream(StreamQuery.newRecordQuery(_ctx, _pclass, getClauses()));
+    }
+
+    /**
+     * Passes each persistent object that matches the configured query clauses to the supplied
+     * action. The objects are loaded from the database lazily, {@link #fetchSize} rows at a time,
+     * and a database connection is held until all of them have been processed. Note that cache
+     * configuration is ignored for streamed queries.
+     */
+    public void forEach (Consumer<? super T> action)
+        throws DatabaseException
+    {
+        try (Cursor<T> cursor = _ctx.openCursor(
+                 StreamQuery.newRecordQuery(_ctx, _pclass, getClauses()), _fetchSize)) {
+            while (cursor.hasNext()) {
+                action.accept(cursor.next());
+            }
+        }
     }
 
     /**
@@ -541,6 +654,46 @@ public class Query<T extends PersistentRecord>
         return _ctx.invoke(new FindAllQuery.Projection<T,R>(_ctx, proj, getClauses()));
     }
 
+    /**
+     * Returns a stream over just the supplied expression from the rows matching the query. See
+     * {@link #stream()} for details on streamed queries.
+     */
+    public <V> Stream<V> stream (SQLExpression<V> selexp)
+    {
+        return stream(Projector.create(_pclass, selexp));
+    }
+
+    /**
+     * Returns a stream over just the supplied expressions from the rows matching the query. See
+     * {@link #stream()} for details on streamed queries.
+     */
+    public <V1, V2> Stream<Tuple2<V1,V2>> stream (SQLExpression<V1> exp1, SQLExpression<V2> exp2)
+    {
+        Builder2<Tuple2<V1,V2>,V1,V2> builder = Tuple2.builder();
+        return stream(Projector.create(_pclass, builder, exp1, exp2));
+    }
+
+    /**
+     * Returns a stream over just the supplied expressions from the rows matching the query. See
+     * {@link #stream()} for details on streamed queries.
+     */
+    public <V1, V2, V3> Stream<Tuple3<V1,V2,V3>> stream (
+        SQLExpression<V1> exp1, SQLExpression<V2> exp2, SQLExpression<V3> exp3)
+    {
+        Builder3<Tuple3<V1,V2,V3>,V1,V2,V3> builder = Tuple3.builder();
+        return stream(Projector.create(_pclass, builder, exp1, exp2, exp3));
+    }
+
+    /**
+     * Streams the supplied expressions from the rows matching the query, writing their values into
+     * the supplied result class as described in {@link #selectInto}. See {@link #stream()} for
+     * details on streamed queries.
+     */
+    public <V> Stream<V> streamInto (Class<V> resultClass, SQLExpression<?>... selexps)
+    {
+        return stream(Projector.create(_pclass, resultClass, selexps));
+    }
+
     /**
      * Deletes the records that match the configured query clauses. Note that only the where and
      * limit clauses are used to evaluate a deletion. Attempts to use other clauses will result in
@@ -623,6 +776,24 @@ public class Query<T extends PersistentRecord>
         }
     }
 
+    protected FindAllQuery.InMemory<T> newInMemoryQuery ()
+    {
+        List<QueryClause> clauses = getClauses();
+        return new FindAllQuery.InMemory<T>(
+            _ctx, _pclass, clauses, FindAllQuery.newCachedFullRecordQuery(
+                _ctx, _pclass, _cache, clauses, _readOnly), _readOnly);
+    }
+
+    protected <R> Stream<R> stream (Projector<T,R> proj)
+    {
+        return stream(StreamQuery.newProjectionQuery(_ctx, proj, getClauses()));
+    }
+
+    protected <R> Stream<R> stream (StreamQuery<T,R> query)
+    {
+        return _ctx.openCursor(query, _fetchSize).stream();
+    }
+
     protected List<QueryClause> getClauses ()
     {
         List<QueryClause> clauses = Lists.newArrayList();
@@ -698,6 +869,9 @@ public class Query<T extends PersistentRecord>
     protected final Class<T> _pclass;
 
     protected DepotRepository.CacheStrategy _cache = DepotRepository.CacheStrategy.BEST;
+    protected int _fetchSize = DEFAULT_FETCH_SIZE;
+    protected boolean _readOnly;
+    protected boolean _inMemory;
 
     protected WhereClause _where;
     protected OrderBy _orderBy;
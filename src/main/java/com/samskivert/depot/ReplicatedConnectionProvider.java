@@ -0,0 +1,346 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.samskivert.depot.Log.log;
+
+/**
+ * A connection provider that sends read-write and transaction requests to a master database and
+ * spreads read-only requests across any number of replicas, each with its own provider. For
+ * example:
+ *
+ * <pre>{@code
+ * ConnectionProvider conprov = new ReplicatedConnectionProvider(
+ *     new PooledConnectionProvider(masterProps),
+ *     Arrays.asList(new PooledConnectionProvider(replica1Props),
+ *                   new PooledConnectionProvider(replica2Props)));
+ * }</pre>
+ *
+ * <p> Each read-only request goes to the healthy replica with the fewest outstanding connections
+ * (ties going to each in turn). A replica that fails to supply a connection, or whose connection
+ * fails, is taken out of rotation; after {@link #setRetryInterval a while} the next request to
+ * select it checks that it is {@link Connection#isValid valid} before putting it back. If no
+ * replica is healthy, read-only requests go to the master.
+ *
+ * <p> Replicas may lag the master. To read their own writes, callers may have reads of recently
+ * modified record classes sent to the master via {@link
+ * PersistenceContext#setReadAfterWriteWindow}.
+ */
+public class ReplicatedConnectionProvider implements ConnectionProvider
+{
+    /** The default number of milliseconds for which a failed replica is out of rotation. */
+    public static final long DEFAULT_RETRY_INTERVAL = 10 * 1000L;
+
+    /**
+     * Creates a provider that routes requests to the supplied master and replicas.
+     */
+    public ReplicatedConnectionProvider (
+        ConnectionProvider master, List<? extends ConnectionProvider> replicas)
+    {
+        checkArgument(master != null, "A master provider is required.");
+        _master = master;
+        ImmutableList.Builder<Replica> builder = ImmutableList.builder();
+        for (ConnectionProvider replica : replicas) {
+            builder.add(new Replica(replica));
+        }
+        _replicas = builder.build();
+    }
+
+    /**
+     * Configures the number of milliseconds for which a replica is taken out of rotation after it
+     * fails.
+     */
+    public void setRetryInterval (long millis)
+    {
+        _retryInterval = millis;
+    }
+
+    /**
+     * Returns the number of replicas that are currently in rotation.
+     */
+    public int getHealthyReplicas ()
+    {
+        int healthy = 0;
+        for (Replica replica : _replicas) {
+            if (replica.downUntil == 0L) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    // from ConnectionProvider
+    public Connection getConnection (String ident, boolean readOnly)
+    {
+        if (readOnly) {
+            // try each replica at most once, in order of preference
+            for (int ii = 0; ii < _replicas.size(); ii++) {
+                Replica replica = selectReplica();
+                if (replica == null) {
+                    break;
+                }
+                Connection conn = replica.getConnection(ident);
+                if (conn != null) {
+                    noteLeased(conn, replica);
+                    return conn;
+                }
+            }
+        }
+        return _master.getConnection(ident, readOnly);
+    }
+
+    // from ConnectionProvider
+    public void releaseConnection (String ident, boolean readOnly, Connection conn)
+    {
+        Replica replica = noteReleased(conn);
+        if (replica == null) {
+            _master.releaseConnection(ident, readOnly, conn);
+        } else {
+            replica.outstanding.decrementAndGet();
+            replica.provider.releaseConnection(ident, true, conn);
+        }
+    }
+
+    // from ConnectionProvider
+    public void connectionFailed (
+        String ident, boolean readOnly, Connection conn, SQLException error)
+    {
+        Replica replica = noteReleased(conn);
+        if (replica == null) {
+            _master.connectionFailed(ident, readOnly, conn, error);
+        } else {
+            replica.outstanding.decrementAndGet();
+            replica.provider.connectionFailed(ident, true, conn, error);
+            replica.markDown(error);
+        }
+    }
+
+    // from ConnectionProvider
+    public Connection getTxConnection (String ident)
+    {
+        return _master.getTxConnection(ident);
+    }
+
+    // from ConnectionProvider
+    public void releaseTxConnection (String ident, Connection conn)
+    {
+        _master.releaseTxConnection(ident, conn);
+    }
+
+    // from ConnectionProvider
+    public void txConnectionFailed (String ident, Connection conn, SQLException error)
+    {
+        _master.txConnectionFailed(ident, conn, error);
+    }
+
+    @Override // from ConnectionProvider
+    public boolean reusesConnections ()
+    {
+        // statements are cached only if every connection we hand out may be reused
+        boolean reuses = _master.reusesConnections();
+        for (Replica replica : _replicas) {
+            reuses &= replica.provider.reusesConnections();
+        }
+        return reuses;
+    }
+
+    @Override // from ConnectionProvider
+    public boolean isExclusive ()
+    {
+        boolean exclusive = _master.isExclusive();
+        for (Replica replica : _replicas) {
+            exclusive &= replica.provider.isExclusive();
+        }
+        return exclusive;
+    }
+
+    @Override // from ConnectionProvider
+    public void addConnectionListener (ConnectionListener listener)
+    {
+        _master.addConnectionListener(listener);
+        for (Replica replica : _replicas) {
+            replica.provider.addConnectionListener(listener);
+        }
+    }
+
+    // from ConnectionProvider
+    public String getURL (String ident)
+    {
+        return _master.getURL(ident);
+    }
+
+    // from ConnectionProvider
+    public void shutdown ()
+    {
+        _master.shutdown();
+        for (Replica replica : _replicas) {
+            replica.provider.shutdown();
+        }
+    }
+
+    /**
+     * Notes that the supplied connection was obtained from the supplied replica. A replica
+     * provider that is not {@link #isExclusive exclusive} may hand the same connection to many
+     * callers, so we count its leases and route it back to its replica until the last is over.
+     */
+    protected void noteLeased (Connection conn, Replica replica)
+    {
+        synchronized (_routes) {
+            Route route = _routes.get(conn);
+            if (route == null) {
+                _routes.put(conn, route = new Route(replica));
+            }
+            route.leases++;
+        }
+    }
+
+    /**
+     * Notes the end of a lease of the supplied connection, and returns the replica from which it
+     * was obtained, or null if it came from the master.
+     */
+    protected Replica noteReleased (Connection conn)
+    {
+        if (conn == null) {
+            return null;
+        }
+        synchronized (_routes) {
+            Route route = _routes.get(conn);
+            if (route == null) {
+                return null;
+            }
+            if (--route.leases == 0) {
+                _routes.remove(conn);
+            }
+            return route.replica;
+        }
+    }
+
+    /**
+     * Returns the healthy replica with the fewest outstanding connections, or a failed replica
+     * whose time out of rotation has elapsed, or null if no replica is available.
+     */
+    protected Replica selectReplica ()
+    {
+        int count = _replicas.size();
+        if (count == 0) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        int start = Math.abs(_next.getAndIncrement() % count);
+        Replica best = null;
+        int bestOutstanding = Integer.MAX_VALUE;
+        for (int ii = 0; ii < count; ii++) {
+            Replica replica = _replicas.get((start + ii) % count);
+            long downUntil = replica.downUntil;
+            if (downUntil != 0L) {
+                if (downUntil <= now && replica.claimRetry(downUntil, now + _retryInterval)) {
+                    return replica; // give it another chance, which will validate it
+                }
+                continue;
+            }
+            int outstanding = replica.outstanding.get();
+            if (outstanding < bestOutstanding) {
+                best = replica;
+                bestOutstanding = outstanding;
+            }
+        }
+        return best;
+    }
+
+    /** Tracks the state of a single replica. */
+    protected class Replica
+    {
+        public final ConnectionProvider provider;
+        public final AtomicInteger outstanding = new AtomicInteger();
+
+        /** The time until which this replica is out of rotation, or zero if it is healthy. */
+        public volatile long downUntil;
+
+        public Replica (ConnectionProvider provider) {
+            this.provider = provider;
+        }
+
+        /** Obtains a connection from this replica, or returns null if it cannot supply one. */
+        public Connection getConnection (String ident) {
+            boolean retrying = (downUntil != 0L);
+            Connection conn;
+            try {
+                conn = provider.getConnection(ident, true);
+            } catch (DatabaseException de) {
+                markDown(de);
+                return null;
+            }
+            if (retrying) {
+                // make sure that the replica is really back before we hand out its connection
+                boolean valid;
+                try {
+                    valid = conn.isValid(VALIDATION_TIMEOUT);
+                } catch (SQLException sqe) {
+                    valid = false;
+                }
+                if (!valid) {
+                    provider.connectionFailed(
+                        ident, true, conn, new SQLException("Replica connection invalid"));
+                    markDown(null);
+                    return null;
+                }
+                log.info("Replica back in rotation", "ident", ident);
+                downUntil = 0L;
+            }
+            outstanding.incrementAndGet();
+            return conn;
+        }
+
+        /** Takes this replica out of rotation for our retry interval. */
+        public void markDown (Exception cause) {
+            if (downUntil == 0L) {
+                log.warning("Replica taken out of rotation", "error", cause);
+            }
+            downUntil = System.currentTimeMillis() + _retryInterval;
+        }
+
+        /** Claims the right to retry this failed replica, so that only one caller does so. */
+        public synchronized boolean claimRetry (long expectDownUntil, long newDownUntil) {
+            if (downUntil != expectDownUntil) {
+                return false;
+            }
+            downUntil = newDownUntil;
+            return true;
+        }
+    }
+
+    /** The replica from which a read-only connection was obtained, and its outstanding leases. */
+    protected static class Route
+    {
+        public final Replica replica;
+        public int leases;
+
+        public Route (Replica replica) {
+            this.replica = replica;
+        }
+    }
+
+    protected final ConnectionProvider _master;
+    protected final List<Replica> _replicas;
+    protected final AtomicInteger _next = new AtomicInteger();
+    protected volatile long _retryInterval = DEFAULT_RETRY_INTERVAL;
+
+    /** The route of each outstanding read-only connection. Guarded by itself. */
+    protected final Map<Connection, Route> _routes =
+        new MapMaker().weakKeys().<Connection, Route>makeMap();
+
+    /** The number of seconds to wait for a connection to a recovering replica to validate. */
+    protected static final int VALIDATION_TIMEOUT = 5;
+}
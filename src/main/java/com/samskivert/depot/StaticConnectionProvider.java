@@ -139,6 +139,13 @@ public class StaticConnectionProvider implements ConnectionProvider
         close(conn, ident);
     }
 
+    // from ConnectionProvider
+    public boolean reusesConnections ()
+    {
+        // we hand out the same connection for an ident until it fails
+        return true;
+    }
+
     // from ConnectionProvider
     public void shutdown ()
     {
@@ -5,11 +5,20 @@
 package com.samskivert.depot;
 
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 import static com.samskivert.depot.Log.log;
 
 /**
- * Manages Depot performance statistics.
+ * Manages Depot performance statistics. Statistics are recorded into striped counters, so that
+ * the threads performing database operations do not contend with one another (or with callers of
+ * {@link #getSnapshot}) to note them.
  */
 public class Stats
 {
@@ -64,14 +73,17 @@ public class Stats
         }
 
         void addValue (int value) {
+            addValue(value, 1);
+        }
+        void addValue (int value, int count) {
             if (value < _minValue) {
-                _buckets[0]++;
+                _buckets[0] += count;
             } else if (value >= _maxValue) {
-                _buckets[_buckets.length-1]++;
+                _buckets[_buckets.length-1] += count;
             } else {
-                _buckets[(value-_minValue)/_bucketWidth]++;
+                _buckets[(value-_minValue)/_bucketWidth] += count;
             }
-            _count++;
+            _count += count;
         }
         int size () {
             return _count;
@@ -84,9 +96,191 @@ public class Stats
         protected int[] _buckets;
     }
 
+    /**
+     * An immutable histogram of latencies, in microseconds, from which percentiles may be read.
+     * Values are counted in log-linear buckets: values below {@code 2^(SUB_BUCKET_BITS+1)} are
+     * counted exactly and larger values in buckets whose width is {@code 2^-SUB_BUCKET_BITS} of
+     * their magnitude, so that any reported percentile is within about 6% of the true value.
+     */
+    public static class LatencyHistogram
+    {
+        /** The number of bits of precision retained for each value. */
+        public static final int SUB_BUCKET_BITS = 4;
+
+        /** The largest value (about 76 hours) that is counted exactly; larger values are counted
+         * as this value. */
+        public static final long MAX_VALUE = (1L << 38) - 1;
+
+        /** The number of buckets in every latency histogram. */
+        public static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+        /**
+         * Returns the index of the bucket into which the supplied value falls.
+         */
+        public static int bucketIndex (long value) {
+            if (value < SUB_BUCKETS) {
+                return (int)Math.max(value, 0);
+            }
+            value = Math.min(value, MAX_VALUE);
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exp - SUB_BUCKET_BITS));
+            return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (sub - SUB_BUCKETS);
+        }
+
+        /**
+         * Returns the largest value that falls into the bucket with the supplied index.
+         */
+        public static long bucketValue (int index) {
+            int group = index / SUB_BUCKETS;
+            if (group == 0) {
+                return index;
+            }
+            long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+            return ((sub + 1) << (group - 1)) - 1;
+        }
+
+        /**
+         * Returns the number of values counted by this histogram.
+         */
+        public long getCount () {
+            return _count;
+        }
+
+        /**
+         * Returns the (upper bound of the bucket containing the) value at or below which the
+         * given percentage of the values in this histogram fall, or zero if it is empty.
+         */
+        public long getValueAtPercentile (double percentile) {
+            if (_count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long)Math.ceil(percentile / 100 * _count));
+            long seen = 0;
+            for (int ii = 0; ii < _counts.length; ii++) {
+                seen += _counts[ii];
+                if (seen >= target) {
+                    return bucketValue(ii);
+                }
+            }
+            return bucketValue(_counts.length-1);
+        }
+
+        /** Returns the median value in this histogram. */
+        public long getP50 () {
+            return getValueAtPercentile(50);
+        }
+
+        /** Returns the 99th percentile value in this histogram. */
+        public long getP99 () {
+            return getValueAtPercentile(99);
+        }
+
+        /** Returns the 99.9th percentile value in this histogram. */
+        public long getP999 () {
+            return getValueAtPercentile(99.9);
+        }
+
+        /**
+         * Returns a fixed bucket {@link Histogram} of the values in this histogram, in
+         * milliseconds.
+         */
+        public Histogram toMillisHistogram (int minValue, int bucketWidth, int bucketCount) {
+            Histogram histo = new Histogram(minValue, bucketWidth, bucketCount);
+            for (int ii = 0; ii < _counts.length; ii++) {
+                if (_counts[ii] > 0) {
+                    histo.addValue((int)(bucketValue(ii) / 1000), (int)_counts[ii]);
+                }
+            }
+            return histo;
+        }
+
+        /**
+         * Generates a terse summary of the count and the p50, p99 and p999 values (in
+         * microseconds) of this histogram.
+         */
+        public String summarize () {
+            return _count + ":" + getP50() + "/" + getP99() + "/" + getP999();
+        }
+
+        @Override public String toString () {
+            return "[count=" + _count + ", p50=" + getP50() + "us, p99=" + getP99() +
+                "us, p999=" + getP999() + "us]";
+        }
+
+        protected LatencyHistogram (long[] counts) {
+            _counts = counts;
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            _count = count;
+        }
+
+        protected final long[] _counts;
+        protected final long _count;
+
+        protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    }
+
+    /**
+     * An immutable summary of the database operations attributed to a single persistent record
+     * class or query shape.
+     */
+    public static class Breakdown
+    {
+        /** The number of read-only operations. */
+        public final long reads;
+
+        /** The number of modifying operations. */
+        public final long writes;
+
+        /** The total number of milliseconds spent executing operations. */
+        public final long dbTime;
+
+        /** The number of records that were loaded from the cache. */
+        public final long cachedRecords;
+
+        /** The number of records that were loaded from the database. */
+        public final long uncachedRecords;
+
+        /** The number of rows modified. */
+        public final long rowsModified;
+
+        /** The latencies of all operations, in microseconds. */
+        public final LatencyHistogram latency;
+
+        /**
+         * Returns the fraction of record loads that were satisfied by the cache, or zero if no
+         * records were loaded.
+         */
+        public double getCacheHitRatio () {
+            long loads = cachedRecords + uncachedRecords;
+            return (loads == 0) ? 0 : cachedRecords / (double)loads;
+        }
+
+        @Override public String toString () {
+            return "[reads=" + reads + ", writes=" + writes + ", dbTime=" + dbTime +
+                "ms, cached=" + cachedRecords + ", uncached=" + uncachedRecords +
+                ", modified=" + rowsModified + ", latency=" + latency.summarize() + "]";
+        }
+
+        protected Breakdown (long reads, long writes, long dbTime, long cachedRecords,
+                             long uncachedRecords, long rowsModified, LatencyHistogram latency) {
+            this.reads = reads;
+            this.writes = writes;
+            this.dbTime = dbTime;
+            this.cachedRecords = cachedRecords;
+            this.uncachedRecords = uncachedRecords;
+            this.rowsModified = rowsModified;
+            this.latency = latency;
+        }
+    }
+
     /**
      * An immutable class used to report statistics on repository activity. Statistics are tracked
-     * from the start of the VM and are never reset.
+     * from the start of the VM and are never reset. The values in a snapshot are read while
+     * statistics continue to be noted, so they may differ slightly from one another in which
+     * operations they reflect.
      */
     public static class Snapshot
     {
@@ -125,12 +319,39 @@ public class Stats
         /** The total number of milliseconds spent executing modifiers. */
         public final long modifierTime;
 
+        /** The number of queries whose SQL was obtained from the compiled query plan cache. */
+        public final long planCacheHits;
+
+        /** The number of cacheable queries whose SQL had to be built from scratch. */
+        public final long planCacheMisses;
+
+        /** The latencies of read-only operations, in microseconds. */
+        public final LatencyHistogram readLatency;
+
+        /** The latencies of modifying operations, in microseconds. */
+        public final LatencyHistogram writeLatency;
+
+        /** The time spent waiting for a JDBC connection by each operation, in microseconds. */
+        public final LatencyHistogram connectionWaitLatency;
+
+        /** A breakdown of activity by persistent record class. */
+        public final Map<Class<? extends PersistentRecord>, Breakdown> classes;
+
+        /** A breakdown of activity by query shape (the SQL of the first statement prepared by
+         * an operation), which is empty unless shape tracking is enabled. */
+        public final Map<String, Breakdown> shapes;
+
         /** Creates a stats instance. */
         protected Snapshot (int totalOps, long connectionWaitTime,
                             int cachedQueries, int uncachedQueries, int explicitQueries,
-                            int cachedRecords, int uncachedRecords,
+                            long cachedRecords, long uncachedRecords,
                             Histogram queryHisto, long queryTime,
-                            Histogram modifierHisto, long modifierTime)
+                            Histogram modifierHisto, long modifierTime,
+                            long planCacheHits, long planCacheMisses,
+                            LatencyHistogram readLatency, LatencyHistogram writeLatency,
+                            LatencyHistogram connectionWaitLatency,
+                            Map<Class<? extends PersistentRecord>, Breakdown> classes,
+                            Map<String, Breakdown> shapes)
         {
             this.totalOps = totalOps;
             this.connectionWaitTime = connectionWaitTime;
@@ -143,63 +364,256 @@ public class Stats
             this.queryTime = queryTime;
             this.modifierHisto = modifierHisto;
             this.modifierTime = modifierTime;
+            this.planCacheHits = planCacheHits;
+            this.planCacheMisses = planCacheMisses;
+            this.readLatency = readLatency;
+            this.writeLatency = writeLatency;
+            this.connectionWaitLatency = connectionWaitLatency;
+            this.classes = classes;
+            this.shapes = shapes;
         }
     }
 
-    public synchronized Snapshot getSnapshot ()
+    /**
+     * Returns a snapshot of the statistics noted so far. This does not block threads that are
+     * concurrently noting statistics.
+     */
+    public Snapshot getSnapshot ()
     {
-        return new Snapshot(_totalOps, _connectionWaitTime,
-                            _cachedQueries, _uncachedQueries, _explicitQueries,
-                            _cachedRecords, _uncachedRecords,
-                            _readHisto.clone(), _readTime, _writeHisto.clone(), _writeTime);
+        LatencyHistogram readLatency = _readLatency.snapshot();
+        LatencyHistogram writeLatency = _writeLatency.snapshot();
+        return new Snapshot(_totalOps.intValue(), _connectionWaitTime.sum() / NANOS_PER_MILLI,
+                            _cachedQueries.intValue(), _uncachedQueries.intValue(),
+                            _explicitQueries.intValue(),
+                            _cachedRecords.sum(), _uncachedRecords.sum(),
+                            readLatency.toMillisHistogram(0, 500, 20),
+                            _readTime.sum() / NANOS_PER_MILLI,
+                            writeLatency.toMillisHistogram(0, 500, 20),
+                            _writeTime.sum() / NANOS_PER_MILLI,
+                            _planCacheHits.sum(), _planCacheMisses.sum(),
+                            readLatency, writeLatency, _waitLatency.snapshot(),
+                            snapshot(_classes), snapshot(_shapes));
     }
 
-    public synchronized void noteOp (
-        boolean isReadOnly, long preConnect, long preInvoke, long postInvoke)
+    /**
+     * Configures whether database time is broken down by query shape, in addition to by
+     * persistent record class. At most {@link #MAX_SHAPES} distinct shapes are tracked.
+     */
+    public void setTrackShapes (boolean track)
     {
-        _totalOps++;
-        _connectionWaitTime += (preInvoke - preConnect) / 1000000L;
+        _trackShapes = track;
+    }
 
-        long opTime = (postInvoke - preInvoke) / 1000000L;
-        if (opTime > Integer.MAX_VALUE) {
-            log.warning("ZOMG! A database operation took " + opTime + "ms to complete!");
-            opTime = Integer.MAX_VALUE;
+    /**
+     * Notes the completion of an operation, attributing its database time to the supplied
+     * persistent record class and query shape, either of which may be null.
+     */
+    public void noteOp (Class<? extends PersistentRecord> type, String shape, boolean isReadOnly,
+                        long preConnect, long preInvoke, long postInvoke)
+    {
+        noteOp(isReadOnly, preConnect, preInvoke, postInvoke);
+        long opTime = postInvoke - preInvoke;
+        if (type != null) {
+            getRecorder(_classes, type).noteOp(isReadOnly, opTime);
+        }
+        if (shape != null && _trackShapes) {
+            BreakdownRecorder recorder = _shapes.get(shape);
+            if (recorder == null && _shapes.size() < MAX_SHAPES) {
+                recorder = getRecorder(_shapes, shape);
+            }
+            if (recorder != null) {
+                recorder.noteOp(isReadOnly, opTime);
+            }
+        }
+    }
+
+    public void noteOp (boolean isReadOnly, long preConnect, long preInvoke, long postInvoke)
+    {
+        _totalOps.increment();
+        long waitTime = preInvoke - preConnect;
+        _connectionWaitTime.add(waitTime);
+        _waitLatency.record(waitTime / NANOS_PER_MICRO);
+
+        long opTime = postInvoke - preInvoke;
+        if (opTime / NANOS_PER_MILLI > Integer.MAX_VALUE) {
+            log.warning("ZOMG! A database operation took " + opTime / NANOS_PER_MILLI +
+                        "ms to complete!");
         }
 
         if (isReadOnly) {
-            _readTime += opTime;
-            _readHisto.addValue((int)opTime);
+            _readTime.add(opTime);
+            _readLatency.record(opTime / NANOS_PER_MICRO);
         } else {
-            _writeTime += opTime;
-            _writeHisto.addValue((int)opTime);
+            _writeTime.add(opTime);
+            _writeLatency.record(opTime / NANOS_PER_MICRO);
         }
     }
 
-    public synchronized void noteQuery (
+    public void noteQuery (
         Class<? extends PersistentRecord> type, int cachedQueries, int uncachedQueries,
         int explicitQueries, int cachedRecords, int uncachedRecords)
     {
-        _cachedQueries += cachedQueries;
-        _uncachedQueries += uncachedQueries;
-        _explicitQueries += explicitQueries;
-        _cachedRecords += cachedRecords;
-        _uncachedRecords += uncachedRecords;
+        addIfNonZero(_cachedQueries, cachedQueries);
+        addIfNonZero(_uncachedQueries, uncachedQueries);
+        addIfNonZero(_explicitQueries, explicitQueries);
+        addIfNonZero(_cachedRecords, cachedRecords);
+        addIfNonZero(_uncachedRecords, uncachedRecords);
+        if (cachedRecords != 0 || uncachedRecords != 0) {
+            BreakdownRecorder recorder = getRecorder(_classes, type);
+            addIfNonZero(recorder.cachedRecords, cachedRecords);
+            addIfNonZero(recorder.uncachedRecords, uncachedRecords);
+        }
+    }
+
+    public void noteModification (Class<? extends PersistentRecord> type)
+    {
+        noteModification(type, 0);
+    }
+
+    public void noteModification (Class<? extends PersistentRecord> type, int rowsModified)
+    {
+        if (rowsModified > 0) {
+            getRecorder(_classes, type).rowsModified.add(rowsModified);
+        }
+    }
+
+    public void notePlanLookup (boolean hit)
+    {
+        if (hit) {
+            _planCacheHits.increment();
+        } else {
+            _planCacheMisses.increment();
+        }
+    }
+
+    /**
+     * Records values into a {@link LatencyHistogram}. Each thread records into one of a number of
+     * stripes, chosen by its id, which are summed when a snapshot is taken.
+     */
+    protected static class LatencyRecorder
+    {
+        public LatencyRecorder () {
+            this(Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1),
+                          MAX_STRIPES));
+        }
+
+        /**
+         * Creates a recorder with the specified number of stripes, which must be a power of two.
+         */
+        public LatencyRecorder (int stripes) {
+            _stripes = new AtomicLongArray[stripes];
+            for (int ii = 0; ii < stripes; ii++) {
+                _stripes[ii] = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+            }
+        }
+
+        public void record (long value) {
+            int stripe = (int)Thread.currentThread().getId() & (_stripes.length - 1);
+            _stripes[stripe].incrementAndGet(LatencyHistogram.bucketIndex(value));
+        }
+
+        public LatencyHistogram snapshot () {
+            long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+            for (AtomicLongArray stripe : _stripes) {
+                for (int ii = 0; ii < counts.length; ii++) {
+                    counts[ii] += stripe.get(ii);
+                }
+            }
+            return new LatencyHistogram(counts);
+        }
+
+        protected final AtomicLongArray[] _stripes;
     }
 
-    public synchronized void noteModification (Class<? extends PersistentRecord> type)
+    /**
+     * Accumulates the statistics summarized by a {@link Breakdown}. These are recorded into a
+     * single latency stripe, as there may be many of them.
+     */
+    protected static class BreakdownRecorder
     {
-        // nothing by default
+        public final LongAdder reads = new LongAdder();
+        public final LongAdder writes = new LongAdder();
+        public final LongAdder dbTime = new LongAdder();
+        public final LongAdder cachedRecords = new LongAdder();
+        public final LongAdder uncachedRecords = new LongAdder();
+        public final LongAdder rowsModified = new LongAdder();
+        public final LatencyRecorder latency = new LatencyRecorder(1);
+
+        public void noteOp (boolean isReadOnly, long opTime) {
+            (isReadOnly ? reads : writes).increment();
+            dbTime.add(opTime);
+            latency.record(opTime / NANOS_PER_MICRO);
+        }
+
+        public Breakdown snapshot () {
+            return new Breakdown(reads.sum(), writes.sum(), dbTime.sum() / NANOS_PER_MILLI,
+                                 cachedRecords.sum(), uncachedRecords.sum(), rowsModified.sum(),
+                                 latency.snapshot());
+        }
+    }
+
+    protected static <K> BreakdownRecorder getRecorder (
+        ConcurrentMap<K, BreakdownRecorder> recorders, K key)
+    {
+        BreakdownRecorder recorder = recorders.get(key);
+        if (recorder == null) {
+            BreakdownRecorder created = new BreakdownRecorder();
+            recorder = recorders.putIfAbsent(key, created);
+            if (recorder == null) {
+                recorder = created;
+            }
+        }
+        return recorder;
+    }
+
+    protected static <K> Map<K, Breakdown> snapshot (Map<K, BreakdownRecorder> recorders)
+    {
+        ImmutableMap.Builder<K, Breakdown> builder = ImmutableMap.builder();
+        for (Map.Entry<K, BreakdownRecorder> entry : recorders.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return builder.build();
     }
 
-    protected int _totalOps;
-    protected long _connectionWaitTime;
+    protected static void addIfNonZero (LongAdder adder, int value)
+    {
+        if (value != 0) {
+            adder.add(value);
+        }
+    }
+
+    protected final LongAdder _totalOps = new LongAdder();
+
+    /** Our total connection wait and operation times, in nanoseconds. */
+    protected final LongAdder _connectionWaitTime = new LongAdder();
+    protected final LongAdder _readTime = new LongAdder();
+    protected final LongAdder _writeTime = new LongAdder();
+
+    protected final LatencyRecorder _readLatency = new LatencyRecorder();
+    protected final LatencyRecorder _writeLatency = new LatencyRecorder();
+    protected final LatencyRecorder _waitLatency = new LatencyRecorder();
+
+    protected final LongAdder _cachedQueries = new LongAdder();
+    protected final LongAdder _uncachedQueries = new LongAdder();
+    protected final LongAdder _explicitQueries = new LongAdder();
+    protected final LongAdder _cachedRecords = new LongAdder();
+    protected final LongAdder _uncachedRecords = new LongAdder();
+
+    protected final LongAdder _planCacheHits = new LongAdder();
+    protected final LongAdder _planCacheMisses = new LongAdder();
+
+    /** Our breakdowns of activity by persistent record class and query shape. */
+    protected final ConcurrentMap<Class<? extends PersistentRecord>, BreakdownRecorder> _classes =
+        Maps.newConcurrentMap();
+    protected final ConcurrentMap<String, BreakdownRecorder> _shapes = Maps.newConcurrentMap();
+    protected volatile boolean _trackShapes;
 
-    protected Histogram _readHisto = new Histogram(0, 500, 20);
-    protected long _readTime;
+    protected static final long NANOS_PER_MICRO = 1000L;
+    protected static final long NANOS_PER_MILLI = 1000000L;
 
-    protected Histogram _writeHisto = new Histogram(0, 500, 20);
-    protected long _writeTime;
+    /** The maximum number of query shapes for which statistics are tracked. */
+    public static final int MAX_SHAPES = 1000;
 
-    protected int _cachedQueries, _uncachedQueries, _explicitQueries;
-    protected int _cachedRecords, _uncachedRecords;
+    /** The maximum number of stripes into which latencies are recorded. */
+    protected static final int MAX_STRIPES = 16;
 }
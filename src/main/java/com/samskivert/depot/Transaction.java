@@ -6,6 +6,8 @@ package com.samskivert.depot;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /**
  * Allows database operations to be performed in a transaction. Transactions can be performed
@@ -34,6 +36,10 @@ import java.sql.SQLException;
  * });
  * }</pre>
  *
+ * <p>Manually started transactions are bound to the calling thread. Those performed via {@link
+ * #perform} or {@link #compute} are bound to the code that they run by the configured {@link
+ * Binding}, which may use scoped values rather than thread locals.</p>
+ *
  * <p><b>Caveats:</b></p>
  *
  * <p>All repositories involved in a transaction must use the same {@code PersistenceContext}
@@ -46,11 +52,50 @@ import java.sql.SQLException;
 public class Transaction {
 
     /**
-     * Returns the currently active transaction (on the caller's thread), or null.
+     * Binds transactions to the code performed in them by {@link #perform} and {@link #compute}.
+     * By default they are bound to the calling thread, via a thread local. On JVMs that support
+     * scoped values (which are cheaper for, and cannot leak from, short-lived virtual threads), a
+     * binding can use them instead:
+     * <pre>{@code
+     * static final ScopedValue<Transaction> TX = ScopedValue.newInstance();
+     * Transaction.setBinding(new Transaction.Binding() {
+     *   public Transaction get () {
+     *     return TX.isBound() ? TX.get() : null;
+     *   }
+     *   public <T> T call (Transaction tx, Supplier<T> op) {
+     *     return ScopedValue.where(TX, tx).call(op::get);
+     *   }
+     * });
+     * }</pre>
+     */
+    public interface Binding
+    {
+        /** Returns the transaction bound to the calling code, or null. */
+        Transaction get ();
+
+        /** Performs {@code op} with {@code tx} bound to it (and to nothing else). */
+        <T> T call (Transaction tx, Supplier<T> op);
+    }
+
+    /**
+     * Configures the binding used by subsequently performed transactions. This should be called
+     * before any transactions are performed.
+     */
+    public static void setBinding (Binding binding)
+    {
+        _binding = (binding == null) ? THREAD_BINDING : binding;
+    }
+
+    /**
+     * Returns the currently active transaction (on the caller's thread or in its scope), or null.
      */
     public static Transaction get ()
     {
-        return _activeTx.get();
+        Transaction tx = _binding.get();
+        if (tx == null && _binding != THREAD_BINDING) {
+            tx = THREAD_BINDING.get(); // a manually started transaction
+        }
+        return (tx == null || tx._finished) ? null : tx;
     }
 
     /**
@@ -65,16 +110,36 @@ public class Transaction {
      * Performs {@code op} inside a transaction, committing it if {@code op} completes
      * successfully, rolling it back if {@code op} throws any exceptions.
      */
-    public static void perform (PersistenceContext ctx, Runnable op)
+    public static void perform (PersistenceContext ctx, final Runnable op)
     {
-        Transaction tx = ctx.startTx();
-        try {
-            op.run();
-            tx.commit();
-        } catch (RuntimeException re) {
-            tx.rollback();
-            throw re;
-        }
+        compute(ctx, new Supplier<Void>() {
+            public Void get () {
+                op.run();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Performs {@code op} inside a transaction and returns its result, committing the transaction
+     * if {@code op} completes successfully, rolling it back if {@code op} throws any exceptions.
+     */
+    public static <T> T compute (PersistenceContext ctx, final Supplier<T> op)
+    {
+        if (get() != null) throw new DatabaseException("Nested transactions not supported.");
+        final Transaction tx = new Transaction(ctx);
+        return _binding.call(tx, new Supplier<T>() {
+            public T get () {
+                try {
+                    T result = op.get();
+                    tx.commit();
+                    return result;
+                } catch (RuntimeException re) {
+                    tx.rollback();
+                    throw re;
+                }
+            }
+        });
     }
 
     /** The persistence context in which this transaction is operating. */
@@ -95,8 +160,7 @@ public class Transaction {
             connectionFailed(sqe);
             throw new DatabaseException("Transaction commit failure", sqe);
         } finally {
-            _conn = null;
-            _activeTx.set(null);
+            finish();
         }
     }
 
@@ -115,8 +179,7 @@ public class Transaction {
             connectionFailed(sqe);
             throw new DatabaseException("Transaction rollback failure", sqe);
         } finally {
-            _conn = null;
-            _activeTx.set(null);
+            finish();
         }
     }
 
@@ -128,21 +191,81 @@ public class Transaction {
 
     void connectionFailed (SQLException sqe)
     {
+        ctx._stmts.evict(_conn);
         ctx._conprov.txConnectionFailed(ctx._ident, _conn, sqe);
     }
 
+    /**
+     * Binds this (manually started) transaction to the calling thread.
+     */
+    void bindToThread ()
+    {
+        THREAD_BINDING.bind(this);
+        _threadBound = true;
+    }
+
     protected Transaction (PersistenceContext ctx)
     {
         this.ctx = ctx;
     }
 
     protected void checkActive (String action) {
-        if (_activeTx.get() != this) throw new IllegalStateException(
+        if (get() != this) throw new IllegalStateException(
             "Attempted to " + action + " non-active transaction");
     }
 
-    protected static final ThreadLocal<Transaction> _activeTx = new ThreadLocal<Transaction>();
+    protected void finish ()
+    {
+        _conn = null;
+        _finished = true;
+        if (_threadBound) {
+            THREAD_BINDING.unbind();
+            _threadBound = false;
+        }
+    }
+
+    /** Binds transactions to threads. */
+    protected static class ThreadBinding implements Binding
+    {
+        // from interface Binding
+        public Transaction get () {
+            // most threads have no transaction; we avoid creating their thread local maps
+            return (_bound.get() == 0) ? null : _activeTx.get();
+        }
+
+        // from interface Binding
+        public <T> T call (Transaction tx, Supplier<T> op) {
+            bind(tx);
+            try {
+                return op.get();
+            } finally {
+                unbind();
+            }
+        }
+
+        public void bind (Transaction tx) {
+            _bound.incrementAndGet();
+            _activeTx.set(tx);
+        }
+
+        public void unbind () {
+            _activeTx.remove();
+            _bound.decrementAndGet();
+        }
+
+        protected final ThreadLocal<Transaction> _activeTx = new ThreadLocal<Transaction>();
+        protected final AtomicInteger _bound = new AtomicInteger();
+    }
 
     /** The connection being used for this transaction. */
     protected Connection _conn;
+
+    /** Whether this transaction is bound to a thread (rather than by our binding). */
+    protected boolean _threadBound;
+
+    /** Whether this transaction has been committed or rolled back. */
+    protected volatile boolean _finished;
+
+    protected static final ThreadBinding THREAD_BINDING = new ThreadBinding();
+    protected static volatile Binding _binding = THREAD_BINDING;
 }
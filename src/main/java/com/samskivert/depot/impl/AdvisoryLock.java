@@ -0,0 +1,96 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import com.samskivert.depot.ConnectionProvider;
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
+
+import static com.samskivert.depot.Log.log;
+
+/**
+ * A named advisory lock, held on a connection dedicated to it for as long as it is held. Processes
+ * that wait for the lock are woken by the database as soon as it is released, rather than polling
+ * for it. Should the holding process die, the database releases its lock along with its session.
+ */
+public class AdvisoryLock
+{
+    public AdvisoryLock (
+        ConnectionProvider conprov, String ident, DatabaseLiaison liaison, String name)
+    {
+        _conprov = conprov;
+        _ident = ident;
+        _liaison = liaison;
+        _name = name;
+    }
+
+    /**
+     * Returns the name of this lock.
+     */
+    public String getName ()
+    {
+        return _name;
+    }
+
+    /**
+     * Acquires this lock, waiting for as long as another session holds it.
+     */
+    public void acquire ()
+        throws DatabaseException
+    {
+        Connection conn = _conprov.getTxConnection(_ident);
+        try {
+            int waits = 0;
+            while (!_liaison.acquireAdvisoryLock(conn, _name, WAIT_INTERVAL)) {
+                log.info("Waiting on advisory lock", "name", _name,
+                         "seconds", ++waits * WAIT_INTERVAL);
+            }
+            // the lock belongs to the session, so we needn't leave a transaction open
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        } catch (SQLException sqe) {
+            _conprov.txConnectionFailed(_ident, conn, sqe);
+            throw new DatabaseException("Failed to acquire advisory lock " + _name, sqe);
+        }
+        _conn = conn;
+    }
+
+    /**
+     * Releases this lock, if it is held.
+     */
+    public void release ()
+    {
+        Connection conn = _conn;
+        if (conn == null) {
+            return;
+        }
+        _conn = null;
+        try {
+            _liaison.releaseAdvisoryLock(conn, _name);
+            if (!conn.getAutoCommit()) {
+                conn.commit();
+            }
+        } catch (SQLException sqe) {
+            // discarding the connection ends its session, which releases the lock
+            log.warning("Failed to release advisory lock", "name", _name, sqe);
+            _conprov.txConnectionFailed(_ident, conn, sqe);
+            return;
+        }
+        _conprov.releaseTxConnection(_ident, conn);
+    }
+
+    protected final ConnectionProvider _conprov;
+    protected final String _ident;
+    protected final DatabaseLiaison _liaison;
+    protected final String _name;
+    protected Connection _conn;
+
+    /** The number of seconds we wait for the lock between notes in the log. */
+    protected static final int WAIT_INTERVAL = 30;
+}
@@ -0,0 +1,153 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.samskivert.depot.Log.log;
+
+/**
+ * Dispatches the asynchronous operations of a persistence context to an executor. At most a fixed
+ * number of operations run at once (those beyond it waiting in a bounded queue), so that
+ * asynchronous callers cannot exhaust the connections available for the context's database. When
+ * the queue is full, further operations are rejected rather than queued without limit: their
+ * futures complete exceptionally with a {@link RejectedExecutionException}.
+ */
+public class AsyncDispatcher
+{
+    /**
+     * Creates the executor used when none is supplied: one that runs each operation on a new
+     * virtual thread, if the JVM supports them, otherwise a pool of daemon threads.
+     *
+     * @param ident identifies the operations' database in the names of the pool threads.
+     */
+    public static ExecutorService createDefaultExecutor (final String ident)
+    {
+        try {
+            Method create = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)create.invoke(null);
+        } catch (Exception e) {
+            // no virtual threads in this JVM
+        }
+        // the dispatcher bounds concurrency, so the pool will not exceed that many threads
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread (Runnable task) {
+                Thread thread = new Thread(task, "depot-" + ident + "-" + _count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+            protected AtomicInteger _count = new AtomicInteger();
+        });
+    }
+
+    /**
+     * Creates a dispatcher that runs operations on the supplied executor.
+     *
+     * @param maxConcurrent the maximum number of operations that run at once.
+     * @param maxQueued the maximum number of operations that await their turn to run, beyond
+     * which operations are rejected.
+     */
+    public AsyncDispatcher (Executor executor, int maxConcurrent, int maxQueued)
+    {
+        checkArgument(maxConcurrent > 0, "maxConcurrent must be positive: %s", maxConcurrent);
+        checkArgument(maxQueued >= 0, "maxQueued must not be negative: %s", maxQueued);
+        _executor = executor;
+        _maxConcurrent = maxConcurrent;
+        _maxQueued = maxQueued;
+    }
+
+    /**
+     * Returns the executor on which our operations are run.
+     */
+    public Executor getExecutor ()
+    {
+        return _executor;
+    }
+
+    /**
+     * Returns the number of operations that are running or awaiting their turn to run.
+     */
+    public synchronized int getPending ()
+    {
+        return _running + _queue.size();
+    }
+
+    /**
+     * Runs the supplied operation when a slot is available and returns a future that completes
+     * with its result.
+     */
+    public <T> CompletableFuture<T> dispatch (final Callable<T> op)
+    {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        Runnable task = new Runnable() {
+            public void run () {
+                try {
+                    result.complete(op.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                } finally {
+                    taskCompleted();
+                }
+            }
+        };
+
+        synchronized (this) {
+            if (_running >= _maxConcurrent) {
+                if (_queue.size() >= _maxQueued) {
+                    result.completeExceptionally(new RejectedExecutionException(
+                        "Too many pending operations [running=" + _running +
+                        ", queued=" + _queue.size() + "]"));
+                } else {
+                    _queue.add(task);
+                }
+                return result;
+            }
+            _running++;
+        }
+        execute(task);
+        return result;
+    }
+
+    protected void taskCompleted ()
+    {
+        Runnable next;
+        synchronized (this) {
+            next = _queue.poll();
+            if (next == null) {
+                _running--;
+                return;
+            }
+        }
+        // we pass our slot on to the next task
+        execute(next);
+    }
+
+    protected void execute (Runnable task)
+    {
+        try {
+            _executor.execute(task);
+        } catch (RejectedExecutionException ree) {
+            // the executor is shut down (or saturated); run the task here so that its future is
+            // completed and its slot released
+            log.warning("Async executor rejected operation, running it directly.", ree);
+            task.run();
+        }
+    }
+
+    protected final Executor _executor;
+    protected final int _maxConcurrent, _maxQueued;
+    protected final ArrayDeque<Runnable> _queue = new ArrayDeque<Runnable>();
+    protected int _running;
+}
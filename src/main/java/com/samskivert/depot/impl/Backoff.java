@@ -0,0 +1,91 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.samskivert.depot.DatabaseException;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.samskivert.depot.Log.log;
+
+/**
+ * Paces a process that polls for a lock held by another process. Its first waits are short, so
+ * that a lock held briefly is noticed promptly, and they double up to a maximum, so that a lock
+ * held for a long time is not polled needlessly often. Each wait is randomly shortened by up to
+ * half, so that many processes waiting on the same lock do not poll it in lockstep.
+ */
+public class Backoff
+{
+    /** The default length of the first wait, in milliseconds. */
+    public static final long DEFAULT_INITIAL_DELAY = 100L;
+
+    /** The default maximum length of a wait, in milliseconds. */
+    public static final long DEFAULT_MAX_DELAY = 5000L;
+
+    /**
+     * Creates a backoff with the default initial and maximum delays.
+     *
+     * @param what describes the lock being waited on, for logging.
+     */
+    public Backoff (String what)
+    {
+        this(what, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Creates a backoff whose waits start at {@code initialDelay} milliseconds and grow to at
+     * most {@code maxDelay}.
+     *
+     * @param what describes the lock being waited on, for logging.
+     */
+    public Backoff (String what, long initialDelay, long maxDelay)
+    {
+        checkArgument(initialDelay > 0, "Initial delay must be positive: %s", initialDelay);
+        checkArgument(maxDelay >= initialDelay, "Max delay must be at least the initial delay: %s",
+                      maxDelay);
+        _what = what;
+        _delay = initialDelay;
+        _maxDelay = maxDelay;
+    }
+
+    /**
+     * Returns the length of the next wait, in milliseconds, and lengthens the waits to follow.
+     */
+    public long nextDelay ()
+    {
+        long delay = _delay - ThreadLocalRandom.current().nextLong(_delay / 2 + 1);
+        _delay = Math.min(_delay * 2, _maxDelay);
+        return delay;
+    }
+
+    /**
+     * Waits for the next delay.
+     *
+     * @throws DatabaseException if the calling thread is interrupted while waiting.
+     */
+    public void pause ()
+        throws DatabaseException
+    {
+        long delay = nextDelay();
+        // note the first wait, and then the occasional wait once they have reached their maximum
+        if (_waits++ == 0 || (_waits % LOG_INTERVAL == 0)) {
+            log.info("Waiting on " + _what + ".", "waits", _waits);
+        }
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+            throw new DatabaseException("Interrupted while waiting on " + _what + ".");
+        }
+    }
+
+    protected final String _what;
+    protected final long _maxDelay;
+    protected long _delay;
+    protected int _waits;
+
+    /** We log every this many waits. */
+    protected static final int LOG_INTERVAL = 12;
+}
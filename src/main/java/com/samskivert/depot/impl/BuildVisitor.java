@@ -5,8 +5,10 @@
 package com.samskivert.depot.impl;
 
 import java.nio.ByteBuffer;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -16,9 +18,11 @@ import com.google.common.collect.Maps;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import com.samskivert.depot.DatabaseException;
 import com.samskivert.depot.Exps;
 import com.samskivert.depot.IndexDesc;
 import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.annotation.Computed;
 import com.samskivert.depot.clause.Distinct;
@@ -60,11 +64,21 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         return _builder.toString();
     }
 
-    public Iterable<Bindable> getBindables ()
+    public List<Bindable> getBindables ()
     {
         return _bindables;
     }
 
+    /**
+     * Returns the clause tree objects from which each of our {@link #getBindables} obtains its
+     * value, in the same order. An element is null if its bindable's value was computed during
+     * the build rather than read from the clause tree.
+     */
+    public List<Object> getBindSources ()
+    {
+        return _bindSources;
+    }
+
     public Void visit (FromOverride override)
     {
         _builder.append(" from " );
@@ -89,7 +103,11 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
     public Void visit (WhereClause where)
     {
         _builder.append(" where ");
-        where.getWhereExpression().accept(this);
+        if (where instanceof KeySet<?>) {
+            appendKeySet((KeySet<?>)where);
+        } else {
+            where.getWhereExpression().accept(this);
+        }
         return null;
     }
 
@@ -112,7 +130,7 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
                 _builder.append(" is null ");
             } else {
                 _builder.append(" = ");
-                bindValue(values[ii]);
+                bindElement(values, ii);
             }
         }
         return null;
@@ -163,7 +181,7 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
             if (ii > 0) {
                 _builder.append(", ");
             }
-            bindValue(values[ii]);
+            bindElement(values, ii);
         }
         _builder.append(")");
         return null;
@@ -293,7 +311,8 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
 
     public Void visit (ValueExp<?> valueExp)
     {
-        bindValue(valueExp.getValue());
+        addBindable(valueExp, VALUE_EXP_BINDER);
+        _builder.append("?");
         return null;
     }
 
@@ -721,25 +740,23 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
 
     protected Void bindValue (final Object value)
     {
-        _bindables.add(new Bindable() {
-            public void doBind (Connection conn, PreparedStatement stmt, int argIx)
+        // this value does not come straight out of the clause tree, so it can't be rebound
+        addBindable(null, new Bindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
                 throws Exception {
-                // TODO: how can we abstract this fieldless marshalling
-                if (value instanceof ByteEnum) {
-                    // byte enums require special conversion
-                    stmt.setByte(argIx, ((ByteEnum)value).toByte());
-                } else if (value instanceof Enum<?>) {
-                    // enums are converted to strings
-                    stmt.setString(argIx, ((Enum<?>)value).name());
-                } else if (value instanceof int[]) {
-                    // int arrays require conversion to byte arrays
-                    int[] data = (int[])value;
-                    ByteBuffer bbuf = ByteBuffer.allocate(data.length * 4);
-                    bbuf.asIntBuffer().put(data);
-                    stmt.setObject(argIx, bbuf.array());
-                } else {
-                    stmt.setObject(argIx, value);
-                }
+                bindObject(stmt, argIx, value);
+            }
+        });
+        _builder.append("?");
+        return null;
+    }
+
+    protected Void bindElement (Comparable<?>[] values, final int index)
+    {
+        addBindable(values, new Bindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
+                throws Exception {
+                bindObject(stmt, argIx, ((Object[])source)[index]);
             }
         });
         _builder.append("?");
@@ -747,14 +764,14 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
     }
 
     protected Void bindField (
-        Class<? extends PersistentRecord> pClass, ColumnExp<?> field, final Object pojo)
+        Class<? extends PersistentRecord> pClass, ColumnExp<?> field, Object pojo)
     {
         final FieldMarshaller<?> fmarsh =
             _types.getMarshaller(pClass).getFieldMarshaller(field.name);
-        _bindables.add(new Bindable() {
-            public void doBind (Connection conn, PreparedStatement stmt, int argIx)
+        addBindable(pojo, new Bindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
                 throws Exception {
-                fmarsh.getAndWriteToStatement(stmt, argIx, pojo);
+                fmarsh.getAndWriteToStatement(stmt, argIx, source);
             }
         });
         _builder.append("?");
@@ -762,22 +779,219 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
     }
 
     protected <T> Void bindFieldValue (
-        Class<? extends PersistentRecord> pClass, ColumnExp<?> field, final ValueExp<T> value)
+        Class<? extends PersistentRecord> pClass, ColumnExp<?> field, ValueExp<T> value)
     {
         // we know that the Ts match in FieldMarshaller<T> and ValueExp<T>, but it's hard
         // to convince the type system of that
         final @SuppressWarnings("unchecked") FieldMarshaller<T> fmarsh =
             (FieldMarshaller<T>)_types.getMarshaller(pClass).getFieldMarshaller(field.name);
-        _bindables.add(new Bindable() {
-            public void doBind (Connection conn, PreparedStatement stmt, int argIx)
+        addBindable(value, new Bindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
                 throws Exception {
-                fmarsh.writeToStatement(stmt, argIx, value.getValue());
+                @SuppressWarnings("unchecked") ValueExp<T> vexp = (ValueExp<T>)source;
+                fmarsh.writeToStatement(stmt, argIx, vexp.getValue());
             }
         });
         _builder.append("?");
         return null;
     }
 
+    /**
+     * Appends the condition that matches the keys of the supplied set. If the set is large enough
+     * that our dialect prefers to {@link #appendLargeKeySet match it in its own manner}, we do so.
+     * Otherwise single-column keys are matched with an {@code in} list bound directly from the set
+     * and multi-column keys via {@link KeySet#getWhereExpression}.
+     *
+     * Note: the SQL generated here must depend only on what {@link ShapeVisitor} records of a key
+     * set: its class, its size and the {@link KeySet#getKeyClass class} of each of its columns.
+     */
+    protected void appendKeySet (KeySet<?> keys)
+    {
+        ColumnExp<?>[] keyFields = DepotUtil.getKeyFields(keys.getPersistentClass());
+        int size = keys.size();
+        if (size > 0 && size >= getLargeKeySetSize(keyFields.length > 1) &&
+            appendLargeKeySet(keys, keyFields)) {
+            return;
+        }
+        if (keyFields.length == 1 && size > 0) {
+            keyFields[0].accept(this);
+            _builder.append(" in (");
+            for (int ii = 0; ii < size; ii++) {
+                if (ii > 0) {
+                    _builder.append(", ");
+                }
+                bindKeyValue(keys, ii, 0);
+            }
+            _builder.append(")");
+            return;
+        }
+        keys.getWhereExpression().accept(this);
+    }
+
+    /**
+     * Returns the number of keys at and above which key sets are matched via {@link
+     * #appendLargeKeySet}. By default, they never are.
+     *
+     * @param composite true if the keys in question have more than one column.
+     */
+    protected int getLargeKeySetSize (boolean composite)
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Appends a condition that matches the keys of a large set in a manner particular to this
+     * dialect: binding each column as an array, say, rather than one parameter per value.
+     *
+     * @return true if the condition was appended, false if this dialect can't match these keys
+     * (because it can't bind their values as an array, for example) and nothing was appended.
+     */
+    protected boolean appendLargeKeySet (KeySet<?> keys, ColumnExp<?>[] keyFields)
+    {
+        return false;
+    }
+
+    /**
+     * Appends a row value constructor for the supplied key columns: {@code (a, b, ...)}.
+     */
+    protected void appendKeyColumns (ColumnExp<?>[] keyFields)
+    {
+        _builder.append("(");
+        for (int ii = 0; ii < keyFields.length; ii++) {
+            if (ii > 0) {
+                _builder.append(", ");
+            }
+            keyFields[ii].accept(this);
+        }
+        _builder.append(")");
+    }
+
+    /**
+     * Returns true if the values of each column of the supplied set can be bound in an array (via
+     * {@link #getArrayType}): they must all be non-null, of the same class and of a type that we
+     * can bind in an array.
+     */
+    protected boolean canBindAsArrays (KeySet<?> keys, int columns)
+    {
+        for (int ii = 0; ii < columns; ii++) {
+            if (keys.getKeyClass(ii) == null || getArrayType(keys.getKeyValue(0, ii)) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the SQL type of the elements of an array used to bind values like the supplied
+     * value, or null if such values cannot be bound in an array.
+     */
+    protected String getArrayType (Object value)
+    {
+        return null;
+    }
+
+    /**
+     * Creates a SQL array containing the supplied values, whose type is determined by {@link
+     * #getArrayType}. Enums are converted to their names and byte enums to their byte values.
+     */
+    protected Array createArray (Connection conn, Object[] values)
+        throws SQLException
+    {
+        Object testValue = values[0];
+        String type = getArrayType(testValue);
+        if (type == null) {
+            throw new DatabaseException(
+                "Don't know how to make an array for " + testValue.getClass());
+        }
+        if (testValue instanceof ByteEnum) {
+            Byte[] bytes = new Byte[values.length];
+            for (int ii = 0; ii < bytes.length; ii ++) {
+                bytes[ii] = ((ByteEnum) values[ii]).toByte();
+            }
+            values = bytes;
+        } else if (testValue instanceof Enum<?>) {
+            // we need to replace the enum values with their name() because otherwise the JDBC
+            // driver may call toString() on them, which is incorrect; we copy the values so as
+            // not to modify the clause from which they came
+            String[] names = new String[values.length];
+            for (int ii = 0; ii < names.length; ii++) {
+                names[ii] = ((Enum<?>)values[ii]).name();
+            }
+            values = names;
+        }
+        return conn.createArrayOf(type, values);
+    }
+
+    /**
+     * Binds the value of the specified column of the specified key in a key set.
+     */
+    protected Void bindKeyValue (KeySet<?> keys, final int index, final int column)
+    {
+        addBindable(keys, new Bindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
+                throws Exception {
+                bindObject(stmt, argIx, ((KeySet<?>)source).getKeyValue(index, column));
+            }
+        });
+        _builder.append("?");
+        return null;
+    }
+
+    /**
+     * Binds the values of the specified column of all the keys in a key set as a single array.
+     */
+    protected Void bindKeyColumn (KeySet<?> keys, final int column)
+    {
+        addBindable(keys, new Bindable() {
+            public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
+                throws Exception {
+                KeySet<?> keys = (KeySet<?>)source;
+                Object[] values = new Object[keys.size()];
+                for (int ii = 0; ii < values.length; ii++) {
+                    values[ii] = keys.getKeyValue(ii, column);
+                }
+                stmt.setArray(argIx, createArray(conn, values));
+            }
+        });
+        _builder.append("?");
+        return null;
+    }
+
+    /**
+     * Registers a statement parameter. The supplied source is the object in the clause tree from
+     * which the bindable obtains its value (a {@link ValueExp}, an array of key values, a record),
+     * or null if the value was computed during the build.
+     */
+    protected void addBindable (Object source, Bindable bindable)
+    {
+        _bindSources.add(source);
+        _bindables.add(bindable);
+    }
+
+    /**
+     * Binds a fieldless value to the specified statement parameter.
+     */
+    protected static void bindObject (PreparedStatement stmt, int argIx, Object value)
+        throws Exception
+    {
+        // TODO: how can we abstract this fieldless marshalling
+        if (value instanceof ByteEnum) {
+            // byte enums require special conversion
+            stmt.setByte(argIx, ((ByteEnum)value).toByte());
+        } else if (value instanceof Enum<?>) {
+            // enums are converted to strings
+            stmt.setString(argIx, ((Enum<?>)value).name());
+        } else if (value instanceof int[]) {
+            // int arrays require conversion to byte arrays
+            int[] data = (int[])value;
+            ByteBuffer bbuf = ByteBuffer.allocate(data.length * 4);
+            bbuf.asIntBuffer().put(data);
+            stmt.setObject(argIx, bbuf.array());
+        } else {
+            stmt.setObject(argIx, value);
+        }
+    }
+
     protected abstract void appendIdentifier (String field);
 
     protected void appendTableName (Class<? extends PersistentRecord> type)
@@ -990,15 +1204,24 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
         _allowComplexIndices = allowComplexIndices;
     }
 
+    /**
+     * Binds a single statement parameter. A bindable obtains its value from a source object (see
+     * {@link #addBindable}) rather than capturing it, so that the bindables of a compiled {@link
+     * QueryPlan} can be reapplied to the corresponding sources of a structurally identical clause.
+     */
     protected static interface Bindable
     {
-        void doBind (Connection conn, PreparedStatement stmt, int argIx) throws Exception;
+        void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
+            throws Exception;
     }
 
     protected DepotTypes _types;
 
-    /** For each SQL parameter ? we add an {@link Comparable} to bind to this list. */
-    protected List<Bindable> _bindables = Lists.newLinkedList();
+    /** For each SQL parameter ? we add a {@link Bindable} to this list. */
+    protected List<Bindable> _bindables = Lists.newArrayList();
+
+    /** The source object for each of {@link #_bindables}. */
+    protected List<Object> _bindSources = Lists.newArrayList();
 
     /** A StringBuilder to hold the constructed SQL. */
     protected StringBuilder _builder = new StringBuilder();
@@ -1017,4 +1240,12 @@ public abstract class BuildVisitor implements FragmentVisitor<Void>
 
     /** If this database allows complex expressions in its indices. */
     protected final boolean _allowComplexIndices;
+
+    /** Binds the value of a {@link ValueExp} source. */
+    protected static final Bindable VALUE_EXP_BINDER = new Bindable() {
+        public void doBind (Connection conn, PreparedStatement stmt, int argIx, Object source)
+            throws Exception {
+            bindObject(stmt, argIx, ((ValueExp<?>)source).getValue());
+        }
+    };
 }
@@ -0,0 +1,276 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Bytes;
+import com.google.common.primitives.Longs;
+
+import com.samskivert.depot.KeySet;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.impl.expression.ValueExp;
+
+/**
+ * A compact, serializable identifier for a {@link QueryClause} tree, used as the key under which
+ * query results are cached. The clause is reduced by a {@link ShapeVisitor} to its shape tokens
+ * and bound values, which are encoded into a byte array along with a 128-bit fingerprint of that
+ * array. Fingerprints are compared first, so unequal keys are almost always told apart without
+ * examining their bytes, but equality is always confirmed on the bytes themselves.
+ *
+ * The encoding depends only on class names and values, never on identity hash codes, so keys are
+ * stable across VMs and may be used with a distributed cache.
+ */
+public class ClauseFingerprint
+    implements Serializable
+{
+    /**
+     * Returns the cache key for the supplied clause: its fingerprint if it can be reduced to one,
+     * otherwise its string representation.
+     */
+    public static Serializable keyFor (QueryClause clause)
+    {
+        ShapeVisitor shaper = new ShapeVisitor();
+        if (!shaper.reduce(clause)) {
+            return clause.toString();
+        }
+        Encoder enc = new Encoder();
+        enc.writeAll(shaper.getTokens());
+        enc.writeByte(SOURCES);
+        for (Object source : shaper.getSources()) {
+            enc.write((source instanceof ValueExp<?>) ? ((ValueExp<?>)source).getValue() : source);
+        }
+        return new ClauseFingerprint(enc.toByteArray());
+    }
+
+    /**
+     * Returns the 128-bit fingerprint of this key's encoding.
+     */
+    public HashCode getFingerprint ()
+    {
+        return HashCode.fromBytes(Bytes.concat(Longs.toByteArray(_high), Longs.toByteArray(_low)));
+    }
+
+    /**
+     * Returns the size of this key's encoding, in bytes.
+     */
+    public int size ()
+    {
+        return _bytes.length;
+    }
+
+    @Override public int hashCode ()
+    {
+        return (int)_high;
+    }
+
+    @Override public boolean equals (Object other)
+    {
+        if (!(other instanceof ClauseFingerprint)) {
+            return false;
+        }
+        ClauseFingerprint ofp = (ClauseFingerprint)other;
+        return _high == ofp._high && _low == ofp._low && Arrays.equals(_bytes, ofp._bytes);
+    }
+
+    @Override public String toString ()
+    {
+        return String.format("%016x%016x", _high, _low);
+    }
+
+    protected ClauseFingerprint (byte[] bytes)
+    {
+        _bytes = bytes;
+        byte[] hash = Hashing.murmur3_128().hashBytes(bytes).asBytes();
+        _high = Longs.fromBytes(hash[0], hash[1], hash[2], hash[3],
+                                hash[4], hash[5], hash[6], hash[7]);
+        _low = Longs.fromBytes(hash[8], hash[9], hash[10], hash[11],
+                               hash[12], hash[13], hash[14], hash[15]);
+    }
+
+    /** Encodes tokens and values into a growable byte array. */
+    protected static class Encoder
+    {
+        public void writeAll (List<Object> values) {
+            for (Object value : values) {
+                write(value);
+            }
+        }
+
+        public void write (Object value) {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof Class<?>) {
+                writeClass((Class<?>)value);
+            } else if (value instanceof Integer) {
+                writeByte(INT);
+                writeVarLong((Integer)value);
+            } else if (value instanceof Long) {
+                writeByte(LONG);
+                writeVarLong((Long)value);
+            } else if (value instanceof String) {
+                writeByte(STRING);
+                writeString((String)value);
+            } else if (value instanceof Boolean) {
+                writeByte(((Boolean)value) ? TRUE : FALSE);
+            } else if (value instanceof Enum<?>) {
+                writeByte(ENUM);
+                writeClass(((Enum<?>)value).getDeclaringClass());
+                writeString(((Enum<?>)value).name());
+            } else if (value instanceof Short || value instanceof Byte) {
+                writeByte(value instanceof Short ? SHORT : BYTE);
+                writeVarLong(((Number)value).longValue());
+            } else if (value instanceof Double) {
+                writeByte(DOUBLE);
+                writeLong(Double.doubleToLongBits((Double)value));
+            } else if (value instanceof Float) {
+                writeByte(FLOAT);
+                writeVarLong(Float.floatToIntBits((Float)value));
+            } else if (value instanceof Character) {
+                writeByte(CHAR);
+                writeVarLong((Character)value);
+            } else if (value instanceof Date) {
+                writeByte(DATE);
+                writeClass(value.getClass());
+                writeVarLong(((Date)value).getTime());
+                if (value instanceof Timestamp) {
+                    writeVarLong(((Timestamp)value).getNanos());
+                }
+            } else if (value instanceof byte[]) {
+                byte[] bytes = (byte[])value;
+                writeByte(BYTES);
+                writeVarLong(bytes.length);
+                writeBytes(bytes, bytes.length);
+            } else if (value instanceof KeySet<?>) {
+                // the set's class and size are among the tokens, so we need write only its values
+                KeySet<?> keys = (KeySet<?>)value;
+                int columns = DepotUtil.getKeyFields(keys.getPersistentClass()).length;
+                for (int cc = 0; cc < columns; cc++) {
+                    Object[] values = new Object[keys.size()];
+                    for (int ii = 0; ii < values.length; ii++) {
+                        values[ii] = keys.getKeyValue(ii, cc);
+                    }
+                    write(values);
+                }
+            } else if (value instanceof Object[]) {
+                Object[] values = (Object[])value;
+                // the values of large in() lists are usually all ints or all longs, which we
+                // write without their tags
+                byte tag = (values.length == 0) ? ARRAY : elementTag(values);
+                writeByte(tag);
+                writeVarLong(values.length);
+                for (Object elem : values) {
+                    if (tag == ARRAY) {
+                        write(elem);
+                    } else {
+                        writeVarLong(((Number)elem).longValue());
+                    }
+                }
+            } else if (value instanceof Collection<?>) {
+                Collection<?> values = (Collection<?>)value;
+                writeByte(ARRAY);
+                writeVarLong(values.size());
+                for (Object elem : values) {
+                    write(elem);
+                }
+            } else {
+                // we fall back to the string representation, as did the cache keys of old
+                writeByte(OTHER);
+                writeClass(value.getClass());
+                writeString(String.valueOf(value));
+            }
+        }
+
+        protected byte elementTag (Object[] values) {
+            Class<?> eclass = (values[0] == null) ? null : values[0].getClass();
+            if (eclass != Integer.class && eclass != Long.class) {
+                return ARRAY;
+            }
+            for (Object value : values) {
+                if (value == null || value.getClass() != eclass) {
+                    return ARRAY;
+                }
+            }
+            return (eclass == Integer.class) ? INT_ARRAY : LONG_ARRAY;
+        }
+
+        public void writeClass (Class<?> clazz) {
+            Integer index = _classes.get(clazz);
+            if (index != null) {
+                writeByte(CLASS_REF);
+                writeVarLong(index);
+            } else {
+                _classes.put(clazz, _classes.size());
+                writeByte(CLASS);
+                writeString(clazz.getName());
+            }
+        }
+
+        public void writeString (String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes, bytes.length);
+        }
+
+        public void writeVarLong (long value) {
+            // zig-zag encode so that small negative values are also small
+            long zz = (value << 1) ^ (value >> 63);
+            while ((zz & ~0x7FL) != 0) {
+                writeByte((byte)((zz & 0x7F) | 0x80));
+                zz >>>= 7;
+            }
+            writeByte((byte)zz);
+        }
+
+        public void writeLong (long value) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((byte)(value >>> shift));
+            }
+        }
+
+        public void writeByte (byte value) {
+            if (_size == _buf.length) {
+                _buf = Arrays.copyOf(_buf, _size * 2);
+            }
+            _buf[_size++] = value;
+        }
+
+        public void writeBytes (byte[] bytes, int length) {
+            if (_size + length > _buf.length) {
+                _buf = Arrays.copyOf(_buf, Math.max(_size * 2, _size + length));
+            }
+            System.arraycopy(bytes, 0, _buf, _size, length);
+            _size += length;
+        }
+
+        public byte[] toByteArray () {
+            return Arrays.copyOf(_buf, _size);
+        }
+
+        protected byte[] _buf = new byte[256];
+        protected int _size;
+        protected Map<Class<?>, Integer> _classes = new IdentityHashMap<Class<?>, Integer>();
+    }
+
+    protected final byte[] _bytes;
+    protected final long _high, _low;
+
+    protected static final byte NULL = 0, CLASS = 1, CLASS_REF = 2, INT = 3, LONG = 4, STRING = 5;
+    protected static final byte TRUE = 6, FALSE = 7, ENUM = 8, SHORT = 9, BYTE = 10, DOUBLE = 11;
+    protected static final byte FLOAT = 12, CHAR = 13, DATE = 14, BYTES = 15, ARRAY = 16;
+    protected static final byte INT_ARRAY = 17, LONG_ARRAY = 18, OTHER = 19, SOURCES = 20;
+
+    private static final long serialVersionUID = 1L;
+}
@@ -0,0 +1,129 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
+
+/**
+ * Iterates lazily over the results of a {@link StreamQuery}, holding the connection on which the
+ * query was executed until the cursor is closed. A cursor closes itself when it is exhausted or
+ * when reading from it fails, but callers that may stop iterating early must close it themselves.
+ * Cursors are not thread safe.
+ */
+public abstract class Cursor<R>
+    implements Iterator<R>, AutoCloseable
+{
+    public Cursor (StreamQuery<?,R> query)
+    {
+        _query = query;
+    }
+
+    /**
+     * Executes our query on the supplied connection. This is called once, by the creator of the
+     * cursor. If it fails, the cursor is closed and a {@link DatabaseException} is thrown.
+     */
+    public void open (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison,
+                      int fetchSize)
+        throws DatabaseException
+    {
+        try {
+            _rs = _query.execute(ctx, conn, liaison, fetchSize);
+        } catch (SQLException sqe) {
+            throw fail(sqe);
+        }
+    }
+
+    /**
+     * Returns a sequential stream over the (remaining) results of this cursor. Closing the stream
+     * closes this cursor.
+     */
+    public Stream<R> stream ()
+    {
+        Spliterator<R> split = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED);
+        return StreamSupport.stream(split, false).onClose(new Runnable() {
+            public void run () {
+                close();
+            }
+        });
+    }
+
+    // from interface Iterator
+    public boolean hasNext ()
+    {
+        if (!_pending && !_closed) {
+            try {
+                _pending = _rs.next();
+            } catch (SQLException sqe) {
+                throw fail(sqe);
+            }
+            if (!_pending) {
+                close();
+            }
+        }
+        return _pending;
+    }
+
+    // from interface Iterator
+    public R next ()
+    {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        _pending = false;
+        try {
+            return _query.decode(_rs);
+        } catch (SQLException sqe) {
+            throw fail(sqe);
+        }
+    }
+
+    // from interface AutoCloseable
+    public void close ()
+    {
+        if (!_closed) {
+            _closed = true;
+            _pending = false;
+            released(null);
+        }
+    }
+
+    /**
+     * Called exactly once, when this cursor is closed, to close its statement and release its
+     * connection.
+     *
+     * @param failure the error that caused the cursor to be closed, or null if it was closed
+     * normally.
+     */
+    protected abstract void released (SQLException failure);
+
+    protected DatabaseException fail (SQLException sqe)
+    {
+        if (!_closed) {
+            _closed = true;
+            _pending = false;
+            released(sqe);
+        }
+        return new DatabaseException("Cursor failure " + _query, sqe);
+    }
+
+    protected final StreamQuery<?,R> _query;
+    protected ResultSet _rs;
+
+    /** Whether we have advanced to a row that has not yet been returned by {@link #next}. */
+    protected boolean _pending;
+    protected boolean _closed;
+}
@@ -4,6 +4,9 @@
 
 package com.samskivert.depot.impl;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.sql.Connection;
@@ -72,6 +75,16 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         checkArgument(!java.lang.reflect.Modifier.isAbstract(pClass.getModifiers()),
                       "Can't handle reference to abstract record: " + pClass.getName());
 
+        // create a method handle for our no-argument constructor, falling back to reflection if
+        // that's not possible
+        try {
+            _ctor = MethodHandles.publicLookup().findConstructor(
+                pClass, MethodType.methodType(void.class)).asType(
+                    MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            _ctor = null;
+        }
+
         Entity entity = pClass.getAnnotation(Entity.class);
 
         // see if this is a computed entity
@@ -209,6 +222,10 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
 
         // generate our full list of fields/columns for use in queries
         _allFields = fields.toArray(new ColumnExp<?>[fields.size()]);
+        _fieldMarshallers = new FieldMarshaller<?>[_allFields.length];
+        for (int ii = 0; ii < _allFields.length; ii++) {
+            _fieldMarshallers[ii] = _fields.get(_allFields[ii].name);
+        }
 
         // now check for @Entity annotations on the entire superclass chain
         Class<? extends PersistentRecord> iterClass = pClass.asSubclass(PersistentRecord.class);
@@ -327,6 +344,21 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         return _valueGenerators.values();
     }
 
+    /**
+     * Returns true if any of our value generators obtain their value from the database after a
+     * record is inserted (see {@link ValueGenerator#isPostFactum}), in which case records that
+     * need generated values must be inserted one at a time.
+     */
+    public boolean hasPostFactumGenerators ()
+    {
+        for (ValueGenerator vg : _valueGenerators.values()) {
+            if (vg.isPostFactum()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Return the names of the columns that constitute the primary key of our associated persistent
      * record.
@@ -507,79 +539,107 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
             currentVersion = 0;
         }
 
-        // now check whether we need to migrate our database schema
-        while (true) {
-            if (currentVersion >= _schemaVersion) {
-                // no migrations to do, but maybe we should do an explicit staleness check
-                if (Boolean.getBoolean("com.samskivert.depot.verifyschema")) {
-                    checkForStaleness(TableMetaData.load(ctx, getTableName()), ctx, builder);
+        AdvisoryLock alock = null;
+        boolean triedLock = false;
+        Backoff backoff = null;
+        try {
+            // now check whether we need to migrate our database schema
+            while (true) {
+                if (currentVersion >= _schemaVersion) {
+                    // no migrations to do, but maybe we should do an explicit staleness check
+                    if (Boolean.getBoolean("com.samskivert.depot.verifyschema")) {
+                        checkForStaleness(TableMetaData.load(ctx, getTableName()), ctx, builder);
+                    }
+                    return true;
                 }
-                return true;
-            }
 
-            // check whether migrations are allowed by our context
-            switch (ctx.canMigrate()) {
-            case WARN:
-                log.warning(_pClass.getName() + " requires migration, which is disallowed. " +
-                            "Failures may be encountered later.");
-                return true;
-            case FAIL:
-                throw new DatabaseException(
-                    _pClass.getName() + " requires migration, which is disallowed.");
-            case ALLOWED:
-                // great, fall through and do our migrations
-                break;
-            }
-
-            // try to update migratingVersion to the new version to indicate to other processes
-            // that we are handling the migration and that they should wait
-            if (_meta.updateMigratingVersion(getTableName(), currentVersion, _schemaVersion, 0)) {
-                break; // we got the lock, let's go
-            }
+                // check whether migrations are allowed by our context
+                switch (ctx.canMigrate()) {
+                case WARN:
+                    log.warning(_pClass.getName() + " requires migration, which is disallowed. " +
+                                "Failures may be encountered later.");
+                    return true;
+                case FAIL:
+                    throw new DatabaseException(
+                        _pClass.getName() + " requires migration, which is disallowed.");
+                case ALLOWED:
+                    // great, fall through and do our migrations
+                    break;
+                }
 
-            // we didn't get the lock, so wait 5 seconds and then check to see if the other process
-            // finished the update or failed in which case we'll try to grab the lock ourselves
-            try {
-                log.info("Waiting on migration lock for " + _pClass.getName() + ".");
-                Thread.sleep(5000);
-            } catch (InterruptedException ie) {
-                throw new DatabaseException("Interrupted while waiting on migration lock.");
-            }
+                // if our database supports advisory locks, we hold one while we migrate:
+                // processes that would also migrate this table wait on it, and are woken as soon
+                // as we finish
+                if (!triedLock) {
+                    triedLock = true;
+                    alock = ctx.acquireAdvisoryLock("depot.schema." + getTableName());
+                    if (alock != null) {
+                        // its previous holder may have migrated the table while we waited
+                        _meta.discardTableMetaData(getTableName());
+                        currentVersion = _meta.getVersion(getTableName(), true);
+                        continue;
+                    }
+                }
 
-            currentVersion = _meta.getVersion(getTableName(), true);
-        }
+                // try to update migratingVersion to the new version to indicate to other
+                // processes that we are handling the migration and that they should wait
+                if (_meta.updateMigratingVersion(
+                        getTableName(), currentVersion, _schemaVersion, 0)) {
+                    break; // we got the lock, let's go
+                }
 
-        // fetch all relevant information regarding our table from the database
-        TableMetaData metaData = TableMetaData.load(ctx, getTableName());
+                // we didn't get the lock, so wait a bit and then check to see if the other
+                // process finished the update or failed in which case we'll try to grab the lock
+                // ourselves
+                if (backoff == null) {
+                    backoff = new Backoff("migration lock for " + _pClass.getName());
+                }
+                backoff.pause();
 
-        int expectedDbVersion = currentVersion;
-        try {
-            if (!metaData.tableExists) {
-                // if the table does not exist, create it
-                createTable(ctx, builder, declarations);
-                metaData = TableMetaData.load(ctx, getTableName());
-            } else {
-                // if it does exist, run our migrations
-                metaData = runMigrations(ctx, metaData, builder, currentVersion);
+                // the other process may have altered our table, so our snapshot of its metadata
+                // may no longer be accurate
+                _meta.discardTableMetaData(getTableName());
+                currentVersion = _meta.getVersion(getTableName(), true);
             }
 
-            // check for stale columns now that the table is up to date
-            checkForStaleness(metaData, ctx, builder);
+            // fetch all relevant information regarding our table from the database
+            TableMetaData metaData = TableMetaData.load(ctx, getTableName());
 
-            // and update our version in the schema version table
-            _meta.updateVersion(getTableName(), _schemaVersion);
-            expectedDbVersion = _schemaVersion;
-            return true;
-
-        } finally {
-            // set our migrating version back to zero
+            int expectedDbVersion = currentVersion;
             try {
-                if (!_meta.updateMigratingVersion(
-                        getTableName(), expectedDbVersion, 0, _schemaVersion)) {
-                    log.warning("Failed to restore migrating version to zero!", "record", _pClass);
+                if (!metaData.tableExists) {
+                    // if the table does not exist, create it
+                    createTable(ctx, builder, declarations);
+                    metaData = TableMetaData.load(ctx, getTableName());
+                } else {
+                    // if it does exist, run our migrations
+                    metaData = runMigrations(ctx, metaData, builder, currentVersion);
+                }
+
+                // check for stale columns now that the table is up to date
+                checkForStaleness(metaData, ctx, builder);
+
+                // and update our version in the schema version table
+                _meta.updateVersion(getTableName(), _schemaVersion);
+                expectedDbVersion = _schemaVersion;
+                return true;
+
+            } finally {
+                // set our migrating version back to zero
+                try {
+                    if (!_meta.updateMigratingVersion(
+                            getTableName(), expectedDbVersion, 0, _schemaVersion)) {
+                        log.warning("Failed to restore migrating version to zero!",
+                                    "record", _pClass);
+                    }
+                } catch (Exception e) {
+                    log.warning("Failure restoring migrating version! Bad bad!",
+                                "record", _pClass, e);
                 }
-            } catch (Exception e) {
-                log.warning("Failure restoring migrating version! Bad bad!", "record", _pClass, e);
+            }
+        } finally {
+            if (alock != null) {
+                alock.release();
             }
         }
     }
@@ -595,31 +655,54 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
 
     /**
      * Creates a persistent object from the supplied result set. The result set must have come from
-     * a properly constructed query (see {@link BuildVisitor}).
+     * a properly constructed query (see {@link BuildVisitor}). When decoding many rows from the
+     * same result set, use {@link #resolveColumns} and {@link #createObject(ResultSet,int[])}.
      */
     public T createObject (ResultSet rs)
         throws SQLException
     {
-        try {
-            // first, build a set of the fields that we actually received
-            Set<String> fields = Sets.newHashSet();
-            ResultSetMetaData metadata = rs.getMetaData();
-            for (int ii = 1; ii <= metadata.getColumnCount(); ii ++) {
-               fields.add(metadata.getColumnLabel(ii));
+        return createObject(rs, resolveColumns(rs));
+    }
+
+    // from QueryMarshaller
+    public int[] resolveColumns (ResultSet rs)
+        throws SQLException
+    {
+        // map the labels of the columns we actually received to their indices
+        ResultSetMetaData metadata = rs.getMetaData();
+        int ccount = metadata.getColumnCount();
+        Map<String, Integer> indices = Maps.newHashMapWithExpectedSize(ccount);
+        for (int ii = 1; ii <= ccount; ii++) {
+            indices.put(metadata.getColumnLabel(ii), ii);
+        }
+
+        // then map each of our fields to its column index (or zero if it is absent)
+        int[] columns = new int[_fieldMarshallers.length];
+        for (int ii = 0; ii < columns.length; ii++) {
+            FieldMarshaller<?> fm = _fieldMarshallers[ii];
+            Integer index = indices.get(fm.getColumnName());
+            if (index != null) {
+                columns[ii] = index;
+            } else if (fm.getComputed() == null || fm.getComputed().required()) {
+                // this field was not in the result set and that's not OK
+                throw new SQLException(
+                    "ResultSet missing field: " + fm.getField().getName() + " for " + _pClass);
             }
+        }
+        return columns;
+    }
 
-            // then create and populate the persistent object
-            T po = _pClass.newInstance();
-            for (FieldMarshaller<?> fm : _fields.values()) {
-                if (!fields.contains(fm.getColumnName())) {
-                    // this field was not in the result set, make sure that's OK
-                    if (fm.getComputed() != null && !fm.getComputed().required()) {
-                        continue;
-                    }
-                    throw new SQLException(
-                        "ResultSet missing field: " + fm.getField().getName() + " for " + _pClass);
+    // from QueryMarshaller
+    public T createObject (ResultSet rs, int[] columns)
+        throws SQLException
+    {
+        try {
+            T po = newInstance();
+            for (int ii = 0; ii < columns.length; ii++) {
+                int index = columns[ii];
+                if (index > 0) {
+                    _fieldMarshallers[ii].getAndWriteToObject(rs, index, po);
                 }
-                fm.getAndWriteToObject(rs, po);
             }
             return po;
 
@@ -634,6 +717,25 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         }
     }
 
+    /**
+     * Creates a blank instance of our persistent object class.
+     */
+    @SuppressWarnings("unchecked")
+    protected T newInstance ()
+        throws Exception
+    {
+        if (_ctor == null) {
+            return _pClass.newInstance();
+        }
+        try {
+            return (T)(Object)_ctor.invokeExact();
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
     /**
      * Go through the registered {@link ValueGenerator}s for our persistent object and run the ones
      * that match the current postFactum phase, filling in the fields on the supplied object while
@@ -734,6 +836,11 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         log.info("Migrating " + getTableName() + " from " + currentVersion + " to " +
                  _schemaVersion + "...");
 
+        // custom migrations may alter any table, so no snapshot of the catalog can be trusted
+        if (!_schemaMigs.isEmpty()) {
+            _meta.clearCatalogSnapshot();
+        }
+
         if (_schemaMigs.size() > 0) {
             // run our pre-default-migrations
             for (SchemaMigration migration : _schemaMigs) {
@@ -1039,6 +1146,11 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
         public static TableMetaData load (PersistenceContext ctx, final String tableName)
             throws DatabaseException
         {
+            // use the catalog snapshot taken at startup, if we have one that covers this table
+            TableMetaData snapshot = ctx.getMetaData().takeTableMetaData(tableName);
+            if (snapshot != null) {
+                return snapshot;
+            }
             return ctx.invoke(new Fetcher.Trivial<TableMetaData>() {
                 public TableMetaData invoke (PersistenceContext ctx, Connection conn,
                                              DatabaseLiaison dl) throws SQLException {
@@ -1047,6 +1159,58 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
             });
         }
 
+        /**
+         * Loads the metadata for all tables in our schema with one scan each of the tables,
+         * columns, indexes and primary keys in the catalog, rather than one per table. Tables whose
+         * indexes and primary key the database does not describe are omitted.
+         */
+        public static Map<String, TableMetaData> loadAll (Connection conn, DatabaseLiaison dl)
+            throws SQLException
+        {
+            String catalog = conn.getCatalog();
+            DatabaseMetaData meta = conn.getMetaData();
+            Map<String, TableMetaData> tables = Maps.newHashMap();
+            ResultSet rs = meta.getTables(catalog, dl.getSchemaName(), "%", TABLE_TYPES);
+            while (rs.next()) {
+                TableMetaData table = new TableMetaData();
+                table.tableExists = true;
+                tables.put(rs.getString("TABLE_NAME"), table);
+            }
+
+            rs = meta.getColumns(catalog, dl.getSchemaName(), "%", "%");
+            while (rs.next()) {
+                TableMetaData table = tables.get(rs.getString("TABLE_NAME"));
+                if (table != null) {
+                    table.tableColumns.add(rs.getString("COLUMN_NAME"));
+                }
+            }
+
+            // not all databases can describe the indexes and keys of every table at once, and
+            // those that can may omit some tables: we keep only tables that they describe, each of
+            // which has at least a primary key index, and load the rest separately
+            ResultSet irs = dl.getAllIndexInfo(conn), krs = dl.getAllPrimaryKeys(conn);
+            if (irs == null || krs == null) {
+                return Maps.newHashMap();
+            }
+            Set<String> indexed = Sets.newHashSet(), keyed = Sets.newHashSet();
+            while (irs.next()) {
+                TableMetaData table = tables.get(irs.getString("TABLE_NAME"));
+                if (table != null) {
+                    table.addIndexInfo(irs);
+                    indexed.add(irs.getString("TABLE_NAME"));
+                }
+            }
+            while (krs.next()) {
+                TableMetaData table = tables.get(krs.getString("TABLE_NAME"));
+                if (table != null) {
+                    table.addPrimaryKey(krs);
+                    keyed.add(krs.getString("TABLE_NAME"));
+                }
+            }
+            tables.keySet().retainAll(Sets.intersection(indexed, keyed));
+            return tables;
+        }
+
         public TableMetaData (
             String catalog, DatabaseMetaData meta, DatabaseLiaison dl, String tableName
         ) throws SQLException {
@@ -1062,31 +1226,47 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
 
             rs = meta.getIndexInfo(catalog, dl.getSchemaName(), tableName, false, false);
             while (rs.next()) {
-                String indexName = rs.getString("INDEX_NAME");
-                Set<String> set = indexColumns.get(indexName);
-                if (rs.getBoolean("NON_UNIQUE")) {
-                    // not a unique index: just make sure there's an entry in the keyset
-                    if (set == null) {
-                        indexColumns.put(indexName, null);
-                    }
-
-                } else {
-                    // for unique indices we collect the column names
-                    if (set == null) {
-                        set = Sets.newHashSet();
-                        indexColumns.put(indexName, set);
-                    }
-                    set.add(rs.getString("COLUMN_NAME"));
-                }
+                addIndexInfo(rs);
             }
 
             rs = meta.getPrimaryKeys(catalog, dl.getSchemaName(), tableName);
             while (rs.next()) {
-                pkName = rs.getString("PK_NAME");
-                pkColumns.add(rs.getString("COLUMN_NAME"));
+                addPrimaryKey(rs);
+            }
+        }
+
+        protected TableMetaData ()
+        {
+        }
+
+        protected void addIndexInfo (ResultSet rs)
+            throws SQLException
+        {
+            String indexName = rs.getString("INDEX_NAME");
+            Set<String> set = indexColumns.get(indexName);
+            if (rs.getBoolean("NON_UNIQUE")) {
+                // not a unique index: just make sure there's an entry in the keyset
+                if (set == null) {
+                    indexColumns.put(indexName, null);
+                }
+
+            } else {
+                // for unique indices we collect the column names
+                if (set == null) {
+                    set = Sets.newHashSet();
+                    indexColumns.put(indexName, set);
+                }
+                set.add(rs.getString("COLUMN_NAME"));
             }
         }
 
+        protected void addPrimaryKey (ResultSet rs)
+            throws SQLException
+        {
+            pkName = rs.getString("PK_NAME");
+            pkColumns.add(rs.getString("COLUMN_NAME"));
+        }
+
         public boolean pkMatches (List<FieldMarshaller<?>> declaredPkColumns)
         {
             if (pkColumns.size() != declaredPkColumns.size()) {
@@ -1110,6 +1290,8 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
                 add("pkColumns", pkColumns).
                 toString();
         }
+
+        protected static final String[] TABLE_TYPES = { "TABLE" };
     }
 
     /** Provides access to certain internal metadata. */
@@ -1118,6 +1300,10 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
     /** The persistent object class that we manage. */
     protected Class<T> _pClass;
 
+    /** A handle on our persistent object's no-argument constructor, or null if we must use
+     * reflection to create instances. */
+    protected MethodHandle _ctor;
+
     /** The name of our persistent object table. */
     protected String _tableName;
 
@@ -1137,6 +1323,9 @@ public class DepotMarshaller<T extends PersistentRecord> implements QueryMarshal
     /** The persisent fields of our object, in definition order. */
     protected ColumnExp<?>[] _allFields;
 
+    /** The marshallers for the fields in {@link #_allFields}, in the same order. */
+    protected FieldMarshaller<?>[] _fieldMarshallers;
+
     /** The fields of our object with directly corresponding table columns. */
     protected ColumnExp<?>[] _columnFields;
 
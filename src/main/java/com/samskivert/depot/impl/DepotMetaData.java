@@ -10,8 +10,7 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Arrays;
 import java.util.Map;
-
-import com.google.common.collect.Maps;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.impl.jdbc.ColumnDefinition;
@@ -152,6 +151,52 @@ public class DepotMetaData
         });
     }
 
+    /**
+     * Loads a snapshot of the metadata of every table in our schema, from which marshallers
+     * initialized before the snapshot is {@link #clearCatalogSnapshot cleared} obtain their
+     * tables' metadata, rather than each querying the database for its own.
+     */
+    public void snapshotCatalog ()
+    {
+        _snapshot = new ConcurrentHashMap<String, DepotMarshaller.TableMetaData>(
+            _ctx.invoke(new Fetcher.Trivial<Map<String, DepotMarshaller.TableMetaData>>() {
+                public Map<String, DepotMarshaller.TableMetaData> invoke (
+                    PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+                    throws SQLException {
+                    return DepotMarshaller.TableMetaData.loadAll(conn, liaison);
+                }
+            }));
+    }
+
+    /**
+     * Discards our catalog snapshot, if we have one.
+     */
+    public void clearCatalogSnapshot ()
+    {
+        _snapshot = null;
+    }
+
+    /**
+     * Removes and returns the metadata for the specified table from our catalog snapshot, or
+     * returns null if we have no snapshot or it does not describe the table. Each table's
+     * metadata is handed out only once, as its table may subsequently be altered.
+     */
+    protected DepotMarshaller.TableMetaData takeTableMetaData (String tableName)
+    {
+        Map<String, DepotMarshaller.TableMetaData> snapshot = _snapshot;
+        return (snapshot == null) ? null : snapshot.remove(tableName);
+    }
+
+    /**
+     * Discards the metadata for the specified table from our catalog snapshot, if it is there.
+     * This must be called when another process may have altered the table since the snapshot was
+     * taken, so that its metadata will be loaded afresh.
+     */
+    protected void discardTableMetaData (String tableName)
+    {
+        takeTableMetaData(tableName);
+    }
+
     /**
      * Creates and return a new {@link SQLBuilder} for the appropriate dialect.
      *
@@ -202,7 +247,10 @@ public class DepotMetaData
 
     protected PersistenceContext _ctx;
     protected int _jdbcMajorVersion;
-    protected Map<String, Integer> _curvers = Maps.newHashMap();
+    protected Map<String, Integer> _curvers = new ConcurrentHashMap<String, Integer>();
+
+    /** The metadata of our schema's tables, loaded in bulk during initialization, or null. */
+    protected volatile Map<String, DepotMarshaller.TableMetaData> _snapshot;
 
     /** The name of the table we use to track schema versions. */
     protected static final String SCHEMA_VERSION_TABLE = "DepotSchemaVersion";
@@ -164,6 +164,15 @@ public class DepotTypes
         }
     }
 
+    /**
+     * Returns the persistent classes registered with this object, in the order in which they
+     * were registered (which is also the order in which their table abbreviations are assigned).
+     */
+    public Iterable<Class<?>> getClasses ()
+    {
+        return _classIx.keySet();
+    }
+
     /**
      * Return the value of the useTableAbbreviations flag, which governs the behaviour when
      * referencing columns during SQL construction. Normally, this flag is on, and tables are
@@ -192,7 +201,7 @@ public class DepotTypes
     }
 
     /** Classes mapped to integers, used for table abbreviation indexing. */
-    protected Map<Class<?>, Integer> _classIx = Maps.newHashMap();
+    protected Map<Class<?>, Integer> _classIx = Maps.newLinkedHashMap();
 
     /** Classes mapped to marshallers, used for table names and field lists. */
     protected Map<Class<?>, DepotMarshaller<?>> _classMap = Maps.newHashMap();
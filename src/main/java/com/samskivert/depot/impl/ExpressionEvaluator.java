@@ -9,6 +9,7 @@ import java.util.Arrays;
 
 import com.samskivert.depot.Key;
 import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.SQLFragment;
 
 import com.samskivert.depot.clause.Distinct;
 import com.samskivert.depot.clause.FieldDefinition;
@@ -80,6 +81,9 @@ import static com.samskivert.depot.Log.log;
  * Attempts to compute the actual values different SQL constructs would yield if they were
  * actually send to the database to operate on rows, rather than on in-memory data objects.
  *
+ * <p> Comparisons of strings are not evaluated, as their results depend on the collation of the
+ * database (which may, for example, ignore case).
+ *
  * TODO: Many of the classes in com.samskivert.depot.functions.* have excellent implementations
  * TODO: that should be written.
  */
@@ -101,6 +105,9 @@ public class ExpressionEvaluator
             if (values[ii] instanceof NoValue) {
                 return values[ii];
             }
+            if (isCollated(values[ii])) {
+                return collationDependent(multiOperator);
+            }
         }
 
         return multiOperator.evaluate(values);
@@ -116,19 +123,25 @@ public class ExpressionEvaluator
         if (right instanceof NoValue) {
             return right;
         }
+        if (isCollated(left) || isCollated(right)) {
+            return collationDependent(binaryOperator);
+        }
         return binaryOperator.evaluate(left, right);
     }
 
     public Object visit (IsNull isNull)
     {
         Object operand = isNull.getExpression().accept(this);
-        return (operand instanceof NoValue) ? operand : operand != null;
+        return (operand instanceof NoValue) ? operand : operand == null;
     }
 
     public Object visit (In in)
     {
         Object operand = in.getExpression().accept(this);
-        return (operand instanceof NoValue) ? operand :
+        if (operand instanceof NoValue) {
+            return operand;
+        }
+        return isCollated(operand) ? collationDependent(in) :
             Arrays.asList(in.getValues()).contains(operand);
     }
 
@@ -196,6 +209,11 @@ public class ExpressionEvaluator
 
     public Object visit (LiteralExp<?> literalExp)
     {
+        // the literal booleans (as used by Query.whereTrue) are the same in every dialect
+        String text = literalExp.getText().trim();
+        if (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false")) {
+            return Boolean.valueOf(text);
+        }
         return new NoValue("Cannot evaluate LiteralExp: " + literalExp);
     }
 
@@ -242,7 +260,9 @@ public class ExpressionEvaluator
                 log.warning("Failed to retrieve field value", "field", keyFields[ii], e);
                 return new NoValue("Internal Error");
             }
-            if (value == null) {
+            if (isCollated(value)) {
+                return collationDependent(key);
+            } else if (value == null) {
                 if (values[ii] != null) {
                     return false;
                 }
@@ -492,6 +512,19 @@ public class ExpressionEvaluator
         throw new IllegalArgumentException("Can't evaluate expression: " + exp);
     }
 
+    /**
+     * Returns true if the supplied value is compared by the database according to its collation.
+     */
+    public static boolean isCollated (Object o)
+    {
+        return (o instanceof CharSequence) || (o instanceof Character);
+    }
+
+    protected static NoValue collationDependent (SQLFragment fragment)
+    {
+        return new NoValue("String comparison depends on database collation: " + fragment);
+    }
+
     public static Double numerical (Object o)
     {
         return (o instanceof Number) ? ((Number) o).doubleValue() : null;
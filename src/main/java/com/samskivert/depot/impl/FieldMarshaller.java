@@ -4,6 +4,9 @@
 
 package com.samskivert.depot.impl;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
@@ -19,6 +22,7 @@ import java.sql.SQLException;
 import java.sql.Time;
 import java.sql.Timestamp;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -125,7 +129,7 @@ public abstract class FieldMarshaller<T>
             }
             @Override public F getFromObject (Object po)
                 throws IllegalArgumentException, IllegalAccessException {
-                @SuppressWarnings("unchecked") F value = (F)_field.get(po);
+                @SuppressWarnings("unchecked") F value = (F)getObject(po);
                 return value;
             }
             @Override public F getFromSet (ResultSet rs) throws SQLException {
@@ -136,7 +140,7 @@ public abstract class FieldMarshaller<T>
             }
             @Override public void writeToObject (Object po, F value)
                 throws IllegalArgumentException, IllegalAccessException {
-                _field.set(po, value);
+                setObject(po, value);
             }
             @Override public void writeToStatement (PreparedStatement ps, int column, F value)
                 throws SQLException {
@@ -253,10 +257,37 @@ public abstract class FieldMarshaller<T>
         writeToObject(po, getFromSet(rset));
     }
 
+    /**
+     * Reads the specified column (by index) from the supplied result set and writes it to the
+     * appropriate field of the persistent object.
+     */
+    public void getAndWriteToObject (ResultSet rset, int index, Object po)
+        throws SQLException, IllegalAccessException
+    {
+        writeToObject(po, getFromSet(rset, index));
+    }
+
     protected void create (Field field)
     {
         _field = field;
         _columnName = field.getName();
+
+        // create method handles through which to access our field (unboxed if it's primitive);
+        // if the field can't be accessed directly, the handles access it via reflection instead
+        Class<?> htype = field.getType().isPrimitive() ? field.getType() : Object.class;
+        MethodHandle getter, setter;
+        try {
+            getter = LOOKUP.unreflectGetter(field);
+        } catch (IllegalAccessException iae) {
+            getter = FIELD_GET.bindTo(field);
+        }
+        try {
+            setter = LOOKUP.unreflectSetter(field);
+        } catch (IllegalAccessException iae) {
+            setter = FIELD_SET.bindTo(field);
+        }
+        _getter = getter.asType(MethodType.methodType(htype, Object.class));
+        _setter = setter.asType(MethodType.methodType(void.class, Object.class, htype));
         _computed = field.getAnnotation(Computed.class);
 
         Column column = _field.getAnnotation(Column.class);
@@ -287,6 +318,48 @@ public abstract class FieldMarshaller<T>
         _generatedValue = field.getAnnotation(GeneratedValue.class);
     }
 
+    /**
+     * Reads our (non-primitive) field from the supplied object.
+     */
+    protected Object getObject (Object po)
+        throws IllegalAccessException
+    {
+        try {
+            return (Object)_getter.invokeExact(po);
+        } catch (Throwable t) {
+            throw accessFailure(t);
+        }
+    }
+
+    /**
+     * Writes our (non-primitive) field on the supplied object.
+     */
+    protected void setObject (Object po, Object value)
+        throws IllegalAccessException
+    {
+        try {
+            _setter.invokeExact(po, value);
+        } catch (Throwable t) {
+            throw accessFailure(t);
+        }
+    }
+
+    /**
+     * Converts a failure thrown by one of our accessor method handles into the exception that
+     * reflective access would have thrown.
+     */
+    protected static RuntimeException accessFailure (Throwable t)
+        throws IllegalAccessException
+    {
+        Throwables.throwIfInstanceOf(t, Error.class);
+        Throwables.throwIfInstanceOf(t, IllegalAccessException.class);
+        if (t instanceof NullPointerException || t instanceof IllegalArgumentException) {
+            return (RuntimeException)t;
+        }
+        // a ClassCastException means we were given a value of the wrong type
+        return new IllegalArgumentException(t);
+    }
+
     protected static FieldMarshaller<?> createMarshaller (Class<?> ftype)
     {
         // check whether this is one of our standard types (primitives, string, Date, etc.)
@@ -352,7 +425,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Boolean getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getBoolean(po);
+            return getBoolean(po);
         }
         @Override public Boolean getFromSet (ResultSet rs) throws SQLException {
             return rs.getBoolean(getColumnName());
@@ -362,12 +435,34 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Boolean value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setBoolean(po, value);
+            setBoolean(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Boolean value)
             throws SQLException {
             ps.setBoolean(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setBoolean(column, getBoolean(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setBoolean(po, rset.getBoolean(index));
+        }
+        protected boolean getBoolean (Object po) throws IllegalAccessException {
+            try {
+                return (boolean)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setBoolean (Object po, boolean value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static class ByteMarshaller extends FieldMarshaller<Byte> {
@@ -376,7 +471,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Byte getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getByte(po);
+            return getByte(po);
         }
         @Override public Byte getFromSet (ResultSet rs) throws SQLException {
             return rs.getByte(getColumnName());
@@ -386,12 +481,34 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Byte value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setByte(po, value);
+            setByte(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Byte value)
             throws SQLException {
             ps.setByte(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setByte(column, getByte(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setByte(po, rset.getByte(index));
+        }
+        protected byte getByte (Object po) throws IllegalAccessException {
+            try {
+                return (byte)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setByte (Object po, byte value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static class ShortMarshaller extends FieldMarshaller<Short> {
@@ -400,7 +517,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Short getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getShort(po);
+            return getShort(po);
         }
         @Override public Short getFromSet (ResultSet rs) throws SQLException {
             return rs.getShort(getColumnName());
@@ -410,12 +527,34 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Short value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setShort(po, value);
+            setShort(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Short value)
             throws SQLException {
             ps.setShort(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setShort(column, getShort(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setShort(po, rset.getShort(index));
+        }
+        protected short getShort (Object po) throws IllegalAccessException {
+            try {
+                return (short)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setShort (Object po, short value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static class IntMarshaller extends FieldMarshaller<Integer> {
@@ -424,7 +563,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Integer getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getInt(po);
+            return getInt(po);
         }
         @Override public Integer getFromSet (ResultSet rs) throws SQLException {
             return rs.getInt(getColumnName());
@@ -434,12 +573,34 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Integer value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setInt(po, value);
+            setInt(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Integer value)
             throws SQLException {
             ps.setInt(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setInt(column, getInt(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setInt(po, rset.getInt(index));
+        }
+        protected int getInt (Object po) throws IllegalAccessException {
+            try {
+                return (int)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setInt (Object po, int value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static class LongMarshaller extends FieldMarshaller<Long> {
@@ -448,7 +609,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Long getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getLong(po);
+            return getLong(po);
         }
         @Override public Long getFromSet (ResultSet rs) throws SQLException {
             return rs.getLong(getColumnName());
@@ -458,12 +619,34 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Long value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setLong(po, value);
+            setLong(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Long value)
             throws SQLException {
             ps.setLong(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setLong(column, getLong(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setLong(po, rset.getLong(index));
+        }
+        protected long getLong (Object po) throws IllegalAccessException {
+            try {
+                return (long)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setLong (Object po, long value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static class FloatMarshaller extends FieldMarshaller<Float> {
@@ -472,7 +655,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Float getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getFloat(po);
+            return getFloat(po);
         }
         @Override public Float getFromSet (ResultSet rs) throws SQLException {
             return rs.getFloat(getColumnName());
@@ -482,12 +665,34 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Float value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setFloat(po, value);
+            setFloat(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Float value)
             throws SQLException {
             ps.setFloat(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setFloat(column, getFloat(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setFloat(po, rset.getFloat(index));
+        }
+        protected float getFloat (Object po) throws IllegalAccessException {
+            try {
+                return (float)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setFloat (Object po, float value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static class DoubleMarshaller extends FieldMarshaller<Double> {
@@ -496,7 +701,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public Double getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.getDouble(po);
+            return getDouble(po);
         }
         @Override public Double getFromSet (ResultSet rs) throws SQLException {
             return rs.getDouble(getColumnName());
@@ -506,18 +711,40 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Double value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.setDouble(po, value);
+            setDouble(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Double value)
             throws SQLException {
             ps.setDouble(column, value);
         }
+        @Override public void getAndWriteToStatement (PreparedStatement ps, int column, Object po)
+            throws SQLException, IllegalAccessException {
+            ps.setDouble(column, getDouble(po));
+        }
+        @Override public void getAndWriteToObject (ResultSet rset, int index, Object po)
+            throws SQLException, IllegalAccessException {
+            setDouble(po, rset.getDouble(index));
+        }
+        protected double getDouble (Object po) throws IllegalAccessException {
+            try {
+                return (double)_getter.invokeExact(po);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
+        protected void setDouble (Object po, double value) throws IllegalAccessException {
+            try {
+                _setter.invokeExact(po, value);
+            } catch (Throwable t) {
+                throw accessFailure(t);
+            }
+        }
     }
 
     protected static abstract class ObjectMarshaller extends FieldMarshaller<Object> {
         @Override public Object getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return _field.get(po);
+            return getObject(po);
         }
         @Override public Object getFromSet (ResultSet rs) throws SQLException {
             return rs.getObject(getColumnName());
@@ -527,7 +754,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, Object value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, Object value)
             throws SQLException {
@@ -541,7 +768,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public byte[] getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return (byte[]) _field.get(po);
+            return (byte[]) getObject(po);
         }
         @Override public byte[] getFromSet (ResultSet rs) throws SQLException {
             return rs.getBytes(getColumnName());
@@ -551,7 +778,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, byte[] value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, byte[] value)
             throws SQLException {
@@ -565,7 +792,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public short[] getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return (short[]) _field.get(po);
+            return (short[]) getObject(po);
         }
         @Override public short[] getFromSet (ResultSet rs) throws SQLException {
             // TODO: why not use getBytes()?
@@ -577,7 +804,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, short[] value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, short[] value)
             throws SQLException {
@@ -609,7 +836,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public int[] getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return (int[]) _field.get(po);
+            return (int[]) getObject(po);
         }
         @Override public int[] getFromSet (ResultSet rs) throws SQLException {
             // TODO: why not use getBytes()?
@@ -621,7 +848,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, int[] value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, int[] value)
             throws SQLException {
@@ -653,7 +880,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public long[] getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return (long[]) _field.get(po);
+            return (long[]) getObject(po);
         }
         @Override public long[] getFromSet (ResultSet rs) throws SQLException {
             // TODO: why not use getBytes()?
@@ -665,7 +892,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, long[] value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, long[] value)
             throws SQLException {
@@ -709,7 +936,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public ByteEnum getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            return (ByteEnum) _field.get(po);
+            return (ByteEnum) getObject(po);
         }
         @Override public ByteEnum getFromSet (ResultSet rs) throws SQLException {
             Number value = (Number)rs.getObject(getColumnName());
@@ -721,7 +948,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, ByteEnum value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, ByteEnum value)
             throws SQLException {
@@ -741,7 +968,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public E getFromObject (Object po)
             throws IllegalArgumentException, IllegalAccessException {
-            @SuppressWarnings("unchecked") E value = (E) _field.get(po);
+            @SuppressWarnings("unchecked") E value = (E) getObject(po);
             return value;
         }
         @Override public E getFromSet (ResultSet rs) throws SQLException {
@@ -752,7 +979,7 @@ public abstract class FieldMarshaller<T>
         }
         @Override public void writeToObject (Object po, E value)
             throws IllegalArgumentException, IllegalAccessException {
-            _field.set(po, value);
+            setObject(po, value);
         }
         @Override public void writeToStatement (PreparedStatement ps, int column, E value)
             throws SQLException {
@@ -773,11 +1000,31 @@ public abstract class FieldMarshaller<T>
     }
 
     protected Field _field;
+    protected MethodHandle _getter, _setter;
     protected String _columnName;
     protected ColumnDefinition _columnDefinition;
     protected Computed _computed;
     protected GeneratedValue _generatedValue;
 
+    /** Used to create our field accessors. */
+    protected static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    /** {@link Field#get} and {@link Field#set}, through which we access fields reflectively when
+     * we cannot access them directly. */
+    protected static final MethodHandle FIELD_GET, FIELD_SET;
+    static {
+        try {
+            // these are caller sensitive, so must be looked up with our own (full) privileges
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            FIELD_GET = lookup.findVirtual(
+                Field.class, "get", MethodType.methodType(Object.class, Object.class));
+            FIELD_SET = lookup.findVirtual(
+                Field.class, "set", MethodType.methodType(void.class, Object.class, Object.class));
+        } catch (ReflectiveOperationException roe) {
+            throw new ExceptionInInitializerError(roe);
+        }
+    }
+
     protected static Map<Class<?>,FieldMarshaller<?>> STOCK_MARSH =
         ImmutableMap.<Class<?>,FieldMarshaller<?>>builder().
         put(Boolean.TYPE, new BooleanMarshaller()).
@@ -801,6 +1048,9 @@ public abstract class FieldMarshaller<T>
             @Override public Object getFromSet (ResultSet rs) throws SQLException {
                 return massageResult(super.getFromSet(rs));
             }
+            @Override public Object getFromSet (ResultSet rs, int index) throws SQLException {
+                return massageResult(super.getFromSet(rs, index));
+            }
             // works around the fact that HSQLDB (at least) returns Integer rather than Byte
             // for TINYINT columns
             protected Object massageResult (Object value) {
@@ -814,6 +1064,9 @@ public abstract class FieldMarshaller<T>
             @Override public Object getFromSet (ResultSet rs) throws SQLException {
                 return massageResult(super.getFromSet(rs));
             }
+            @Override public Object getFromSet (ResultSet rs, int index) throws SQLException {
+                return massageResult(super.getFromSet(rs, index));
+            }
             // works around the fact that HSQLDB (at least) returns Integer rather than Short
             // for SMALLINT columns
             protected Object massageResult (Object value) {
@@ -837,6 +1090,9 @@ public abstract class FieldMarshaller<T>
             @Override public Object getFromSet (ResultSet rs) throws SQLException {
                 return massageResult(super.getFromSet(rs));
             }
+            @Override public Object getFromSet (ResultSet rs, int index) throws SQLException {
+                return massageResult(super.getFromSet(rs, index));
+            }
             // works around the fact that HSQLDB (at least) returns Double rather than Float
             // for REAL columns
             protected Object massageResult (Object value) {
@@ -886,7 +1142,7 @@ public abstract class FieldMarshaller<T>
                 if (value instanceof LocalDateTime) {
                     value = Timestamp.valueOf((LocalDateTime)value);
                 }
-                _field.set(po, value);
+                setObject(po, value);
             }
         }).
         put(Blob.class, new ObjectMarshaller() {
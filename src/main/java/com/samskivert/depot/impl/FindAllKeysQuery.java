@@ -75,6 +75,12 @@ public class FindAllKeysQuery<T extends PersistentRecord> extends Fetcher<List<K
         stats.noteQuery(_marsh.getPersistentClass(), 0, 1, 0, 0, 0); // one uncached query
     }
 
+    @Override // from Operation
+    public Class<? extends PersistentRecord> getPersistentClass ()
+    {
+        return _marsh.getPersistentClass();
+    }
+
     protected boolean _forUpdate;
     protected SQLBuilder _builder;
     protected DepotMarshaller<T> _marsh;
@@ -10,11 +10,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.collect.Maps;
@@ -27,10 +30,14 @@ import com.samskivert.depot.Key;
 import com.samskivert.depot.KeySet;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.SQLFragment;
 import com.samskivert.depot.Stats;
 import com.samskivert.depot.clause.FieldOverride;
+import com.samskivert.depot.clause.Limit;
+import com.samskivert.depot.clause.OrderBy;
 import com.samskivert.depot.clause.QueryClause;
 import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.clause.WhereClause;
 import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.expression.SQLExpression;
 import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
@@ -52,8 +59,9 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
     public static abstract class CachedFullRecordQuery<T extends PersistentRecord>
         extends FullRecordQuery<T>
     {
-        protected CachedFullRecordQuery (PersistenceContext ctx, Class<T> type) {
-            super(ctx, type);
+        protected CachedFullRecordQuery (PersistenceContext ctx, Class<T> type,
+                                         boolean readOnly) {
+            super(ctx, type, readOnly);
         }
 
         /**
@@ -76,7 +84,13 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
         public WithKeys (PersistenceContext ctx, Iterable<Key<T>> keys)
             throws DatabaseException
         {
-            super(ctx, keys.iterator().next().getPersistentClass());
+            this(ctx, keys, false);
+        }
+
+        public WithKeys (PersistenceContext ctx, Iterable<Key<T>> keys, boolean readOnly)
+            throws DatabaseException
+        {
+            super(ctx, keys.iterator().next().getPersistentClass(), readOnly);
             _keys = keys;
         }
 
@@ -112,7 +126,14 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             Iterable<? extends QueryClause> clauses, CacheStrategy strategy)
             throws DatabaseException
         {
-            super(ctx, type);
+            this(ctx, type, clauses, strategy, false);
+        }
+
+        public WithCache (PersistenceContext ctx, Class<T> type,
+            Iterable<? extends QueryClause> clauses, CacheStrategy strategy, boolean readOnly)
+            throws DatabaseException
+        {
+            super(ctx, type, readOnly);
 
             checkArgument(_dmarsh.getComputed() == null,
                           "This algorithm doesn't work on @Computed records.");
@@ -124,7 +145,7 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             _select = new SelectClause(_type, _dmarsh.getPrimaryKeyFields(), clauses);
             switch(strategy) {
             case SHORT_KEYS: case LONG_KEYS:
-                _qkey = new SimpleCacheKey(_dmarsh.getTableName() + "Keys", _select.toString());
+                _qkey = newKeysCacheKey(_dmarsh, _select);
                 _category = (strategy == CacheStrategy.SHORT_KEYS) ?
                     CacheCategory.SHORT_KEYSET : CacheCategory.LONG_KEYSET;
                 break;
@@ -180,6 +201,7 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
                 if (_qkey != null) {
                     // cache the resulting key set
                     ctx.cacheStore(_category, _qkey, _keys);
+                    ctx.noteCachedQuery(_qkey, _select, true);
                 }
                 // and fetch any records we can from the cache
                 _fetchKeys = loadFromCache(ctx, _keys, _entities);
@@ -189,6 +211,18 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             return loadAndResolve(ctx, conn, _keys, _fetchKeys, _entities, stmtString);
         }
 
+        protected static SimpleCacheKey newKeysCacheKey (
+            DepotMarshaller<?> marsh, SelectClause select) {
+            return new SimpleCacheKey(
+                marsh.getTableName() + "Keys", ClauseFingerprint.keyFor(select));
+        }
+
+        @Override // from Operation
+        public void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+        {
+            _select.addClasses(classes);
+        }
+
         protected CacheCategory _category;
         protected SelectClause _select;
         protected KeySet<T> _keys;
@@ -206,10 +240,19 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
                            Iterable<? extends QueryClause> clauses, boolean cachedContents)
             throws DatabaseException
         {
-            super(ctx, type);
+            this(ctx, type, clauses, cachedContents, false);
+        }
+
+        public Explicitly (PersistenceContext ctx, Class<T> type,
+                           Iterable<? extends QueryClause> clauses, boolean cachedContents,
+                           boolean readOnly)
+            throws DatabaseException
+        {
+            super(ctx, type, readOnly);
             _select = new SelectClause(type, _dmarsh.getSelections(), clauses);
             _qkey = !cachedContents ? null :
-                new SimpleCacheKey(_dmarsh.getTableName() + "Contents", _select.toString());
+                new SimpleCacheKey(_dmarsh.getTableName() + "Contents",
+                                   ClauseFingerprint.keyFor(_select));
         }
 
         @Override // from Fetcher
@@ -230,8 +273,13 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             SQLBuilder builder = ctx.getSQLBuilder(DepotTypes.getDepotTypes(ctx, _select));
             builder.newQuery(_select);
             ResultSet rs = builder.prepare(conn).executeQuery();
+            int[] columns = _dmarsh.resolveColumns(rs);
             while (rs.next()) {
-                result.add(_dmarsh.createObject(rs));
+                T record = _dmarsh.createObject(rs, columns);
+                if (_readOnly) {
+                    record.freeze();
+                }
+                result.add(record);
             }
             _explicitQueries++;
             if (PersistenceContext.CACHE_DEBUG) {
@@ -240,14 +288,205 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             }
             if (_qkey != null) {
                 ctx.cacheStore(CacheCategory.RESULT, _qkey, result); // cache the entire result set
+                ctx.noteCachedQuery(_qkey, _select, false);
             }
             _uncachedRecords += result.size();
             return result;
         }
 
+        @Override // from Operation
+        public void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+        {
+            _select.addClasses(classes);
+        }
+
         protected SelectClause _select;
     }
 
+    /**
+     * Answers a query in memory, by evaluating its clauses against every record of its class, if
+     * the key set of the entire table (as cached by a {@link WithCache} query with no clauses) and
+     * every record in it are cached. Otherwise, the query is answered by the supplied query.
+     */
+    public static class InMemory<T extends PersistentRecord> extends CachedFullRecordQuery<T>
+    {
+        public InMemory (PersistenceContext ctx, Class<T> type,
+                         Iterable<? extends QueryClause> clauses, CachedFullRecordQuery<T> query,
+                         boolean readOnly)
+            throws DatabaseException
+        {
+            super(ctx, type, readOnly);
+            _select = new SelectClause(type, _dmarsh.getSelections(), clauses);
+            _query = query;
+            _qkey = query._qkey;
+            if (_dmarsh.getTableName() != null && _dmarsh.hasPrimaryKey()) {
+                _tableKey = WithCache.newKeysCacheKey(_dmarsh, new SelectClause(
+                    type, _dmarsh.getPrimaryKeyFields(), Collections.<QueryClause>emptyList()));
+            }
+        }
+
+        @Override // from Fetcher
+        public List<T> getCachedResult (PersistenceContext ctx)
+        {
+            List<T> result = evaluate(ctx);
+            if (result != null) {
+                _cachedQueries++;
+                _cachedRecords = result.size();
+                return result;
+            }
+            _delegated = true;
+            return _query.getCachedResult(ctx);
+        }
+
+        // from Fetcher
+        public List<T> invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+            throws SQLException
+        {
+            _delegated = true;
+            return _query.invoke(ctx, conn, liaison);
+        }
+
+        @Override // from Fetcher
+        public void updateStats (Stats stats)
+        {
+            if (_delegated) {
+                _query.updateStats(stats);
+            } else {
+                super.updateStats(stats);
+            }
+        }
+
+        /**
+         * Returns the results of our query as computed from the cached records, or null if those
+         * are not all cached or the query can't be evaluated in memory.
+         */
+        protected List<T> evaluate (PersistenceContext ctx)
+        {
+            if (_tableKey == null || !_select.getJoinClauses().isEmpty() ||
+                _select.getFromOverride() != null || _select.getDistinct() != null ||
+                _select.getGroupBy() != null || _select.getForUpdate() != null ||
+                !_select.getFieldDefinitions().isEmpty()) {
+                return null;
+            }
+            KeySet<T> keys = ctx.cacheLookup(_tableKey);
+            if (keys == null) {
+                return null;
+            }
+            List<KeyCacheKey> ckeys = Lists.newArrayListWithCapacity(keys.size());
+            for (Key<T> key : keys) {
+                ckeys.add(new KeyCacheKey(key));
+            }
+            Map<KeyCacheKey, T> cached = ctx.<KeyCacheKey, T>cacheLookupAll(ckeys);
+            if (cached.size() < ckeys.size()) {
+                return null; // some of the table has been evicted
+            }
+
+            // filter the records (in key order, for lack of a better one)
+            WhereClause where = _select.getWhereClause();
+            List<T> matched = Lists.newArrayList();
+            for (KeyCacheKey ckey : ckeys) {
+                T record = cached.get(ckey);
+                if (where != null) {
+                    Object result = evaluate(where, record);
+                    if (!(result instanceof Boolean)) {
+                        return null;
+                    } else if (!((Boolean)result)) {
+                        continue;
+                    }
+                }
+                matched.add(record);
+            }
+
+            if (_select.getOrderBy() != null && !sort(matched, _select.getOrderBy())) {
+                return null;
+            }
+            Limit limit = _select.getLimit();
+            if (limit != null) {
+                int from = Math.min(limit.getOffset(), matched.size());
+                int to = Math.min(from + limit.getCount(), matched.size());
+                matched = matched.subList(from, to);
+            }
+
+            List<T> result = Lists.newArrayListWithCapacity(matched.size());
+            for (T record : matched) {
+                result.add(_cloner.clone(record));
+            }
+            return result;
+        }
+
+        /**
+         * Sorts the supplied records, returning false if they can't be ordered in memory exactly
+         * as the database would order them.
+         */
+        protected boolean sort (List<T> records, OrderBy orderBy)
+        {
+            SQLExpression<?>[] values = orderBy.getValues();
+            final OrderBy.Order[] orders = orderBy.getOrders();
+            for (OrderBy.Order order : orders) {
+                if (order != OrderBy.Order.ASC && order != OrderBy.Order.DESC) {
+                    return false;
+                }
+            }
+            final Map<T, Comparable<Object>[]> sortKeys = Maps.newIdentityHashMap();
+            Class<?>[] types = new Class<?>[values.length];
+            for (T record : records) {
+                @SuppressWarnings("unchecked") Comparable<Object>[] skey =
+                    (Comparable<Object>[])new Comparable<?>[values.length];
+                for (int ii = 0; ii < values.length; ii++) {
+                    Object value = evaluate(values[ii], record);
+                    // strings collate differently in different databases, and nulls sort
+                    // differently, so we only sort numbers and dates ourselves
+                    if (!(value instanceof Number || value instanceof Date) ||
+                        !(value instanceof Comparable<?>)) {
+                        return false;
+                    }
+                    if (types[ii] == null) {
+                        types[ii] = value.getClass();
+                    } else if (types[ii] != value.getClass()) {
+                        return false; // e.g. the longs and doubles computed by arithmetic
+                    }
+                    @SuppressWarnings("unchecked") Comparable<Object> cvalue =
+                        (Comparable<Object>)value;
+                    skey[ii] = cvalue;
+                }
+                sortKeys.put(record, skey);
+            }
+            Collections.sort(records, new Comparator<T>() {
+                public int compare (T r1, T r2) {
+                    Comparable<Object>[] k1 = sortKeys.get(r1), k2 = sortKeys.get(r2);
+                    for (int ii = 0; ii < k1.length; ii++) {
+                        int rv = k1[ii].compareTo(k2[ii]);
+                        if (rv != 0) {
+                            return (orders[ii] == OrderBy.Order.DESC) ? -rv : rv;
+                        }
+                    }
+                    return 0;
+                }
+            });
+            return true;
+        }
+
+        protected Object evaluate (SQLFragment fragment, T record)
+        {
+            try {
+                return fragment.accept(new ExpressionEvaluator(_type, record));
+            } catch (RuntimeException re) {
+                return null; // the evaluator does not support some part of the fragment
+            }
+        }
+
+        @Override // from Operation
+        public void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+        {
+            _select.addClasses(classes);
+        }
+
+        protected SelectClause _select;
+        protected CachedFullRecordQuery<T> _query;
+        protected SimpleCacheKey _tableKey;
+        protected boolean _delegated;
+    }
+
     public static class Projection<T extends PersistentRecord,R>
         extends FindAllQuery<T,R>
     {
@@ -275,12 +514,19 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             builder.newQuery(_select);
             ResultSet rs = builder.prepare(conn).executeQuery();
             List<R> result = Lists.newArrayList();
+            int[] columns = _marsh.resolveColumns(rs);
             while (rs.next()) {
-                result.add(_marsh.createObject(rs));
+                result.add(_marsh.createObject(rs, columns));
             }
             return result;
         }
 
+        @Override // from Operation
+        public void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+        {
+            _select.addClasses(classes);
+        }
+
         protected SelectClause _select;
         protected DepotTypes _types;
     }
@@ -288,6 +534,19 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
     public static <T extends PersistentRecord> CachedFullRecordQuery<T> newCachedFullRecordQuery (
         PersistenceContext ctx, Class<T> type, CacheStrategy strategy,
         Iterable<? extends QueryClause> clauses)
+    {
+        return newCachedFullRecordQuery(ctx, type, strategy, clauses, false);
+    }
+
+    /**
+     * Creates a query for full records using the most appropriate of our cached implementations.
+     *
+     * @param readOnly if true, the records returned by the query are {@link QueryResult#isFrozen
+     * frozen} and shared with the cache rather than cloned on their way into and out of it.
+     */
+    public static <T extends PersistentRecord> CachedFullRecordQuery<T> newCachedFullRecordQuery (
+        PersistenceContext ctx, Class<T> type, CacheStrategy strategy,
+        Iterable<? extends QueryClause> clauses, boolean readOnly)
     {
         DepotMarshaller<T> marsh = ctx.getMarshaller(type);
 
@@ -326,9 +585,10 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
 
         switch (strategy) {
         case SHORT_KEYS: case LONG_KEYS: case RECORDS:
-            return new WithCache<T>(ctx, type, clauses, strategy);
+            return new WithCache<T>(ctx, type, clauses, strategy, readOnly);
         default:
-            return new Explicitly<T>(ctx, type, clauses, strategy == CacheStrategy.CONTENTS);
+            return new Explicitly<T>(
+                ctx, type, clauses, strategy == CacheStrategy.CONTENTS, readOnly);
         }
     }
 
@@ -339,6 +599,12 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
                         _cachedRecords, _uncachedRecords);
     }
 
+    @Override // from Operation
+    public Class<? extends PersistentRecord> getPersistentClass ()
+    {
+        return _type;
+    }
+
     protected FindAllQuery (Class<T> type, QueryMarshaller<T,R> marsh, Cloner<R> cloner)
         throws DatabaseException
     {
@@ -350,15 +616,21 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
     protected Set<Key<T>> loadFromCache (PersistenceContext ctx, Iterable<Key<T>> allKeys,
                                          Map<Key<T>, R> entities)
     {
-        Set<Key<T>> fetchKeys = Sets.newHashSet();
+        // probe the cache for all of our keys at once so that every miss is known up front and
+        // the database can be queried for them straight away
+        Map<KeyCacheKey, Key<T>> ckeys = Maps.newLinkedHashMap();
         for (Key<T> key : allKeys) {
-            R value = ctx.<R>cacheLookup(new KeyCacheKey(key));
+            ckeys.put(new KeyCacheKey(key), key);
+        }
+        Map<KeyCacheKey, R> hits = ctx.<KeyCacheKey, R>cacheLookupAll(ckeys.keySet());
+        Set<Key<T>> fetchKeys = Sets.newLinkedHashSet();
+        for (Map.Entry<KeyCacheKey, Key<T>> entry : ckeys.entrySet()) {
+            R value = hits.get(entry.getKey());
             if (value != null) {
-                R newValue = _cloner.clone(value);
-                entities.put(key, newValue);
-                continue;
+                entities.put(entry.getValue(), _cloner.clone(value));
+            } else {
+                fetchKeys.add(entry.getValue());
             }
-            fetchKeys.add(key);
         }
         if (PersistenceContext.CACHE_DEBUG) {
             log.info("Loaded from cache " + _marsh.getTableName(), "count", entities.size());
@@ -391,27 +663,17 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             log.info("Loading " + _marsh.getTableName(), "keys", keysToString(fetchKeys));
         }
 
-        // if we're fetching a huge number of records, we have to do it in multiple queries
-        if (fetchKeys.size() > In.MAX_KEYS) {
-            int keyCount = fetchKeys.size();
-            Iterator<Key<T>> iter = fetchKeys.iterator();
-            do {
-                Set<Key<T>> keys = Sets.newHashSet();
-                for (int ii = 0, nn = Math.min(keyCount, In.MAX_KEYS); ii < nn; ii++) {
-                    keys.add(iter.next());
-                }
-                keyCount -= keys.size();
-                loadRecords(ctx, conn, keys, entities, origStmt);
-            } while (keyCount > 0);
-
-        } else if (fetchKeys.size() > 0) {
-            loadRecords(ctx, conn, fetchKeys, entities, origStmt);
+        // if we're fetching a huge number of records, we have to do it in multiple queries (with
+        // no more than the maximum number of parameters per query, if they're bound one by one)
+        int perQuery = In.MAX_KEYS / DepotUtil.getKeyFields(_type).length;
+        for (List<Key<T>> keys : Iterables.partition(fetchKeys, perQuery)) {
+            loadRecords(ctx, conn, keys, entities, origStmt);
         }
 
         return resolve(allKeys, entities);
     }
 
-    protected void loadRecords (PersistenceContext ctx, Connection conn, Set<Key<T>> keys,
+    protected void loadRecords (PersistenceContext ctx, Connection conn, Collection<Key<T>> keys,
                                 Map<Key<T>, R> entities, String origStmt)
         throws SQLException
     {
@@ -422,8 +684,9 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
         Set<Key<T>> got = Sets.newHashSet();
         ResultSet rs = builder.prepare(conn).executeQuery();
         int cnt = 0, dups = 0;
+        int[] columns = _marsh.resolveColumns(rs);
         while (rs.next()) {
-            R obj = _marsh.createObject(rs);
+            R obj = _marsh.createObject(rs, columns);
             Key<T> key = _marsh.getPrimaryKey(obj);
             if (entities.put(key, obj) != null) {
                 dups++;
@@ -464,12 +727,15 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
     protected static abstract class FullRecordQuery<T extends PersistentRecord>
         extends FindAllQuery<T, T>
     {
-        protected FullRecordQuery (PersistenceContext ctx, Class<T> type) {
-            super(type, ctx.getMarshaller(type), new CloningCloner<T>());
+        protected FullRecordQuery (PersistenceContext ctx, Class<T> type, boolean readOnly) {
+            super(type, ctx.getMarshaller(type),
+                  readOnly ? new FreezingCloner<T>() : new CloningCloner<T>());
             _dmarsh = ctx.getMarshaller(type);
+            _readOnly = readOnly;
         }
 
         protected DepotMarshaller<T> _dmarsh;
+        protected boolean _readOnly;
     }
 
     /** Helper for {@link Projection}. */
@@ -493,7 +759,11 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             return _types.getMarshaller(_cset.ptype).getPrimaryKey(object);
         }
 
-        public R createObject (ResultSet rs) throws SQLException {
+        public int[] resolveColumns (ResultSet rs) {
+            return null; // our selections are decoded by position
+        }
+
+        public R createObject (ResultSet rs, int[] columns) throws SQLException {
             Object[] data = new Object[_cset.selexps.length];
             for (int ii = 0; ii < data.length; ii++) {
                 SQLExpression<?> exp = _cset.selexps[ii];
@@ -528,6 +798,13 @@ public abstract class FindAllQuery<T extends PersistentRecord,R>
             return clone;
         }
     }
+    // read-only queries share a single frozen instance between the cache and all of their callers
+    protected static class FreezingCloner<C extends QueryResult> implements Cloner<C> {
+        public C clone (C object) {
+            object.freeze();
+            return object;
+        }
+    }
     protected static class NonCloningCloner<C> implements Cloner<C> {
         public C clone (C object) {
             return object;
@@ -7,11 +7,13 @@ package com.samskivert.depot.impl;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Set;
 
 import com.samskivert.depot.CacheAdapter.CacheCategory;
 import com.samskivert.depot.CacheKey;
 import com.samskivert.depot.DatabaseException;
 import com.samskivert.depot.DepotRepository;
+import com.samskivert.depot.Key;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.Stats;
@@ -30,8 +32,21 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
     public FindOneQuery (PersistenceContext ctx, Class<T> type,
                          DepotRepository.CacheStrategy strategy, QueryClause[] clauses)
         throws DatabaseException
+    {
+        this(ctx, type, strategy, clauses, false);
+    }
+
+    /**
+     * @param readOnly if true, the loaded record is {@link QueryResult#isFrozen frozen} and shared
+     * with the cache rather than cloned on its way into and out of it.
+     */
+    public FindOneQuery (PersistenceContext ctx, Class<T> type,
+                         DepotRepository.CacheStrategy strategy, QueryClause[] clauses,
+                         boolean readOnly)
+        throws DatabaseException
     {
         _strategy = strategy;
+        _readOnly = readOnly;
         _marsh = ctx.getMarshaller(type);
         _select = new SelectClause(type, _marsh.getSelections(), clauses);
         WhereClause where = _select.getWhereClause();
@@ -42,6 +57,16 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
         _builder.newQuery(_select);
     }
 
+    /**
+     * Configures this query, if it selects a record by its primary key, to look for that record in
+     * the cache (where it is stored under its key) before going to the database.
+     */
+    public FindOneQuery<T> probeKeyCache ()
+    {
+        _probeKeyCache = true;
+        return this;
+    }
+
     @Override // from Fetcher
     public T getCachedResult (PersistenceContext ctx)
     {
@@ -54,6 +79,10 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
             return null;
         }
         _cachedRecords = 1;
+        if (_readOnly) {
+            value.freeze(); // read-only callers share the cached entity
+            return value;
+        }
         // we do not want to return a reference to the actual cached entity so we clone it
         @SuppressWarnings("unchecked") T cvalue = (T) value.clone();
         return cvalue;
@@ -71,6 +100,9 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
         }
         // TODO: if (rs.next()) issue warning?
         rs.close();
+        if (result != null && _readOnly) {
+            result.freeze();
+        }
 
         // potentially cache the result
         CacheKey key = getCacheKey();
@@ -84,7 +116,9 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
             log.info("Loaded " + (key != null ? key : _marsh.getTableName()));
         }
         if (key != null) {
-            ctx.cacheStore(CacheCategory.RECORD, key, (result != null) ? result.clone() : null);
+            // a frozen result can be shared with the cache, otherwise we cache a private copy
+            ctx.cacheStore(CacheCategory.RECORD, key,
+                           (result == null || _readOnly) ? result : result.clone());
             if (PersistenceContext.CACHE_DEBUG) {
                 log.info("Cached " + key);
             }
@@ -99,18 +133,35 @@ public class FindOneQuery<T extends PersistentRecord> extends Fetcher<T>
         stats.noteQuery(_marsh.getPersistentClass(), 0, 0, 0, _cachedRecords, 1-_cachedRecords);
     }
 
+    @Override // from Operation
+    public Class<? extends PersistentRecord> getPersistentClass ()
+    {
+        return _marsh.getPersistentClass();
+    }
+
+    @Override // from Operation
+    public void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+    {
+        _select.addClasses(classes);
+    }
+
     protected CacheKey getCacheKey ()
     {
         if (_strategy == DepotRepository.CacheStrategy.NONE) {
             return null;
         }
         WhereClause where = _select.getWhereClause();
+        if (_probeKeyCache && where instanceof Key<?>) {
+            return new KeyCacheKey((Key<?>)where);
+        }
         return (where != null && where instanceof CacheKey) ? (CacheKey)where : null;
     }
 
     protected DepotRepository.CacheStrategy _strategy;
+    protected boolean _probeKeyCache;
     protected DepotMarshaller<T> _marsh;
     protected SelectClause _select;
     protected SQLBuilder _builder;
     protected int _cachedRecords;
+    protected boolean _readOnly;
 }
@@ -15,6 +15,7 @@ import java.util.Set;
 import com.google.common.collect.Lists;
 
 import com.samskivert.depot.Exps;
+import com.samskivert.depot.KeySet;
 import com.samskivert.depot.Ops;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.annotation.Column;
@@ -38,6 +39,7 @@ import com.samskivert.depot.impl.operator.BitOr;
 import com.samskivert.depot.impl.operator.Like;
 import com.samskivert.depot.impl.operator.MultiOperator;
 import com.samskivert.depot.operator.FullText;
+import com.samskivert.depot.util.ByteEnum;
 
 public class HSQLBuilder
     extends SQLBuilder
@@ -159,6 +161,59 @@ public class HSQLBuilder
             throw new IllegalArgumentException("HSQL does not have built-in date truncation");
         }
 
+        @Override protected int getLargeKeySetSize (boolean composite)
+        {
+            return composite ? LARGE_COMPOSITE_KEY_SET : LARGE_KEY_SET;
+        }
+
+        @Override protected boolean appendLargeKeySet (KeySet<?> keys, ColumnExp<?>[] keyFields)
+        {
+            if (!canBindAsArrays(keys, keyFields.length)) {
+                return false;
+            }
+            if (keyFields.length == 1) {
+                keyFields[0].accept(this);
+                _builder.append(" in (unnest(");
+                bindKeyColumn(keys, 0);
+                _builder.append("))");
+            } else {
+                // match the rows of a table made by unnesting an array for each column; HSQL
+                // cannot infer the types of the arrays here, so we must cast them
+                appendKeyColumns(keyFields);
+                _builder.append(" in (select * from unnest(");
+                for (int ii = 0; ii < keyFields.length; ii++) {
+                    if (ii > 0) {
+                        _builder.append(", ");
+                    }
+                    String type = getArrayType(keys.getKeyValue(0, ii));
+                    _builder.append("cast(");
+                    bindKeyColumn(keys, ii);
+                    // a varchar cast requires a length, which a longvarchar does not
+                    _builder.append(" as ").append("VARCHAR".equals(type) ? "LONGVARCHAR" : type);
+                    _builder.append(" array)");
+                }
+                _builder.append("))");
+            }
+            return true;
+        }
+
+        @Override protected String getArrayType (Object value)
+        {
+            if (value instanceof Integer) {
+                return "INTEGER";
+            } else if (value instanceof Long) {
+                return "BIGINT";
+            } else if (value instanceof Short) {
+                return "SMALLINT";
+            } else if (value instanceof Byte || value instanceof ByteEnum) {
+                return "TINYINT";
+            } else if (value instanceof String || value instanceof Enum<?>) {
+                return "VARCHAR";
+            } else {
+                return null;
+            }
+        }
+
         protected HBuildVisitor (DepotTypes types)
         {
             super(types, false);
@@ -252,6 +307,12 @@ public class HSQLBuilder
         return new HBuildVisitor(_types);
     }
 
+    /** The number of single-column keys at and above which we match them by unnesting an array. */
+    protected static final int LARGE_KEY_SET = 64;
+
+    /** The number of multi-column keys at and above which we match them by unnesting arrays. */
+    protected static final int LARGE_COMPOSITE_KEY_SET = 16;
+
     @Override
     protected void maybeMutateForGeneratedValue (
         Field field, GeneratedValue genValue, ColumnDefinition column)
@@ -21,11 +21,8 @@ public class KeyCacheKey
     public KeyCacheKey (Key<?> key)
     {
         _cacheId = key.getPersistentClass().getName();
-        Comparable<?>[] values = key.getValues();
-        _values = new Comparable<?>[values.length];
-        for (int ii = 0; ii < _values.length; ii++) {
-            _values[ii] = values[ii]; // TODO: check for non-system-class and serialize
-        }
+        // keys are not modified once created, so we can share their values rather than copy them
+        _values = key.getValues(); // TODO: check for non-system-class and serialize
     }
 
     // from CacheKey
@@ -7,6 +7,14 @@ package com.samskivert.depot.impl;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Primitives;
 
 import com.samskivert.depot.CacheAdapter;
 import com.samskivert.depot.CacheInvalidator;
@@ -15,8 +23,13 @@ import com.samskivert.depot.Key;
 import com.samskivert.depot.PersistenceContext;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.Stats;
+import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.expression.ValueExp;
 import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
 
+import static com.samskivert.depot.Log.log;
+
 /**
  * Encapsulates a modification of persistent objects.
  */
@@ -93,6 +106,138 @@ public abstract class Modifier
         protected T _result;
     }
 
+    /**
+     * A variant of {@link CachingModifier} that modifies a batch of records: after {@link
+     * #invoke}, the cache is updated with every record in the batch that has a primary key (which
+     * may have been assigned during execution).
+     */
+    public static abstract class BatchCachingModifier<T extends PersistentRecord>
+        extends Modifier
+    {
+        protected BatchCachingModifier (
+            DepotMarshaller<T> marsh, Iterable<T> results, CacheInvalidator invalidator)
+        {
+            super(invalidator);
+            _marsh = marsh;
+            _results = results;
+        }
+
+        @Override // from Modifier
+        public Integer invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+            throws SQLException
+        {
+            Integer rows = super.invoke(ctx, conn, liaison);
+            if (ctx.isUsingCache()) {
+                for (T result : _results) {
+                    Key<T> key = _marsh.getPrimaryKey(result, false);
+                    if (key != null) {
+                        ctx.cacheStore(CacheAdapter.CacheCategory.RECORD, new KeyCacheKey(key),
+                                       result.clone());
+                    }
+                }
+            }
+            return rows;
+        }
+
+        protected DepotMarshaller<T> _marsh;
+        protected Iterable<T> _results;
+    }
+
+    /**
+     * A modifier that updates some of the fields of the records with the supplied keys. After
+     * {@link #invoke}, the cached copies of those records are patched with the new field values
+     * rather than flushed, so that the next read need not go to the database. The records are
+     * instead flushed if any of the values is not a constant that can be applied in memory, if
+     * not every record was updated, if the update is part of a transaction (which may yet be
+     * rolled back), or if a cached record was replaced or flushed while the update was in
+     * progress (as we could then lose a concurrent modification by patching it).
+     */
+    public static abstract class PatchingModifier<T extends PersistentRecord> extends Modifier
+    {
+        protected PatchingModifier (DepotMarshaller<T> marsh, Iterable<Key<T>> keys, int count,
+                                    ColumnExp<?>[] fields, SQLExpression<?>[] values)
+        {
+            super(null);
+            _keys = keys;
+            _count = count;
+            _fields = new FieldMarshaller<?>[fields.length];
+            _values = new Object[values.length];
+            Set<String> keyFields = Sets.newHashSet();
+            for (ColumnExp<?> kfield : marsh.getPrimaryKeyFields()) {
+                keyFields.add(kfield.name);
+            }
+            for (int ii = 0; ii < fields.length; ii++) {
+                FieldMarshaller<?> fmarsh = marsh.getFieldMarshaller(fields[ii].name);
+                // we can't move a record to a new key, nor apply values that must be computed by
+                // the database (which includes those that depend on a column's current value, as
+                // concurrent patches to the same cached record could then lose updates)
+                if (fmarsh == null || keyFields.contains(fields[ii].name) ||
+                    !(values[ii] instanceof ValueExp<?>)) {
+                    _fields = null;
+                    break;
+                }
+                Object value = ((ValueExp<?>)values[ii]).getValue();
+                Class<?> ftype = fmarsh.getField().getType();
+                if ((value == null) ? ftype.isPrimitive() :
+                    !Primitives.wrap(ftype).isInstance(value)) {
+                    _fields = null;
+                    break;
+                }
+                _fields[ii] = fmarsh;
+                _values[ii] = value;
+            }
+        }
+
+        @Override // from Modifier
+        public Integer invoke (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison)
+            throws SQLException
+        {
+            if (!ctx.isUsingCache()) {
+                return super.invoke(ctx, conn, liaison);
+            }
+
+            // note the cached records before we update the database; we patch only those that
+            // are still cached afterwards, so that we never overwrite another modification
+            List<KeyCacheKey> ckeys = Lists.newArrayListWithCapacity(_count);
+            for (Key<T> key : _keys) {
+                ckeys.add(new KeyCacheKey(key));
+            }
+            boolean patch = (_fields != null && conn.getAutoCommit());
+            Map<KeyCacheKey, T> cached = patch ?
+                ctx.<KeyCacheKey, T>cacheLookupAll(ckeys) : Collections.<KeyCacheKey, T>emptyMap();
+
+            Integer rows = super.invoke(ctx, conn, liaison);
+            patch &= (rows == _count);
+            for (KeyCacheKey ckey : ckeys) {
+                T before = patch ? cached.get(ckey) : null;
+                if (before == null) {
+                    ctx.cacheInvalidate(ckey);
+                    continue;
+                }
+                // the cached record may be shared with read-only callers, so patch a copy
+                @SuppressWarnings("unchecked") T patched = (T)before.clone();
+                try {
+                    for (int ii = 0; ii < _fields.length; ii++) {
+                        @SuppressWarnings("unchecked") FieldMarshaller<Object> fmarsh =
+                            (FieldMarshaller<Object>)_fields[ii];
+                        fmarsh.writeToObject(patched, _values[ii]);
+                    }
+                } catch (IllegalAccessException iae) {
+                    log.warning("Failed to patch cached record", "key", ckey, iae);
+                    ctx.cacheInvalidate(ckey);
+                    continue;
+                }
+                ctx.cacheReplace(CacheAdapter.CacheCategory.RECORD, ckey, before, patched);
+            }
+            return rows;
+        }
+
+        protected Iterable<Key<T>> _keys;
+        protected int _count;
+        protected FieldMarshaller<?>[] _fields;
+        protected Object[] _values;
+    }
+
     /**
      * Constructs a {@link Modifier} without a cache invalidator.
      */
@@ -122,13 +267,17 @@ public abstract class Modifier
         if (_invalidator != null) {
             _invalidator.invalidate(ctx);
         }
-        return invoke(conn, liaison);
+        _modified = invoke(conn, liaison);
+        return _modified;
     }
 
     // from interface Operation
     public void updateStats (Stats stats)
     {
-        // nothing to update by default
+        Class<? extends PersistentRecord> type = getPersistentClass();
+        if (type != null) {
+            stats.noteModification(type, _modified);
+        }
     }
 
     /**
@@ -138,4 +287,7 @@ public abstract class Modifier
     protected abstract int invoke (Connection conn, DatabaseLiaison liaison) throws SQLException;
 
     protected CacheInvalidator _invalidator;
+
+    /** The number of rows modified by our most recent invocation. */
+    protected int _modified;
 }
@@ -11,6 +11,7 @@ import java.util.Set;
 
 import com.google.common.base.Joiner;
 
+import com.samskivert.depot.KeySet;
 import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.annotation.Column;
 import com.samskivert.depot.annotation.FullTextIndex;
@@ -131,6 +132,31 @@ public class MySQLBuilder
             return null;
         }
 
+        @Override protected int getLargeKeySetSize (boolean composite)
+        {
+            // MySQL can't bind arrays, but it plans row constructor in() lists far better than
+            // the or-ed conditions that multi-column key sets would otherwise generate
+            return composite ? LARGE_COMPOSITE_KEY_SET : Integer.MAX_VALUE;
+        }
+
+        @Override protected boolean appendLargeKeySet (KeySet<?> keys, ColumnExp<?>[] keyFields)
+        {
+            appendKeyColumns(keyFields);
+            _builder.append(" in (");
+            for (int ii = 0, ll = keys.size(); ii < ll; ii++) {
+                _builder.append(ii > 0 ? ", (" : "(");
+                for (int cc = 0; cc < keyFields.length; cc++) {
+                    if (cc > 0) {
+                        _builder.append(", ");
+                    }
+                    bindKeyValue(keys, ii, cc);
+                }
+                _builder.append(")");
+            }
+            _builder.append(")");
+            return true;
+        }
+
         protected MSBuildVisitor (DepotTypes types)
         {
             super(types, false);
@@ -260,6 +286,9 @@ public class MySQLBuilder
         return new MSBuildVisitor(_types);
     }
 
+    /** The number of multi-column keys at and above which we match them with row constructors. */
+    protected static final int LARGE_COMPOSITE_KEY_SET = 16;
+
     @Override
     protected <T> String getColumnType (FieldMarshaller<?> fm, Column col)
     {
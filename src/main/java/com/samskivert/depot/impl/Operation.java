@@ -7,8 +7,10 @@ package com.samskivert.depot.impl;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Set;
 
 import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
 import com.samskivert.depot.Stats;
 import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
 
@@ -34,4 +36,25 @@ public interface Operation<T>
      * Called after the operation has been invoked so that it can update our runtime statistics.
      */
     public void updateStats (Stats stats);
+
+    /**
+     * Returns the class of persistent record on which this operation operates, to which its
+     * database time is attributed in our runtime statistics, or null if it has none.
+     */
+    public default Class<? extends PersistentRecord> getPersistentClass ()
+    {
+        return null;
+    }
+
+    /**
+     * Adds to the supplied set the classes of persistent record whose tables this operation reads,
+     * which by default is only its {@link #getPersistentClass persistent class}.
+     */
+    public default void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+    {
+        Class<? extends PersistentRecord> pClass = getPersistentClass();
+        if (pClass != null) {
+            classes.add(pClass);
+        }
+    }
 }
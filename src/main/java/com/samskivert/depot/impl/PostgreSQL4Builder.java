@@ -4,15 +4,14 @@
 
 package com.samskivert.depot.impl;
 
-import java.sql.Array;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
-import java.sql.SQLException;
 import java.sql.Timestamp;
 
-import com.samskivert.depot.DatabaseException;
 import com.samskivert.depot.Exps;
+import com.samskivert.depot.KeySet;
+import com.samskivert.depot.expression.ColumnExp;
 import com.samskivert.depot.impl.operator.In;
 import com.samskivert.depot.util.ByteEnum;
 
@@ -32,53 +31,68 @@ public class PostgreSQL4Builder extends PostgreSQLBuilder
             }
             in.getExpression().accept(this);
             _builder.append(" = any (?)");
-            _bindables.add(new Bindable() {
-                public void doBind (Connection conn, PreparedStatement stmt, int argIdx)
+            addBindable(values, new Bindable() {
+                public void doBind (Connection conn, PreparedStatement stmt, int argIdx,
+                                    Object source)
                     throws Exception
                 {
-                    stmt.setObject(argIdx, createArray(conn, values));
-                }
-                protected Array createArray (Connection conn, Object[] values)
-                    throws SQLException
-                {
-                    String type;
-                    Object testValue = values[0];
-                    if (testValue instanceof Integer) {
-                        type = "integer";
-                    } else if (testValue instanceof Long) {
-                        type = "bigint";
-                    } else if (testValue instanceof String) {
-                        type = "varchar";
-                    } else if (testValue instanceof Short || testValue instanceof Byte) {
-                        type = "smallint";
-                    } else if (testValue instanceof ByteEnum) {
-                        Byte[] bytes = new Byte[values.length];
-                        for (int ii = 0; ii < bytes.length; ii ++) {
-                            bytes[ii] = ((ByteEnum) values[ii]).toByte();
-                        }
-                        values = bytes;
-                        type = "smallint"; // tinyint is in the spec, but PG doesn't recognize?
-                    } else if (testValue instanceof Enum<?>) {
-                        type = "varchar";
-                        // we need to replace the enum values with their name() because otherwise
-                        // the Postgres JDBC driver will call toString() on them which is incorrect
-                        for (int ii = 0; ii < values.length; ii++) {
-                            values[ii] = ((Enum<?>)values[ii]).name();
-                        }
-                    } else if (testValue instanceof Timestamp) {
-                        type = "timestamp";
-                    } else if (testValue instanceof Date) {
-                        type = "date";
-                    } else {
-                        throw new DatabaseException(
-                            "Don't know how to make Postgres array for " + testValue.getClass());
-                    }
-                    return conn.createArrayOf(type, values);
+                    stmt.setObject(argIdx, createArray(conn, (Object[])source));
                 }
             });
             return null;
         }
 
+        @Override protected int getLargeKeySetSize (boolean composite) {
+            // we match even small sets of simple keys with an array, as we do in() lists
+            return composite ? LARGE_COMPOSITE_KEY_SET : 1;
+        }
+
+        @Override protected boolean appendLargeKeySet (KeySet<?> keys, ColumnExp<?>[] keyFields) {
+            if (!canBindAsArrays(keys, keyFields.length)) {
+                return false;
+            }
+            if (keyFields.length == 1) {
+                keyFields[0].accept(this);
+                _builder.append(" = any (");
+                bindKeyColumn(keys, 0);
+                _builder.append(")");
+            } else {
+                // match the rows of a table made by unnesting an array for each column
+                appendKeyColumns(keyFields);
+                _builder.append(" in (select * from unnest(");
+                for (int ii = 0; ii < keyFields.length; ii++) {
+                    if (ii > 0) {
+                        _builder.append(", ");
+                    }
+                    bindKeyColumn(keys, ii);
+                }
+                _builder.append("))");
+            }
+            return true;
+        }
+
+        @Override protected String getArrayType (Object value) {
+            if (value instanceof Integer) {
+                return "integer";
+            } else if (value instanceof Long) {
+                return "bigint";
+            } else if (value instanceof String) {
+                return "varchar";
+            } else if (value instanceof Short || value instanceof Byte) {
+                return "smallint";
+            } else if (value instanceof ByteEnum) {
+                return "smallint"; // tinyint is in the spec, but PG doesn't recognize?
+            } else if (value instanceof Enum<?>) {
+                return "varchar";
+            } else if (value instanceof Timestamp) {
+                return "timestamp";
+            } else if (value instanceof Date) {
+                return "date";
+            } else {
+                return null;
+            }
+        }
+
         protected PG4BuildVisitor (DepotTypes types)
         {
             super(types);
@@ -95,4 +109,7 @@ public class PostgreSQL4Builder extends PostgreSQLBuilder
     {
         return new PG4BuildVisitor(_types);
     }
+
+    /** The number of multi-column keys at and above which we match them by unnesting arrays. */
+    protected static final int LARGE_COMPOSITE_KEY_SET = 64;
 }
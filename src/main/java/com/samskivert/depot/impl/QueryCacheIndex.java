@@ -0,0 +1,207 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Maps;
+
+import com.samskivert.depot.CacheKey;
+import com.samskivert.depot.Exps;
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.clause.Where;
+import com.samskivert.depot.clause.WhereClause;
+import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.expression.SQLExpression.NoValue;
+
+/**
+ * Tracks the query results (key sets and contents) that have been cached for each persistent
+ * class, along with the where clauses that selected them. When a record is inserted, updated or
+ * deleted, those clauses are evaluated against the record as it was before and after the
+ * modification (using an {@link ExpressionEvaluator}) and only the cached results that the
+ * modification could have changed are invalidated.
+ */
+public class QueryCacheIndex
+{
+    /** The maximum number of cached query results tracked for a single persistent class. If more
+     * are cached, they are all invalidated and tracking starts anew. */
+    public static final int MAX_QUERIES = 10000;
+
+    /**
+     * Returns the record that results from applying the supplied updates to {@code before}, or
+     * null if any of the updated values can't be computed in memory.
+     */
+    public static <T extends PersistentRecord> T applyUpdates (
+        DepotMarshaller<T> marsh, T before, ColumnExp<?>[] fields, SQLExpression<?>[] values)
+    {
+        // every value is computed from the record as it was before any of them are applied
+        ExpressionEvaluator eval = new ExpressionEvaluator(marsh.getPersistentClass(), before);
+        Object[] results = new Object[values.length];
+        try {
+            for (int ii = 0; ii < values.length; ii++) {
+                results[ii] = values[ii].accept(eval);
+                if (results[ii] instanceof NoValue) {
+                    return null;
+                }
+            }
+        } catch (IllegalArgumentException iae) {
+            return null; // the evaluator does not support some function
+        }
+        @SuppressWarnings("unchecked") T after = (T)before.clone();
+        return copyFields(marsh, after, fields, results) ? after : null;
+    }
+
+    /**
+     * Returns the record that results from copying the supplied fields from {@code source} into
+     * {@code before}, or null if the fields could not be copied.
+     */
+    public static <T extends PersistentRecord> T applyUpdates (
+        DepotMarshaller<T> marsh, T before, ColumnExp<?>[] fields, T source)
+    {
+        Object[] values = new Object[fields.length];
+        try {
+            for (int ii = 0; ii < fields.length; ii++) {
+                values[ii] = marsh.getFieldMarshaller(fields[ii].name).getFromObject(source);
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        @SuppressWarnings("unchecked") T after = (T)before.clone();
+        return copyFields(marsh, after, fields, values) ? after : null;
+    }
+
+    /**
+     * Notes that the results of the supplied query have been cached under the supplied key.
+     *
+     * @param keysOnly true if the cached result contains only the primary keys of the matching
+     * records, false if it contains the records themselves.
+     */
+    public void noteCached (
+        PersistenceContext ctx, CacheKey key, SelectClause select, boolean keysOnly)
+    {
+        Class<? extends PersistentRecord> type = select.getPersistentClass();
+        ConcurrentMap<CacheKey, Entry> queries = _queries.get(type);
+        if (queries == null) {
+            ConcurrentMap<CacheKey, Entry> nqueries = Maps.newConcurrentMap();
+            queries = _queries.putIfAbsent(type, nqueries);
+            if (queries == null) {
+                queries = nqueries;
+            }
+        }
+        if (queries.size() >= MAX_QUERIES) {
+            // many of these will have been evicted by the cache itself; rather than evaluate them
+            // all on every modification, we start over
+            invalidateAll(ctx, type);
+        }
+        queries.put(key, new Entry(select, keysOnly));
+    }
+
+    /**
+     * Invalidates the cached query results that include, or should now include, the supplied
+     * record, which was inserted (if {@code before} is null), deleted (if {@code after} is null)
+     * or updated.
+     */
+    public <T extends PersistentRecord> void invalidate (
+        PersistenceContext ctx, Class<T> type, T before, T after)
+    {
+        Map<CacheKey, Entry> queries = _queries.get(type);
+        if (queries == null) {
+            return;
+        }
+        for (Iterator<Map.Entry<CacheKey, Entry>> iter = queries.entrySet().iterator();
+             iter.hasNext(); ) {
+            Map.Entry<CacheKey, Entry> entry = iter.next();
+            if (entry.getValue().isAffected(type, before, after)) {
+                iter.remove();
+                ctx.cacheInvalidate(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Invalidates all cached query results for the supplied class, which has been modified in a
+     * way that cannot be evaluated in memory.
+     */
+    public void invalidateAll (PersistenceContext ctx, Class<? extends PersistentRecord> type)
+    {
+        Map<CacheKey, Entry> queries = _queries.get(type);
+        if (queries == null) {
+            return;
+        }
+        for (Iterator<CacheKey> iter = queries.keySet().iterator(); iter.hasNext(); ) {
+            CacheKey key = iter.next();
+            iter.remove();
+            ctx.cacheInvalidate(key);
+        }
+    }
+
+    protected static <T extends PersistentRecord> boolean copyFields (
+        DepotMarshaller<T> marsh, T target, ColumnExp<?>[] fields, Object[] values)
+    {
+        try {
+            for (int ii = 0; ii < fields.length; ii++) {
+                @SuppressWarnings("unchecked") FieldMarshaller<Object> fm =
+                    (FieldMarshaller<Object>)marsh.getFieldMarshaller(fields[ii].name);
+                fm.writeToObject(target, values[ii]);
+            }
+            return true;
+        } catch (Exception e) {
+            return false; // the value was not of the field's type (an int computed as a double)
+        }
+    }
+
+    /** A cached query result. */
+    protected static class Entry
+    {
+        public Entry (SelectClause select, boolean keysOnly) {
+            // a join or a from override may select rows regardless of a record's own columns
+            boolean simple = select.getJoinClauses().isEmpty() && select.getFromOverride() == null;
+            _where = simple ? select.getWhereClause() : UNKNOWN;
+            // a set of keys without an order or a limit changes only if membership changes
+            _membershipOnly = keysOnly && select.getOrderBy() == null &&
+                select.getLimit() == null;
+        }
+
+        public <T extends PersistentRecord> boolean isAffected (
+            Class<T> type, T before, T after) {
+            Boolean was = matches(type, before), is = matches(type, after);
+            if (was == null || is == null) {
+                return true;
+            }
+            return _membershipOnly ? !was.equals(is) : (was || is);
+        }
+
+        /** Returns whether the supplied record matches our where clause, or null if unknown. */
+        protected <T extends PersistentRecord> Boolean matches (Class<T> type, T record) {
+            if (record == null) {
+                return false;
+            } else if (_where == null) {
+                return true;
+            } else if (_where == UNKNOWN) {
+                return null;
+            }
+            try {
+                Object result = _where.accept(new ExpressionEvaluator(type, record));
+                return (result instanceof Boolean) ? (Boolean)result : null;
+            } catch (RuntimeException re) {
+                return null; // the evaluator does not support some part of the clause
+            }
+        }
+
+        protected WhereClause _where;
+        protected boolean _membershipOnly;
+    }
+
+    protected ConcurrentMap<Class<?>, ConcurrentMap<CacheKey, Entry>> _queries =
+        Maps.newConcurrentMap();
+
+    /** Marks a cached query whose where clause cannot be evaluated against a single record. */
+    protected static final WhereClause UNKNOWN = new Where(Exps.literal("false"));
+}
@@ -33,7 +33,16 @@ public interface QueryMarshaller<T extends PersistentRecord,R>
     Key<T> getPrimaryKey (Object object);
 
     /**
-     * Creates an instance of the query result from the supplied result set.
+     * Resolves the columns of the supplied result set into a plan for decoding its rows, which is
+     * then supplied to {@link #createObject} for each row. This is called once per result set.
+     * The plan may be null if the marshaller has no need of one.
      */
-    R createObject (ResultSet rs) throws SQLException;
+    int[] resolveColumns (ResultSet rs) throws SQLException;
+
+    /**
+     * Creates an instance of the query result from the current row of the supplied result set.
+     *
+     * @param columns the plan obtained from {@link #resolveColumns} for this result set.
+     */
+    R createObject (ResultSet rs, int[] columns) throws SQLException;
 }
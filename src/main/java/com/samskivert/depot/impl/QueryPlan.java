@@ -0,0 +1,142 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The compiled form of a query: the SQL generated by {@link BuildVisitor} for a particular
+ * {@link Shape} of clause, along with the bindables needed to bind the parameters of any clause of
+ * that shape. Plans are immutable and may be shared between threads.
+ */
+public class QueryPlan
+{
+    /**
+     * Identifies the structure of a clause tree, sans bound values. See {@link ShapeVisitor}.
+     */
+    public static class Shape
+    {
+        public Shape (Object[] tokens)
+        {
+            _tokens = tokens;
+            _hashCode = Arrays.hashCode(tokens);
+        }
+
+        @Override public int hashCode ()
+        {
+            return _hashCode;
+        }
+
+        @Override public boolean equals (Object other)
+        {
+            return (other instanceof Shape) && _hashCode == ((Shape)other)._hashCode &&
+                Arrays.equals(_tokens, ((Shape)other)._tokens);
+        }
+
+        @Override public String toString ()
+        {
+            return Arrays.toString(_tokens);
+        }
+
+        protected final Object[] _tokens;
+        protected final int _hashCode;
+    }
+
+    /**
+     * Compiles the results of a build into a plan, mapping each of the visitor's bindables to the
+     * index of its source in the supplied list (as collected by {@link ShapeVisitor}).
+     *
+     * @return the plan, or null if the build cannot be reproduced from the clause's shape: if a
+     * bindable's value did not come from one of the sources, or if a source was consumed by the
+     * build without being bound (its value was written into the SQL).
+     */
+    public static QueryPlan compile (BuildVisitor visitor, List<Object> sources)
+    {
+        Map<Object, Integer> indices = new IdentityHashMap<Object, Integer>();
+        for (int ii = 0, ll = sources.size(); ii < ll; ii++) {
+            // if the same object appears twice in the tree, we can't tell which position a
+            // bindable refers to; such trees are rare enough that we just don't cache them
+            if (indices.put(sources.get(ii), ii) != null) {
+                return null;
+            }
+        }
+
+        List<BuildVisitor.Bindable> bindables = visitor.getBindables();
+        List<Object> bsources = visitor.getBindSources();
+        int[] slots = new int[bindables.size()];
+        boolean[] bound = new boolean[sources.size()];
+        for (int ii = 0; ii < slots.length; ii++) {
+            Integer slot = indices.get(bsources.get(ii));
+            if (slot == null) {
+                return null;
+            }
+            slots[ii] = slot;
+            bound[slot] = true;
+        }
+        for (boolean b : bound) {
+            if (!b) {
+                return null;
+            }
+        }
+
+        return new QueryPlan(visitor.getQuery(),
+                             bindables.toArray(new BuildVisitor.Bindable[bindables.size()]),
+                             slots);
+    }
+
+    /**
+     * Returns the SQL for this plan.
+     */
+    public String getQuery ()
+    {
+        return _query;
+    }
+
+    /**
+     * Returns the number of statement parameters bound by this plan.
+     */
+    public int getParameterCount ()
+    {
+        return _bindables.length;
+    }
+
+    /**
+     * Returns the bindable for the specified (zero-based) parameter.
+     */
+    public BuildVisitor.Bindable getBindable (int index)
+    {
+        return _bindables[index];
+    }
+
+    /**
+     * Returns the index into the shape's sources of the source for the specified parameter.
+     */
+    public int getSlot (int index)
+    {
+        return _slots[index];
+    }
+
+    /**
+     * Returns an approximation of the memory used by this plan, for cache bounding purposes.
+     */
+    public int getWeight ()
+    {
+        return _query.length() + _bindables.length;
+    }
+
+    protected QueryPlan (String query, BuildVisitor.Bindable[] bindables, int[] slots)
+    {
+        _query = query;
+        _bindables = bindables;
+        _slots = slots;
+    }
+
+    protected final String _query;
+    protected final BuildVisitor.Bindable[] _bindables;
+    protected final int[] _slots;
+}
@@ -0,0 +1,68 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+
+import com.samskivert.depot.Stats;
+
+/**
+ * Caches {@link QueryPlan}s by {@link QueryPlan.Shape} for a single persistence context, so that
+ * queries which differ only in their bound values skip SQL generation entirely.
+ */
+public class QueryPlanCache
+{
+    /** The default bound on the total weight (roughly, characters of SQL) of cached plans. */
+    public static final long DEFAULT_MAX_WEIGHT = 4 * 1024 * 1024;
+
+    public QueryPlanCache (Stats stats)
+    {
+        this(stats, DEFAULT_MAX_WEIGHT);
+    }
+
+    public QueryPlanCache (Stats stats, long maxWeight)
+    {
+        _stats = stats;
+        _plans = CacheBuilder.newBuilder()
+            .maximumWeight(maxWeight)
+            .weigher(new Weigher<QueryPlan.Shape, QueryPlan>() {
+                public int weigh (QueryPlan.Shape shape, QueryPlan plan) {
+                    return plan.getWeight();
+                }
+            })
+            .build();
+    }
+
+    /**
+     * Returns the plan for the specified shape, or null if we have none.
+     */
+    public QueryPlan lookup (QueryPlan.Shape shape)
+    {
+        QueryPlan plan = _plans.getIfPresent(shape);
+        _stats.notePlanLookup(plan != null);
+        return plan;
+    }
+
+    /**
+     * Stores the plan for the specified shape.
+     */
+    public void store (QueryPlan.Shape shape, QueryPlan plan)
+    {
+        _plans.put(shape, plan);
+    }
+
+    /**
+     * Discards all cached plans.
+     */
+    public void clear ()
+    {
+        _plans.invalidateAll();
+    }
+
+    protected Stats _stats;
+    protected Cache<QueryPlan.Shape, QueryPlan> _plans;
+}
@@ -13,13 +13,37 @@ import java.io.Serializable;
 public abstract class QueryResult
     implements Serializable, Cloneable
 {
+    /**
+     * Returns true if this result was loaded by a read-only query. Frozen results may be shared
+     * with the cache and with other callers, so they must not be modified, and the repository will
+     * refuse to write them. Use {@link #clone} to obtain a modifiable copy.
+     */
+    public boolean isFrozen ()
+    {
+        return _frozen;
+    }
+
     @Override
     public QueryResult clone ()
     {
         try {
-            return (QueryResult) super.clone();
+            QueryResult clone = (QueryResult) super.clone();
+            clone._frozen = false;
+            return clone;
         } catch (CloneNotSupportedException cnse) {
             throw new AssertionError(cnse); // this should never happen since we are Cloneable
         }
     }
+
+    /**
+     * Marks this result as shared and read-only. This is done by Depot to the results of read-only
+     * queries, which are not cloned on their way into and out of the cache.
+     */
+    public void freeze ()
+    {
+        _frozen = true;
+    }
+
+    /** Whether or not this result is shared and read-only. */
+    protected transient boolean _frozen;
 }
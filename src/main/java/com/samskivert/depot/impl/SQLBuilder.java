@@ -7,6 +7,7 @@ package com.samskivert.depot.impl;
 import java.lang.reflect.Field;
 import java.lang.reflect.Proxy;
 
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -47,9 +48,43 @@ public abstract class SQLBuilder
     public boolean newQuery (QueryClause clause)
     {
         _clause = clause;
+        _plan = null;
+        _planSources = null;
+
+        // if we have a plan for a query of this shape, we need not build the SQL at all
+        QueryPlan.Shape shape = null;
+        ShapeVisitor shaper = null;
+        if (_plans != null) {
+            shaper = new ShapeVisitor();
+            shape = shaper.computeShape(_types, clause);
+            if (shape != null) {
+                _plan = _plans.lookup(shape);
+                if (_plan != null) {
+                    _buildVisitor = null;
+                    _planSources = shaper.getSources();
+                    return hasQuery(_plan.getQuery());
+                }
+            }
+        }
+
         _buildVisitor = getBuildVisitor();
         _clause.accept(_buildVisitor);
-        return _buildVisitor.getQuery().trim().length() > 0;
+        if (shape != null) {
+            QueryPlan plan = QueryPlan.compile(_buildVisitor, shaper.getSources());
+            if (plan != null) {
+                _plans.store(shape, plan);
+            }
+        }
+        return hasQuery(_buildVisitor.getQuery());
+    }
+
+    /**
+     * Configures the cache from which this builder obtains (and to which it adds) compiled query
+     * plans. If no cache is configured, every query is built from scratch.
+     */
+    public void setPlanCache (QueryPlanCache plans)
+    {
+        _plans = plans;
     }
 
     /**
@@ -78,6 +113,26 @@ public abstract class SQLBuilder
             conn, conn.prepareStatement(buildQuery(), PreparedStatement.RETURN_GENERATED_KEYS));
     }
 
+    /**
+     * Returns the SQL for the query most recently configured via {@link #newQuery}.
+     */
+    public String getQuery ()
+    {
+        return buildQuery();
+    }
+
+    /**
+     * Binds the arguments of the query most recently configured via {@link #newQuery} to the
+     * supplied statement, which must have been prepared from the SQL returned by {@link
+     * #getQuery}. This allows a single statement to be used for many queries of the same shape,
+     * as when executing a batch.
+     */
+    public void bind (Connection conn, PreparedStatement stmt)
+        throws SQLException
+    {
+        prepare(conn, stmt);
+    }
+
     /**
      * Generates the SQL needed to construct a database column for field represented by the given
      * {@link FieldMarshaller}.
@@ -154,6 +209,9 @@ public abstract class SQLBuilder
         Iterable<String> columns, Iterable<String> indexes, Set<String> target);
 
     protected String buildQuery () {
+        if (_plan != null) {
+            return _plan.getQuery();
+        }
         checkState(_buildVisitor != null, "Cannot prepare query until it's been built.");
         return _buildVisitor.getQuery();
     }
@@ -161,14 +219,16 @@ public abstract class SQLBuilder
     protected PreparedStatement prepare (Connection conn, PreparedStatement stmt)
         throws SQLException
     {
-        int argIx = 1;
-        for (BuildVisitor.Bindable bindable : _buildVisitor.getBindables()) {
-            try {
-                bindable.doBind(conn, stmt, argIx);
-            } catch (Exception e) {
-                log.warning("Failed to bind statement argument", "argIx", argIx, e);
+        if (_plan != null) {
+            for (int ii = 0, ll = _plan.getParameterCount(); ii < ll; ii++) {
+                bind(conn, stmt, ii+1, _plan.getBindable(ii), _planSources.get(_plan.getSlot(ii)));
+            }
+        } else {
+            List<BuildVisitor.Bindable> bindables = _buildVisitor.getBindables();
+            List<Object> sources = _buildVisitor.getBindSources();
+            for (int ii = 0, ll = bindables.size(); ii < ll; ii++) {
+                bind(conn, stmt, ii+1, bindables.get(ii), sources.get(ii));
             }
-            argIx ++;
         }
 
         if (PersistenceContext.DEBUG) {
@@ -178,6 +238,21 @@ public abstract class SQLBuilder
         return stmt;
     }
 
+    protected void bind (Connection conn, PreparedStatement stmt, int argIx,
+                         BuildVisitor.Bindable bindable, Object source)
+    {
+        try {
+            bindable.doBind(conn, stmt, argIx, source);
+        } catch (Exception e) {
+            log.warning("Failed to bind statement argument", "argIx", argIx, e);
+        }
+    }
+
+    protected static boolean hasQuery (String query)
+    {
+        return query.trim().length() > 0;
+    }
+
     protected String nullify (String str) {
         return (str != null && str.length() > 0) ? str : null;
     }
@@ -253,6 +328,15 @@ public abstract class SQLBuilder
     protected QueryClause _clause;
     protected BuildVisitor _buildVisitor;
 
+    /** The cache of compiled plans shared by the builders of our persistence context, or null. */
+    protected QueryPlanCache _plans;
+
+    /** The plan for the current query, if it was obtained from {@link #_plans}. */
+    protected QueryPlan _plan;
+
+    /** The bind sources of the current query, if it was obtained from {@link #_plans}. */
+    protected List<Object> _planSources;
+
     /** A basic, unadorned, defaults-for-everything Column annotation. */
     protected static final Column _genericColumn = (Column)Proxy.newProxyInstance(
         Column.class.getClassLoader(), new Class<?>[] { Column.class },
@@ -0,0 +1,570 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.util.Collection;
+import java.util.List;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import com.samskivert.depot.Key;
+import com.samskivert.depot.KeySet;
+import com.samskivert.depot.SQLFragment;
+import com.samskivert.depot.clause.Distinct;
+import com.samskivert.depot.clause.FieldDefinition;
+import com.samskivert.depot.clause.ForUpdate;
+import com.samskivert.depot.clause.FromOverride;
+import com.samskivert.depot.clause.GroupBy;
+import com.samskivert.depot.clause.InsertClause;
+import com.samskivert.depot.clause.Join;
+import com.samskivert.depot.clause.Limit;
+import com.samskivert.depot.clause.OrderBy;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.clause.WhereClause;
+import com.samskivert.depot.expression.ColumnExp;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.operator.Case;
+import com.samskivert.depot.operator.FullText;
+
+import com.samskivert.depot.impl.clause.CreateIndexClause;
+import com.samskivert.depot.impl.clause.DeleteClause;
+import com.samskivert.depot.impl.clause.DropIndexClause;
+import com.samskivert.depot.impl.clause.UpdateClause;
+import com.samskivert.depot.impl.expression.AggregateFun;
+import com.samskivert.depot.impl.expression.IntervalExp;
+import com.samskivert.depot.impl.expression.LiteralExp;
+import com.samskivert.depot.impl.expression.RandomExp;
+import com.samskivert.depot.impl.expression.ValueExp;
+import com.samskivert.depot.impl.expression.AggregateFun.*;
+import com.samskivert.depot.impl.expression.ConditionalFun.*;
+import com.samskivert.depot.impl.expression.DateFun.*;
+import com.samskivert.depot.impl.expression.NumericalFun.*;
+import com.samskivert.depot.impl.expression.StringFun.*;
+import com.samskivert.depot.impl.operator.BinaryOperator;
+import com.samskivert.depot.impl.operator.Exists;
+import com.samskivert.depot.impl.operator.In;
+import com.samskivert.depot.impl.operator.IsNull;
+import com.samskivert.depot.impl.operator.MultiOperator;
+import com.samskivert.depot.impl.operator.Not;
+
+/**
+ * Reduces a {@link QueryClause} tree to its {@link QueryPlan.Shape}: everything that influences
+ * the SQL generated by {@link BuildVisitor} (node types, classes, columns, operators, the arity of
+ * {@code In} lists and so on) but none of the bound values. As it goes, it also collects the
+ * objects in the tree from which values are bound (see {@link BuildVisitor#addBindable}), so that
+ * a cached plan can be bound against them.
+ *
+ * Fragments whose SQL depends on something we can't cheaply capture (full text searches, DDL)
+ * cause the clause to be marked uncacheable, in which case it is built from scratch every time.
+ */
+public class ShapeVisitor implements FragmentVisitor<Void>
+{
+    /**
+     * Computes the shape of the supplied clause, or returns null if the clause cannot be cached.
+     * The bind sources found in the clause are subsequently available via {@link #getSources}.
+     */
+    public QueryPlan.Shape computeShape (DepotTypes types, QueryClause clause)
+    {
+        // the table abbreviations in the generated SQL depend on our types' class ordering
+        _tokens.add(types.getUseTableAbbreviations());
+        for (Class<?> pClass : types.getClasses()) {
+            _tokens.add(pClass);
+        }
+        _tokens.add(SEP);
+        clause.accept(this);
+        return _cacheable ? new QueryPlan.Shape(_tokens.toArray()) : null;
+    }
+
+    /**
+     * Reduces the supplied clause to its shape tokens and bind sources, without regard to the
+     * types with which it will be built. The results are available via {@link #getTokens} and
+     * {@link #getSources}.
+     *
+     * @return false if the clause cannot be reduced (see {@link #computeShape}).
+     */
+    public boolean reduce (QueryClause clause)
+    {
+        clause.accept(this);
+        return _cacheable;
+    }
+
+    /**
+     * Returns the tokens found during the most recent call to {@link #reduce}.
+     */
+    public List<Object> getTokens ()
+    {
+        return _tokens;
+    }
+
+    /**
+     * Returns the bind sources found during the most recent call to {@link #computeShape} or
+     * {@link #reduce}.
+     */
+    public List<Object> getSources ()
+    {
+        return _sources;
+    }
+
+    public Void visit (FieldDefinition definition)
+    {
+        _tokens.add(definition.getClass());
+        _tokens.add(definition.getField());
+        return shapeArgs(definition.getDefinition());
+    }
+
+    public Void visit (FromOverride override)
+    {
+        _tokens.add(FromOverride.class);
+        _tokens.add(override.getFromClasses().size());
+        _tokens.addAll(override.getFromClasses());
+        return null;
+    }
+
+    public Void visit (MultiOperator<?> multiOperator)
+    {
+        _tokens.add(multiOperator.operator());
+        return shapeNode(multiOperator, multiOperator.getArgs());
+    }
+
+    public Void visit (BinaryOperator<?> binaryOperator)
+    {
+        _tokens.add(binaryOperator.operator());
+        return shapeNode(binaryOperator, binaryOperator.getArgs());
+    }
+
+    public Void visit (IsNull isNull)
+    {
+        return shapeNode(isNull, isNull.getExpression());
+    }
+
+    public Void visit (In in)
+    {
+        _tokens.add(In.class);
+        _tokens.add(in.getValues().length);
+        _sources.add(in.getValues());
+        return shapeArgs(in.getExpression());
+    }
+
+    public Void visit (FullText.Match match)
+    {
+        return uncacheable();
+    }
+
+    public Void visit (FullText.Rank rank)
+    {
+        return uncacheable();
+    }
+
+    public Void visit (ColumnExp<?> columnExp)
+    {
+        _tokens.add(columnExp.getClass());
+        _tokens.add(columnExp.getPersistentClass());
+        _tokens.add(columnExp.name);
+        return null;
+    }
+
+    public Void visit (Not not)
+    {
+        return shapeNode(not, not.getCondition());
+    }
+
+    public Void visit (Distinct distinct)
+    {
+        _tokens.add(Distinct.class);
+        return shapeOpt(distinct.getDistinctOn());
+    }
+
+    public Void visit (GroupBy groupBy)
+    {
+        return shapeNode(groupBy, groupBy.getValues());
+    }
+
+    public Void visit (ForUpdate forUpdate)
+    {
+        _tokens.add(ForUpdate.class);
+        return null;
+    }
+
+    public Void visit (OrderBy orderBy)
+    {
+        for (OrderBy.Order order : orderBy.getOrders()) {
+            _tokens.add(order);
+        }
+        return shapeNode(orderBy, orderBy.getValues());
+    }
+
+    public Void visit (Join join)
+    {
+        _tokens.add(join.getType());
+        _tokens.add(join.getJoinClass());
+        return shapeNode(join, join.getJoinCondition());
+    }
+
+    public Void visit (Limit limit)
+    {
+        // limits are written into the SQL literally
+        _tokens.add(Limit.class);
+        _tokens.add(limit.getOffset());
+        _tokens.add(limit.getCount());
+        return null;
+    }
+
+    public Void visit (LiteralExp<?> literal)
+    {
+        _tokens.add(LiteralExp.class);
+        _tokens.add(literal.getText());
+        return null;
+    }
+
+    public Void visit (RandomExp random)
+    {
+        _tokens.add(RandomExp.class);
+        return null;
+    }
+
+    public Void visit (ValueExp<?> value)
+    {
+        _tokens.add(ValueExp.class);
+        _sources.add(value);
+        return null;
+    }
+
+    public Void visit (IntervalExp interval)
+    {
+        _tokens.add(IntervalExp.class);
+        _tokens.add(interval.unit);
+        _tokens.add(interval.amount);
+        return null;
+    }
+
+    public Void visit (WhereClause where)
+    {
+        _tokens.add(WhereClause.class);
+        if (where instanceof KeySet<?>) {
+            // key sets are built from the set itself (see BuildVisitor#appendKeySet)
+            KeySet<?> keys = (KeySet<?>)where;
+            _tokens.add(KeySet.class);
+            _tokens.add(keys.getPersistentClass());
+            _tokens.add(keys.size());
+            if (keys.size() > 0) {
+                for (int ii = 0, ll = DepotUtil.getKeyFields(keys.getPersistentClass()).length;
+                     ii < ll; ii++) {
+                    _tokens.add(keys.getKeyClass(ii));
+                }
+            }
+            _sources.add(keys);
+            return null;
+        }
+        return shapeArgs(where.getWhereExpression());
+    }
+
+    public Void visit (Key.Expression key)
+    {
+        _tokens.add(Key.Expression.class);
+        _tokens.add(key.getPersistentClass());
+        // null key values are matched with 'is null' rather than bound
+        Comparable<?>[] values = key.getValues();
+        for (Comparable<?> value : values) {
+            _tokens.add(value == null);
+        }
+        _sources.add(values);
+        return null;
+    }
+
+    public Void visit (Exists exists)
+    {
+        _tokens.add(Exists.class);
+        return visit(exists.getSubClause());
+    }
+
+    public Void visit (SelectClause select)
+    {
+        _tokens.add(SelectClause.class);
+        _tokens.add(select.getPersistentClass());
+        shapeOpt(select.getDistinct());
+        Collection<FieldDefinition> defs = select.getFieldDefinitions();
+        _tokens.add(defs.size());
+        for (FieldDefinition def : defs) {
+            def.accept(this);
+        }
+        shapeArgs(select.getSelections());
+        shapeOpt(select.getFromOverride());
+        _tokens.add(select.getJoinClauses().size());
+        for (Join join : select.getJoinClauses()) {
+            join.accept(this);
+        }
+        shapeOpt(select.getWhereClause());
+        shapeOpt(select.getGroupBy());
+        shapeOpt(select.getOrderBy());
+        shapeOpt(select.getLimit());
+        shapeOpt(select.getForUpdate());
+        return null;
+    }
+
+    public Void visit (UpdateClause update)
+    {
+        _tokens.add(UpdateClause.class);
+        _tokens.add(update.getPersistentClass());
+        ColumnExp<?>[] fields = update.getFields();
+        _tokens.add(fields.length);
+        for (ColumnExp<?> field : fields) {
+            visit(field);
+        }
+        if (update.getPojo() != null) {
+            _tokens.add(SEP);
+            _sources.add(update.getPojo());
+        } else {
+            shapeArgs(update.getValues());
+        }
+        return shapeOpt(update.getWhereClause());
+    }
+
+    public Void visit (DeleteClause delete)
+    {
+        _tokens.add(DeleteClause.class);
+        _tokens.add(delete.getPersistentClass());
+        shapeOpt(delete.getWhereClause());
+        return shapeOpt(delete.getLimit());
+    }
+
+    public Void visit (InsertClause insert)
+    {
+        _tokens.add(InsertClause.class);
+        _tokens.add(insert.getPersistentClass());
+        _tokens.add(ImmutableSet.copyOf(insert.getIdentityFields()));
+        _sources.add(insert.getPojo());
+        return null;
+    }
+
+    public Void visit (CreateIndexClause createIndexClause)
+    {
+        return uncacheable();
+    }
+
+    public Void visit (DropIndexClause dropIndexClause)
+    {
+        return uncacheable();
+    }
+
+    public Void visit (Case<?> caseExp)
+    {
+        _tokens.add(Case.class);
+        _tokens.add(caseExp.getWhenExps().size());
+        for (Case.Exp exp : caseExp.getWhenExps()) {
+            exp.when.accept(this);
+            exp.then.accept(this);
+        }
+        return shapeOpt(caseExp.getElseExp());
+    }
+
+    public Void visit (Abs<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Ceil<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Exp<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Floor<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Ln<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Log10<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Pi<?> exp)
+    {
+        return shapeNode(exp);
+    }
+
+    public Void visit (Power<?> exp)
+    {
+        return shapeNode(exp, exp.getValue(), exp.getPower());
+    }
+
+    public Void visit (Random<?> exp)
+    {
+        return shapeNode(exp);
+    }
+
+    public Void visit (Round<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Sign<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Sqrt<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Trunc<?> exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Length exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Lower exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Position exp)
+    {
+        // the arguments are written into the SQL via toString(), so we can't separate them out
+        return uncacheable();
+    }
+
+    public Void visit (Substring exp)
+    {
+        return shapeNode(exp, exp.getArgs());
+    }
+
+    public Void visit (Trim exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Upper exp)
+    {
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (DatePart exp)
+    {
+        _tokens.add(exp.getPart());
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (DateTruncate exp)
+    {
+        _tokens.add(exp.getTruncation());
+        return shapeNode(exp, exp.getArg());
+    }
+
+    public Void visit (Now exp)
+    {
+        return shapeNode(exp);
+    }
+
+    public Void visit (Average<?> exp)
+    {
+        return shapeAggregate(exp);
+    }
+
+    public Void visit (Count exp)
+    {
+        return shapeAggregate(exp);
+    }
+
+    public Void visit (Every exp)
+    {
+        return shapeAggregate(exp);
+    }
+
+    public Void visit (Max<?> exp)
+    {
+        return shapeAggregate(exp);
+    }
+
+    public Void visit (Min<?> exp)
+    {
+        return shapeAggregate(exp);
+    }
+
+    public Void visit (Sum<?> exp)
+    {
+        return shapeAggregate(exp);
+    }
+
+    public Void visit (Coalesce<?> exp)
+    {
+        return shapeNode(exp, exp.getArgs());
+    }
+
+    public Void visit (Greatest<?> exp)
+    {
+        return shapeNode(exp, exp.getArgs());
+    }
+
+    public Void visit (Least<?> exp)
+    {
+        return shapeNode(exp, exp.getArgs());
+    }
+
+    protected Void shapeAggregate (AggregateFun<?> exp)
+    {
+        _tokens.add(exp.isDistinct());
+        return shapeNode(exp, exp.getArg());
+    }
+
+    protected Void shapeNode (Object node, SQLExpression<?>... args)
+    {
+        _tokens.add(node.getClass());
+        return shapeArgs(args);
+    }
+
+    protected Void shapeArgs (SQLExpression<?>... args)
+    {
+        _tokens.add(args.length);
+        for (SQLExpression<?> arg : args) {
+            arg.accept(this);
+        }
+        return null;
+    }
+
+    protected Void shapeOpt (SQLFragment fragment)
+    {
+        if (fragment == null) {
+            _tokens.add(SEP);
+        } else {
+            fragment.accept(this);
+        }
+        return null;
+    }
+
+    protected Void uncacheable ()
+    {
+        _cacheable = false;
+        return null;
+    }
+
+    /** The tokens that make up our shape. */
+    protected List<Object> _tokens = Lists.newArrayList();
+
+    /** The objects from which values are bound, in traversal order. */
+    protected List<Object> _sources = Lists.newArrayList();
+
+    /** Cleared if we encounter a fragment that we can't reduce to a shape. */
+    protected boolean _cacheable = true;
+
+    /** Marks absent optional clauses and separates otherwise ambiguous token runs. */
+    protected static final Object SEP = Void.class;
+}
@@ -22,6 +22,15 @@ public class SimpleCacheKey
      * Construct a {@link SimpleCacheKey} for the given cache id with the given cache key.
      */
     public SimpleCacheKey (String cacheId, String cacheKey)
+    {
+        this(cacheId, (Serializable)cacheKey);
+    }
+
+    /**
+     * Construct a {@link SimpleCacheKey} for the given cache id with the given cache key, which
+     * must implement {@link Object#equals} and {@link Object#hashCode} by value.
+     */
+    public SimpleCacheKey (String cacheId, Serializable cacheKey)
     {
         _cacheId = cacheId;
         _cacheKey = cacheKey;
@@ -67,5 +76,5 @@ public class SimpleCacheKey
     }
 
     protected String _cacheId;
-    protected String _cacheKey;
+    protected Serializable _cacheKey;
 }
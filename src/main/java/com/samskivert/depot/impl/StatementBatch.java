@@ -0,0 +1,169 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Accumulates modifications built by an {@link SQLBuilder} into JDBC batches, sending each batch
+ * to the database when it fills or when the SQL of the modification changes. A statement is
+ * prepared once for each distinct SQL string and reused for every modification of that shape.
+ *
+ * <p> The update count of every modification is recorded, in the order in which they were
+ * added, so that callers can determine which of them matched no rows once the batch has been
+ * {@link #flush}ed.
+ */
+public class StatementBatch
+{
+    /** The maximum number of modifications sent to the database in a single batch. */
+    public static final int MAX_BATCH_SIZE = 500;
+
+    public StatementBatch (Connection conn)
+    {
+        _conn = conn;
+    }
+
+    /**
+     * Adds the modification most recently configured on the supplied builder to the batch.
+     */
+    public void add (SQLBuilder builder)
+        throws SQLException
+    {
+        String sql = builder.getQuery();
+        if (!sql.equals(_sql)) {
+            flush();
+            _stmt = getStatement(_batched, sql, Statement.NO_GENERATED_KEYS);
+            _sql = sql;
+        }
+        builder.bind(_conn, _stmt);
+        _stmt.addBatch();
+        if (++_pending >= MAX_BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Executes any pending modifications and then the modification most recently configured on
+     * the supplied builder, returning its update count.
+     */
+    public int executeUpdate (SQLBuilder builder)
+        throws SQLException
+    {
+        flush();
+        String sql = builder.getQuery();
+        PreparedStatement stmt = getStatement(_batched, sql, Statement.NO_GENERATED_KEYS);
+        builder.bind(_conn, stmt);
+        return noteCount(stmt.executeUpdate());
+    }
+
+    /**
+     * Executes any pending modifications and then the insert most recently configured on the
+     * supplied builder, returning the statement so that the insert's generated keys may be
+     * obtained from it.
+     */
+    public PreparedStatement executeInsert (SQLBuilder builder)
+        throws SQLException
+    {
+        flush();
+        PreparedStatement stmt = getStatement(
+            _keyed, builder.getQuery(), Statement.RETURN_GENERATED_KEYS);
+        builder.bind(_conn, stmt);
+        noteCount(stmt.executeUpdate());
+        return stmt;
+    }
+
+    /**
+     * Sends any pending modifications to the database.
+     */
+    public void flush ()
+        throws SQLException
+    {
+        if (_pending > 0) {
+            _pending = 0;
+            for (int count : _stmt.executeBatch()) {
+                noteCount(count);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of modifications executed so far.
+     */
+    public int getExecutedCount ()
+    {
+        return _executed;
+    }
+
+    /**
+     * Returns the update count of the {@code index}th modification, which will be {@link
+     * Statement#SUCCESS_NO_INFO} if the driver did not report it.
+     */
+    public int getUpdateCount (int index)
+    {
+        if (index >= _executed) {
+            throw new IndexOutOfBoundsException(index + " >= " + _executed);
+        }
+        return _counts[index];
+    }
+
+    /**
+     * Returns the total number of rows modified so far. Modifications whose update count was not
+     * reported by the driver are assumed to have modified one row.
+     */
+    public int getModifiedCount ()
+    {
+        int total = 0;
+        for (int ii = 0; ii < _executed; ii++) {
+            total += (_counts[ii] == Statement.SUCCESS_NO_INFO) ? 1 : _counts[ii];
+        }
+        return total;
+    }
+
+    protected PreparedStatement getStatement (
+        Map<String, PreparedStatement> stmts, String sql, int autoGeneratedKeys)
+        throws SQLException
+    {
+        PreparedStatement stmt = stmts.get(sql);
+        if (stmt == null) {
+            stmt = (autoGeneratedKeys == Statement.NO_GENERATED_KEYS) ?
+                _conn.prepareStatement(sql) : _conn.prepareStatement(sql, autoGeneratedKeys);
+            stmts.put(sql, stmt);
+        }
+        return stmt;
+    }
+
+    protected int noteCount (int count)
+    {
+        if (_executed == _counts.length) {
+            _counts = Arrays.copyOf(_counts, _counts.length * 2);
+        }
+        _counts[_executed++] = count;
+        return count;
+    }
+
+    protected final Connection _conn;
+
+    /** Our statements, by SQL, for batched and for keyed (individually executed) inserts. */
+    protected final Map<String, PreparedStatement> _batched = Maps.newHashMap();
+    protected final Map<String, PreparedStatement> _keyed = Maps.newHashMap();
+
+    /** The statement to which modifications are currently being added, and its SQL. */
+    protected PreparedStatement _stmt;
+    protected String _sql;
+
+    /** The number of modifications added to {@link #_stmt} but not yet executed. */
+    protected int _pending;
+
+    /** The update counts of all executed modifications. */
+    protected int[] _counts = new int[16];
+    protected int _executed;
+}
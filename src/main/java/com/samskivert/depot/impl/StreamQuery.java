@@ -0,0 +1,113 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Set;
+
+import com.samskivert.depot.DatabaseException;
+import com.samskivert.depot.PersistenceContext;
+import com.samskivert.depot.PersistentRecord;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
+
+/**
+ * A query whose results are decoded lazily, a row at a time, via a {@link Cursor}. Unlike {@link
+ * FindAllQuery}, the results of a streamed query are neither read from nor stored in the cache.
+ */
+public class StreamQuery<T extends PersistentRecord,R>
+{
+    /**
+     * Creates a query that streams the full records that match the supplied clauses.
+     */
+    public static <T extends PersistentRecord> StreamQuery<T,T> newRecordQuery (
+        PersistenceContext ctx, Class<T> type, Iterable<? extends QueryClause> clauses)
+        throws DatabaseException
+    {
+        DepotMarshaller<T> marsh = ctx.getMarshaller(type);
+        SelectClause select = new SelectClause(type, marsh.getSelections(), clauses);
+        return new StreamQuery<T,T>(select, DepotTypes.getDepotTypes(ctx, select), marsh);
+    }
+
+    /**
+     * Creates a query that streams the supplied projection of the rows that match the supplied
+     * clauses.
+     */
+    public static <T extends PersistentRecord,R> StreamQuery<T,R> newProjectionQuery (
+        PersistenceContext ctx, Projector<T,R> proj, Iterable<? extends QueryClause> clauses)
+        throws DatabaseException
+    {
+        SelectClause select = new SelectClause(proj.ptype, proj.selexps, clauses);
+        DepotTypes types = DepotTypes.getDepotTypes(ctx, select);
+        return new StreamQuery<T,R>(
+            select, types, new FindAllQuery.ProjectionQueryMarshaller<T,R>(proj, types));
+    }
+
+    /**
+     * Returns the class of persistent record from which this query selects.
+     */
+    public Class<? extends PersistentRecord> getPersistentClass ()
+    {
+        return _select.getPersistentClass();
+    }
+
+    /**
+     * Adds to the supplied set the classes of persistent record whose tables this query reads.
+     */
+    public void addReadClasses (Set<Class<? extends PersistentRecord>> classes)
+    {
+        _select.addClasses(classes);
+    }
+
+    /**
+     * Executes this query on the supplied connection, configuring the statement such that its
+     * results are streamed from the database {@code fetchSize} rows at a time.
+     */
+    public ResultSet execute (PersistenceContext ctx, Connection conn, DatabaseLiaison liaison,
+                              int fetchSize)
+        throws SQLException
+    {
+        SQLBuilder builder = ctx.getSQLBuilder(_types);
+        builder.newQuery(_select);
+        PreparedStatement stmt = builder.prepare(conn);
+        liaison.configureStreaming(conn, stmt, fetchSize);
+        ResultSet rs = stmt.executeQuery();
+        _columns = _marsh.resolveColumns(rs);
+        return rs;
+    }
+
+    /**
+     * Decodes the current row of a result set obtained from {@link #execute}.
+     */
+    public R decode (ResultSet rs)
+        throws SQLException
+    {
+        return _marsh.createObject(rs, _columns);
+    }
+
+    @Override
+    public String toString ()
+    {
+        return _select.toString();
+    }
+
+    protected StreamQuery (SelectClause select, DepotTypes types, QueryMarshaller<T,R> marsh)
+    {
+        _select = select;
+        _types = types;
+        _marsh = marsh;
+    }
+
+    protected final SelectClause _select;
+    protected final DepotTypes _types;
+    protected final QueryMarshaller<T,R> _marsh;
+
+    /** The column plan for the result set we're decoding, resolved when we're executed. */
+    protected int[] _columns;
+}
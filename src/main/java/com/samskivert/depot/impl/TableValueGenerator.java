@@ -10,6 +10,10 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.samskivert.depot.annotation.GeneratedValue;
 import com.samskivert.depot.annotation.TableGenerator;
@@ -17,7 +21,11 @@ import com.samskivert.depot.impl.jdbc.ColumnDefinition;
 import com.samskivert.depot.impl.jdbc.DatabaseLiaison;
 
 /**
- * Generates primary keys using an external table .
+ * Generates primary keys using an external table. Each trip to the table claims a block of {@link
+ * GeneratedValue#allocationSize} values, which are then handed out from memory (without locking)
+ * until the block is exhausted. Blocks are claimed with a compare-and-swap update, so any number
+ * of processes may share a table. Values may be skipped (if two threads claim a block at the same
+ * time or the process exits before its block is used), but are never handed out twice.
  */
 public class TableValueGenerator extends ValueGenerator
 {
@@ -40,6 +48,24 @@ public class TableValueGenerator extends ValueGenerator
     @Override // from ValueGenerator
     public void create (Connection conn, DatabaseLiaison liaison)
         throws SQLException
+    {
+        // records are initialized in parallel, and many generators may share a table, so we
+        // create the table and our row in it under a lock; otherwise two generators could both
+        // find that the table (or a row) is missing and both try to create it
+        _createLock.lock();
+        try {
+            createTableAndRow(conn, liaison);
+        } finally {
+            _createLock.unlock();
+        }
+    }
+
+    /**
+     * Creates our table, if it is missing, and our row in it. Called with {@link #_createLock}
+     * held.
+     */
+    protected void createTableAndRow (Connection conn, DatabaseLiaison liaison)
+        throws SQLException
     {
         // make sure our table exists
         liaison.createTableIfMissing(
@@ -89,7 +115,33 @@ public class TableValueGenerator extends ValueGenerator
     public long nextGeneratedValue (Connection conn, DatabaseLiaison liaison, Statement stmt)
         throws SQLException
     {
-        // TODO: Make this lockless!
+        // if the connection is in a transaction, our claim may yet be rolled back (allowing the
+        // values to be claimed by another process), so we can't hold on to the rest of the block
+        if (!conn.getAutoCommit()) {
+            return claimBlock(conn, liaison);
+        }
+
+        Block block = _block.get();
+        if (block != null) {
+            long value = block.next.getAndIncrement();
+            if (value < block.end) {
+                return value;
+            }
+        }
+
+        // our block is exhausted (or we have none), so claim a new one; if another thread installs
+        // a block while we're doing so, we give up the rest of ours
+        long value = claimBlock(conn, liaison);
+        _block.compareAndSet(block, new Block(value + 1, value + _allocationSize));
+        return value;
+    }
+
+    /**
+     * Claims the next {@link #_allocationSize} values from our table, returning the first.
+     */
+    protected long claimBlock (Connection conn, DatabaseLiaison liaison)
+        throws SQLException
+    {
         PreparedStatement readStatement = conn.prepareStatement(
             " SELECT " + liaison.columnSQL(_valueColumnName) +
             "   FROM " + liaison.tableSQL(_valueTable) +
@@ -129,6 +181,21 @@ public class TableValueGenerator extends ValueGenerator
             ", column=" + _valueColumnName + "]");
     }
 
+    /** A block of values claimed from our table. */
+    protected static class Block
+    {
+        /** The next value to be handed out. */
+        public final AtomicLong next;
+
+        /** The value after the last value in this block. */
+        public final long end;
+
+        public Block (long next, long end) {
+            this.next = new AtomicLong(next);
+            this.end = end;
+        }
+    }
+
     /**
      * Convenience function to return a value or a default fallback.
      */
@@ -144,4 +211,13 @@ public class TableValueGenerator extends ValueGenerator
     protected String _pkColumnName;
     protected String _pkColumnValue;
     protected String _valueColumnName;
+
+    /** The values we have claimed but not yet handed out. */
+    protected final AtomicReference<Block> _block = new AtomicReference<Block>();
+
+    /**
+     * Held by a generator while it creates its table and row. This is a lock rather than a monitor
+     * so that a virtual thread waiting on the database while holding it does not pin its carrier.
+     */
+    protected static final Lock _createLock = new ReentrantLock();
 }
@@ -10,6 +10,7 @@ import com.google.common.base.Joiner;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.Statement;
 import java.util.Collections;
 import java.util.List;
@@ -297,6 +298,49 @@ public abstract class BaseLiaison implements DatabaseLiaison
         return true;
     }
 
+    // from DatabaseLiaison
+    public void configureStreaming (Connection conn, Statement stmt, int fetchSize)
+        throws SQLException
+    {
+        stmt.setFetchSize(fetchSize);
+    }
+
+    // from DatabaseLiaison
+    public ResultSet getAllIndexInfo (Connection conn)
+        throws SQLException
+    {
+        return null; // JDBC can only describe the indexes of one table at a time
+    }
+
+    // from DatabaseLiaison
+    public ResultSet getAllPrimaryKeys (Connection conn)
+        throws SQLException
+    {
+        return null; // JDBC can only describe the primary key of one table at a time
+    }
+
+    // from DatabaseLiaison
+    public boolean supportsAdvisoryLocks ()
+    {
+        return false;
+    }
+
+    // from DatabaseLiaison
+    public boolean acquireAdvisoryLock (Connection conn, String name, int timeout)
+        throws SQLException
+    {
+        throw new SQLFeatureNotSupportedException(
+            getClass().getName() + " has no advisory locks");
+    }
+
+    // from DatabaseLiaison
+    public void releaseAdvisoryLock (Connection conn, String name)
+        throws SQLException
+    {
+        throw new SQLFeatureNotSupportedException(
+            getClass().getName() + " has no advisory locks");
+    }
+
     // from DatabaseLiaison
     public String getSchemaName ()
     {
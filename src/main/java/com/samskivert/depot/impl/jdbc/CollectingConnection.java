@@ -0,0 +1,434 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl.jdbc;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+
+/**
+ * A {@link Connection} that delegates to another connection and keeps track of all statements
+ * created through it, so that they can be closed en masse when an operation completes. Prepared
+ * statements may optionally be obtained from a {@link StatementCache}, in which case they are
+ * returned to the cache rather than closed.
+ *
+ * <p> Unlike {@link JDBCUtil#makeCollector}, a collecting connection is designed to be reused: it
+ * is {@link #init}ialized with a connection at the start of an operation and {@link #finish}ed
+ * at the end, and allocates nothing in between (beyond what the underlying driver allocates).
+ * Instances are not thread safe.
+ */
+public class CollectingConnection implements Connection
+{
+    /**
+     * Prepares this wrapper to be used for an operation on the supplied connection.
+     *
+     * @param cache if non-null, the cache from which prepared statements will be obtained.
+     */
+    public void init (Connection conn, StatementCache cache)
+    {
+        if (_conn != null) {
+            throw new IllegalStateException("Collecting connection already in use.");
+        }
+        _conn = conn;
+        _cached = (cache != null) && cache.open(conn, _session);
+    }
+
+    /**
+     * Returns true if this wrapper is currently in use (has been initialized but not finished).
+     */
+    public boolean isActive ()
+    {
+        return _conn != null;
+    }
+
+    /**
+     * Returns the SQL of the first statement prepared through this wrapper since it was last
+     * {@link #init}ialized, or null if none has been prepared.
+     */
+    public String getFirstSQL ()
+    {
+        return _firstSQL;
+    }
+
+    /**
+     * Closes all statements created through this wrapper (and returns any cached statements to
+     * their cache), then disassociates this wrapper from its connection. If a close fails, the
+     * process is aborted (the connection is presumably unusable and will be discarded), but this
+     * wrapper is nonetheless made available for reuse.
+     */
+    public void finish ()
+        throws SQLException
+    {
+        try {
+            for (int ii = 0; ii < _count; ii++) {
+                Statement stmt = _stmts[ii];
+                _stmts[ii] = null;
+                stmt.close();
+            }
+            if (_cached) {
+                _session.release();
+            }
+        } finally {
+            if (_count > 0) {
+                Arrays.fill(_stmts, 0, _count, null);
+                _count = 0;
+            }
+            if (_cached) {
+                _session.reset();
+                _cached = false;
+            }
+            _conn = null;
+            _firstSQL = null;
+        }
+    }
+
+    // from interface Connection
+    public Statement createStatement () throws SQLException {
+        return track(_conn.createStatement());
+    }
+
+    // from interface Connection
+    public Statement createStatement (int resultSetType, int resultSetConcurrency)
+        throws SQLException {
+        return track(_conn.createStatement(resultSetType, resultSetConcurrency));
+    }
+
+    // from interface Connection
+    public Statement createStatement (
+        int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+        throws SQLException {
+        return track(_conn.createStatement(
+                         resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    // from interface Connection
+    public PreparedStatement prepareStatement (String sql) throws SQLException {
+        noteSQL(sql);
+        if (_cached) {
+            return _session.prepareStatement(sql, Statement.NO_GENERATED_KEYS);
+        }
+        return track(_conn.prepareStatement(sql));
+    }
+
+    // from interface Connection
+    public PreparedStatement prepareStatement (String sql, int autoGeneratedKeys)
+        throws SQLException {
+        noteSQL(sql);
+        if (_cached) {
+            return _session.prepareStatement(sql, autoGeneratedKeys);
+        }
+        return track(_conn.prepareStatement(sql, autoGeneratedKeys));
+    }
+
+    // from interface Connection
+    public PreparedStatement prepareStatement (
+        String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        noteSQL(sql);
+        return track(_conn.prepareStatement(sql, resultSetType, resultSetConcurrency));
+    }
+
+    // from interface Connection
+    public PreparedStatement prepareStatement (
+        String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+        throws SQLException {
+        noteSQL(sql);
+        return track(_conn.prepareStatement(
+                         sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    // from interface Connection
+    public PreparedStatement prepareStatement (String sql, int[] columnIndexes)
+        throws SQLException {
+        noteSQL(sql);
+        return track(_conn.prepareStatement(sql, columnIndexes));
+    }
+
+    // from interface Connection
+    public PreparedStatement prepareStatement (String sql, String[] columnNames)
+        throws SQLException {
+        noteSQL(sql);
+        return track(_conn.prepareStatement(sql, columnNames));
+    }
+
+    // from interface Connection
+    public CallableStatement prepareCall (String sql) throws SQLException {
+        return track(_conn.prepareCall(sql));
+    }
+
+    // from interface Connection
+    public CallableStatement prepareCall (String sql, int resultSetType, int resultSetConcurrency)
+        throws SQLException {
+        return track(_conn.prepareCall(sql, resultSetType, resultSetConcurrency));
+    }
+
+    // from interface Connection
+    public CallableStatement prepareCall (
+        String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability)
+        throws SQLException {
+        return track(_conn.prepareCall(
+                         sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+    }
+
+    // from interface Connection
+    public String nativeSQL (String sql) throws SQLException {
+        return _conn.nativeSQL(sql);
+    }
+
+    // from interface Connection
+    public void setAutoCommit (boolean autoCommit) throws SQLException {
+        _conn.setAutoCommit(autoCommit);
+    }
+
+    // from interface Connection
+    public boolean getAutoCommit () throws SQLException {
+        return _conn.getAutoCommit();
+    }
+
+    // from interface Connection
+    public void commit () throws SQLException {
+        _conn.commit();
+    }
+
+    // from interface Connection
+    public void rollback () throws SQLException {
+        _conn.rollback();
+    }
+
+    // from interface Connection
+    public void rollback (Savepoint savepoint) throws SQLException {
+        _conn.rollback(savepoint);
+    }
+
+    // from interface Connection
+    public void close () throws SQLException {
+        _conn.close();
+    }
+
+    // from interface Connection
+    public boolean isClosed () throws SQLException {
+        return _conn.isClosed();
+    }
+
+    // from interface Connection
+    public DatabaseMetaData getMetaData () throws SQLException {
+        return _conn.getMetaData();
+    }
+
+    // from interface Connection
+    public void setReadOnly (boolean readOnly) throws SQLException {
+        _conn.setReadOnly(readOnly);
+    }
+
+    // from interface Connection
+    public boolean isReadOnly () throws SQLException {
+        return _conn.isReadOnly();
+    }
+
+    // from interface Connection
+    public void setCatalog (String catalog) throws SQLException {
+        _conn.setCatalog(catalog);
+    }
+
+    // from interface Connection
+    public String getCatalog () throws SQLException {
+        return _conn.getCatalog();
+    }
+
+    // from interface Connection
+    public void setTransactionIsolation (int level) throws SQLException {
+        _conn.setTransactionIsolation(level);
+    }
+
+    // from interface Connection
+    public int getTransactionIsolation () throws SQLException {
+        return _conn.getTransactionIsolation();
+    }
+
+    // from interface Connection
+    public SQLWarning getWarnings () throws SQLException {
+        return _conn.getWarnings();
+    }
+
+    // from interface Connection
+    public void clearWarnings () throws SQLException {
+        _conn.clearWarnings();
+    }
+
+    // from interface Connection
+    public Map<String, Class<?>> getTypeMap () throws SQLException {
+        return _conn.getTypeMap();
+    }
+
+    // from interface Connection
+    public void setTypeMap (Map<String, Class<?>> map) throws SQLException {
+        _conn.setTypeMap(map);
+    }
+
+    // from interface Connection
+    public void setHoldability (int holdability) throws SQLException {
+        _conn.setHoldability(holdability);
+    }
+
+    // from interface Connection
+    public int getHoldability () throws SQLException {
+        return _conn.getHoldability();
+    }
+
+    // from interface Connection
+    public Savepoint setSavepoint () throws SQLException {
+        return _conn.setSavepoint();
+    }
+
+    // from interface Connection
+    public Savepoint setSavepoint (String name) throws SQLException {
+        return _conn.setSavepoint(name);
+    }
+
+    // from interface Connection
+    public void releaseSavepoint (Savepoint savepoint) throws SQLException {
+        _conn.releaseSavepoint(savepoint);
+    }
+
+    // from interface Connection
+    public Clob createClob () throws SQLException {
+        return _conn.createClob();
+    }
+
+    // from interface Connection
+    public Blob createBlob () throws SQLException {
+        return _conn.createBlob();
+    }
+
+    // from interface Connection
+    public NClob createNClob () throws SQLException {
+        return _conn.createNClob();
+    }
+
+    // from interface Connection
+    public SQLXML createSQLXML () throws SQLException {
+        return _conn.createSQLXML();
+    }
+
+    // from interface Connection
+    public boolean isValid (int timeout) throws SQLException {
+        return _conn.isValid(timeout);
+    }
+
+    // from interface Connection
+    public void setClientInfo (String name, String value) throws SQLClientInfoException {
+        _conn.setClientInfo(name, value);
+    }
+
+    // from interface Connection
+    public void setClientInfo (Properties properties) throws SQLClientInfoException {
+        _conn.setClientInfo(properties);
+    }
+
+    // from interface Connection
+    public String getClientInfo (String name) throws SQLException {
+        return _conn.getClientInfo(name);
+    }
+
+    // from interface Connection
+    public Properties getClientInfo () throws SQLException {
+        return _conn.getClientInfo();
+    }
+
+    // from interface Connection
+    public Array createArrayOf (String typeName, Object[] elements) throws SQLException {
+        return _conn.createArrayOf(typeName, elements);
+    }
+
+    // from interface Connection
+    public Struct createStruct (String typeName, Object[] attributes) throws SQLException {
+        return _conn.createStruct(typeName, attributes);
+    }
+
+    // from interface Connection
+    public void setSchema (String schema) throws SQLException {
+        _conn.setSchema(schema);
+    }
+
+    // from interface Connection
+    public String getSchema () throws SQLException {
+        return _conn.getSchema();
+    }
+
+    // from interface Connection
+    public void abort (Executor executor) throws SQLException {
+        _conn.abort(executor);
+    }
+
+    // from interface Connection
+    public void setNetworkTimeout (Executor executor, int milliseconds) throws SQLException {
+        _conn.setNetworkTimeout(executor, milliseconds);
+    }
+
+    // from interface Connection
+    public int getNetworkTimeout () throws SQLException {
+        return _conn.getNetworkTimeout();
+    }
+
+    // from interface Wrapper
+    public <T> T unwrap (Class<T> iface) throws SQLException {
+        return iface.isInstance(_conn) ? iface.cast(_conn) : _conn.unwrap(iface);
+    }
+
+    // from interface Wrapper
+    public boolean isWrapperFor (Class<?> iface) throws SQLException {
+        return iface.isInstance(_conn) || _conn.isWrapperFor(iface);
+    }
+
+    protected void noteSQL (String sql)
+    {
+        if (_firstSQL == null) {
+            _firstSQL = sql;
+        }
+    }
+
+    protected <S extends Statement> S track (S stmt)
+    {
+        if (_count == _stmts.length) {
+            _stmts = Arrays.copyOf(_stmts, _count * 2);
+        }
+        _stmts[_count++] = stmt;
+        return stmt;
+    }
+
+    /** The connection to which we're currently delegating, or null. */
+    protected Connection _conn;
+
+    /** The statements created through this wrapper during the current operation. */
+    protected Statement[] _stmts = new Statement[4];
+
+    /** The number of valid entries in {@link #_stmts}. */
+    protected int _count;
+
+    /** Our (reusable) statement cache session. */
+    protected final StatementCache.Session _session = new StatementCache.Session();
+
+    /** Whether prepared statements are being obtained from {@link #_session}. */
+    protected boolean _cached;
+
+    /** The SQL of the first statement prepared during the current operation. */
+    protected String _firstSQL;
+}
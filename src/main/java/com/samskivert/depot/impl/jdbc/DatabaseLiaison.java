@@ -7,7 +7,9 @@ package com.samskivert.depot.impl.jdbc;
 
 import java.sql.Statement;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.util.List;
 
 /**
@@ -199,6 +201,63 @@ public interface DatabaseLiaison
     public boolean dropTable (Connection conn, String name)
         throws SQLException;
 
+    /**
+     * Configures the supplied statement (and its connection, if necessary) such that the results
+     * of executing it will be streamed from the server rather than read into memory in their
+     * entirety. This may disable auto-commit on the connection, in which case the caller is
+     * responsible for committing and restoring auto-commit once it has read the results.
+     *
+     * @param fetchSize the number of rows to fetch from the server at a time, if the database
+     * supports batched fetching.
+     */
+    public void configureStreaming (Connection conn, Statement stmt, int fetchSize)
+        throws SQLException;
+
+    /**
+     * Returns a description of the indexes of all tables in our schema, with the {@code
+     * TABLE_NAME}, {@code INDEX_NAME}, {@code NON_UNIQUE} and {@code COLUMN_NAME} columns of
+     * {@link java.sql.DatabaseMetaData#getIndexInfo}, or null if the database cannot describe the
+     * indexes of all tables at once.
+     */
+    public ResultSet getAllIndexInfo (Connection conn)
+        throws SQLException;
+
+    /**
+     * Returns a description of the primary keys of all tables in our schema, with the {@code
+     * TABLE_NAME}, {@code COLUMN_NAME} and {@code PK_NAME} columns of {@link
+     * java.sql.DatabaseMetaData#getPrimaryKeys}, or null if the database cannot describe the
+     * primary keys of all tables at once.
+     */
+    public ResultSet getAllPrimaryKeys (Connection conn)
+        throws SQLException;
+
+    /**
+     * Returns true if the database supports advisory locks: named locks, held by a connection's
+     * session, with which processes sharing the database coordinate work such as migrations.
+     */
+    public boolean supportsAdvisoryLocks ();
+
+    /**
+     * Acquires the named advisory lock on the supplied connection, waiting for up to {@code
+     * timeout} seconds while it is held by another session. The lock is held until it is
+     * {@link #releaseAdvisoryLock released} or the connection is closed.
+     *
+     * @return true if the lock was acquired, false if the wait timed out.
+     * @exception SQLFeatureNotSupportedException thrown if the database does not {@link
+     * #supportsAdvisoryLocks support} advisory locks.
+     */
+    public boolean acquireAdvisoryLock (Connection conn, String name, int timeout)
+        throws SQLException;
+
+    /**
+     * Releases the named advisory lock, which must be held by the supplied connection.
+     *
+     * @exception SQLFeatureNotSupportedException thrown if the database does not {@link
+     * #supportsAdvisoryLocks support} advisory locks.
+     */
+    public void releaseAdvisoryLock (Connection conn, String name)
+        throws SQLException;
+
     /**
      * Get the schema name to pass to DatabaseMetaData calls, which may be null.
      */
@@ -114,6 +114,24 @@ public class HsqldbLiaison extends BaseLiaison
     // uniqueness from the ColumnDefinitions to the uniqueConstraintColumns before we pass
     // it in to the super implementation.
     //
+    @Override // from DatabaseLiaison
+    public ResultSet getAllIndexInfo (Connection conn)
+        throws SQLException
+    {
+        return conn.createStatement().executeQuery(
+            "SELECT TABLE_NAME, INDEX_NAME, NON_UNIQUE, COLUMN_NAME" +
+            "  FROM INFORMATION_SCHEMA.SYSTEM_INDEXINFO WHERE TABLE_SCHEM = CURRENT_SCHEMA");
+    }
+
+    @Override // from DatabaseLiaison
+    public ResultSet getAllPrimaryKeys (Connection conn)
+        throws SQLException
+    {
+        return conn.createStatement().executeQuery(
+            "SELECT TABLE_NAME, COLUMN_NAME, PK_NAME" +
+            "  FROM INFORMATION_SCHEMA.SYSTEM_PRIMARYKEYS WHERE TABLE_SCHEM = CURRENT_SCHEMA");
+    }
+
     // TODO: Consider making this the general MO instead of a subclass override. In fact
     // it may be that uniqueness should be removed from ColumnDefinition.
     @Override // from DatabaseLiaison
@@ -5,9 +5,12 @@
 
 package com.samskivert.depot.impl.jdbc;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 import java.util.List;
 
+import com.google.common.hash.Hashing;
+
 /**
  * A database liaison for the MySQL database.
  */
@@ -145,6 +148,73 @@ public class MySQLLiaison extends BaseLiaison
         return true;
     }
 
+    @Override // from DatabaseLiaison
+    public void configureStreaming (Connection conn, Statement stmt, int fetchSize)
+        throws SQLException
+    {
+        // Connector/J reads the entire result set into memory unless the fetch size is this magic
+        // value, in which case it streams rows one at a time (the statement must be forward-only
+        // and read-only, which prepared statements are by default)
+        stmt.setFetchSize(Integer.MIN_VALUE);
+    }
+
+    @Override // from DatabaseLiaison
+    public boolean supportsAdvisoryLocks ()
+    {
+        return true;
+    }
+
+    @Override // from DatabaseLiaison
+    public boolean acquireAdvisoryLock (Connection conn, String name, int timeout)
+        throws SQLException
+    {
+        PreparedStatement stmt = conn.prepareStatement("SELECT GET_LOCK(?, ?)");
+        try {
+            stmt.setString(1, lockName(name));
+            stmt.setInt(2, timeout);
+            ResultSet rs = stmt.executeQuery();
+            // GET_LOCK yields 1 if the lock was obtained, 0 if it timed out and NULL on error
+            if (!rs.next() || rs.getObject(1) == null) {
+                throw new SQLException("Failed to acquire advisory lock " + name);
+            }
+            return rs.getInt(1) == 1;
+        } finally {
+            JDBCUtil.close(stmt);
+        }
+    }
+
+    @Override // from DatabaseLiaison
+    public void releaseAdvisoryLock (Connection conn, String name)
+        throws SQLException
+    {
+        PreparedStatement stmt = conn.prepareStatement("SELECT RELEASE_LOCK(?)");
+        try {
+            stmt.setString(1, lockName(name));
+            stmt.executeQuery().close();
+        } finally {
+            JDBCUtil.close(stmt);
+        }
+    }
+
+    @Override // from DatabaseLiaison
+    public ResultSet getAllIndexInfo (Connection conn)
+        throws SQLException
+    {
+        return conn.createStatement().executeQuery(
+            "SELECT TABLE_NAME, INDEX_NAME, NON_UNIQUE, COLUMN_NAME" +
+            "  FROM information_schema.STATISTICS WHERE TABLE_SCHEMA = DATABASE()");
+    }
+
+    @Override // from DatabaseLiaison
+    public ResultSet getAllPrimaryKeys (Connection conn)
+        throws SQLException
+    {
+        return conn.createStatement().executeQuery(
+            "SELECT TABLE_NAME, COLUMN_NAME, CONSTRAINT_NAME AS PK_NAME" +
+            "  FROM information_schema.KEY_COLUMN_USAGE" +
+            " WHERE TABLE_SCHEMA = DATABASE() AND CONSTRAINT_NAME = 'PRIMARY'");
+    }
+
     @Override // from DatabaseLiaison
     public String columnSQL (String column)
     {
@@ -162,4 +232,11 @@ public class MySQLLiaison extends BaseLiaison
     {
         return "`" + index + "`";
     }
+
+    /** Lock names are limited to 64 characters, so we hash any that are longer. */
+    protected static String lockName (String name)
+    {
+        return (name.length() <= 64) ? name :
+            Hashing.murmur3_128().hashString(name, StandardCharsets.UTF_8).toString();
+    }
 }
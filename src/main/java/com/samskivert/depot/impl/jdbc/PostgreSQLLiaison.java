@@ -5,8 +5,11 @@
 
 package com.samskivert.depot.impl.jdbc;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 
+import com.google.common.hash.Hashing;
+
 /**
  * A database liaison for the MySQL database.
  */
@@ -167,6 +170,65 @@ public class PostgreSQLLiaison extends BaseLiaison
         return true;
     }
 
+    @Override // from DatabaseLiaison
+    public void configureStreaming (Connection conn, Statement stmt, int fetchSize)
+        throws SQLException
+    {
+        // the PostgreSQL driver only uses a cursor to fetch results in batches if auto-commit is
+        // off; otherwise it reads the entire result set into memory regardless of fetch size
+        if (conn.getAutoCommit()) {
+            conn.setAutoCommit(false);
+        }
+        super.configureStreaming(conn, stmt, fetchSize);
+    }
+
+    @Override // from DatabaseLiaison
+    public boolean supportsAdvisoryLocks ()
+    {
+        return true;
+    }
+
+    @Override // from DatabaseLiaison
+    public boolean acquireAdvisoryLock (Connection conn, String name, int timeout)
+        throws SQLException
+    {
+        Statement stmt = conn.createStatement();
+        try {
+            // pg_advisory_lock waits indefinitely, unless we limit the time spent waiting for locks
+            stmt.execute("SET lock_timeout = " + (timeout * 1000L));
+            boolean acquired;
+            try {
+                stmt.executeQuery("SELECT pg_advisory_lock(" + lockKey(name) + ")").close();
+                acquired = true;
+            } catch (SQLException sqe) {
+                // 55P03 (lock_not_available) means that we timed out
+                if (!"55P03".equals(sqe.getSQLState())) {
+                    throw sqe;
+                }
+                if (!conn.getAutoCommit()) {
+                    conn.rollback(); // the failure aborted our transaction
+                }
+                acquired = false;
+            }
+            stmt.execute("RESET lock_timeout");
+            return acquired;
+        } finally {
+            JDBCUtil.close(stmt);
+        }
+    }
+
+    @Override // from DatabaseLiaison
+    public void releaseAdvisoryLock (Connection conn, String name)
+        throws SQLException
+    {
+        Statement stmt = conn.createStatement();
+        try {
+            stmt.executeQuery("SELECT pg_advisory_unlock(" + lockKey(name) + ")").close();
+        } finally {
+            JDBCUtil.close(stmt);
+        }
+    }
+
     @Override
     public String getSchemaName ()
     {
@@ -192,4 +254,10 @@ public class PostgreSQLLiaison extends BaseLiaison
     {
         return "\"" + index + "\"";
     }
+
+    /** Advisory locks are identified by a 64-bit key, which we derive from the lock's name. */
+    protected static long lockKey (String name)
+    {
+        return Hashing.murmur3_128().hashString(name, StandardCharsets.UTF_8).asLong();
+    }
 }
@@ -0,0 +1,296 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot.impl.jdbc;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import static com.samskivert.depot.Log.log;
+
+/**
+ * Maintains, for each connection on which it is used, a bounded LRU cache of prepared statements
+ * keyed on their SQL text and generated-keys mode. This allows drivers that prepare statements on
+ * the server (PostgreSQL, MySQL with server-side prepares) to parse and plan a query once per
+ * connection rather than once per operation.
+ *
+ * <p> Statements are checked out of the cache for the duration of an operation (via a {@link
+ * Session}) so that two threads sharing a connection never share a statement. A cached statement
+ * refers to its connection, so the cache retains every connection on which it has been used: a
+ * connection must be {@link #evict}ed when it fails or is closed, or it and its statements will
+ * never be released.
+ */
+public class StatementCache
+{
+    /**
+     * Tracks the statements checked out of the cache during a single operation. Sessions are not
+     * thread safe, but the cache from which they come is.
+     */
+    public static class Session
+    {
+        /**
+         * Returns a statement for the specified SQL and generated-keys mode (one of {@link
+         * Statement#RETURN_GENERATED_KEYS} or {@link Statement#NO_GENERATED_KEYS}), reusing a
+         * cached statement if one is available.
+         */
+        public PreparedStatement prepareStatement (String sql, int autoGeneratedKeys)
+            throws SQLException
+        {
+            Key key = new Key(sql, autoGeneratedKeys);
+            PreparedStatement stmt = _stmts.checkout(key);
+            if (stmt == null) {
+                stmt = (autoGeneratedKeys == Statement.NO_GENERATED_KEYS) ?
+                    _conn.prepareStatement(sql) : _conn.prepareStatement(sql, autoGeneratedKeys);
+            }
+            _keys.add(key);
+            _leased.add(stmt);
+            return stmt;
+        }
+
+        /**
+         * Returns all statements obtained via this session to the cache, closing any result sets
+         * left open on them and clearing their parameters. If this fails, the connection should be
+         * considered unusable.
+         */
+        public void release ()
+            throws SQLException
+        {
+            try {
+                for (int ii = 0, ll = _leased.size(); ii < ll; ii++) {
+                    PreparedStatement stmt = _leased.set(ii, null);
+                    if (stmt.isClosed()) {
+                        continue; // the caller closed it; nothing to return
+                    }
+                    ResultSet rs = stmt.getResultSet();
+                    if (rs != null) {
+                        rs.close();
+                    }
+                    stmt.clearParameters();
+                    _stmts.checkin(_keys.get(ii), stmt);
+                }
+            } finally {
+                reset();
+            }
+        }
+
+        /**
+         * Disassociates this session from its connection so that it may be reused. Any statements
+         * that were not returned to the cache via {@link #release} are closed.
+         */
+        public void reset ()
+        {
+            for (PreparedStatement stmt : _leased) {
+                if (stmt != null) {
+                    closeQuietly(stmt);
+                }
+            }
+            _keys.clear();
+            _leased.clear();
+            _conn = null;
+            _stmts = null;
+        }
+
+        protected void init (Connection conn, Statements stmts)
+        {
+            _conn = conn;
+            _stmts = stmts;
+        }
+
+        protected Connection _conn;
+        protected Statements _stmts;
+        protected final List<Key> _keys = Lists.newArrayListWithCapacity(1);
+        protected final List<PreparedStatement> _leased = Lists.newArrayListWithCapacity(1);
+    }
+
+    /**
+     * Creates a cache which retains at most {@code capacity} statements per connection.
+     */
+    public StatementCache (int capacity)
+    {
+        _capacity = capacity;
+    }
+
+    /**
+     * Returns the maximum number of statements retained per connection.
+     */
+    public int getCapacity ()
+    {
+        return _capacity;
+    }
+
+    /**
+     * Opens a session in which statements prepared on the supplied connection will be obtained
+     * from this cache. Returns null if this cache is disabled (has a capacity of zero).
+     */
+    public Session open (Connection conn)
+    {
+        Session session = new Session();
+        return open(conn, session) ? session : null;
+    }
+
+    /**
+     * Binds the supplied (reset) session to the specified connection, such that statements
+     * prepared via the session will be obtained from this cache. This allows a session to be
+     * reused across operations.
+     *
+     * @return true if the session was bound, false if this cache is disabled (has a capacity of
+     * zero).
+     */
+    public boolean open (Connection conn, Session session)
+    {
+        if (_capacity <= 0) {
+            return false;
+        }
+        Statements stmts = _conns.get(conn);
+        if (stmts == null) {
+            Statements nstmts = new Statements(_capacity);
+            stmts = _conns.putIfAbsent(conn, nstmts);
+            if (stmts == null) {
+                stmts = nstmts;
+            }
+        }
+        session.init(conn, stmts);
+        return true;
+    }
+
+    /**
+     * Returns the number of statements currently cached for the specified connection.
+     */
+    public int getCachedCount (Connection conn)
+    {
+        Statements stmts = _conns.get(conn);
+        return (stmts == null) ? 0 : stmts.size();
+    }
+
+    /**
+     * Discards and closes all statements cached for the specified connection. This must be called
+     * when a connection is closed, and when it fails, as its statements may be unusable even if
+     * the connection provider manages to revive the connection itself.
+     */
+    public void evict (Connection conn)
+    {
+        if (conn == null) {
+            return;
+        }
+        Statements stmts = _conns.remove(conn);
+        if (stmts != null) {
+            stmts.closeAll();
+        }
+    }
+
+    /**
+     * Discards and closes all cached statements for all connections.
+     */
+    public void clear ()
+    {
+        for (Connection conn : Lists.newArrayList(_conns.keySet())) {
+            evict(conn);
+        }
+    }
+
+    /** Identifies a prepared statement by its SQL and generated-keys mode. */
+    protected static class Key
+    {
+        public final String sql;
+        public final int autoGeneratedKeys;
+
+        public Key (String sql, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+
+        @Override public int hashCode () {
+            return 31 * sql.hashCode() + autoGeneratedKeys;
+        }
+
+        @Override public boolean equals (Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key okey = (Key)other;
+            return autoGeneratedKeys == okey.autoGeneratedKeys && sql.equals(okey.sql);
+        }
+    }
+
+    /** The idle statements cached for a single connection, in LRU order. */
+    protected static class Statements
+    {
+        public Statements (final int capacity) {
+            _stmts = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry (
+                    Map.Entry<Key, PreparedStatement> eldest) {
+                    if (size() <= capacity) {
+                        return false;
+                    }
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        public synchronized PreparedStatement checkout (Key key) {
+            PreparedStatement stmt = _stmts.remove(key);
+            try {
+                if (stmt != null && stmt.isClosed()) {
+                    stmt = null;
+                }
+            } catch (SQLException sqe) {
+                closeQuietly(stmt);
+                stmt = null;
+            }
+            return stmt;
+        }
+
+        public synchronized void checkin (Key key, PreparedStatement stmt) {
+            if (_closed || _stmts.containsKey(key)) {
+                // we've been evicted or another user of this connection already returned an
+                // identical statement; we only need one
+                closeQuietly(stmt);
+            } else {
+                _stmts.put(key, stmt);
+            }
+        }
+
+        public synchronized int size () {
+            return _stmts.size();
+        }
+
+        public synchronized void closeAll () {
+            for (PreparedStatement stmt : _stmts.values()) {
+                closeQuietly(stmt);
+            }
+            _stmts.clear();
+            _closed = true;
+        }
+
+        protected final LinkedHashMap<Key, PreparedStatement> _stmts;
+        protected boolean _closed;
+    }
+
+    protected static void closeQuietly (Statement stmt)
+    {
+        try {
+            stmt.close();
+        } catch (SQLException sqe) {
+            log.info("Failed to close cached statement", "error", sqe);
+        }
+    }
+
+    /** The maximum number of statements retained per connection. */
+    protected final int _capacity;
+
+    /** Our per-connection caches, keyed on the connection. */
+    protected final ConcurrentMap<Connection, Statements> _conns = Maps.newConcurrentMap();
+}
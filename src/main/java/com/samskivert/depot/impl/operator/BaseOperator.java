@@ -46,7 +46,7 @@ public abstract class BaseOperator<T> extends ArgumentExp<T>
     };
 
     public static <S, T> boolean all (Function<S, T> fun, S... obj) {
-        return Iterables.all(Arrays.asList(obj), Predicates.compose(Predicates.isNull(), fun));
+        return Iterables.all(Arrays.asList(obj), Predicates.compose(Predicates.notNull(), fun));
     }
 
     public static <S, T extends Comparable<T>> int compare (Function<S, T> fun, S lhs, S rhs) {
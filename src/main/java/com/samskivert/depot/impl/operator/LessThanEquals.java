@@ -33,9 +33,12 @@ public class LessThanEquals extends BinaryOperator<Boolean>
         if (all(NUMERICAL, left, right)) {
             return NUMERICAL.apply(left) <= NUMERICAL.apply(right);
         }
-        if (all(STRING, left, right) || all(DATE, left, right)) {
+        if (all(STRING, left, right)) {
             return compare(STRING, left, right) <= 0;
         }
+        if (all(DATE, left, right)) {
+            return compare(DATE, left, right) <= 0;
+        }
         return new NoValue("Non-comparable operand to '<=': (" + left + ", " + right + ")");
     }
 }
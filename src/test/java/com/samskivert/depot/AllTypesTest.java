@@ -4,8 +4,11 @@
 
 package com.samskivert.depot;
 
+import java.util.List;
 import java.util.Set;
 
+import com.google.common.collect.Lists;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -31,6 +34,40 @@ public class AllTypesTest extends TestBase
         assertNull(_repo.loadNoCache(in.recordId));
     }
 
+    @Test public void testSelectAll ()
+    {
+        List<AllTypesRecord> ins = Lists.newArrayList();
+        for (int ii = 1; ii <= 20; ii++) {
+            AllTypesRecord in = AllTypesRecord.createRecord(ii);
+            // exercise both null and non-null values for our nullable columns
+            if (ii % 2 == 0) {
+                in.nullBoxedByte = (byte)ii;
+                in.nullBoxedShort = (short)ii;
+                in.nullBoxedFloat = ii / 2f;
+            }
+            _repo.insert(in);
+            ins.add(in);
+        }
+
+        // every row of a multi-row result is decoded via the same column plan
+        List<AllTypesRecord> outs = _repo.from(AllTypesRecord.class).noCache().
+            ascending(AllTypesRecord.RECORD_ID).select();
+        assertEquals(ins.size(), outs.size());
+        for (int ii = 0; ii < ins.size(); ii++) {
+            AllTypesRecord in = ins.get(ii), out = outs.get(ii);
+            assertEquals(in.nullBoxedByte, out.nullBoxedByte);
+            assertEquals(in.nullBoxedShort, out.nullBoxedShort);
+            assertEquals(in.nullBoxedFloat, out.nullBoxedFloat);
+            // AllTypesRecord.equals() compares the nullable fields by reference
+            out.nullBoxedByte = in.nullBoxedByte;
+            out.nullBoxedShort = in.nullBoxedShort;
+            out.nullBoxedFloat = in.nullBoxedFloat;
+            assertEquals(in, out);
+        }
+
+        _repo.from(AllTypesRecord.class).whereTrue().delete();
+    }
+
     protected static class TestRepository extends DepotRepository
     {
         public AllTypesRecord loadNoCache (int recordId)
@@ -0,0 +1,170 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.AsyncDispatcher;
+import com.samskivert.depot.impl.KeyCacheKey;
+
+/**
+ * Tests the asynchronous repository and query methods.
+ */
+public class AsyncTest extends TestBase
+{
+    @After public void cleanup ()
+    {
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testLoad ()
+        throws Exception
+    {
+        final List<Runnable> dispatched = Lists.newArrayList();
+        _ctx.setAsyncExecutor(new Executor() {
+            public void execute (Runnable task) {
+                dispatched.add(task);
+                task.run();
+            }
+        }, 4, 16);
+        assertEquals(1, _repo.insertAsync(createTestRecord(1)).get().intValue());
+        assertEquals(1, dispatched.size());
+
+        // a cached record is returned without a trip to the executor
+        CompletableFuture<TestRecord> cached = _repo.loadAsync(TestRecord.getKey(1));
+        assertTrue(cached.isDone());
+        assertEquals(1, cached.get().recordId);
+        assertEquals(1, dispatched.size());
+
+        // but an uncached one is loaded on the executor
+        _ctx.cacheInvalidate(new KeyCacheKey(TestRecord.getKey(1)));
+        assertEquals(1, _repo.loadAsync(TestRecord.getKey(1)).get().recordId);
+        assertEquals(2, dispatched.size());
+
+        // as are query results
+        Query<TestRecord> query = _repo.from(TestRecord.class).where(
+            TestRecord.RECORD_ID.eq(1)).cacheContents();
+        assertEquals(1, query.selectAsync().get().size());
+        assertEquals(3, dispatched.size());
+        assertTrue(query.selectAsync().isDone());
+        assertEquals(3, dispatched.size());
+        assertNull(_repo.from(TestRecord.class).where(TestRecord.RECORD_ID.eq(2)).
+                   loadAsync().get());
+    }
+
+    @Test public void testLoadAfterModify ()
+        throws Exception
+    {
+        _repo.insert(createTestRecord(1));
+        _repo.load(TestRecord.getKey(1));
+        assertEquals(1, _repo.loadAsync(TestRecord.getKey(1)).get().recordId);
+
+        // modifications are seen by both synchronous and (cached) asynchronous loads
+        _repo.updatePartial(TestRecord.getKey(1), TestRecord.AGE, 42);
+        assertEquals(42, _repo.load(TestRecord.getKey(1)).age);
+        assertEquals(42, _repo.loadAsync(TestRecord.getKey(1)).get().age);
+        TestRecord rec = _repo.loadNoCache(1);
+        rec.name = "Priscilla";
+        _repo.update(rec);
+        assertEquals("Priscilla", _repo.load(TestRecord.getKey(1)).name);
+        assertEquals("Priscilla", _repo.loadAsync(TestRecord.getKey(1)).get().name);
+        _repo.delete(TestRecord.getKey(1));
+        assertNull(_repo.load(TestRecord.getKey(1)));
+        assertNull(_repo.loadAsync(TestRecord.getKey(1)).get());
+    }
+
+    @Test public void testModify ()
+        throws Exception
+    {
+        TestRecord rec = createTestRecord(1);
+        assertTrue(_repo.storeAsync(rec).get());
+        rec.name = "Priscilla";
+        assertFalse(_repo.storeAsync(rec).get());
+        assertEquals(1, _repo.updatePartialAsync(
+                         TestRecord.getKey(1), TestRecord.AGE, 42).get().intValue());
+        TestRecord loaded = _repo.loadNoCache(1);
+        assertEquals("Priscilla", loaded.name);
+        assertEquals(42, loaded.age);
+        assertEquals(1, _repo.loadAllAsync(
+                         Lists.newArrayList(TestRecord.getKey(1))).get().size());
+
+        // failures are reported via the future
+        try {
+            _repo.insertAsync(createTestRecord(1)).get();
+            fail("Duplicate insert succeeded");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof DuplicateKeyException);
+        }
+    }
+
+    @Test public void testTransaction ()
+        throws Exception
+    {
+        // operations started in a transaction are part of it, so they happen immediately
+        Transaction tx = _ctx.startTx();
+        try {
+            CompletableFuture<Integer> insert = _repo.insertAsync(createTestRecord(1));
+            assertTrue(insert.isDone());
+            assertEquals(1, insert.get().intValue());
+        } finally {
+            tx.rollback();
+        }
+        assertNull(_repo.loadNoCache(1));
+    }
+
+    @Test public void testBackpressure ()
+        throws Exception
+    {
+        final List<Runnable> held = Lists.newArrayList();
+        AsyncDispatcher async = new AsyncDispatcher(new Executor() {
+            public void execute (Runnable task) {
+                held.add(task);
+            }
+        }, 1, 1);
+        CompletableFuture<Integer> first = async.dispatch(constant(1));
+        CompletableFuture<Integer> second = async.dispatch(constant(2));
+        CompletableFuture<Integer> third = async.dispatch(constant(3));
+        // the first runs, the second waits its turn and the third is rejected
+        assertEquals(1, held.size());
+        assertEquals(2, async.getPending());
+        assertTrue(third.isCompletedExceptionally());
+        try {
+            third.get();
+            fail("Excess operation was not rejected");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof RejectedExecutionException);
+        }
+
+        held.remove(0).run();
+        assertEquals(1, first.get().intValue());
+        assertFalse(second.isDone());
+        held.remove(0).run();
+        assertEquals(2, second.get().intValue());
+        assertEquals(0, async.getPending());
+    }
+
+    protected static Callable<Integer> constant (final int value)
+    {
+        return new Callable<Integer>() {
+            public Integer call () {
+                return value;
+            }
+        };
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("asynctest");
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,122 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+/**
+ * Tests the batched insertion, update and storage of records.
+ */
+public class BatchTest extends TestBase
+{
+    @After public void cleanup ()
+    {
+        _repo.from(TestRecord.class).whereTrue().delete();
+        _genrepo.from(GeneratedValueRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testInsertAll ()
+    {
+        List<TestRecord> recs = Lists.newArrayList();
+        for (int ii = 1; ii <= 1234; ii++) {
+            recs.add(createTestRecord(ii));
+        }
+        assertEquals(1234, _repo.insertAll(recs));
+        assertEquals(1234, _repo.from(TestRecord.class).selectCount());
+        assertTestRecordEquals(recs.get(99), _repo.loadNoCache(100));
+
+        // the inserted records were cached
+        TestRecord cached = _ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(1234)));
+        assertNotNull(cached);
+        assertEquals(1234, cached.recordId);
+
+        // a batch that conflicts with an existing row fails as a single insert would
+        try {
+            _repo.insertAll(Lists.newArrayList(createTestRecord(2000), createTestRecord(5)));
+            fail("Inserted duplicate record");
+        } catch (DuplicateKeyException dke) {
+            // expected
+        }
+    }
+
+    @Test public void testInsertGenerated ()
+    {
+        List<GeneratedValueRecord> recs = Lists.newArrayList();
+        for (int ii = 0; ii < 10; ii++) {
+            GeneratedValueRecord rec = new GeneratedValueRecord();
+            rec.value = ii;
+            recs.add(rec);
+        }
+        assertEquals(10, _genrepo.insertAll(recs));
+        Set<Long> ids = Sets.newHashSet();
+        for (GeneratedValueRecord rec : recs) {
+            assertTrue(rec.recordId > 0);
+            ids.add(rec.recordId);
+            GeneratedValueRecord loaded = _genrepo.load(GeneratedValueRecord.getKey(rec.recordId));
+            assertEquals(rec.value, loaded.value);
+        }
+        assertEquals(10, ids.size());
+    }
+
+    @Test public void testUpdateAndStoreAll ()
+    {
+        List<TestRecord> recs = Lists.newArrayList();
+        for (int ii = 1; ii <= 20; ii++) {
+            recs.add(createTestRecord(ii));
+        }
+        _repo.insertAll(recs);
+
+        for (TestRecord rec : recs) {
+            rec.age = rec.recordId;
+        }
+        assertEquals(20, _repo.updateAll(recs));
+        assertEquals(7, _repo.loadNoCache(7).age);
+        // the updated records were flushed from the cache
+        assertEquals(7, _repo.loadWithCache(7).age);
+
+        // store ten existing records and five new ones
+        List<TestRecord> store = Lists.newArrayList(recs.subList(0, 10));
+        for (TestRecord rec : store) {
+            rec.name = "Priscilla";
+        }
+        for (int ii = 21; ii <= 25; ii++) {
+            store.add(createTestRecord(ii));
+        }
+        assertEquals(5, _repo.storeAll(store));
+        assertEquals(25, _repo.from(TestRecord.class).selectCount());
+        assertEquals(10, _repo.from(TestRecord.class).where(
+                         TestRecord.NAME.eq("Priscilla")).selectCount());
+        assertEquals("Priscilla", _repo.loadWithCache(3).name);
+        assertEquals("Elvis", _repo.loadWithCache(23).name);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testMixedClasses ()
+    {
+        List<PersistentRecord> recs = Lists.newArrayList();
+        recs.add(createTestRecord(1));
+        recs.add(new GeneratedValueRecord());
+        _repo.insertAll(recs);
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("batchtest");
+    protected TestRepository _repo = new TestRepository(_ctx);
+    protected DepotRepository _genrepo = new DepotRepository(_ctx) {
+        @Override
+        protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes) {
+            classes.add(GeneratedValueRecord.class);
+        }
+    };
+}
@@ -0,0 +1,97 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.clause.Limit;
+import com.samskivert.depot.clause.OrderBy;
+import com.samskivert.depot.clause.QueryClause;
+import com.samskivert.depot.clause.SelectClause;
+import com.samskivert.depot.clause.Where;
+import com.samskivert.depot.expression.SQLExpression;
+import com.samskivert.depot.impl.ClauseFingerprint;
+
+/**
+ * Tests the {@link ClauseFingerprint} cache keys.
+ */
+public class ClauseFingerprintTest extends TestBase
+{
+    @Test public void testEquality ()
+    {
+        Serializable key = keyFor(new Where(TestRecord.RECORD_ID.in(1, 2, 3)),
+                                  OrderBy.ascending(TestRecord.AGE), new Limit(0, 10));
+        assertTrue(key instanceof ClauseFingerprint);
+        Serializable same = keyFor(new Where(TestRecord.RECORD_ID.in(1, 2, 3)),
+                                   OrderBy.ascending(TestRecord.AGE), new Limit(0, 10));
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+        assertEquals(((ClauseFingerprint)key).getFingerprint(),
+                     ((ClauseFingerprint)same).getFingerprint());
+
+        // any difference in structure or values yields a different key
+        assertFalse(key.equals(keyFor(new Where(TestRecord.RECORD_ID.in(1, 2, 4)),
+                                      OrderBy.ascending(TestRecord.AGE), new Limit(0, 10))));
+        assertFalse(key.equals(keyFor(new Where(TestRecord.RECORD_ID.in(1, 2)),
+                                      OrderBy.ascending(TestRecord.AGE), new Limit(0, 10))));
+        assertFalse(key.equals(keyFor(new Where(TestRecord.RECORD_ID.in(1, 2, 3)),
+                                      OrderBy.descending(TestRecord.AGE), new Limit(0, 10))));
+        assertFalse(key.equals(keyFor(new Where(TestRecord.RECORD_ID.in(1, 2, 3)),
+                                      OrderBy.ascending(TestRecord.AGE), new Limit(10, 10))));
+        assertFalse(key.equals(keyFor(new Where(TestRecord.AGE.in(1, 2, 3)),
+                                      OrderBy.ascending(TestRecord.AGE), new Limit(0, 10))));
+        assertFalse(keyFor(new Where(TestRecord.NAME.eq("1"))).equals(
+                        keyFor(new Where(TestRecord.NAME.eq("10")))));
+        assertFalse(keyFor(new Where(TestRecord.RECORD_ID.eq(1))).equals(
+                        keyFor(new Where(TestRecord.RECORD_ID.eq(1L)))));
+        assertFalse(keyFor(new Where(TestRecord.RECORD_ID.eq(1))).equals(
+                        keyFor(new Where(TestRecord.RECORD_ID.notEq(1)))));
+    }
+
+    @Test public void testLargeInList ()
+    {
+        List<Integer> ids = Lists.newArrayList();
+        for (int ii = 0; ii < 10000; ii++) {
+            ids.add(ii);
+        }
+        SelectClause select = new SelectClause(
+            TestRecord.class, new SQLExpression<?>[] { TestRecord.RECORD_ID },
+            new Where(TestRecord.RECORD_ID.in(ids)));
+        ClauseFingerprint key = (ClauseFingerprint)ClauseFingerprint.keyFor(select);
+        // the values are written as varints without per-value tags
+        assertTrue(key.size() < 3 * ids.size());
+        assertTrue(key.size() < select.toString().length() / 2);
+    }
+
+    @Test public void testSerialization ()
+        throws Exception
+    {
+        Serializable key = keyFor(new Where(TestRecord.NAME.eq("Elvis")), new Limit(5, 5));
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(key);
+        oout.close();
+        Object copy = new ObjectInputStream(
+            new ByteArrayInputStream(bout.toByteArray())).readObject();
+        assertEquals(key, copy);
+        assertEquals(key.hashCode(), copy.hashCode());
+    }
+
+    protected static Serializable keyFor (QueryClause... clauses)
+    {
+        return ClauseFingerprint.keyFor(new SelectClause(
+            TestRecord.class, new SQLExpression<?>[] { TestRecord.RECORD_ID }, clauses));
+    }
+}
@@ -4,13 +4,23 @@
 
 package com.samskivert.depot;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
 
+import com.samskivert.depot.impl.KeyCacheKey;
+
 /**
  * Tests simple create/read/update/delete behaviors.
  */
@@ -60,7 +70,130 @@ public class CrudTest extends TestBase
         assertNull(_repo.loadNoCache(in.recordId));
     }
 
+    @Test public void testUpdatePartialPatchesCache ()
+    {
+        TestRecord one = createTestRecord(1), two = createTestRecord(2);
+        _repo.insert(one);
+        _repo.insert(two);
+
+        // constant values are applied to the cached record rather than flushing it
+        _repo.updatePartial(TestRecord.getKey(1), TestRecord.NAME, "Patched", TestRecord.AGE, 77);
+        TestRecord cached = _ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(1)));
+        assertNotNull(cached);
+        assertEquals("Patched", cached.name);
+        assertEquals(77, cached.age);
+        assertTestRecordEquals(_repo.loadNoCache(1), cached);
+
+        // as they are for every record in a key set
+        KeySet<TestRecord> keys = KeySet.newKeySet(
+            TestRecord.class, Arrays.asList(TestRecord.getKey(1), TestRecord.getKey(2)));
+        _repo.updatePartial(TestRecord.class, keys, keys, TestRecord.HOME_TOWN, "Here");
+        for (int id = 1; id <= 2; id++) {
+            cached = _ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(id)));
+            assertEquals("Here", cached.homeTown);
+            assertTestRecordEquals(_repo.loadNoCache(id), cached);
+        }
+
+        // but values computed by the database flush the cached record
+        _repo.updatePartial(TestRecord.getKey(1), TestRecord.AGE, TestRecord.AGE.plus(1));
+        assertNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(1))));
+        assertEquals(78, _repo.loadNoCache(1).age);
+
+        // as does an update that matches fewer records than it was given
+        keys = KeySet.newKeySet(
+            TestRecord.class, Arrays.asList(TestRecord.getKey(2), TestRecord.getKey(3)));
+        assertEquals(1, _repo.updatePartial(TestRecord.class, keys, keys, TestRecord.AGE, 5));
+        assertNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(2))));
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testCacheReplace ()
+    {
+        _repo.insert(createTestRecord(1));
+        KeyCacheKey ckey = new KeyCacheKey(TestRecord.getKey(1));
+        TestRecord cached = _ctx.cacheLookup(ckey);
+        assertNotNull(cached);
+
+        // a record is replaced only if it is still the one we expected
+        TestRecord patched = (TestRecord)cached.clone();
+        patched.name = "Patched";
+        assertTrue(_ctx.cacheReplace(CacheAdapter.CacheCategory.RECORD, ckey, cached, patched));
+        assertSame(patched, _ctx.cacheLookup(ckey));
+
+        // otherwise (as when it was modified concurrently) it is flushed
+        TestRecord stale = (TestRecord)cached.clone();
+        stale.name = "Stale";
+        assertFalse(_ctx.cacheReplace(CacheAdapter.CacheCategory.RECORD, ckey, cached, stale));
+        assertNull(_ctx.cacheLookup(ckey));
+
+        // as it is when it was flushed in the meantime
+        assertFalse(_ctx.cacheReplace(CacheAdapter.CacheCategory.RECORD, ckey, patched, stale));
+        assertNull(_ctx.cacheLookup(ckey));
+        assertTestRecordEquals(_repo.loadNoCache(1), _repo.load(TestRecord.getKey(1)));
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testSharedConnectionMonitor ()
+        throws Exception
+    {
+        // our driver synchronizes on its own connections, so we hand out proxies that don't, to
+        // see that Depot's operations synchronize on the connections their provider hands out
+        Properties props = new Properties();
+        props.put("default.url", "jdbc:hsqldb:mem:monitortest");
+        props.put("default.username", "sa");
+        props.put("default.password", "");
+        final Map<Connection, Connection> proxies = Maps.newConcurrentMap();
+        ConnectionProvider conprov = new StaticConnectionProvider(props) {
+            @Override public Connection getConnection (String ident, boolean readOnly) {
+                final Connection conn = super.getConnection(ident, readOnly);
+                Connection proxy = proxies.get(conn);
+                if (proxy == null) {
+                    proxy = (Connection)Proxy.newProxyInstance(
+                        getClass().getClassLoader(), new Class<?>[] { Connection.class },
+                        new InvocationHandler() {
+                            public Object invoke (Object p, Method m, Object[] args)
+                                throws Throwable {
+                                try {
+                                    return m.invoke(conn, args);
+                                } catch (InvocationTargetException ite) {
+                                    throw ite.getCause();
+                                }
+                            }
+                        });
+                    proxies.put(conn, proxy);
+                }
+                return proxy;
+            }
+        };
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init("monitortest", conprov, null);
+        final TestRepository repo = new TestRepository(ctx);
+        repo.insert(createTestRecord(1));
+
+        // code that shares a connection with us synchronizes on it, and our operations wait
+        Connection conn = conprov.getConnection("monitortest", true);
+        final TestRecord[] loaded = new TestRecord[1];
+        Thread loader = new Thread() {
+            @Override public void run () {
+                loaded[0] = repo.loadNoCache(1);
+            }
+        };
+        synchronized (conn) {
+            loader.start();
+            loader.join(200);
+            assertTrue(loader.isAlive());
+        }
+        loader.join();
+        assertEquals(1, loaded[0].recordId);
+
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
     // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
     // clean up after ourselves in every test; thus we go ahead and share a repository
-    protected TestRepository _repo = createTestRepository();
+    protected PersistenceContext _ctx = createPersistenceContext();
+    protected TestRepository _repo = new TestRepository(_ctx);
 }
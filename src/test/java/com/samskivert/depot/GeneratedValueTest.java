@@ -4,6 +4,8 @@
 
 package com.samskivert.depot;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
 import java.util.List;
 import java.util.Set;
 
@@ -11,8 +13,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class GeneratedValueTest
 {
@@ -49,5 +54,73 @@ public class GeneratedValueTest
         assertEquals(1, rec.recordId);
     }
 
+    @Test public void concurrentTableGeneratedValues ()
+        throws Exception
+    {
+        // create several contexts (each with its own connection) on the same database
+        List<DepotRepository> repos = Lists.newArrayList();
+        for (int ii = 0; ii < 3; ii++) {
+            PersistenceContext ctx = TestBase.createPersistenceContext("tablegen");
+            DepotRepository repo = new DepotRepository(ctx) {
+                @Override
+                protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes) {
+                    classes.add(TableGeneratedRecord.class);
+                }
+            };
+            ctx.initializeRepositories(true);
+            repos.add(repo);
+        }
+
+        // insert records from two threads per context
+        final int perThread = 50;
+        final List<Throwable> errors = Lists.newArrayList();
+        List<Thread> threads = Lists.newArrayList();
+        for (int ii = 0; ii < repos.size() * 2; ii++) {
+            final DepotRepository repo = repos.get(ii / 2);
+            final int owner = ii;
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    try {
+                        for (int rr = 0; rr < perThread; rr++) {
+                            TableGeneratedRecord rec = new TableGeneratedRecord();
+                            rec.owner = owner;
+                            repo.insert(rec);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Lists.newArrayList(), errors);
+
+        // every record must have received a distinct key
+        int total = threads.size() * perThread;
+        List<Long> ids = repos.get(0).from(TableGeneratedRecord.class).
+            select(TableGeneratedRecord.RECORD_ID);
+        assertEquals(total, ids.size());
+        assertEquals(total, Sets.newHashSet(ids).size());
+
+        // and we should have claimed blocks of values from the table far fewer times than we
+        // inserted records (each claim advances the counter by the allocation size of 10)
+        PersistenceContext ctx = repos.get(0)._ctx;
+        Connection conn = ctx._conprov.getConnection("tablegen", true);
+        ResultSet rs = conn.createStatement().executeQuery(
+            "SELECT \"value\" FROM \"IdSequences\" WHERE \"sequence\" = 'TABLE_GENERATED'");
+        assertTrue(rs.next());
+        long claims = (rs.getLong(1) - 1) / 10;
+        ctx._conprov.releaseConnection("tablegen", true, conn);
+        assertTrue("Too many claims: " + claims, claims < total / 2);
+
+        repos.get(0).from(TableGeneratedRecord.class).whereTrue().delete();
+    }
+
     protected DepotRepository _dr;
 }
@@ -0,0 +1,170 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Properties;
+import java.util.Set;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.annotation.GeneratedValue;
+import com.samskivert.depot.annotation.GenerationType;
+import com.samskivert.depot.annotation.Id;
+import com.samskivert.depot.annotation.TableGenerator;
+import com.samskivert.depot.expression.ColumnExp;
+
+/**
+ * Tests the initialization of repositories and their records.
+ */
+public class InitializeTest extends TestBase
+{
+    @Test public void testConcurrentInit ()
+    {
+        // create all of the tables at once (on a provider that lets them really do so)
+        PersistenceContext ctx = createPooledContext("inittest");
+        ctx.setInitConcurrency(4);
+        InitRepository repo = new InitRepository(ctx);
+        ctx.initializeRepositories(true);
+        repo.insert(createTestRecord(1));
+        assertEquals(1, repo.loadNoCache(1).recordId);
+        assertEquals(0, repo.from(AllTypesRecord.class).selectCount());
+        ctx.shutdown();
+
+        // then check them all against a snapshot of the catalog
+        String verify = "com.samskivert.depot.verifyschema";
+        System.setProperty(verify, "true");
+        try {
+            ctx = createPooledContext("inittest");
+            ctx.setInitConcurrency(4);
+            repo = new InitRepository(ctx);
+            ctx.initializeRepositories(true);
+            assertEquals(1, repo.from(TestRecord.class).selectCount());
+        } finally {
+            System.clearProperty(verify);
+        }
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
+    @Test public void testConcurrentGenerators ()
+    {
+        // records whose value generators share a table create it (and their rows in it) at once
+        for (int ii = 0; ii < 10; ii++) {
+            PersistenceContext ctx = createPooledContext("initgentest" + ii);
+            ctx.setInitConcurrency(4);
+            GeneratorRepository repo = new GeneratorRepository(ctx);
+            ctx.initializeRepositories(true);
+            assertEquals(1, repo.insertOne(GenARecord.class).recordId);
+            assertEquals(1, repo.insertOne(GenBRecord.class).recordId);
+            assertEquals(1, repo.insertOne(GenCRecord.class).recordId);
+            assertEquals(1, repo.insertOne(GenDRecord.class).recordId);
+            ctx.shutdown();
+        }
+    }
+
+    @Test public void testSerialInit ()
+    {
+        PersistenceContext ctx = createPersistenceContext("initserialtest");
+        ctx.setInitConcurrency(1);
+        InitRepository repo = new InitRepository(ctx);
+        ctx.initializeRepositories(true);
+        repo.insert(createTestRecord(1));
+        assertEquals(1, repo.from(TestRecord.class).selectCount());
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
+    /** A record whose key is generated from the shared IdSequences table. */
+    public static abstract class GenRecord extends PersistentRecord
+    {
+        public static final int SCHEMA_VERSION = 1;
+
+        @Id @GeneratedValue(strategy=GenerationType.TABLE, generator="gen")
+        public int recordId;
+    }
+
+    @TableGenerator(name="gen", pkColumnValue="GEN_A")
+    public static class GenARecord extends GenRecord
+    {
+        public static final ColumnExp<Integer> RECORD_ID = colexp(GenARecord.class, "recordId");
+        static { registerKeyFields(RECORD_ID); }
+    }
+
+    @TableGenerator(name="gen", pkColumnValue="GEN_B")
+    public static class GenBRecord extends GenRecord
+    {
+        public static final ColumnExp<Integer> RECORD_ID = colexp(GenBRecord.class, "recordId");
+        static { registerKeyFields(RECORD_ID); }
+    }
+
+    @TableGenerator(name="gen", pkColumnValue="GEN_C")
+    public static class GenCRecord extends GenRecord
+    {
+        public static final ColumnExp<Integer> RECORD_ID = colexp(GenCRecord.class, "recordId");
+        static { registerKeyFields(RECORD_ID); }
+    }
+
+    @TableGenerator(name="gen", pkColumnValue="GEN_D")
+    public static class GenDRecord extends GenRecord
+    {
+        public static final ColumnExp<Integer> RECORD_ID = colexp(GenDRecord.class, "recordId");
+        static { registerKeyFields(RECORD_ID); }
+    }
+
+    /** Manages the records whose keys are generated from a shared table. */
+    protected static class GeneratorRepository extends DepotRepository
+    {
+        public GeneratorRepository (PersistenceContext ctx) {
+            super(ctx);
+        }
+
+        public <T extends GenRecord> T insertOne (Class<T> type) {
+            try {
+                T record = type.getConstructor().newInstance();
+                insert(record);
+                return record;
+            } catch (ReflectiveOperationException roe) {
+                throw new RuntimeException(roe);
+            }
+        }
+
+        @Override protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes) {
+            classes.add(GenARecord.class);
+            classes.add(GenBRecord.class);
+            classes.add(GenCRecord.class);
+            classes.add(GenDRecord.class);
+        }
+    }
+
+    /** Manages a mix of records, some of them computed. */
+    protected static class InitRepository extends TestRepository
+    {
+        public InitRepository (PersistenceContext ctx) {
+            super(ctx);
+        }
+
+        @Override protected void getManagedRecords (Set<Class<? extends PersistentRecord>> classes) {
+            super.getManagedRecords(classes);
+            classes.add(AllTypesRecord.class);
+            classes.add(CountRecord.class);
+        }
+    }
+
+    /**
+     * Creates a context on a pooled provider, which (unlike the static provider) lets concurrent
+     * operations proceed on separate connections.
+     */
+    protected static PersistenceContext createPooledContext (String dbname)
+    {
+        Properties props = new Properties();
+        props.setProperty("default.url", "jdbc:hsqldb:mem:" + dbname);
+        props.setProperty("default.username", "sa");
+        props.setProperty("default.password", "");
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init(dbname, new PooledConnectionProvider(props), new TestCacheAdapter());
+        return ctx;
+    }
+}
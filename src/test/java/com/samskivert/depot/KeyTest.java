@@ -4,7 +4,14 @@
 
 package com.samskivert.depot;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.EnumSet;
+import java.util.List;
+
+import com.google.common.collect.Lists;
 
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -69,6 +76,51 @@ public class KeyTest extends TestBase
         _repo.from(EnumKeyRecord.class).whereTrue().delete();
     }
 
+    @Test public void testPrimitiveKeySet ()
+        throws Exception
+    {
+        List<Key<TestRecord>> keys = Lists.newArrayList();
+        for (int ii = 0; ii < 1000; ii++) {
+            keys.add(TestRecord.getKey(ii));
+        }
+        KeySet<TestRecord> kset = KeySet.newKeySet(TestRecord.class, keys);
+        assertTrue(kset instanceof KeySet.IntKeySet<?>);
+        assertEquals(keys, Lists.newArrayList(kset));
+        assertEquals(kset, KeySet.newSimpleKeySet(TestRecord.class, Lists.transform(
+                         keys, Key.<TestRecord>toInt())));
+
+        // the primitive set serializes to a fraction of the size of its boxed counterpart
+        Comparable<?>[] boxed = new Comparable<?>[keys.size()];
+        for (int ii = 0; ii < boxed.length; ii++) {
+            boxed[ii] = ii;
+        }
+        KeySet<TestRecord> bset = new KeySet.SingleKeySet<TestRecord>(TestRecord.class, boxed);
+        byte[] data = serialize(kset);
+        assertTrue(data.length * 2 < serialize(bset).length);
+
+        // but is equal to it, as it contains the same keys
+        assertEquals(bset, kset);
+        assertEquals(kset, bset);
+        assertEquals(bset.hashCode(), kset.hashCode());
+        assertEquals(bset.toString(), kset.toString());
+        assertEquals(kset, new ObjectInputStream(new ByteArrayInputStream(data)).readObject());
+
+        // keys of mixed types are stored boxed
+        KeySet<TestRecord> mixed = KeySet.newSimpleKeySet(
+            TestRecord.class, Lists.<Comparable<?>>newArrayList(1, 2L));
+        assertTrue(mixed instanceof KeySet.SingleKeySet<?>);
+    }
+
+    protected static byte[] serialize (Object object)
+        throws Exception
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(object);
+        oout.close();
+        return bout.toByteArray();
+    }
+
     // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
     // clean up after ourselves in every test; thus we go ahead and share a repository
     protected TestRepository _repo = createTestRepository();
@@ -0,0 +1,140 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+/**
+ * Tests loading records by key, partly from the cache and partly from the database.
+ */
+public class LoadAllTest extends TestBase
+{
+    @After public void cleanup ()
+    {
+        _repo.from(TestRecord.class).whereTrue().delete();
+        _repo.from(MonkeyRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testLoadAll ()
+    {
+        // insert enough records that the misses must be loaded in several chunks
+        List<TestRecord> recs = Lists.newArrayList();
+        for (int ii = 1; ii <= 5000; ii++) {
+            recs.add(createTestRecord(ii));
+        }
+        _repo.insertAll(recs);
+
+        // evict every third record from the cache
+        for (int ii = 1; ii <= 5000; ii += 3) {
+            _ctx.cacheInvalidate(new KeyCacheKey(TestRecord.getKey(ii)));
+        }
+
+        // ask for all of the records (in descending order) and a few that don't exist
+        List<Key<TestRecord>> keys = Lists.newArrayList();
+        for (int ii = 5003; ii >= 1; ii--) {
+            keys.add(TestRecord.getKey(ii));
+        }
+        TestCacheAdapter cache = (TestCacheAdapter)_ctx.getCacheAdapter();
+        int probes = cache.getBulkLookups();
+        List<TestRecord> loaded = _repo.loadAll(keys);
+        assertEquals(1, cache.getBulkLookups() - probes);
+        assertEquals(5000, loaded.size());
+        for (int ii = 0; ii < loaded.size(); ii++) {
+            assertEquals(5000 - ii, loaded.get(ii).recordId);
+        }
+        assertTestRecordEquals(recs.get(0), loaded.get(4999));
+
+        // the misses were cached, so a second load finds everything in a single probe
+        assertNotNull(_ctx.cacheLookup(new KeyCacheKey(TestRecord.getKey(4))));
+        probes = cache.getBulkLookups();
+        assertEquals(5000, _repo.loadAll(keys).size());
+        assertEquals(1, cache.getBulkLookups() - probes);
+    }
+
+    @Test public void testLargeKeySets ()
+    {
+        _ctx.setTrackQueryShapes(true);
+        List<MonkeyRecord> monkeys = Lists.newArrayList();
+        List<Key<MonkeyRecord>> keys = Lists.newArrayList();
+        for (int ii = 1; ii <= 300; ii++) {
+            MonkeyRecord monkey = new MonkeyRecord();
+            monkey.species = ii % 7;
+            monkey.monkeyId = ii;
+            monkey.name = "Monkey " + ii;
+            monkeys.add(monkey);
+            keys.add(MonkeyRecord.getKey(monkey.species, monkey.monkeyId));
+        }
+        _repo.insertAll(monkeys);
+        for (Key<MonkeyRecord> key : keys) {
+            _ctx.cacheInvalidate(new KeyCacheKey(key));
+        }
+
+        // large sets of single and multi-column keys are matched by unnesting arrays
+        keys.add(MonkeyRecord.getKey(1, 301)); // no such monkey
+        List<MonkeyRecord> loaded = _repo.loadAll(keys);
+        assertEquals(300, loaded.size());
+        for (int ii = 0; ii < loaded.size(); ii++) {
+            assertEquals("Monkey " + (ii+1), loaded.get(ii).name);
+        }
+        for (int ii = 1; ii <= 200; ii++) {
+            _repo.insert(createTestRecord(ii));
+            _ctx.cacheInvalidate(new KeyCacheKey(TestRecord.getKey(ii)));
+        }
+        List<Key<TestRecord>> tkeys = Lists.newArrayList();
+        for (int ii = 200; ii >= 1; ii -= 2) {
+            tkeys.add(TestRecord.getKey(ii));
+        }
+        List<TestRecord> trecs = _repo.loadAll(tkeys);
+        assertEquals(100, trecs.size());
+        assertEquals(200, trecs.get(0).recordId);
+        int unnested = 0;
+        for (String sql : _ctx.getStats().shapes.keySet()) {
+            if (sql.toLowerCase().contains("unnest")) {
+                unnested++;
+            }
+        }
+        assertEquals(2, unnested);
+
+        // as are deletions
+        assertEquals(200, _repo.deleteAll(MonkeyRecord.class, KeySet.newKeySet(
+                         MonkeyRecord.class, keys.subList(0, 200))));
+        assertEquals(100, _repo.from(MonkeyRecord.class).select().size());
+    }
+
+    @Test public void testMixedKeySets ()
+    {
+        _ctx.setTrackQueryShapes(true);
+        for (int ii = 1; ii <= 100; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+
+        // a set whose values are not all of one type can't be bound as an array, even if its
+        // first value could be, so it is matched with an in() list (with a plan of its own)
+        List<Comparable<?>> ids = Lists.newArrayList();
+        for (int ii = 1; ii <= 100; ii++) {
+            ids.add(ii % 2 == 0 ? (Comparable<?>)Long.valueOf(ii) : (Comparable<?>)ii);
+        }
+        KeySet<TestRecord> mixed = KeySet.newSimpleKeySet(TestRecord.class, ids);
+        assertNull(mixed.getKeyClass(0));
+        assertEquals(Integer.class, KeySet.newSimpleKeySet(
+                         TestRecord.class, ids.subList(0, 1)).getKeyClass(0));
+        assertEquals(100, _repo.from(TestRecord.class).where(mixed).
+                     noCache().select().size());
+        for (String sql : _ctx.getStats().shapes.keySet()) {
+            assertFalse(sql, sql.toLowerCase().contains("unnest"));
+        }
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("loadalltest");
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
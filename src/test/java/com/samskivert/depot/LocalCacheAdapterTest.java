@@ -0,0 +1,179 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.CacheAdapter.CacheCategory;
+import com.samskivert.depot.CacheAdapter.CachedValue;
+import com.samskivert.depot.LocalCacheAdapter.CategoryConfig;
+
+/**
+ * Tests the {@link LocalCacheAdapter}.
+ */
+public class LocalCacheAdapterTest extends TestBase
+{
+    @Test public void testBasics ()
+    {
+        LocalCacheAdapter cache = new LocalCacheAdapter();
+        assertNull(cache.lookup("a", 1));
+        cache.store(CacheCategory.RECORD, "a", 1, "one");
+        cache.store(CacheCategory.RECORD, "a", 2, null);
+        cache.store(CacheCategory.RECORD, "b", 1, "uno");
+        assertEquals("one", cache.<String>lookup("a", 1).getValue());
+        assertNull(cache.<String>lookup("a", 2).getValue()); // a cached null
+        assertEquals("uno", cache.<String>lookup("b", 1).getValue());
+
+        cache.store(CacheCategory.RECORD, "a", 1, "won");
+        assertEquals("won", cache.<String>lookup("a", 1).getValue());
+        Map<Serializable, CachedValue<String>> all =
+            cache.lookupAll("a", Lists.<Serializable>newArrayList(1, 2, 3));
+        assertEquals(Sets.<Serializable>newHashSet(1, 2), all.keySet());
+
+        assertEquals(Sets.<Serializable>newHashSet(1, 2), Sets.newHashSet(cache.enumerate("a")));
+        cache.remove("a", 2);
+        assertNull(cache.lookup("a", 2));
+        assertEquals(Sets.<Serializable>newHashSet(1), Sets.newHashSet(cache.enumerate("a")));
+        cache.clear("a", true);
+        assertNull(cache.lookup("a", 1));
+        assertFalse(cache.enumerate("a").iterator().hasNext());
+        assertEquals("uno", cache.<String>lookup("b", 1).getValue());
+
+        LocalCacheAdapter.CategoryStats stats = cache.getStats(CacheCategory.RECORD);
+        assertEquals(1, stats.size);
+        assertEquals(7, stats.hits);
+        assertEquals(3, stats.misses); // the lookup before "a" was first stored is not counted
+    }
+
+    @Test public void testBoundedByWeight ()
+    {
+        CategoryConfig config = new CategoryConfig(1000, 0, 0);
+        LocalCacheAdapter cache = new LocalCacheAdapter(
+            config, config, config, config, LocalCacheAdapter.DEFAULT_WEIGHER);
+
+        // a frequently used working set
+        for (int ii = 0; ii < 500; ii++) {
+            cache.store(CacheCategory.RECORD, "hot", ii, ii);
+        }
+        for (int pass = 0; pass < 5; pass++) {
+            for (int ii = 0; ii < 500; ii++) {
+                cache.lookup("hot", ii);
+            }
+        }
+
+        // a scan of once-used entries much larger than the cache should not flush it
+        for (int ii = 0; ii < 10000; ii++) {
+            cache.store(CacheCategory.RECORD, "scan", ii, ii);
+        }
+        LocalCacheAdapter.CategoryStats stats = cache.getStats(CacheCategory.RECORD);
+        assertTrue(stats.toString(), stats.weight <= 1000);
+        assertTrue(stats.toString(), stats.evictions >= 9500);
+        int hot = 0;
+        for (int ii = 0; ii < 500; ii++) {
+            if (cache.lookup("hot", ii) != null) {
+                hot++;
+            }
+        }
+        assertTrue("Only " + hot + " hot entries survived", hot > 400);
+
+        // the key index tracks evictions
+        Set<Serializable> scanned = Sets.newHashSet(cache.enumerate("scan"));
+        assertTrue(scanned.size() < 600);
+        for (Serializable key : scanned) {
+            assertNotNull(cache.lookup("scan", key));
+        }
+
+        // entries are weighed by the weigher
+        cache.store(CacheCategory.RESULT, "results", "big", Lists.newArrayList(new int[600]));
+        cache.store(CacheCategory.RESULT, "results", "bigger", Lists.newArrayList(new int[700]));
+        assertTrue(cache.getStats(CacheCategory.RESULT).weight <= 1000);
+    }
+
+    @Test public void testExpiry ()
+        throws InterruptedException
+    {
+        CategoryConfig config = new CategoryConfig(1000, 0, 1);
+        LocalCacheAdapter cache = new LocalCacheAdapter(
+            config, config, config, config, LocalCacheAdapter.DEFAULT_WEIGHER);
+        cache.store(CacheCategory.RECORD, "a", 1, "one");
+        assertNotNull(cache.lookup("a", 1));
+        Thread.sleep(1100);
+        assertNull(cache.lookup("a", 1));
+        assertFalse(cache.enumerate("a").iterator().hasNext());
+        assertEquals(1, cache.getStats(CacheCategory.RECORD).expirations);
+    }
+
+    @Test public void testConcurrentAccess ()
+        throws InterruptedException
+    {
+        CategoryConfig config = new CategoryConfig(2000, 0, 0);
+        final LocalCacheAdapter cache = new LocalCacheAdapter(
+            config, config, config, config, LocalCacheAdapter.DEFAULT_WEIGHER);
+        final List<Throwable> errors = Lists.newArrayList();
+        List<Thread> threads = Lists.newArrayList();
+        for (int tt = 0; tt < 8; tt++) {
+            final int seed = tt;
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    try {
+                        for (int ii = 0; ii < 50000; ii++) {
+                            int key = (ii * 31 + seed) % 5000;
+                            CachedValue<Integer> value = cache.lookup("c", key);
+                            if (value == null) {
+                                cache.store(CacheCategory.RECORD, "c", key, key);
+                            } else if (value.getValue() != key) {
+                                throw new AssertionError(key + " != " + value.getValue());
+                            }
+                            if (ii % 1000 == 0) {
+                                cache.remove("c", key);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Lists.newArrayList(), errors);
+        LocalCacheAdapter.CategoryStats stats = cache.getStats(CacheCategory.RECORD);
+        assertTrue(stats.toString(), stats.weight <= 2000);
+        assertEquals(stats.size, Sets.newHashSet(cache.enumerate("c")).size());
+    }
+
+    @Test public void testWithRepository ()
+    {
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init("localcache", PooledConnectionProvider.forTest("localcache"),
+                 new LocalCacheAdapter());
+        TestRepository repo = new TestRepository(ctx);
+        for (int ii = 1; ii <= 10; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+        List<Key<TestRecord>> keys = Lists.newArrayList();
+        for (int ii = 1; ii <= 10; ii++) {
+            keys.add(TestRecord.getKey(ii));
+        }
+        assertEquals(10, repo.loadAll(keys).size());
+        assertEquals(10, ctx.getStats().cachedRecords);
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+}
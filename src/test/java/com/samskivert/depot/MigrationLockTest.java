@@ -0,0 +1,75 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.Backoff;
+
+/**
+ * Tests the waiting of processes on migrations being run by other processes.
+ */
+public class MigrationLockTest extends TestBase
+{
+    @Test public void testBackoff ()
+    {
+        Backoff backoff = new Backoff("test", 100, 1000);
+        long max = 100;
+        for (int ii = 0; ii < 8; ii++) {
+            long delay = backoff.nextDelay();
+            assertTrue(delay + " not in [" + max/2 + ", " + max + "]",
+                       delay >= max/2 && delay <= max);
+            max = Math.min(max * 2, 1000);
+        }
+    }
+
+    @Test public void testDataMigrationWait ()
+        throws Exception
+    {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final PersistenceContext ctx1 = createPersistenceContext("miglocktest");
+        new TestRepository(ctx1).registerMigration(new DataMigration("miglocktest") {
+            public void invoke () {
+                runs.incrementAndGet();
+                started.countDown();
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException ie) {
+                    throw new DatabaseException("Interrupted");
+                }
+            }
+        });
+        Thread first = new Thread() {
+            @Override public void run () {
+                ctx1.initializeRepositories(true);
+            }
+        };
+        first.start();
+        started.await();
+
+        // a second process waits for the first to finish the migration, rather than running it
+        // again, and notices promptly when it has finished
+        PersistenceContext ctx2 = createPersistenceContext("miglocktest");
+        new TestRepository(ctx2).registerMigration(new DataMigration("miglocktest") {
+            public void invoke () {
+                runs.incrementAndGet();
+            }
+        });
+        long start = System.currentTimeMillis();
+        ctx2.initializeRepositories(true);
+        long elapsed = System.currentTimeMillis() - start;
+        first.join();
+
+        assertEquals(1, runs.get());
+        assertTrue("Waited " + elapsed + "ms for migration", elapsed < 2500);
+        ctx1.shutdown();
+        ctx2.shutdown();
+    }
+}
@@ -19,6 +19,8 @@ public class MonkeyRecord extends PersistentRecord
     public static final ColumnExp<String> NAME = colexp(_R, "name");
     // AUTO-GENERATED: FIELDS END
 
+    public static final int SCHEMA_VERSION = 1;
+
     /** This monkey's species. This is part of our key so that we have a composite key. */
     @Id public int species;
 
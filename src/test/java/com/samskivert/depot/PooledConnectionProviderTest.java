@@ -0,0 +1,230 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link PooledConnectionProvider}.
+ */
+public class PooledConnectionProviderTest extends TestBase
+{
+    @Test
+    public void testCheckout ()
+        throws SQLException
+    {
+        PooledConnectionProvider conprov = createProvider("pooltest", 2, 100);
+
+        // connections are handed out exclusively and returned for reuse
+        Connection c1 = conprov.getConnection("pooltest", false);
+        Connection c2 = conprov.getConnection("pooltest", false);
+        assertNotSame(c1, c2);
+        conprov.releaseConnection("pooltest", false, c2);
+        assertSame(c2, conprov.getConnection("pooltest", false));
+
+        // the pool is bounded
+        try {
+            conprov.getConnection("pooltest", false);
+            fail("Obtained more connections than the pool allows");
+        } catch (DatabaseException de) {
+            // expected
+        }
+
+        // read-only connections come from their own pool
+        Connection ro = conprov.getConnection("pooltest", true);
+        assertTrue(ro.isReadOnly());
+        conprov.releaseConnection("pooltest", true, ro);
+
+        // a failed connection is closed and frees its slot
+        conprov.connectionFailed("pooltest", false, c1, new SQLException("test"));
+        assertTrue(c1.isClosed());
+        Connection c3 = conprov.getConnection("pooltest", false);
+        assertNotSame(c1, c3);
+
+        // transaction connections come from the write pool and have auto-commit restored
+        conprov.releaseConnection("pooltest", false, c3);
+        Connection tx = conprov.getTxConnection("pooltest");
+        assertFalse(tx.getAutoCommit());
+        conprov.releaseTxConnection("pooltest", tx);
+        Connection c4 = conprov.getConnection("pooltest", false);
+        assertTrue(c4.getAutoCommit());
+        conprov.releaseConnection("pooltest", false, c4);
+
+        conprov.releaseConnection("pooltest", false, c2);
+        conprov.shutdown();
+        assertTrue(c2.isClosed());
+    }
+
+    @Test
+    public void testConcurrentOps ()
+        throws Exception
+    {
+        PooledConnectionProvider conprov = createProvider("pooltestops", 3, 10000);
+        final PersistenceContext ctx = new PersistenceContext();
+        ctx.init("pooltestops", conprov, null);
+        final TestRepository repo = new TestRepository(ctx);
+
+        final List<Throwable> errors = Lists.newArrayList();
+        List<Thread> threads = Lists.newArrayList();
+        for (int tt = 0; tt < 6; tt++) {
+            final int base = tt * 100;
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    try {
+                        for (int ii = 1; ii <= 20; ii++) {
+                            repo.insert(createTestRecord(base + ii));
+                            assertEquals(base + ii, repo.loadNoCache(base + ii).recordId);
+                        }
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Lists.newArrayList(), errors);
+        assertEquals(120, repo.from(TestRecord.class).selectCount());
+
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
+    @Test
+    public void testManyConcurrentLoads ()
+        throws Exception
+    {
+        PooledConnectionProvider conprov = createProvider("pooltestloads", 8, 60000);
+        final PersistenceContext ctx = new PersistenceContext();
+        ctx.init("pooltestloads", conprov, null);
+        final TestRepository repo = new TestRepository(ctx);
+        for (int ii = 1; ii <= 100; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+
+        // many more loads than connections all start at once and wait their turn in the pool
+        // (on virtual threads if we have them, which neither pin nor need thread locals)
+        final int loads = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger loaded = new AtomicInteger();
+        final List<Throwable> errors =
+            Collections.synchronizedList(Lists.<Throwable>newArrayList());
+        ExecutorService exec = newVirtualThreadExecutor();
+        for (int ii = 0; ii < loads; ii++) {
+            final int recordId = (ii % 100) + 1;
+            exec.execute(new Runnable() {
+                public void run () {
+                    try {
+                        start.await();
+                        if (repo.loadNoCache(recordId).recordId == recordId) {
+                            loaded.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            });
+        }
+        start.countDown();
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(60, TimeUnit.SECONDS));
+        assertEquals(Lists.newArrayList(), errors);
+        assertEquals(loads, loaded.get());
+
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
+    @Test
+    public void testStatementEviction ()
+        throws Exception
+    {
+        PooledConnectionProvider conprov = createProvider("pooltestevict", 2, 100);
+        conprov._props.setProperty("default.idleTimeout", "50");
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init("pooltestevict", conprov, null);
+        TestRepository repo = new TestRepository(ctx);
+        repo.insert(createTestRecord(1));
+
+        // the statements cached for a connection are evicted when the pool closes it: because it
+        // failed, because it was idle too long, or because the pool was shut down
+        Connection failed = loadAndCheckout(ctx, repo, conprov);
+        conprov.connectionFailed("pooltestevict", true, failed, new SQLException("test"));
+        assertEquals(0, ctx._stmts.getCachedCount(failed));
+
+        Connection expired = loadAndCheckout(ctx, repo, conprov);
+        conprov.releaseConnection("pooltestevict", true, expired);
+        Thread.sleep(100);
+        Connection fresh = conprov.getConnection("pooltestevict", true);
+        assertNotSame(expired, fresh);
+        assertEquals(0, ctx._stmts.getCachedCount(expired));
+
+        conprov.releaseConnection("pooltestevict", true, fresh);
+        Connection active = loadAndCheckout(ctx, repo, conprov);
+        assertEquals(1, repo.loadNoCache(1).recordId); // on another connection, left idle
+        Connection idle = conprov.getConnection("pooltestevict", true);
+        assertTrue(ctx._stmts.getCachedCount(idle) > 0);
+        conprov.releaseConnection("pooltestevict", true, idle);
+        repo.from(TestRecord.class).whereTrue().delete();
+        conprov.shutdown();
+        assertEquals(0, ctx._stmts.getCachedCount(idle));
+        conprov.releaseConnection("pooltestevict", true, active);
+        assertEquals(0, ctx._stmts.getCachedCount(active));
+    }
+
+    /**
+     * Loads a record and then checks out the (read-only) connection that loaded it, on which its
+     * statements are now cached.
+     */
+    protected Connection loadAndCheckout (
+        PersistenceContext ctx, TestRepository repo, ConnectionProvider conprov)
+    {
+        assertEquals(1, repo.loadNoCache(1).recordId);
+        Connection conn = conprov.getConnection("pooltestevict", true);
+        assertTrue(ctx._stmts.getCachedCount(conn) > 0);
+        return conn;
+    }
+
+    protected static ExecutorService newVirtualThreadExecutor ()
+    {
+        try {
+            return (ExecutorService)Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return Executors.newFixedThreadPool(64); // no virtual threads in this JVM
+        }
+    }
+
+    protected static PooledConnectionProvider createProvider (
+        String dbname, int maxConns, long acquireTimeout)
+    {
+        Properties props = new Properties();
+        props.setProperty("default.url", "jdbc:hsqldb:mem:" + dbname);
+        props.setProperty("default.username", "sa");
+        props.setProperty("default.password", "");
+        props.setProperty("default.maxConnections", String.valueOf(maxConns));
+        props.setProperty("default.acquireTimeout", String.valueOf(acquireTimeout));
+        return new PooledConnectionProvider(props);
+    }
+}
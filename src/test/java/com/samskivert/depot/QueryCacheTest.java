@@ -0,0 +1,227 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+/**
+ * Tests the tracking and selective invalidation of cached query results, and the answering of
+ * queries from cached records.
+ */
+public class QueryCacheTest extends TestBase
+{
+    @After public void cleanup ()
+    {
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testSelectiveInvalidation ()
+    {
+        for (int ii = 1; ii <= 10; ii++) {
+            insert(ii, ii*10);
+        }
+        Query<TestRecord> young = _repo.from(TestRecord.class).where(
+            TestRecord.AGE.lessThan(50)).cacheShortKeys();
+        Query<TestRecord> old = _repo.from(TestRecord.class).where(
+            TestRecord.AGE.greaterEq(80)).cacheShortKeys();
+        assertEquals(4, young.select().size());
+        assertEquals(3, old.select().size());
+        int loaded = uncachedQueries();
+        assertEquals(4, young.select().size());
+        assertEquals(3, old.select().size());
+        assertEquals(loaded, uncachedQueries());
+
+        // an insert invalidates only the queries that it matches
+        insert(11, 15);
+        assertEquals(5, young.select().size());
+        assertEquals(3, old.select().size());
+        assertEquals(loaded + 1, uncachedQueries());
+
+        // an update invalidates the queries that the record leaves and the ones it joins
+        loaded = uncachedQueries();
+        _repo.updatePartial(TestRecord.getKey(9), TestRecord.AGE, 20);
+        assertEquals(6, young.select().size());
+        assertEquals(2, old.select().size());
+        assertEquals(loaded + 2, uncachedQueries());
+
+        // as does a whole record update, but an update that changes no membership does not
+        loaded = uncachedQueries();
+        TestRecord rec = _repo.loadNoCache(10);
+        rec.age = 25;
+        _repo.update(rec);
+        _repo.updatePartial(TestRecord.getKey(8), TestRecord.NAME, "Priscilla");
+        assertEquals(7, young.select().size());
+        assertEquals(1, old.select().size());
+        assertEquals(loaded + 2, uncachedQueries());
+
+        // a delete by key invalidates only the queries that contained the record
+        loaded = uncachedQueries();
+        _repo.delete(TestRecord.getKey(1));
+        assertEquals(6, young.select().size());
+        assertEquals(1, old.select().size());
+        assertEquals(loaded + 1, uncachedQueries());
+
+        // the effects of deleting a record that isn't cached are unknown, so every query on the
+        // class is invalidated
+        _ctx.cacheInvalidate(new KeyCacheKey(TestRecord.getKey(6)));
+        _repo.from(TestRecord.class).where(TestRecord.AGE.eq(60)).delete();
+        loaded = uncachedQueries(); // the delete itself queries the keys of the matching rows
+        assertEquals(6, young.select().size());
+        assertEquals(1, old.select().size());
+        assertEquals(loaded + 2, uncachedQueries());
+    }
+
+    @Test public void testBulkModifications ()
+    {
+        for (int ii = 1; ii <= 4; ii++) {
+            insert(ii, ii*10);
+        }
+        Query<TestRecord> young = _repo.from(TestRecord.class).where(
+            TestRecord.AGE.lessThan(25)).cacheLongKeys();
+        assertEquals(2, young.select().size());
+
+        // batched updates and stores invalidate every cached query on the class
+        List<TestRecord> recs = _repo.from(TestRecord.class).noCache().select();
+        for (TestRecord rec : recs) {
+            rec.age = 5;
+        }
+        _repo.updateAll(recs);
+        assertEquals(4, young.select().size());
+        for (TestRecord rec : recs) {
+            rec.age = 99;
+        }
+        _repo.storeAll(recs);
+        assertEquals(0, young.select().size());
+    }
+
+    @Test public void testUncomputedUpdate ()
+    {
+        for (int ii = 1; ii <= 10; ii++) {
+            insert(ii, ii*10);
+        }
+        Query<TestRecord> young = _repo.from(TestRecord.class).where(
+            TestRecord.AGE.lessThan(50)).cacheShortKeys();
+        assertEquals(4, young.select().size());
+        _repo.load(TestRecord.getKey(9)); // make sure the record is cached
+
+        // we can't compute abs() in memory, so the update must invalidate the query that the
+        // record joins, even though the record didn't match it before the update
+        _repo.updatePartial(TestRecord.getKey(9), TestRecord.AGE,
+                            MathFuncs.abs(TestRecord.AGE.minus(100)));
+        assertEquals(5, young.select().size());
+    }
+
+    @Test public void testStringClauses ()
+    {
+        for (int ii = 1; ii <= 10; ii++) {
+            insert(ii, ii*10);
+        }
+        // whether a record matches a comparison of strings depends on the database's collation
+        // (which may ignore case), so any update invalidates a cached query that compares them
+        Query<TestRecord> elvises = _repo.from(TestRecord.class).where(
+            TestRecord.NAME.eq("Elvis")).cacheShortKeys();
+        assertEquals(10, elvises.select().size());
+        _repo.load(TestRecord.getKey(3)); // make sure the record is cached
+        int loaded = uncachedQueries();
+        _repo.updatePartial(TestRecord.getKey(3), TestRecord.AGE, 35);
+        assertEquals(10, elvises.select().size());
+        assertEquals(loaded + 1, uncachedQueries());
+
+        // nor can such a query be answered in memory
+        assertEquals(10, _repo.from(TestRecord.class).cacheShortKeys().select().size());
+        loaded = uncachedQueries();
+        assertEquals(10, _repo.from(TestRecord.class).where(
+                         TestRecord.HOME_TOWN.eq("Right here")).inMemory().select().size());
+        assertEquals(loaded + 1, uncachedQueries());
+    }
+
+    @Test public void testNullClauses ()
+    {
+        for (int ii = 1; ii <= 10; ii++) {
+            insert(ii, ii*10);
+        }
+        // a query that every record matches is affected by any change to a record's contents
+        Query<TestRecord> oldest = _repo.from(TestRecord.class).where(
+            TestRecord.AGE.notNull()).descending(TestRecord.AGE).limit(3).cacheShortKeys();
+        assertEquals(10, oldest.select().get(0).recordId);
+        _repo.load(TestRecord.getKey(1)); // make sure the record is cached
+        _repo.updatePartial(TestRecord.getKey(1), TestRecord.AGE, 500);
+        assertEquals(1, oldest.select().get(0).recordId);
+
+        // and null checks are answered in memory as the database would answer them
+        assertEquals(10, _repo.from(TestRecord.class).cacheShortKeys().select().size());
+        int loaded = uncachedQueries();
+        assertEquals(0, _repo.from(TestRecord.class).where(
+                         TestRecord.HOME_TOWN.isNull()).inMemory().select().size());
+        assertEquals(10, _repo.from(TestRecord.class).where(
+                         TestRecord.HOME_TOWN.notNull()).inMemory().select().size());
+        assertEquals(loaded, uncachedQueries());
+    }
+
+    @Test public void testInMemory ()
+    {
+        for (int ii = 1; ii <= 10; ii++) {
+            insert(ii, 100 - ii*10);
+        }
+        // nothing is cached yet, so we go to the database
+        int loaded = uncachedQueries();
+        assertEquals(4, inMemoryQuery().select().size());
+        assertEquals(loaded + 1, uncachedQueries());
+
+        // once the whole table is cached, queries are answered without the database
+        assertEquals(10, _repo.from(TestRecord.class).cacheShortKeys().select().size());
+        loaded = uncachedQueries();
+        List<TestRecord> recs = inMemoryQuery().select();
+        assertEquals(loaded, uncachedQueries());
+        List<Integer> ids = Lists.newArrayList();
+        for (TestRecord rec : recs) {
+            ids.add(rec.recordId);
+        }
+        assertEquals(Lists.newArrayList(5, 6, 7, 8), ids);
+
+        // records are copies unless the query is read-only
+        recs.get(0).name = "Changed";
+        assertEquals("Elvis", inMemoryQuery().select().get(0).name);
+        assertTrue(inMemoryQuery().readOnly().select().get(0).isFrozen());
+
+        // an insert invalidates the cached table, so we go back to the database
+        insert(11, 35);
+        loaded = uncachedQueries();
+        assertEquals(4, inMemoryQuery().select().size());
+        assertEquals(loaded + 1, uncachedQueries());
+    }
+
+    protected Query<TestRecord> inMemoryQuery ()
+    {
+        return _repo.from(TestRecord.class).where(TestRecord.AGE.lessThan(60)).
+            descending(TestRecord.AGE).limit(4).inMemory();
+    }
+
+    protected void insert (int recordId, int age)
+    {
+        TestRecord rec = createTestRecord(recordId);
+        rec.age = age;
+        _repo.insert(rec);
+    }
+
+    protected int uncachedQueries ()
+    {
+        return _ctx.getStats().uncachedQueries;
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("querycachetest");
+    {
+        _ctx.setTrackCachedQueries(true);
+    }
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
@@ -0,0 +1,62 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the reuse of compiled query plans.
+ */
+public class QueryPlanTest extends TestBase
+{
+    @Test
+    public void testPlanReuse ()
+    {
+        for (int ii = 1; ii <= 20; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+
+        // queries that differ only in their bound values should share a plan, but bind anew
+        Stats.Snapshot before = _ctx.getStats();
+        for (int ii = 1; ii <= 20; ii++) {
+            TestRecord rec = _repo.loadNoCache(ii);
+            assertNotNull(rec);
+            assertEquals(ii, rec.recordId);
+        }
+        for (int ii = 1; ii <= 20; ii++) {
+            assertEquals(ii-1, _repo.from(TestRecord.class).
+                         where(TestRecord.RECORD_ID.lessThan(ii)).selectCount());
+        }
+        Stats.Snapshot after = _ctx.getStats();
+        assertTrue(after.planCacheHits - before.planCacheHits >= 38);
+        assertTrue(after.planCacheMisses - before.planCacheMisses <= 2);
+
+        // the arity of an in() list is part of the shape of a query
+        assertEquals(2, _repo.from(TestRecord.class).
+                     where(TestRecord.RECORD_ID.in(1, 2)).select().size());
+        assertEquals(3, _repo.from(TestRecord.class).
+                     where(TestRecord.RECORD_ID.in(3, 4, 5)).select().size());
+        assertEquals(2, _repo.from(TestRecord.class).
+                     where(TestRecord.RECORD_ID.in(6, 7)).select().size());
+
+        // as is a limit, which is written literally into the SQL
+        assertEquals(5, _repo.from(TestRecord.class).limit(5).select().size());
+        assertEquals(7, _repo.from(TestRecord.class).limit(7).select().size());
+
+        // modifications use plans as well
+        for (int ii = 1; ii <= 20; ii++) {
+            _repo.updatePartial(TestRecord.getKey(ii), TestRecord.AGE, ii * 2);
+        }
+        for (int ii = 1; ii <= 20; ii++) {
+            assertEquals(ii * 2, _repo.loadNoCache(ii).age);
+        }
+
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("plantest");
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
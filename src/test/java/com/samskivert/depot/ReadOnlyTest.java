@@ -0,0 +1,124 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.KeyCacheKey;
+
+/**
+ * Tests read-only queries, which share frozen records with the cache.
+ */
+public class ReadOnlyTest extends TestBase
+{
+    @After public void cleanup ()
+    {
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testSharedRecords ()
+    {
+        List<TestRecord> recs = Lists.newArrayList();
+        for (int ii = 1; ii <= 10; ii++) {
+            recs.add(createTestRecord(ii));
+            _repo.insert(recs.get(ii-1));
+        }
+
+        Query<TestRecord> query = _repo.from(TestRecord.class).where(
+            TestRecord.RECORD_ID.lessEq(5)).ascending(TestRecord.RECORD_ID).readOnly();
+        List<TestRecord> first = query.select();
+        List<TestRecord> second = query.select();
+        assertEquals(5, first.size());
+        for (int ii = 0; ii < first.size(); ii++) {
+            assertTrue(first.get(ii).isFrozen());
+            // the very instance held by the cache is handed out rather than a copy
+            assertSame(first.get(ii), second.get(ii));
+        }
+        assertTestRecordEquals(recs.get(0), first.get(0));
+
+        // records loaded from the database are shared with the cache as well
+        List<Key<TestRecord>> keys = Lists.newArrayList();
+        for (int ii = 6; ii <= 10; ii++) {
+            _ctx.cacheInvalidate(new KeyCacheKey(TestRecord.getKey(ii)));
+            keys.add(TestRecord.getKey(ii));
+        }
+        Query<TestRecord> byKeys = _repo.from(TestRecord.class).where(
+            KeySet.newKeySet(TestRecord.class, keys)).readOnly();
+        List<TestRecord> loaded = byKeys.select();
+        assertEquals(5, loaded.size());
+        assertSame(loaded.get(0), byKeys.select().get(0));
+
+        // but normal queries still get private, modifiable copies
+        List<TestRecord> copies = _repo.from(TestRecord.class).where(
+            TestRecord.RECORD_ID.lessEq(5)).ascending(TestRecord.RECORD_ID).select();
+        assertFalse(copies.get(0).isFrozen());
+        assertNotSame(first.get(0), copies.get(0));
+
+        // single record and uncached loads are frozen too
+        assertTrue(_repo.from(TestRecord.class).where(TestRecord.getKey(3)).readOnly().
+                   load().isFrozen());
+        for (TestRecord rec : _repo.from(TestRecord.class).noCache().readOnly().select()) {
+            assertTrue(rec.isFrozen());
+        }
+    }
+
+    @Test public void testFrozenWrites ()
+    {
+        _repo.insert(createTestRecord(1));
+        _repo.insert(createTestRecord(2));
+        final List<TestRecord> recs = _repo.from(TestRecord.class).readOnly().select();
+        final TestRecord frozen = recs.get(0);
+        assertTrue(frozen.isFrozen());
+
+        assertRejected(new Runnable() {
+            public void run () { _repo.update(frozen); }
+        });
+        assertRejected(new Runnable() {
+            public void run () { _repo.update(frozen, TestRecord.NAME); }
+        });
+        assertRejected(new Runnable() {
+            public void run () { _repo.store(frozen); }
+        });
+        assertRejected(new Runnable() {
+            public void run () { _repo.insert(frozen); }
+        });
+        assertRejected(new Runnable() {
+            public void run () { _repo.delete(frozen); }
+        });
+        assertRejected(new Runnable() {
+            public void run () { _repo.updateAll(recs); }
+        });
+        assertRejected(new Runnable() {
+            public void run () { _repo.storeAll(recs); }
+        });
+
+        // the cached record was not modified by any of the above, and a clone can be written
+        TestRecord copy = (TestRecord)frozen.clone();
+        assertFalse(copy.isFrozen());
+        copy.name = "Changed";
+        assertEquals(1, _repo.update(copy));
+        TestRecord reloaded = _repo.loadNoCache(copy.recordId);
+        assertEquals("Changed", reloaded.name);
+    }
+
+    protected static void assertRejected (Runnable write)
+    {
+        try {
+            write.run();
+            fail("Frozen record was written");
+        } catch (IllegalArgumentException iae) {
+            // expected
+        }
+    }
+
+    protected PersistenceContext _ctx = createPersistenceContext("readonlytest");
+    protected TestRepository _repo = new TestRepository(_ctx);
+}
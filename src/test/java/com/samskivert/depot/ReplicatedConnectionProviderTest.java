@@ -0,0 +1,224 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the {@link ReplicatedConnectionProvider}.
+ */
+public class ReplicatedConnectionProviderTest extends TestBase
+{
+    @Test
+    public void testRouting ()
+        throws SQLException
+    {
+        CountingProvider master = new CountingProvider("repltest");
+        CountingProvider r1 = new CountingProvider("repltest");
+        CountingProvider r2 = new CountingProvider("repltest");
+        ReplicatedConnectionProvider conprov =
+            new ReplicatedConnectionProvider(master, Lists.newArrayList(r1, r2));
+        conprov.setRetryInterval(50L);
+        assertEquals(2, conprov.getHealthyReplicas());
+
+        // writes and transactions go to the master
+        conprov.releaseConnection("repltest", false, conprov.getConnection("repltest", false));
+        conprov.releaseTxConnection("repltest", conprov.getTxConnection("repltest"));
+        assertEquals(2, master.requests);
+        assertEquals(0, r1.requests + r2.requests);
+
+        // reads go to the replica with the fewest outstanding connections
+        Connection c1 = conprov.getConnection("repltest", true);
+        Connection c2 = conprov.getConnection("repltest", true);
+        assertEquals(1, r1.requests);
+        assertEquals(1, r2.requests);
+        conprov.releaseConnection("repltest", true, c1);
+        Connection c3 = conprov.getConnection("repltest", true);
+        assertEquals(2, r1.requests);
+        assertEquals(1, r2.requests);
+        conprov.releaseConnection("repltest", true, c2);
+        conprov.releaseConnection("repltest", true, c3);
+        assertEquals(0, r1.outstanding + r2.outstanding);
+
+        // a failed replica is taken out of rotation
+        r1.down = true;
+        for (int ii = 0; ii < 4; ii++) {
+            conprov.releaseConnection("repltest", true, conprov.getConnection("repltest", true));
+        }
+        assertEquals(1, conprov.getHealthyReplicas());
+        assertEquals(5, r2.requests);
+
+        // if no replica is healthy, reads go to the master
+        Connection c4 = conprov.getConnection("repltest", true);
+        conprov.connectionFailed("repltest", true, c4, new SQLException("test"));
+        assertEquals(0, conprov.getHealthyReplicas());
+        conprov.releaseConnection("repltest", true, conprov.getConnection("repltest", true));
+        assertEquals(3, master.requests);
+
+        // once its retry interval elapses, a recovered replica is put back into rotation
+        r1.down = false;
+        try {
+            Thread.sleep(100);
+        } catch (InterruptedException ie) {
+            // not to worry
+        }
+        conprov.releaseConnection("repltest", true, conprov.getConnection("repltest", true));
+        conprov.releaseConnection("repltest", true, conprov.getConnection("repltest", true));
+        assertEquals(2, conprov.getHealthyReplicas());
+        assertEquals(3, master.requests);
+
+        conprov.shutdown();
+    }
+
+    @Test
+    public void testReadAfterWrite ()
+    {
+        CountingProvider master = new CountingProvider("repltestraw");
+        CountingProvider replica = new CountingProvider("repltestraw");
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init("repltestraw", new ReplicatedConnectionProvider(
+                     master, Lists.newArrayList(replica)), null);
+        TestRepository repo = new TestRepository(ctx);
+        ctx.initializeRepositories(true);
+
+        // without a window, reads go to the replica even after a write
+        repo.insert(createTestRecord(1));
+        int masterReqs = master.requests, replicaReqs = replica.requests;
+        assertEquals(1, repo.loadNoCache(1).recordId);
+        assertEquals(masterReqs, master.requests);
+        assertEquals(replicaReqs + 1, replica.requests);
+
+        // with one, reads of the modified class go to the master until the window closes
+        ctx.setReadAfterWriteWindow(60 * 1000L);
+        repo.insert(createTestRecord(2));
+        masterReqs = master.requests;
+        replicaReqs = replica.requests;
+        assertEquals(2, repo.loadNoCache(2).recordId);
+        assertEquals(2, repo.from(TestRecord.class).selectCount());
+        assertEquals(masterReqs + 2, master.requests);
+        assertEquals(replicaReqs, replica.requests);
+
+        ctx.setReadAfterWriteWindow(1L);
+        repo.delete(TestRecord.getKey(2));
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException ie) {
+            // not to worry
+        }
+        masterReqs = master.requests;
+        assertEquals(1, repo.from(TestRecord.class).selectCount());
+        assertEquals(masterReqs, master.requests);
+
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
+    @Test
+    public void testSharedReplicaConnection ()
+    {
+        CountingProvider master = new CountingProvider("repltestshared");
+        SharingProvider replica = new SharingProvider("repltestshared");
+        ReplicatedConnectionProvider conprov =
+            new ReplicatedConnectionProvider(master, Lists.newArrayList(replica));
+
+        // a replica that is not exclusive may hand the same connection to concurrent callers,
+        // each of whose releases goes back to the replica
+        Connection c1 = conprov.getConnection("repltestshared", true);
+        Connection c2 = conprov.getConnection("repltestshared", true);
+        assertSame(c1, c2);
+        conprov.releaseConnection("repltestshared", true, c1);
+        conprov.releaseConnection("repltestshared", true, c2);
+        assertEquals(0, replica.outstanding);
+        assertEquals(0, master.outstanding);
+
+        // as do their failures, after which the replica is out of rotation
+        c1 = conprov.getConnection("repltestshared", true);
+        c2 = conprov.getConnection("repltestshared", true);
+        conprov.connectionFailed("repltestshared", true, c1, new SQLException("test"));
+        conprov.releaseConnection("repltestshared", true, c2);
+        assertEquals(0, replica.outstanding);
+        assertEquals(0, master.outstanding);
+        assertEquals(0, conprov.getHealthyReplicas());
+
+        conprov.shutdown();
+    }
+
+    /** A static provider, which shares its connections, that counts their outstanding uses. */
+    protected static class SharingProvider extends StaticConnectionProvider
+    {
+        public int outstanding;
+
+        public SharingProvider (String dbname) {
+            super(CountingProvider.createProperties(dbname));
+        }
+
+        @Override public Connection getConnection (String ident, boolean readOnly) {
+            outstanding++;
+            return super.getConnection(ident, readOnly);
+        }
+
+        @Override public void releaseConnection (String ident, boolean readOnly, Connection conn) {
+            outstanding--;
+            super.releaseConnection(ident, readOnly, conn);
+        }
+
+        @Override public void connectionFailed (
+            String ident, boolean readOnly, Connection conn, SQLException error) {
+            outstanding--;
+            super.connectionFailed(ident, readOnly, conn, error);
+        }
+    }
+
+    /** A pooled provider that counts the connections requested of it and that can be downed. */
+    protected static class CountingProvider extends PooledConnectionProvider
+    {
+        public int requests, outstanding;
+        public boolean down;
+
+        public CountingProvider (String dbname) {
+            super(createProperties(dbname));
+        }
+
+        @Override public Connection getConnection (String ident, boolean readOnly) {
+            if (down) {
+                throw new DatabaseException("Database is down");
+            }
+            requests++;
+            outstanding++;
+            return super.getConnection(ident, readOnly);
+        }
+
+        @Override public void releaseConnection (String ident, boolean readOnly, Connection conn) {
+            outstanding--;
+            super.releaseConnection(ident, readOnly, conn);
+        }
+
+        @Override public void connectionFailed (
+            String ident, boolean readOnly, Connection conn, SQLException error) {
+            outstanding--;
+            super.connectionFailed(ident, readOnly, conn, error);
+        }
+
+        @Override public Connection getTxConnection (String ident) {
+            requests++;
+            return super.getTxConnection(ident);
+        }
+
+        protected static Properties createProperties (String dbname) {
+            Properties props = new Properties();
+            props.setProperty("default.url", "jdbc:hsqldb:mem:" + dbname);
+            props.setProperty("default.username", "sa");
+            props.setProperty("default.password", "");
+            return props;
+        }
+    }
+}
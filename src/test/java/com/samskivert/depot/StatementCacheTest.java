@@ -0,0 +1,117 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import com.samskivert.depot.impl.jdbc.CollectingConnection;
+import com.samskivert.depot.impl.jdbc.StatementCache;
+
+/**
+ * Tests the reuse of prepared statements across operations.
+ */
+public class StatementCacheTest extends TestBase
+{
+    @Test
+    public void testReuse ()
+        throws Exception
+    {
+        Connection conn = _conprov.getConnection("stmtcache", false);
+        StatementCache cache = new StatementCache(2);
+
+        StatementCache.Session sess = cache.open(conn);
+        PreparedStatement one = sess.prepareStatement("VALUES (1)", Statement.NO_GENERATED_KEYS);
+        // a statement that is in use is never handed out twice
+        PreparedStatement dup = sess.prepareStatement("VALUES (1)", Statement.NO_GENERATED_KEYS);
+        assertNotSame(one, dup);
+        sess.release();
+        assertTrue(dup.isClosed());
+        assertEquals(1, cache.getCachedCount(conn));
+
+        // the generated keys mode is part of a statement's identity
+        sess = cache.open(conn);
+        assertSame(one, sess.prepareStatement("VALUES (1)", Statement.NO_GENERATED_KEYS));
+        PreparedStatement keyed = sess.prepareStatement(
+            "VALUES (1)", Statement.RETURN_GENERATED_KEYS);
+        assertNotSame(one, keyed);
+        sess.release();
+        assertEquals(2, cache.getCachedCount(conn));
+
+        // the least recently used statement is closed when we overflow
+        sess = cache.open(conn);
+        PreparedStatement two = sess.prepareStatement("VALUES (2)", Statement.NO_GENERATED_KEYS);
+        sess.release();
+        assertEquals(2, cache.getCachedCount(conn));
+        assertTrue(one.isClosed());
+        assertFalse(keyed.isClosed());
+
+        // failure of the connection evicts everything
+        cache.evict(conn);
+        assertEquals(0, cache.getCachedCount(conn));
+        assertTrue(keyed.isClosed());
+        assertTrue(two.isClosed());
+
+        _conprov.shutdown();
+    }
+
+    @Test
+    public void testCollector ()
+        throws Exception
+    {
+        Connection conn = _conprov.getConnection("stmtcache", false);
+        StatementCache cache = new StatementCache(4);
+        CollectingConnection cconn = new CollectingConnection();
+
+        for (int ii = 0; ii < 2; ii++) {
+            cconn.init(conn, cache);
+            assertTrue(cconn.isActive());
+            Statement plain = cconn.createStatement();
+            PreparedStatement prepped = cconn.prepareStatement("VALUES (1)");
+            assertTrue(prepped.executeQuery().next());
+            cconn.finish();
+            assertFalse(cconn.isActive());
+            // plain statements are closed, prepared statements are returned to the cache
+            assertTrue(plain.isClosed());
+            assertFalse(prepped.isClosed());
+            assertEquals(1, cache.getCachedCount(conn));
+        }
+
+        // without a cache, everything is closed
+        cconn.init(conn, null);
+        PreparedStatement prepped = cconn.prepareStatement("VALUES (1)");
+        cconn.finish();
+        assertTrue(prepped.isClosed());
+
+        _conprov.shutdown();
+    }
+
+    @Test
+    public void testContextReuse ()
+    {
+        PersistenceContext ctx = createPersistenceContext("stmtcachectx");
+        TestRepository repo = new TestRepository(ctx);
+        for (int ii = 1; ii <= 10; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+        for (int pass = 0; pass < 3; pass++) {
+            for (int ii = 1; ii <= 10; ii++) {
+                assertEquals(ii, repo.loadNoCache(ii).recordId);
+            }
+        }
+        Connection conn = ctx._conprov.getConnection(ctx._ident, true);
+        int cached = ctx._stmts.getCachedCount(conn);
+        assertTrue(cached > 0);
+        assertTrue(cached <= ctx._stmts.getCapacity());
+
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    protected ConnectionProvider _conprov = StaticConnectionProvider.forTest("stmtcache");
+}
@@ -0,0 +1,142 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the recording and reporting of runtime statistics.
+ */
+public class StatsTest extends TestBase
+{
+    @Test public void testBuckets ()
+    {
+        // small values are counted exactly
+        for (long value = 0; value < 32; value++) {
+            assertEquals(value, Stats.LatencyHistogram.bucketValue(
+                             Stats.LatencyHistogram.bucketIndex(value)));
+        }
+        // larger values land in a bucket whose upper bound is within 1/16th of them
+        for (long value = 32; value < Stats.LatencyHistogram.MAX_VALUE; value = value * 3 + 1) {
+            int index = Stats.LatencyHistogram.bucketIndex(value);
+            long upper = Stats.LatencyHistogram.bucketValue(index);
+            assertTrue(value + " > " + upper, value <= upper);
+            assertTrue(value + " << " + upper, upper - value <= value / 16);
+            assertTrue(Stats.LatencyHistogram.bucketValue(index - 1) < value);
+        }
+        assertEquals(Stats.LatencyHistogram.BUCKET_COUNT - 1,
+                     Stats.LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test public void testPercentiles ()
+    {
+        Stats stats = new Stats();
+        // 1000 reads of 1us .. 1000us, a write of 2s and a wait of 3ms on each
+        for (int ii = 1; ii <= 1000; ii++) {
+            stats.noteOp(true, 0, 3000000L, 3000000L + ii * 1000L);
+        }
+        stats.noteOp(false, 0, 0, 2000000000L);
+
+        Stats.Snapshot snap = stats.getSnapshot();
+        assertEquals(1001, snap.totalOps);
+        assertEquals(1000, snap.readLatency.getCount());
+        assertNear(500, snap.readLatency.getP50());
+        assertNear(990, snap.readLatency.getP99());
+        assertNear(999, snap.readLatency.getP999());
+        assertNear(2000000, snap.writeLatency.getP50());
+        assertNear(3000, snap.connectionWaitLatency.getP999());
+        assertEquals(1000 * 3, snap.connectionWaitTime);
+        assertEquals(500, snap.queryTime);
+        assertEquals(2000, snap.modifierTime);
+
+        // the fixed bucket histograms are derived from the latency histograms
+        assertEquals(1000, snap.queryHisto.getBuckets()[0]);
+        assertEquals(1, snap.modifierHisto.getBuckets()[4]);
+    }
+
+    @Test public void testConcurrentNotes ()
+        throws InterruptedException
+    {
+        final Stats stats = new Stats();
+        List<Thread> threads = Lists.newArrayList();
+        for (int ii = 0; ii < 8; ii++) {
+            Thread thread = new Thread() {
+                @Override public void run () {
+                    for (int nn = 0; nn < 10000; nn++) {
+                        stats.noteOp(nn % 2 == 0, 0, 1000, 2000);
+                        stats.noteQuery(TestRecord.class, 1, 0, 0, 2, 1);
+                        stats.getSnapshot();
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Stats.Snapshot snap = stats.getSnapshot();
+        assertEquals(80000, snap.totalOps);
+        assertEquals(40000, snap.readLatency.getCount());
+        assertEquals(40000, snap.writeLatency.getCount());
+        assertEquals(80000, snap.cachedQueries);
+        assertEquals(160000, snap.cachedRecords);
+        assertEquals(80000, snap.uncachedRecords);
+    }
+
+    @Test public void testBreakdowns ()
+    {
+        PersistenceContext ctx = createPersistenceContext("statstest");
+        ctx.setTrackQueryShapes(true);
+        TestRepository repo = new TestRepository(ctx);
+        for (int ii = 1; ii <= 10; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+        for (int ii = 1; ii <= 10; ii++) {
+            repo.loadNoCache(ii);
+        }
+        repo.loadAll(Lists.newArrayList(TestRecord.getKey(3))); // from the cache
+        repo.updatePartial(TestRecord.getKey(4), TestRecord.AGE, 42);
+        repo.from(TestRecord.class).where(TestRecord.RECORD_ID.greaterThan(5)).delete();
+
+        Stats.Snapshot snap = ctx.getStats();
+        Stats.Breakdown recs = snap.classes.get(TestRecord.class);
+        assertNotNull(recs);
+        assertEquals(10, recs.reads);
+        // ten inserts, the update, and the delete (which first selects the keys for update)
+        assertEquals(13, recs.writes);
+        assertEquals(10, recs.uncachedRecords);
+        assertEquals(1, recs.cachedRecords);
+        assertEquals(1 / 11.0, recs.getCacheHitRatio(), 0.0001);
+        assertEquals(10 + 1 + 5, recs.rowsModified);
+        assertEquals(23, recs.latency.getCount());
+
+        // the ten primary key loads share a shape, as do the ten inserts
+        int loads = 0, inserts = 0;
+        for (Map.Entry<String, Stats.Breakdown> entry : snap.shapes.entrySet()) {
+            String sql = entry.getKey().toLowerCase();
+            if (sql.startsWith("select") && entry.getValue().reads == 10) {
+                loads++;
+            } else if (sql.startsWith("insert") && entry.getValue().writes == 10) {
+                inserts++;
+            }
+        }
+        assertEquals(1, loads);
+        assertEquals(1, inserts);
+
+        repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    protected static void assertNear (long expected, long actual)
+    {
+        assertTrue(expected + " !~ " + actual, Math.abs(expected - actual) <= expected / 16);
+    }
+}
@@ -0,0 +1,120 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.common.collect.Lists;
+import com.samskivert.depot.util.*; // TupleN
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tests streamed (lazily decoded) queries.
+ */
+public class StreamTest extends TestBase
+{
+    @Before public void createRecords ()
+    {
+        for (int ii = 1; ii <= 25; ii++) {
+            _repo.insert(createTestRecord(ii));
+        }
+    }
+
+    @After public void cleanup ()
+    {
+        _repo.from(TestRecord.class).whereTrue().delete();
+    }
+
+    @Test public void testStream ()
+    {
+        Query<TestRecord> query = _repo.from(TestRecord.class).ascending(TestRecord.RECORD_ID).
+            fetchSize(4);
+        try (Stream<TestRecord> recs = query.stream()) {
+            int expectId = 1;
+            for (Iterator<TestRecord> iter = recs.iterator(); iter.hasNext(); ) {
+                assertEquals(expectId++, iter.next().recordId);
+            }
+            assertEquals(26, expectId);
+        }
+
+        final List<TestRecord> seen = Lists.newArrayList();
+        query.where(TestRecord.RECORD_ID.lessEq(3)).forEach(new Consumer<TestRecord>() {
+            public void accept (TestRecord rec) {
+                seen.add(rec);
+            }
+        });
+        assertEquals(3, seen.size());
+        assertEquals(2, seen.get(1).recordId);
+        assertEquals("Elvis", seen.get(1).name);
+        assertEquals(Lists.newArrayList("foo", "bar", "Hello", "World"), seen.get(1).strList);
+    }
+
+    @Test public void testProjections ()
+    {
+        Query<TestRecord> query = _repo.from(TestRecord.class).where(
+            TestRecord.RECORD_ID.greaterThan(23)).ascending(TestRecord.RECORD_ID);
+        try (Stream<Integer> ids = query.stream(TestRecord.RECORD_ID)) {
+            assertEquals(Lists.newArrayList(24, 25), ids.collect(Collectors.toList()));
+        }
+        try (Stream<Tuple2<Integer,String>> data = query.stream(
+                 TestRecord.RECORD_ID, TestRecord.NAME)) {
+            assertEquals(Lists.newArrayList(Tuple2.create(24, "Elvis"), Tuple2.create(25, "Elvis")),
+                         data.collect(Collectors.toList()));
+        }
+    }
+
+    @Test public void testEarlyClose ()
+    {
+        // abandon a stream part way through; the connection must be usable by later ops
+        for (int ii = 0; ii < 3; ii++) {
+            try (Stream<TestRecord> recs = _repo.from(TestRecord.class).fetchSize(2).stream()) {
+                Iterator<TestRecord> iter = recs.iterator();
+                assertTrue(iter.hasNext());
+                iter.next();
+            }
+            assertEquals(25, _repo.from(TestRecord.class).selectCount());
+        }
+    }
+
+    @Test public void testInTransaction ()
+    {
+        Transaction tx = _repo.ctx().startTx();
+        try {
+            _repo.insert(createTestRecord(26));
+            // the stream sees the uncommitted record because it uses the transaction's connection
+            try (Stream<TestRecord> recs = _repo.from(TestRecord.class).stream()) {
+                assertEquals(26, recs.count());
+            }
+        } finally {
+            tx.rollback();
+        }
+        assertEquals(25, _repo.from(TestRecord.class).selectCount());
+    }
+
+    @Test public void testPooled ()
+    {
+        PersistenceContext ctx = new PersistenceContext();
+        ctx.init("streampool", PooledConnectionProvider.forTest("streampool"), null);
+        TestRepository repo = new TestRepository(ctx);
+        for (int ii = 1; ii <= 10; ii++) {
+            repo.insert(createTestRecord(ii));
+        }
+        try (Stream<TestRecord> recs = repo.from(TestRecord.class).fetchSize(3).stream()) {
+            assertEquals(10, recs.count());
+        }
+        repo.from(TestRecord.class).whereTrue().delete();
+        ctx.shutdown();
+    }
+
+    protected TestRepository _repo = createTestRepository();
+}
@@ -0,0 +1,43 @@
+//
+// Depot library - a Java relational persistence library
+// https://github.com/threerings/depot/blob/master/LICENSE
+
+package com.samskivert.depot;
+
+import com.samskivert.depot.annotation.GeneratedValue;
+import com.samskivert.depot.annotation.GenerationType;
+import com.samskivert.depot.annotation.Id;
+import com.samskivert.depot.annotation.TableGenerator;
+import com.samskivert.depot.expression.ColumnExp;
+
+@TableGenerator(name="tableGenerated", pkColumnValue="TABLE_GENERATED")
+public class TableGeneratedRecord extends PersistentRecord
+{
+    // AUTO-GENERATED: FIELDS START
+    public static final Class<TableGeneratedRecord> _R = TableGeneratedRecord.class;
+    public static final ColumnExp<Long> RECORD_ID = colexp(_R, "recordId");
+    public static final ColumnExp<Integer> OWNER = colexp(_R, "owner");
+    // AUTO-GENERATED: FIELDS END
+
+    public static final int SCHEMA_VERSION = 1;
+
+    @Id @GeneratedValue(strategy=GenerationType.TABLE, generator="tableGenerated",
+                        allocationSize=10)
+    public long recordId;
+
+    public int owner;
+
+    // AUTO-GENERATED: METHODS START
+    /**
+     * Create and return a primary {@link Key} to identify a {@link TableGeneratedRecord}
+     * with the supplied key values.
+     */
+    public static Key<TableGeneratedRecord> getKey (long recordId)
+    {
+        return newKey(_R, recordId);
+    }
+
+    /** Register the key fields in an order matching the getKey() factory. */
+    static { registerKeyFields(RECORD_ID); }
+    // AUTO-GENERATED: METHODS END
+}
@@ -5,6 +5,7 @@
 package com.samskivert.depot;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -31,6 +32,33 @@ public class TestCacheAdapter implements CacheAdapter
         return value;
     }
 
+    // from interface CacheAdapter
+    public <T> Map<Serializable, CachedValue<T>> lookupAll (
+        String cacheId, Collection<? extends Serializable> keys)
+    {
+        Map<Serializable, CachedValue<T>> result = Maps.newHashMap();
+        synchronized (_cache) {
+            for (Serializable key : keys) {
+                @SuppressWarnings("unchecked")
+                CachedValue<T> value = (CachedValue<T>) _cache.get(
+                    new Tuple<String, Serializable>(cacheId, key));
+                if (value != null) {
+                    result.put(key, value);
+                }
+            }
+            _bulkLookups++;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of calls made to {@link #lookupAll} on this adapter.
+     */
+    public int getBulkLookups ()
+    {
+        return _bulkLookups;
+    }
+
     // from interface CacheAdapter
     public <T> void store (CacheCategory category, String cacheId, Serializable key, T value)
     {
@@ -92,4 +120,5 @@ public class TestCacheAdapter implements CacheAdapter
     protected Map<Tuple<String, Serializable>, CachedValue<?>> _cache =
         Collections.synchronizedMap(
             Maps.<Tuple<String, Serializable>, CachedValue<?>>newHashMap());
+    protected volatile int _bulkLookups;
 }
@@ -47,5 +47,6 @@ public class TestRepository extends DepotRepository
     {
         classes.add(TestRecord.class);
         classes.add(EnumKeyRecord.class);
+        classes.add(MonkeyRecord.class);
     }
 }
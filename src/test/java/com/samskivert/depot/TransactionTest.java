@@ -4,6 +4,8 @@
 
 package com.samskivert.depot;
 
+import java.util.function.Supplier;
+
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -39,6 +41,60 @@ public class TransactionTest extends TestBase
         assertNull(_repo.loadNoCache(in2.recordId)); // we should get no result
     }
 
+    @Test public void testBinding () {
+        // a binding that (like a scoped value) binds a transaction only for the call's duration
+        final Transaction[] scope = new Transaction[1];
+        final int[] calls = new int[1];
+        Transaction.setBinding(new Transaction.Binding() {
+            public Transaction get () {
+                return scope[0];
+            }
+            public <T> T call (Transaction tx, Supplier<T> op) {
+                calls[0]++;
+                scope[0] = tx;
+                try {
+                    return op.get();
+                } finally {
+                    scope[0] = null;
+                }
+            }
+        });
+        try {
+            int inserted = Transaction.compute(_repo.ctx(), new Supplier<Integer>() {
+                public Integer get () {
+                    assertNotNull(Transaction.get());
+                    return _repo.insert(createTestRecord(1));
+                }
+            });
+            assertEquals(1, inserted);
+            assertEquals(1, calls[0]);
+            assertNull(Transaction.get());
+            assertNotNull(_repo.loadNoCache(1));
+
+            try {
+                Transaction.perform(_repo.ctx(), new Runnable() {
+                    public void run () {
+                        _repo.insert(createTestRecord(2));
+                        throw new IllegalStateException("Rollback!");
+                    }
+                });
+                fail("Transaction did not fail");
+            } catch (IllegalStateException ise) {
+                // expected
+            }
+            assertNull(_repo.loadNoCache(2));
+
+            // manually started transactions are still bound to the thread
+            Transaction tx = _repo.ctx().startTx();
+            assertSame(tx, Transaction.get());
+            tx.rollback();
+            assertNull(Transaction.get());
+        } finally {
+            Transaction.setBinding(null);
+            _repo.delete(TestRecord.getKey(1));
+        }
+    }
+
     // the HSQL in-memory database persists for the lifetime of the VM, which means we have to
     // clean up after ourselves in every test; thus we go ahead and share a repository
     protected TestRepository _repo = createTestRepository();